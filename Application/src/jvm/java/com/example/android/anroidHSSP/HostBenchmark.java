@@ -0,0 +1,195 @@
+package com.example.android.anroidHSSP;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Runs the {@link ThroughputBenchmark} on a desktop JVM, without a device: frames come from a
+ * {@link SimulatedCameraSource} and go through a {@link KernelPipeline}, the parts of a shot
+ * that do not need the model. {@code ./gradlew runHostPackBenchmark} starts it; see
+ * {@code build.gradle}.
+ * <p/>
+ * This is a pack-only benchmark. TensorFlow Lite has no JVM runtime here, so inference is not
+ * run and its time is missing from the report, which says so in its first line.
+ * <p/>
+ * Arguments are {@code name=value} pairs named like the app's benchmark extras: {@code frames},
+ * {@code burst}, {@code fps}, {@code interval_ms}, {@code queue}, {@code workers},
+ * {@code failure_rate} and {@code sequence}, a recorded RAW sequence to replay. {@code width}
+ * and {@code height} size the synthetic frames, {@code rate} is the ratio frames are packed at,
+ * {@code out} is the directory results are written to and {@code report} a file that receives
+ * the report, which is also printed.
+ */
+public class HostBenchmark {
+
+    /**
+     * Packs each frame into the model's tensor with {@link BayerKernels#get()}, unpacks it again
+     * as if it were the model's output, and writes the samples, on buffers owned by each worker
+     * thread.
+     */
+    public static class KernelPipeline implements ThroughputBenchmark.Pipeline {
+        private final int mWidth;
+        private final int mHeight;
+        private final int[][] mPositions;
+        private final float mRate;
+        private final File mOutputDir;
+        private final BayerKernel mKernel = BayerKernels.get();
+        private final ThreadLocal<byte[]> mRaw = new ThreadLocal<>();
+        private final ThreadLocal<float[]> mTensor = new ThreadLocal<>();
+
+        public KernelPipeline(int width, int height, String bayerPattern, float rate,
+                              File outputDir) {
+            mWidth = width;
+            mHeight = height;
+            mPositions = quadPositions(bayerPattern);
+            mRate = rate;
+            mOutputDir = outputDir;
+        }
+
+        public BayerKernel getKernel() {
+            return mKernel;
+        }
+
+        @Override
+        public void process(int index, ByteBuffer frame, CaptureTelemetry.Capture capture)
+                throws IOException {
+            byte[] raw = mRaw.get();
+            float[] tensor = mTensor.get();
+            if (raw == null) {
+                capture.stage("allocate");
+                raw = new byte[mWidth * mHeight * 2];
+                tensor = new float[mWidth * mHeight];
+                mRaw.set(raw);
+                mTensor.set(tensor);
+            }
+            capture.stage("copy");
+            ByteBuffer data = frame.duplicate();
+            data.position(0);
+            data.get(raw);
+            capture.stage("pack");
+            mKernel.pack(raw, 0, mWidth, mPositions, mRate, tensor, null, mHeight / 2,
+                    mWidth / 2);
+            capture.stage("unpack");
+            mKernel.unpack(tensor, mHeight / 2, mWidth / 2, raw, 0, mWidth, mPositions);
+            capture.stage("write");
+            File file = new File(mOutputDir, "benchmark_" + Thread.currentThread().getId()
+                    + ".raw");
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                output.write(raw);
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+        }
+
+        /**
+         * @return the position within a 2x2 block of R, G1, B and G2, as in
+         * {@link DenoisingModel#setBayerPattern(String)}.
+         */
+        static int[][] quadPositions(String bayerPattern) {
+            int[][] slices = {{0, 0}, {0, 1}, {1, 0}, {1, 1}};
+            return new int[][]{slices[bayerPattern.indexOf('R')],
+                    slices[bayerPattern.indexOf('G')], slices[bayerPattern.indexOf('B')],
+                    slices[bayerPattern.lastIndexOf('G')]};
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        String sequence = null;
+        float rate = 1;
+        File outputDir = new File(System.getProperty("java.io.tmpdir"));
+        File reportFile = null;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            String name = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "frames":
+                    config.totalFrames = Integer.parseInt(value);
+                    break;
+                case "burst":
+                    config.burstLength = Integer.parseInt(value);
+                    break;
+                case "fps":
+                    config.framesPerSecond = Float.parseFloat(value);
+                    break;
+                case "interval_ms":
+                    config.burstIntervalMs = Long.parseLong(value);
+                    break;
+                case "queue":
+                    config.queueCapacity = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    config.workers = Integer.parseInt(value);
+                    break;
+                case "failure_rate":
+                    config.failureRate = Float.parseFloat(value);
+                    break;
+                case "width":
+                    config.width = Integer.parseInt(value);
+                    break;
+                case "height":
+                    config.height = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    rate = Float.parseFloat(value);
+                    break;
+                case "sequence":
+                    sequence = value;
+                    break;
+                case "out":
+                    outputDir = new File(value);
+                    break;
+                case "report":
+                    reportFile = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create " + outputDir);
+        }
+
+        RawSequenceReader reader = null;
+        try {
+            String bayerPattern = "RGGB";
+            if (sequence != null) {
+                reader = new RawSequenceReader(new File(sequence));
+                config.width = reader.getWidth();
+                config.height = reader.getHeight();
+                bayerPattern = reader.getBayerPattern();
+            }
+            KernelPipeline pipeline = new KernelPipeline(config.width, config.height,
+                    bayerPattern, rate, outputDir);
+            ThroughputBenchmark benchmark = new ThroughputBenchmark(config, pipeline,
+                    new JvmRuntimeStats());
+            if (reader != null) {
+                benchmark.setFrameProvider(SimulatedCameraSource.fromSequence(reader));
+            }
+            ThroughputBenchmark.Report report = benchmark.run();
+            String text = String.format(Locale.US, "pack-only, no inference; kernel: %s\n",
+                    pipeline.getKernel().getClass().getSimpleName()) + report;
+            System.out.print(text);
+            if (reportFile != null) {
+                FileOutputStream output = new FileOutputStream(reportFile);
+                try {
+                    output.write(text.getBytes("UTF-8"));
+                } finally {
+                    output.close();
+                }
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
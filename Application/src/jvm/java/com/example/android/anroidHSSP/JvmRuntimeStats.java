@@ -0,0 +1,80 @@
+package com.example.android.anroidHSSP;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * {@link RuntimeStats} of a desktop JVM, from its management beans. Thread allocation needs a
+ * HotSpot-based JDK and reads 0 elsewhere. The collectors' beans count pauses, so blocking GC
+ * time is the whole GC time, and native memory is the direct buffers in use.
+ */
+public class JvmRuntimeStats implements RuntimeStats {
+
+    private final java.lang.management.ThreadMXBean mThreads =
+            ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> mCollectors =
+            ManagementFactory.getGarbageCollectorMXBeans();
+    private final List<BufferPoolMXBean> mBufferPools =
+            ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    @Override
+    public long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public long threadAllocatedBytes() {
+        if (mThreads instanceof com.sun.management.ThreadMXBean) {
+            long bytes = ((com.sun.management.ThreadMXBean) mThreads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+            return Math.max(0, bytes);
+        }
+        return 0;
+    }
+
+    @Override
+    public long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : mCollectors) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    @Override
+    public long gcTimeMs() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : mCollectors) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    @Override
+    public long blockingGcTimeMs() {
+        return gcTimeMs();
+    }
+
+    @Override
+    public long nativeHeapBytes() {
+        for (BufferPoolMXBean pool : mBufferPools) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void startAllocCounting() {
+        if (mThreads instanceof com.sun.management.ThreadMXBean) {
+            ((com.sun.management.ThreadMXBean) mThreads).setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    @Override
+    public void stopAllocCounting() {
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.android.anroidHSSP;
+
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link BayerKernel} on the incubating Java Vector API, for desktop JDKs (16 and later, run
+ * with {@code --add-modules jdk.incubator.vector}). Android has no Vector API, so this source
+ * root is not part of the app build; {@link BayerKernels#get()} loads it by name when present.
+ * <p/>
+ * A step handles the same {@code n} samples of both rows of a quad row, n being the preferred
+ * float lane count: n / 2 quads. Samples are loaded as unsigned 16-bit values, widened to
+ * floats, deinterleaved into R, G1, B, G2 order with two-vector shuffles and then scaled,
+ * clamped and gamma-corrected with {@link VectorOperators#POW}. Unpacking runs the same steps
+ * backwards. Quads left over at the end of a row go through {@link ScalarBayerKernel}'s
+ * arithmetic.
+ */
+public class VectorBayerKernel implements BayerKernel {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = FLOATS.length();
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS =
+            VectorSpecies.of(short.class, VectorShape.forBitSize(LANES * Short.SIZE));
+
+    private static final float PACK_GAMMA = (float) (1 / GAMMA);
+    private static final float UNPACK_GAMMA = (float) GAMMA;
+
+    public VectorBayerKernel() {
+        if (LANES < 4 || INTS.length() != LANES) {
+            throw new UnsupportedOperationException("No usable vector shape");
+        }
+    }
+
+    @Override
+    public void pack(byte[] raw, int offset, int rawWidth, int[][] positions, float rate,
+                     float[] tensor, short[] linear, int height, int width) {
+        VectorShuffle<Float> first = packShuffle(positions, 0);
+        VectorShuffle<Float> second = packShuffle(positions, 1);
+        int rowBytes = rawWidth * 2;
+        int step = LANES / 2;
+        int vectorWidth = width - width % step;
+        for (int i = 0; i < height; i++) {
+            int rowOffset = offset + i * 2 * rowBytes;
+            for (int j = 0; j < vectorWidth; j += step) {
+                int o = rowOffset + j * 4;
+                FloatVector top = load(raw, o);
+                FloatVector bottom = load(raw, o + rowBytes);
+                int t = (i * width + j) * 4;
+                packLanes(top.rearrange(first, bottom), rate, tensor, linear, t);
+                packLanes(top.rearrange(second, bottom), rate, tensor, linear, t + LANES);
+            }
+            for (int j = vectorWidth; j < width; j++) {
+                int base = rowOffset + j * 4;
+                int t = (i * width + j) * 4;
+                for (int c = 0; c < 4; c++) {
+                    int o = base + positions[c][0] * rowBytes + positions[c][1] * 2;
+                    float v = (raw[o] & 0xFF) | ((raw[o + 1] & 0xFF) << 8);
+                    if (linear != null) {
+                        linear[t + c] = (short) Math.max(0, v - BLACK_LEVEL);
+                    }
+                    v = rate * (v - BLACK_LEVEL) / (WHITE_LEVEL - BLACK_LEVEL);
+                    tensor[t + c] = (float) Math.pow(Math.min(1, Math.max(0, v)), 1 / GAMMA);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unpack(float[] tensor, int height, int width, byte[] raw, int offset,
+                       int rawWidth, int[][] positions) {
+        VectorShuffle<Float> top = unpackShuffle(positions, 0);
+        VectorShuffle<Float> bottom = unpackShuffle(positions, 1);
+        int rowBytes = rawWidth * 2;
+        int step = LANES / 2;
+        int vectorWidth = width - width % step;
+        for (int i = 0; i < height; i++) {
+            int rowOffset = offset + i * 2 * rowBytes;
+            for (int j = 0; j < vectorWidth; j += step) {
+                int t = (i * width + j) * 4;
+                FloatVector first = unpackLanes(tensor, t);
+                FloatVector second = unpackLanes(tensor, t + LANES);
+                int o = rowOffset + j * 4;
+                store(first.rearrange(top, second), raw, o);
+                store(first.rearrange(bottom, second), raw, o + rowBytes);
+            }
+            for (int j = vectorWidth; j < width; j++) {
+                int base = rowOffset + j * 4;
+                int t = (i * width + j) * 4;
+                for (int c = 0; c < 4; c++) {
+                    float v = (float) Math.pow(Math.min(1, Math.max(0, tensor[t + c])), GAMMA);
+                    int sample = (int) (v * (WHITE_LEVEL - BLACK_LEVEL) + BLACK_LEVEL);
+                    int o = base + positions[c][0] * rowBytes + positions[c][1] * 2;
+                    raw[o] = (byte) (sample & 0xFF);
+                    raw[o + 1] = (byte) ((sample >> 8) & 0xFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads {@link #LANES} unsigned little-endian 16-bit samples as floats.
+     */
+    private static FloatVector load(byte[] raw, int offset) {
+        ShortVector samples = ShortVector.fromByteArray(SHORTS, raw, offset,
+                ByteOrder.LITTLE_ENDIAN);
+        IntVector widened = (IntVector) samples.convertShape(VectorOperators.S2I, INTS, 0);
+        return (FloatVector) widened.and(0xFFFF).convert(VectorOperators.I2F, 0);
+    }
+
+    /**
+     * Stores samples as little-endian 16-bit values, truncated like an {@code (int)} cast.
+     */
+    private static void store(FloatVector samples, byte[] raw, int offset) {
+        samples.convertShape(VectorOperators.F2S, SHORTS, 0)
+                .intoByteArray(raw, offset, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Packs {@link #LANES} deinterleaved samples, {@code LANES / 4} quads, at {@code t}.
+     */
+    private static void packLanes(FloatVector samples, float rate, float[] tensor,
+                                  short[] linear, int t) {
+        FloatVector black = samples.sub(BLACK_LEVEL);
+        if (linear != null) {
+            ((ShortVector) black.max(0).convertShape(VectorOperators.F2S, SHORTS, 0))
+                    .intoArray(linear, t);
+        }
+        black.mul(rate).div(WHITE_LEVEL - BLACK_LEVEL)
+                .max(0).min(1)
+                .lanewise(VectorOperators.POW, PACK_GAMMA)
+                .intoArray(tensor, t);
+    }
+
+    private static FloatVector unpackLanes(float[] tensor, int t) {
+        return FloatVector.fromArray(FLOATS, tensor, t)
+                .max(0).min(1)
+                .lanewise(VectorOperators.POW, UNPACK_GAMMA)
+                .mul(WHITE_LEVEL - BLACK_LEVEL).add(BLACK_LEVEL);
+    }
+
+    /**
+     * Picks quad lanes from a top row (indices below {@link #LANES}) and a bottom row vector,
+     * for the first or second half of the step's quads.
+     */
+    private static VectorShuffle<Float> packShuffle(int[][] positions, int half) {
+        int[] indices = new int[LANES];
+        for (int l = 0; l < LANES; l++) {
+            int quad = half * LANES / 4 + l / 4;
+            int[] position = positions[l % 4];
+            indices[l] = position[0] * LANES + quad * 2 + position[1];
+        }
+        return VectorShuffle.fromArray(FLOATS, indices, 0);
+    }
+
+    /**
+     * The inverse of {@link #packShuffle}: picks one row's samples from the two vectors of
+     * quads.
+     */
+    private static VectorShuffle<Float> unpackShuffle(int[][] positions, int row) {
+        int[] indices = new int[LANES];
+        for (int l = 0; l < LANES; l++) {
+            int channel = 0;
+            while (positions[channel][0] != row || positions[channel][1] != l % 2) {
+                channel++;
+            }
+            indices[l] = (l / 2) * 4 + channel;
+        }
+        return VectorShuffle.fromArray(FLOATS, indices, 0);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link VectorBayerKernel} with {@link ScalarBayerKernel} on random frames, including
+ * widths that leave quads over at the end of a row, blocks that do not start at the frame's
+ * corner and tensor values outside [0, 1].
+ */
+public class VectorBayerKernelTest {
+
+    private static final int[][][] LAYOUTS = {
+            {{0, 0}, {0, 1}, {1, 0}, {1, 1}},
+            {{0, 1}, {0, 0}, {1, 1}, {1, 0}},
+            {{1, 0}, {0, 0}, {0, 1}, {1, 1}},
+            {{1, 1}, {0, 1}, {0, 0}, {1, 0}},
+    };
+    private static final float[] RATES = {1, 2.5f, 7, 100, 300};
+
+    private final BayerKernel mScalar = new ScalarBayerKernel();
+    private final BayerKernel mVector = new VectorBayerKernel();
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void isPickedOnThisRuntime() {
+        assertTrue(BayerKernels.get() instanceof VectorBayerKernel);
+        assertTrue(BayerKernels.matches(mVector, mScalar));
+    }
+
+    @Test
+    public void packsLikeTheScalarKernel() {
+        for (int trial = 0; trial < 40; trial++) {
+            int width = 1 + mRandom.nextInt(70);
+            int height = 1 + mRandom.nextInt(12);
+            int left = mRandom.nextInt(3);
+            int top = mRandom.nextInt(3);
+            int rawWidth = (width + left) * 2 + mRandom.nextInt(5);
+            int rawHeight = (height + top) * 2;
+            byte[] raw = randomFrame(rawWidth, rawHeight);
+            int offset = (top * 2 * rawWidth + left * 2) * 2;
+            int size = width * height * 4;
+            for (int[][] positions : LAYOUTS) {
+                for (float rate : RATES) {
+                    float[] expected = new float[size];
+                    float[] actual = new float[size];
+                    short[] expectedLinear = new short[size];
+                    short[] actualLinear = new short[size];
+                    mScalar.pack(raw, offset, rawWidth, positions, rate, expected,
+                            expectedLinear, height, width);
+                    mVector.pack(raw, offset, rawWidth, positions, rate, actual, actualLinear,
+                            height, width);
+                    for (int i = 0; i < size; i++) {
+                        assertEquals(expected[i], actual[i], BayerKernel.PACK_TOLERANCE);
+                        assertEquals(expectedLinear[i], actualLinear[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void packsWithoutLinearOutput() {
+        int width = 37;
+        int height = 5;
+        byte[] raw = randomFrame(width * 2, height * 2);
+        float[] expected = new float[width * height * 4];
+        float[] actual = new float[width * height * 4];
+        mScalar.pack(raw, 0, width * 2, LAYOUTS[0], 4, expected, null, height, width);
+        mVector.pack(raw, 0, width * 2, LAYOUTS[0], 4, actual, null, height, width);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], BayerKernel.PACK_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void unpacksLikeTheScalarKernel() {
+        for (int trial = 0; trial < 40; trial++) {
+            int width = 1 + mRandom.nextInt(70);
+            int height = 1 + mRandom.nextInt(12);
+            int left = mRandom.nextInt(3);
+            int top = mRandom.nextInt(3);
+            int rawWidth = (width + left) * 2 + mRandom.nextInt(5);
+            int rawHeight = (height + top) * 2;
+            int offset = (top * 2 * rawWidth + left * 2) * 2;
+            float[] tensor = new float[width * height * 4];
+            for (int i = 0; i < tensor.length; i++) {
+                tensor[i] = mRandom.nextFloat() * 1.2f - 0.1f;
+            }
+            for (int[][] positions : LAYOUTS) {
+                // Both start from the same frame, so samples outside the block must survive.
+                byte[] expected = randomFrame(rawWidth, rawHeight);
+                byte[] actual = expected.clone();
+                mScalar.unpack(tensor, height, width, expected, offset, rawWidth, positions);
+                mVector.unpack(tensor, height, width, actual, offset, rawWidth, positions);
+                for (int i = 0; i < expected.length; i += 2) {
+                    int e = (expected[i] & 0xFF) | ((expected[i + 1] & 0xFF) << 8);
+                    int a = (actual[i] & 0xFF) | ((actual[i + 1] & 0xFF) << 8);
+                    assertTrue("sample " + i / 2 + ": " + e + " vs " + a,
+                            Math.abs(e - a) <= BayerKernel.UNPACK_TOLERANCE);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return samples from 0 to a little above the white level.
+     */
+    private byte[] randomFrame(int width, int height) {
+        byte[] raw = new byte[width * height * 2];
+        for (int i = 0; i < raw.length; i += 2) {
+            int v = mRandom.nextInt(BayerKernel.WHITE_LEVEL + 64);
+            raw[i] = (byte) v;
+            raw[i + 1] = (byte) (v >> 8);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.anroidHSSP;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+/**
+ * {@link RuntimeStats} of ART. Thread allocation is counted by {@link Debug#getThreadAllocSize()},
+ * an int that wraps, and GC counts and times come from ART's runtime statistics.
+ */
+public class ArtRuntimeStats implements RuntimeStats {
+
+    private static final String STAT_GC_COUNT = "art.gc.gc-count";
+    private static final String STAT_GC_TIME = "art.gc.gc-time";
+    private static final String STAT_BLOCKING_GC_TIME = "art.gc.blocking-gc-time";
+
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public long threadAllocatedBytes() {
+        return Debug.getThreadAllocSize();
+    }
+
+    @Override
+    public long gcCount() {
+        return getStat(STAT_GC_COUNT);
+    }
+
+    @Override
+    public long gcTimeMs() {
+        return getStat(STAT_GC_TIME);
+    }
+
+    @Override
+    public long blockingGcTimeMs() {
+        return getStat(STAT_BLOCKING_GC_TIME);
+    }
+
+    @Override
+    public long nativeHeapBytes() {
+        return Debug.getNativeHeapAllocatedSize();
+    }
+
+    @Override
+    public void startAllocCounting() {
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    public void stopAllocCounting() {
+        Debug.stopAllocCounting();
+    }
+
+    private static long getStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
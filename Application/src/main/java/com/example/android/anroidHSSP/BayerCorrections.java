@@ -0,0 +1,292 @@
+package com.example.android.anroidHSSP;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.LensShadingMap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Sensor corrections for one shot, and the pass that packs a RAW frame with them: a drop-in for
+ * {@link BayerKernel#pack} where the frame needs more than the nominal black level.
+ * <p/>
+ * Each sample is read once, and on the way to the tensor it is
+ * <ol>
+ * <li>replaced by the median of its four same-color neighbours if it is a hot or dead pixel,
+ * standing out from all of them by more than {@link #DEFECT_GAIN} times and
+ * {@link #DEFECT_THRESHOLD} digital numbers;</li>
+ * <li>black-level subtracted with its own channel's level;</li>
+ * <li>multiplied by the lens shading gain, bilinearly interpolated from the map;</li>
+ * <li>normalized by its channel's range up to the white level, amplified, clamped and
+ * gamma-encoded as by {@link BayerKernel}.</li>
+ * </ol>
+ * Any of the corrections can be left out. Rows of quads are split into bands that run in
+ * parallel with {@link ProcessingPools#runAll}.
+ */
+public class BayerCorrections {
+
+    /** Bands the rows of quads are split into. */
+    static final int BANDS = 4;
+
+    /** A sample more than this many times its brightest neighbour, plus the threshold, is hot. */
+    static final float DEFECT_GAIN = 2;
+
+    /** Digital numbers above black a sample must stand out by to count as a defect. */
+    static final float DEFECT_THRESHOLD = 32;
+
+    /** Lens shading map channels, see {@link LensShadingMap}. */
+    private static final int MAP_R = 0;
+    private static final int MAP_G_EVEN = 1;
+    private static final int MAP_G_ODD = 2;
+    private static final int MAP_B = 3;
+
+    /** Black level of each position of the 2x2 block, row by row. */
+    final float[] blackLevels;
+    final float whiteLevel;
+    final boolean defects;
+
+    /**
+     * Gains of the lens shading map, {@code R, G_even, G_odd, B} for each point, row by row, or
+     * null to leave shading alone.
+     */
+    final float[] shadingGains;
+    final int mapRows;
+    final int mapColumns;
+
+    BayerCorrections(float[] blackLevels, float whiteLevel, boolean defects,
+                     float[] shadingGains, int mapRows, int mapColumns) {
+        this.blackLevels = blackLevels;
+        this.whiteLevel = whiteLevel;
+        this.defects = defects;
+        this.shadingGains = shadingGains;
+        this.mapRows = mapRows;
+        this.mapColumns = mapColumns;
+    }
+
+    /**
+     * Reads the corrections of a shot from its metadata. Levels come from the dynamic black and
+     * white levels when the camera reports them, or else from the static ones. Shading needs the
+     * request to have set {@code STATISTICS_LENS_SHADING_MAP_MODE} on.
+     *
+     * @param levels  whether to use the camera's black and white levels rather than the nominal
+     *                {@link BayerKernel#BLACK_LEVEL} and {@link BayerKernel#WHITE_LEVEL}.
+     * @param defects whether to correct hot and dead pixels.
+     * @param shading whether to apply the lens shading map.
+     * @return the corrections, or null if none of them applies, so the frame packs with a plain
+     * {@link BayerKernel}.
+     */
+    public static BayerCorrections fromCapture(CameraCharacteristics characteristics,
+                                               CaptureResult result, boolean levels,
+                                               boolean defects, boolean shading) {
+        float[] blackLevels = {BayerKernel.BLACK_LEVEL, BayerKernel.BLACK_LEVEL,
+                BayerKernel.BLACK_LEVEL, BayerKernel.BLACK_LEVEL};
+        float whiteLevel = BayerKernel.WHITE_LEVEL;
+        boolean nominal = true;
+        if (levels) {
+            float[] dynamic = getDynamic(result, "SENSOR_DYNAMIC_BLACK_LEVEL");
+            BlackLevelPattern pattern =
+                    characteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+            if (dynamic != null && dynamic.length == 4) {
+                blackLevels = dynamic.clone();
+            } else if (pattern != null) {
+                for (int i = 0; i < 4; i++) {
+                    blackLevels[i] = pattern.getOffsetForIndex(i % 2, i / 2);
+                }
+            }
+            Integer white = getDynamic(result, "SENSOR_DYNAMIC_WHITE_LEVEL");
+            if (white == null) {
+                white = characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+            }
+            if (white != null) {
+                whiteLevel = white;
+            }
+            for (float black : blackLevels) {
+                nominal &= black == BayerKernel.BLACK_LEVEL;
+            }
+            nominal &= whiteLevel == BayerKernel.WHITE_LEVEL;
+        }
+        float[] gains = null;
+        int rows = 0;
+        int columns = 0;
+        LensShadingMap map = shading
+                ? result.get(CaptureResult.STATISTICS_LENS_SHADING_CORRECTION_MAP) : null;
+        if (map != null && map.getRowCount() > 1 && map.getColumnCount() > 1) {
+            rows = map.getRowCount();
+            columns = map.getColumnCount();
+            gains = new float[map.getGainFactorCount()];
+            map.copyGainFactors(gains, 0);
+        }
+        if (nominal && !defects && gains == null) {
+            return null;
+        }
+        return new BayerCorrections(blackLevels, whiteLevel, defects, gains, rows, columns);
+    }
+
+    /**
+     * Packs like {@link BayerKernel#pack}, with the corrections.
+     *
+     * @param raw       the whole frame, {@code rawWidth} x {@code rawHeight} samples, so defects
+     *                  and shading can be placed on the sensor.
+     * @param top       row in the frame of the top-left sample to pack.
+     * @param left      column in the frame of the top-left sample to pack.
+     * @param positions row and column, within a 2x2 block, of R, G1, B and G2.
+     * @param tensor    receives {@code height * width * 4} values.
+     * @param linear    if not null, receives the corrected samples in tensor order, scaled to
+     *                  the nominal range, so they re-amplify like the kernels' linear samples.
+     * @param executor  runs bands alongside the calling thread.
+     */
+    public void pack(final byte[] raw, final int rawWidth, final int rawHeight, final int top,
+                     final int left, final int[][] positions, final float rate,
+                     final float[] tensor, final short[] linear, final int height,
+                     final int width, Executor executor) {
+        final float[] black = new float[4];
+        final float[] scale = new float[4];
+        final float[] toNominal = new float[4];
+        final int[] mapChannels = new int[4];
+        for (int c = 0; c < 4; c++) {
+            black[c] = blackLevels[positions[c][0] * 2 + positions[c][1]];
+            float range = Math.max(1, whiteLevel - black[c]);
+            scale[c] = rate / range;
+            toNominal[c] = (BayerKernel.WHITE_LEVEL - BayerKernel.BLACK_LEVEL) / range;
+            mapChannels[c] = (c == 0) ? MAP_R : (c == 2) ? MAP_B
+                    : ((top + positions[c][0]) % 2 == 0) ? MAP_G_EVEN : MAP_G_ODD;
+        }
+        // Horizontal interpolation of the map is the same for every row.
+        final int[] mapColumn = new int[width];
+        final float[] mapWeight = new float[width];
+        if (shadingGains != null) {
+            for (int j = 0; j < width; j++) {
+                float x = mapCoordinate(left + 2 * j + 1, rawWidth, mapColumns);
+                mapColumn[j] = Math.min((int) x, mapColumns - 2);
+                mapWeight[j] = x - mapColumn[j];
+            }
+        }
+        List<Callable<Void>> bands = new ArrayList<>();
+        for (int b = 0; b < BANDS; b++) {
+            final int first = height * b / BANDS;
+            final int last = height * (b + 1) / BANDS;
+            bands.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    float[] rowGains = shadingGains != null ? new float[mapColumns * 4] : null;
+                    for (int i = first; i < last; i++) {
+                        if (rowGains != null) {
+                            interpolateRow(top + 2 * i + 1, rawHeight, rowGains);
+                        }
+                        packRow(raw, rawWidth, rawHeight, top + 2 * i, left, positions, black,
+                                scale, toNominal, mapChannels, rowGains, mapColumn, mapWeight,
+                                tensor, linear, i * width * 4, width);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            ProcessingPools.runAll(bands, executor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void packRow(byte[] raw, int rawWidth, int rawHeight, int y, int left,
+                         int[][] positions, float[] black, float[] scale, float[] toNominal,
+                         int[] mapChannels, float[] rowGains, int[] mapColumn, float[] mapWeight,
+                         float[] tensor, short[] linear, int t, int width) {
+        for (int j = 0; j < width; j++, t += 4) {
+            int x = left + 2 * j;
+            for (int c = 0; c < 4; c++) {
+                int py = y + positions[c][0];
+                int px = x + positions[c][1];
+                float v = sample(raw, rawWidth, py, px);
+                if (defects) {
+                    v = correctDefect(raw, rawWidth, rawHeight, py, px, v, black[c]);
+                }
+                v -= black[c];
+                if (rowGains != null) {
+                    int m = mapColumn[j] * 4 + mapChannels[c];
+                    v *= rowGains[m] + mapWeight[j] * (rowGains[m + 4] - rowGains[m]);
+                }
+                if (linear != null) {
+                    linear[t + c] = (short) Math.max(0, Math.min(0xFFFF,
+                            Math.round(v * toNominal[c])));
+                }
+                v *= scale[c];
+                tensor[t + c] = (float) Math.pow(v < 0 ? 0 : v > 1 ? 1 : v,
+                        1 / BayerKernel.GAMMA);
+            }
+        }
+    }
+
+    /**
+     * @return {@code v}, or the median of its four same-color neighbours if {@code v} stands
+     * out from all of them. Neighbours past the edge of the frame are mirrored.
+     */
+    private static float correctDefect(byte[] raw, int rawWidth, int rawHeight, int y, int x,
+                                       float v, float black) {
+        float signal = v - black;
+        float l = sample(raw, rawWidth, y, x >= 2 ? x - 2 : x + 2);
+        float r = sample(raw, rawWidth, y, x + 2 < rawWidth ? x + 2 : x - 2);
+        // Most samples are ruled out by the neighbours in their own row.
+        if (signal <= DEFECT_GAIN * (Math.max(l, r) - black) + DEFECT_THRESHOLD
+                && DEFECT_GAIN * signal + DEFECT_THRESHOLD >= Math.min(l, r) - black) {
+            return v;
+        }
+        float up = sample(raw, rawWidth, y >= 2 ? y - 2 : y + 2, x);
+        float down = sample(raw, rawWidth, y + 2 < rawHeight ? y + 2 : y - 2, x);
+        float hi = Math.max(Math.max(up, down), Math.max(l, r));
+        float lo = Math.min(Math.min(up, down), Math.min(l, r));
+        boolean hot = signal > DEFECT_GAIN * (hi - black) + DEFECT_THRESHOLD;
+        boolean dead = DEFECT_GAIN * signal + DEFECT_THRESHOLD < lo - black;
+        return (hot || dead) ? (up + down + l + r - hi - lo) / 2 : v;
+    }
+
+    /**
+     * Interpolates the map vertically at frame row {@code y} into {@code rowGains}.
+     */
+    private void interpolateRow(int y, int rawHeight, float[] rowGains) {
+        float my = mapCoordinate(y, rawHeight, mapRows);
+        int row = Math.min((int) my, mapRows - 2);
+        float weight = my - row;
+        int above = row * mapColumns * 4;
+        int below = above + mapColumns * 4;
+        for (int k = 0; k < rowGains.length; k++) {
+            rowGains[k] = shadingGains[above + k]
+                    + weight * (shadingGains[below + k] - shadingGains[above + k]);
+        }
+    }
+
+    /**
+     * @return where frame position {@code p} falls on a map axis of at least two points, spread
+     * evenly from the first to the last sample.
+     */
+    private static float mapCoordinate(int p, int size, int points) {
+        return Math.max(0, Math.min(points - 1, (float) p * (points - 1) / (size - 1)));
+    }
+
+    /**
+     * @return the value of a dynamic level key of {@link CaptureResult}, or null before Android P.
+     * The keys are looked up by name, since they are newer than the SDK the app is compiled
+     * against.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T getDynamic(CaptureResult result, String name) {
+        if (Build.VERSION.SDK_INT < 28) {
+            return null;
+        }
+        try {
+            return result.get((CaptureResult.Key<T>) CaptureResult.class.getField(name).get(null));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static float sample(byte[] raw, int rawWidth, int y, int x) {
+        int o = (y * rawWidth + x) * 2;
+        return (raw[o] & 0xFF) | ((raw[o + 1] & 0xFF) << 8);
+    }
+}
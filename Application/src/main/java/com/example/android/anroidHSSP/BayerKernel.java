@@ -0,0 +1,40 @@
+package com.example.android.anroidHSSP;
+
+/**
+ * Converts between a RAW frame (little-endian 16-bit samples) and the model's tensor of Bayer
+ * quads.
+ * <p/>
+ * Packing subtracts the black level, amplifies by the ratio, clamps to [0, 1], applies gamma
+ * 1 / {@link #GAMMA} and deinterleaves each 2x2 block into channels R, G1, B, G2. Unpacking is
+ * the inverse, interleaving back into the frame. {@link BayerKernels#get()} picks the
+ * implementation.
+ */
+public interface BayerKernel {
+
+    int BLACK_LEVEL = 64;
+    int WHITE_LEVEL = 1024;
+    double GAMMA = 2.22;
+
+    /** Largest difference of a packed value from the scalar kernel's. */
+    float PACK_TOLERANCE = 1e-5f;
+
+    /** Largest difference of an unpacked sample, in digital numbers, from the scalar kernel's. */
+    int UNPACK_TOLERANCE = 1;
+
+    /**
+     * @param raw       the frame, {@code rawWidth} samples per row.
+     * @param offset    byte offset in {@code raw} of the top-left sample to pack.
+     * @param positions row and column, within a 2x2 block, of R, G1, B and G2.
+     * @param tensor    receives {@code height * width * 4} values.
+     * @param linear    if not null, receives the black-level-subtracted samples in tensor order.
+     */
+    void pack(byte[] raw, int offset, int rawWidth, int[][] positions, float rate,
+              float[] tensor, short[] linear, int height, int width);
+
+    /**
+     * Writes {@code 2 * height} x {@code 2 * width} samples of {@code raw}, starting at byte
+     * {@code offset}.
+     */
+    void unpack(float[] tensor, int height, int width, byte[] raw, int offset, int rawWidth,
+                int[][] positions);
+}
@@ -0,0 +1,102 @@
+package com.example.android.anroidHSSP;
+
+import java.util.Random;
+
+/**
+ * Picks the fastest {@link BayerKernel} this runtime supports.
+ * <p/>
+ * On a desktop JDK started with {@code --add-modules jdk.incubator.vector}, and with
+ * {@code src/jvm/java} on the class path, that is {@code VectorBayerKernel}. It is only used
+ * after it matches {@link ScalarBayerKernel} within {@link BayerKernel#PACK_TOLERANCE} and
+ * {@link BayerKernel#UNPACK_TOLERANCE} on a test frame. Everywhere else, including Android, the
+ * scalar kernel is used.
+ */
+public class BayerKernels {
+
+    private static final String VECTOR_API = "jdk.incubator.vector.FloatVector";
+    private static final String VECTOR_KERNEL =
+            "com.example.android.anroidHSSP.VectorBayerKernel";
+
+    private static final int CHECK_HEIGHT = 16;
+    private static final int CHECK_WIDTH = 40;
+    private static final float[] CHECK_RATES = {1, 7, 100};
+    /** Test samples cover the black level and a little above the white level. */
+    private static final int CHECK_RANGE = BayerKernel.WHITE_LEVEL + 64;
+
+    private static BayerKernel sKernel;
+
+    public static synchronized BayerKernel get() {
+        if (sKernel == null) {
+            BayerKernel scalar = new ScalarBayerKernel();
+            BayerKernel vector = loadVectorKernel();
+            sKernel = (vector != null && matches(vector, scalar)) ? vector : scalar;
+        }
+        return sKernel;
+    }
+
+    private static BayerKernel loadVectorKernel() {
+        try {
+            Class.forName(VECTOR_API);
+            return (BayerKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compares two kernels on a random frame, with every Bayer layout and a few ratios.
+     */
+    static boolean matches(BayerKernel kernel, BayerKernel reference) {
+        int rawWidth = CHECK_WIDTH * 2 + 6;
+        int rawHeight = CHECK_HEIGHT * 2 + 2;
+        // The block starts two rows and two columns in.
+        int offset = (2 * rawWidth + 2) * 2;
+        byte[] raw = new byte[rawWidth * rawHeight * 2];
+        Random random = new Random(0);
+        for (int i = 0; i < raw.length; i += 2) {
+            int v = random.nextInt(CHECK_RANGE);
+            raw[i] = (byte) v;
+            raw[i + 1] = (byte) (v >> 8);
+        }
+        int size = CHECK_HEIGHT * CHECK_WIDTH * 4;
+        float[] expected = new float[size];
+        float[] actual = new float[size];
+        short[] expectedLinear = new short[size];
+        short[] actualLinear = new short[size];
+        byte[] expectedRaw = new byte[raw.length];
+        byte[] actualRaw = new byte[raw.length];
+        int[][][] layouts = {
+                {{0, 0}, {0, 1}, {1, 0}, {1, 1}},
+                {{0, 1}, {0, 0}, {1, 1}, {1, 0}},
+                {{1, 0}, {0, 0}, {0, 1}, {1, 1}},
+                {{1, 1}, {0, 1}, {0, 0}, {1, 0}},
+        };
+        for (int[][] positions : layouts) {
+            for (float rate : CHECK_RATES) {
+                reference.pack(raw, offset, rawWidth, positions, rate, expected, expectedLinear,
+                        CHECK_HEIGHT, CHECK_WIDTH);
+                kernel.pack(raw, offset, rawWidth, positions, rate, actual, actualLinear,
+                        CHECK_HEIGHT, CHECK_WIDTH);
+                for (int i = 0; i < size; i++) {
+                    if (Math.abs(expected[i] - actual[i]) > BayerKernel.PACK_TOLERANCE
+                            || expectedLinear[i] != actualLinear[i]) {
+                        return false;
+                    }
+                }
+                reference.unpack(expected, CHECK_HEIGHT, CHECK_WIDTH, expectedRaw, offset,
+                        rawWidth, positions);
+                kernel.unpack(expected, CHECK_HEIGHT, CHECK_WIDTH, actualRaw, offset,
+                        rawWidth, positions);
+                for (int i = 0; i < raw.length; i += 2) {
+                    int e = (expectedRaw[i] & 0xFF) | ((expectedRaw[i + 1] & 0xFF) << 8);
+                    int a = (actualRaw[i] & 0xFF) | ((actualRaw[i + 1] & 0xFF) << 8);
+                    if (Math.abs(e - a) > BayerKernel.UNPACK_TOLERANCE) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -24,10 +24,14 @@ import android.app.DialogFragment;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.SensorManager;
@@ -41,29 +45,40 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.RggbChannelVector;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v13.app.FragmentCompat;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
+import android.util.Pair;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.OrientationEventListener;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -76,6 +91,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -85,7 +103,9 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -164,6 +184,186 @@ public class Camera2RawFragment extends Fragment
      */
     private static final int STATE_WAITING_FOR_3A_CONVERGENCE = 3;
 
+    /**
+     * Largest number of RAW frames kept in the zero-shutter-lag ring. Every slot is a full frame
+     * on the Java heap, about 24 MB at 12 MP, so the ring is made smaller when these would take
+     * more than {@link #ZSL_HEAP_FRACTION} of the heap limit, see {@link #zslRingCapacity(int)}.
+     */
+    private static final int ZSL_RING_SIZE = 4;
+
+    /**
+     * Largest fraction of {@link Runtime#maxMemory()} the ZSL ring may take.
+     */
+    private static final float ZSL_HEAP_FRACTION = 0.25f;
+
+    /**
+     * Number of frames before and after the one closest to the shutter press that are saved in
+     * zero-shutter-lag mode.
+     */
+    private static final int ZSL_PRE_FRAMES = 0;
+    private static final int ZSL_POST_FRAMES = 0;
+
+    /**
+     * Whether frames taken from the ZSL ring are losslessly compressed while they wait for the
+     * denoiser, so their ring slots can be reused right away.
+     */
+    private static final boolean COMPRESS_QUEUED_FRAMES = true;
+
+    /**
+     * Number of RAW frames the on-disk spill ring holds while the denoiser is busy.
+     */
+    private static final int SPILL_RING_SLOTS = 16;
+
+    /**
+     * Most frames in one bracketing sweep: as many as the spill ring holds, so a burst never
+     * waits for an ImageReader buffer.
+     */
+    private static final int MAX_SWEEP_FRAMES = SPILL_RING_SLOTS;
+
+    /**
+     * Exposures of an HDR bracket, in stops from the manual shutter speed, the manual one first.
+     * The merged frame is written at the manual exposure, so its ratio is that of a single shot.
+     */
+    private static final int[] HDR_BRACKET_STOPS = {0, -2, 2};
+
+    /**
+     * Name of the pre-allocated spill ring file in app storage.
+     */
+    private static final String SPILL_FILE_NAME = "raw_spill.ring";
+
+    /**
+     * Upper bound on the frames pre-allocated for one RAW sequence recording. The actual limit
+     * is lowered further to fit the free space on the device.
+     */
+    private static final int MAX_RECORD_FRAMES = 200;
+
+    /**
+     * Name of the deferred-processing journal in app storage.
+     */
+    private static final String DEFERRED_JOURNAL_NAME = "deferred_jobs.journal";
+
+    /**
+     * Number of deferred jobs denoised at the same time; each worker loads its own model.
+     */
+    private static final int DEFERRED_MAX_CONCURRENT = 1;
+
+    /**
+     * Priorities of deferred jobs. Frames that were spilled to disk during a burst wait for the
+     * other shots.
+     */
+    private static final int DEFERRED_PRIORITY_SHOT = 1;
+    private static final int DEFERRED_PRIORITY_BURST = 0;
+
+    /**
+     * Whether the review rendering is also saved as a JPEG next to the denoised DNG.
+     */
+    private static final boolean SAVE_REVIEW_JPEG = false;
+
+    private static final int REVIEW_JPEG_QUALITY = 85;
+
+    /**
+     * Number of recent shots whose linear tensors are kept on the heap for re-processing, and
+     * how many more are kept in app cache storage.
+     */
+    private static final int LINEAR_CACHE_MEMORY_ENTRIES = 2;
+    private static final int LINEAR_CACHE_DISK_ENTRIES = 8;
+    private static final String LINEAR_CACHE_DIR = "linear";
+
+    /**
+     * Shot-to-file latency the {@link QualityGovernor} tries to stay under, in milliseconds.
+     */
+    private static final long LATENCY_BUDGET_MS = 5000;
+
+    /**
+     * How often the thermal status is polled while the fragment is resumed, in milliseconds.
+     */
+    private static final long THERMAL_POLL_MS = 5000;
+
+    /**
+     * Whether to record per-stage allocation and GC telemetry for every shot. Allocation counting
+     * slows allocation down slightly.
+     */
+    private static final boolean CAPTURE_TELEMETRY = true;
+
+    private static final int TELEMETRY_RECORDS = 32;
+
+    /**
+     * Launch intent extras that run the {@link ThroughputBenchmark} instead of waiting for shots.
+     */
+    private static final String EXTRA_BENCHMARK = "benchmark";
+    private static final String EXTRA_BENCHMARK_FRAMES = "benchmark_frames";
+    private static final String EXTRA_BENCHMARK_BURST = "benchmark_burst";
+    private static final String EXTRA_BENCHMARK_FPS = "benchmark_fps";
+    private static final String EXTRA_BENCHMARK_INTERVAL_MS = "benchmark_interval_ms";
+    private static final String EXTRA_BENCHMARK_QUEUE = "benchmark_queue";
+    private static final String EXTRA_BENCHMARK_WORKERS = "benchmark_workers";
+    private static final String EXTRA_BENCHMARK_FAILURE_RATE = "benchmark_failure_rate";
+    private static final String EXTRA_BENCHMARK_SEQUENCE = "benchmark_sequence";
+    private static final String EXTRA_BENCHMARK_BATCH = "benchmark_batch";
+    private static final String EXTRA_BENCHMARK_TILE = "benchmark_tile";
+    private static final String EXTRA_BENCHMARK_BACKENDS = "benchmark_backends";
+    private static final String EXTRA_BENCHMARK_SKIP_TILES = "benchmark_skip_tiles";
+
+    private static final String BENCHMARK_REPORT = "benchmark.txt";
+
+    /**
+     * The denoising model, loaded from the assets.
+     */
+    private static final String MODEL_FILE = "model_float32.tflite";
+
+    /**
+     * How many interpreters the {@link ModelRegistry} keeps loaded, and how much model data they
+     * may hold together.
+     */
+    private static final int MODEL_CACHE_ENTRIES = 3;
+    private static final long MODEL_CACHE_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Resolution divisor of the quick first pass in progressive mode.
+     */
+    private static final int PROGRESSIVE_PREVIEW_SCALE = 2;
+
+    /**
+     * Shots whose measured noise, after amplification and relative to the white level, is below
+     * this are saved amplified but not denoised: about 1.5 digital numbers at a ratio of 1, less
+     * than the model visibly removes.
+     */
+    private static final float CLEAN_NOISE_LEVEL = 0.0015f;
+
+    /**
+     * Shots are amplified so that this percentile of their RAW samples reaches this level,
+     * relative to the white level: the median to a mid-tone, about where auto-exposure puts it.
+     */
+    private static final float EXPOSURE_PERCENTILE = 0.5f;
+    private static final float EXPOSURE_TARGET = 0.18f;
+
+    /**
+     * The largest amplification ratio a shot is given.
+     */
+    private static final float MAX_RATIO = 300;
+
+    private static final ExposureAnalyzer EXPOSURE_ANALYZER =
+            new ExposureAnalyzer(EXPOSURE_PERCENTILE, EXPOSURE_TARGET, MAX_RATIO);
+
+    /**
+     * Sensor corrections applied while packing, see {@link BayerCorrections}. Lens shading is
+     * off: {@link DngCreator} already writes the shading map into the DNG for raw converters to
+     * apply, so baking it into the denoised samples would correct it twice.
+     */
+    private static final boolean CORRECT_LEVELS = true;
+    private static final boolean CORRECT_DEFECTS = true;
+    private static final boolean CORRECT_LENS_SHADING = false;
+
+    /**
+     * Side of the region picked by a tap, as a fraction of the preview's shorter side.
+     */
+    private static final float ROI_TAP_SIZE = 0.3f;
+
+    /**
+     * Tile size, in quads, when tiles are spread over the GPU and the CPU.
+     */
+    private static final int SCHEDULER_TILE_SIZE = 256;
+
     /**
      * An {@link OrientationEventListener} used to determine when device rotation has occurred.
      * This is mainly necessary for when the device is rotated by 180 degrees, in which case
@@ -300,11 +500,16 @@ public class Camera2RawFragment extends Fragment
      */
 
     //**********************************************************************************************
-    private final TreeMap<Integer, ImageSaver.ImageSaverBuilder> mRawResultQueue = new TreeMap<>();
+    /**
+     * Pairs the still, HDR bracket and sweep requests with their RAW images. ZSL frames are
+     * paired by {@link ZslRingBuffer} instead.
+     */
+    private final CaptureMatcher<ImageSaver.ImageSaverBuilder> mRawResultQueue =
+            new CaptureMatcher<>();
     long toUS = 1000000000;
     int mISO;
     long mShutterSpeed;
-    int mRatio=1;
+    float mRatio = 1;
     long gtExposure;
     int gtIso;
     private Size largestRaw;
@@ -322,6 +527,185 @@ public class Camera2RawFragment extends Fragment
 
     DenoisingModel denoising;
 
+    /**
+     * Picks the model for each shot's ISO, ratio and noise profile, and keeps the recently used
+     * ones loaded for {@link #denoising}.
+     */
+    ModelRegistry mModelRegistry;
+
+    CheckBox mCheckBoxZsl;
+    boolean mZslEnabled;
+    ZslRingBuffer mZslRing;
+    RawFrameCodec mRawCodec;
+
+    /**
+     * Frames that arrive while an {@link ImageSaver} is still running are spilled to this ring
+     * and processed in order by {@link #mInferenceWorker}. The ring's file is only created on the
+     * first spill, see {@link #getSpillRingLocked(int)}.
+     */
+    SpillRing mSpillRing;
+    private boolean mSpillRingFailed;
+
+    /**
+     * Copies frames into their {@link #mSpillRing} slots off the camera handler, one at a time so
+     * spilled frames reach {@link #mInferenceWorker} in capture order.
+     */
+    private final ExecutorService mSpillWriter = Executors.newSingleThreadExecutor(
+            new ProcessingPools.PriorityThreadFactory("Spill",
+                    android.os.Process.THREAD_PRIORITY_FOREGROUND));
+
+    /**
+     * Runs every job that uses {@link #denoising}, one at a time in the order they are queued:
+     * savers that denoise, spilled frames, sweeps and merged HDR frames. The model keeps a shot's
+     * state from packing until its result is written, so it is only used from this thread.
+     */
+    private final ExecutorService mInferenceWorker = Executors.newSingleThreadExecutor(
+            new ProcessingPools.PriorityThreadFactory("Inference",
+                    android.os.Process.THREAD_PRIORITY_FOREGROUND));
+    private final AtomicInteger mSaversInFlight = new AtomicInteger();
+
+    /**
+     * Adds the frames of HDR brackets to their merger one at a time, so only the frame being
+     * added is read while the others wait in the {@link ImageReader}.
+     */
+    private final ExecutorService mHdrWorker = Executors.newSingleThreadExecutor(
+            new ProcessingPools.PriorityThreadFactory("Hdr",
+                    android.os.Process.THREAD_PRIORITY_FOREGROUND));
+
+    /**
+     * The merger of the last HDR bracket, reused by the next one once it is idle so its
+     * accumulator is not allocated for every shot.
+     */
+    private HdrMerger mHdrMerger;
+
+    /**
+     * The RAW sequence being recorded, or null when not recording.
+     */
+    CheckBox mCheckBoxRecord;
+    RawSequenceWriter mRecorder;
+    private final AtomicInteger mRecordDropped = new AtomicInteger();
+
+    /**
+     * In capture-first mode only the original DNG is written at capture time, and denoising is
+     * left to this queue, which runs while the camera is closed or the device is charging.
+     */
+    CheckBox mCheckBoxDeferred;
+    DeferredJobQueue mJobQueue;
+
+    /**
+     * In progressive mode a shot is first denoised at reduced resolution for display and sharing,
+     * and {@link #mFullDenoiser} replaces the file with the full-resolution result later, one
+     * shot at a time on {@link #mFullPassExecutor}.
+     */
+    CheckBox mCheckBoxProgressive;
+    DeferredDenoiser mFullDenoiser;
+    ExecutorService mFullPassExecutor;
+
+    /**
+     * In region mode only {@link #mRoiRegion}, picked by tapping or dragging on the preview, is
+     * denoised, and the rest of the frame is saved as captured. Deferred shots ignore it.
+     */
+    CheckBox mCheckBoxRoi;
+    View mRoiOverlay;
+    volatile Rect mRoiRegion;
+
+    /**
+     * The selection being dragged on the preview, in view coordinates.
+     */
+    private final RectF mRoiSelection = new RectF();
+
+    /**
+     * With this checked, the tiles of every shot that uses the default model are spread over
+     * a GPU and a CPU interpreter of {@link #mTileScheduler} instead of running on one.
+     */
+    CheckBox mCheckBoxTiles;
+    TileScheduler mTileScheduler;
+
+    /**
+     * With this checked, shots are denoised in tiles and tiles that do not need the model,
+     * such as clipped highlights and black borders, are left out, see {@link TileGrid}.
+     */
+    CheckBox mCheckBoxSkipTiles;
+
+    /**
+     * With this checked, the shutter takes a bracketing sweep as one burst, see
+     * {@link #captureSweep()}.
+     */
+    CheckBox mCheckBoxSweep;
+
+    /**
+     * With this checked, the shutter takes a short exposure bracket and merges it into one frame
+     * before denoising, see {@link #captureHdr()}.
+     */
+    CheckBox mCheckBoxHdr;
+
+    /**
+     * Renders the denoised result of every shot into {@link #mReviewImage}.
+     */
+    ReviewRenderer mReviewRenderer;
+    ImageView mReviewImage;
+
+    /**
+     * Linear tensors of recent shots, so they can be re-processed at another ratio.
+     */
+    LinearTensorCache mLinearCache;
+
+    /**
+     * Picks the denoiser's quality tier from thermal status, battery and measured latency.
+     */
+    QualityGovernor mGovernor;
+
+    /**
+     * Per-stage latency, allocation and GC counters of each shot, if enabled.
+     */
+    CaptureTelemetry mTelemetry;
+
+    /**
+     * {@code PowerManager.getCurrentThermalStatus}, found by reflection since it is newer than
+     * the SDK the app is compiled against, or null below Android Q.
+     */
+    private Method mThermalStatusMethod;
+
+    /**
+     * Reports the thermal status to {@link #mGovernor} and polls again after
+     * {@link #THERMAL_POLL_MS}.
+     */
+    private final Runnable mThermalPoll = new Runnable() {
+        @Override
+        public void run() {
+            Activity activity = getActivity();
+            if (activity == null || mThermalStatusMethod == null || mGovernor == null) {
+                return;
+            }
+            try {
+                int status = (Integer) mThermalStatusMethod.invoke(
+                        activity.getSystemService(Context.POWER_SERVICE));
+                mGovernor.onThermalStatus(status, SystemClock.elapsedRealtime());
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Log.e(TAG, "Could not read the thermal status", e);
+                return;
+            }
+            handler.postDelayed(this, THERMAL_POLL_MS);
+        }
+    };
+
+    private final ReviewRenderer.Callback mReviewCallback = new ReviewRenderer.Callback() {
+        @Override
+        public void onRendered(final Bitmap bitmap) {
+            final ImageView view = mReviewImage;
+            if (view == null) {
+                return;
+            }
+            view.post(new Runnable() {
+                @Override
+                public void run() {
+                    view.setImageBitmap(bitmap);
+                    view.setVisibility(View.VISIBLE);
+                }
+            });
+        }
+    };
+
 
     //**********************************************************************************************
     private final CameraCaptureSession.StateCallback mPreviewOpenCallback = new CameraCaptureSession.StateCallback() {
@@ -413,7 +797,14 @@ public class Camera2RawFragment extends Fragment
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-
+            if (mRecorder != null) {
+                recordImage(reader);
+                return;
+            }
+            if (mZslEnabled) {
+                addZslImage(reader);
+                return;
+            }
             dequeueAndSaveImage(mRawResultQueue, mRawImageReader);
         }
     };
@@ -436,8 +827,8 @@ public class Camera2RawFragment extends Fragment
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 mISO = progress*isoStep;
-                mRatio = (int) ((gtIso*gtExposure)/(mISO*mShutterSpeed));
-                mRatio = Math.max(1, mRatio);
+                updateRatio();
+                prefetchModel();
 
                 mTextViewISO.setX(seekBar.getThumb().getBounds().left);
                 mTextViewISO.setText(String.valueOf(mISO));
@@ -449,7 +840,11 @@ public class Camera2RawFragment extends Fragment
             }
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-
+                synchronized (mCameraStateLock) {
+                    if (mZslEnabled || mRecorder != null) {
+                        updatePreviewRequestLocked();
+                    }
+                }
             }
         });
     }
@@ -477,8 +872,8 @@ public class Camera2RawFragment extends Fragment
 
                 mTextViewShutter.setX(seekBar.getThumb().getBounds().left);
                 mTextViewShutter.setText("1/"+s2);
-                mRatio = (int) ((float)(gtIso*gtExposure)/((float) (mISO*mShutterSpeed)));
-                mRatio = Math.max(1, mRatio);
+                updateRatio();
+                prefetchModel();
             }
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
@@ -486,13 +881,47 @@ public class Camera2RawFragment extends Fragment
             }
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-
+                synchronized (mCameraStateLock) {
+                    if (mZslEnabled || mRecorder != null) {
+                        updatePreviewRequestLocked();
+                    }
+                }
             }
         });
 
 
 
 
+    }
+
+    /**
+     * Recomputes {@link #mRatio} from the last auto-exposed preview frame and the manual
+     * exposure the sliders are set to. Shots measure their ratio on the RAW frame instead, see
+     * {@link ExposureAnalyzer}; this one is shown on the preview, picks the model to prefetch,
+     * and is the fallback for frames that cannot be measured before packing.
+     */
+    private void updateRatio() {
+        mRatio = ratioFor(mISO, mShutterSpeed);
+    }
+
+    /**
+     * @return the amplification ratio of a manual exposure, relative to the last auto-exposed
+     * preview frame.
+     */
+    private float ratioFor(int sensitivity, long exposureTime) {
+        float ratio = (float) (gtIso * gtExposure) / ((float) sensitivity * exposureTime);
+        return Math.max(1, ratio);
+    }
+
+    /**
+     * Starts loading the model for the ISO and ratio the sliders are set to, so that it is ready
+     * when the shutter is pressed.
+     */
+    private void prefetchModel() {
+        DenoisingModel model = denoising;
+        if (model != null && mModelRegistry != null) {
+            model.prefetch(mModelRegistry.select(mISO, mRatio, ModelRegistry.NO_NOISE));
+        }
     }
 
     private final CameraCaptureSession.CaptureCallback mPreviewCallback
@@ -505,12 +934,38 @@ public class Camera2RawFragment extends Fragment
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
                                        TotalCaptureResult result) {
+            // While RAW is streamed the preview runs at the manual exposure, so keep the metering
+            // values from before and only hand the result on.
+            RawSequenceWriter recorder = mRecorder;
+            if (recorder != null) {
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (timestamp == null) {
+                    return;
+                }
+                // Not every device reports the exposure; the request's is what was asked for.
+                Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                if (iso == null) {
+                    iso = request.get(CaptureRequest.SENSOR_SENSITIVITY);
+                }
+                Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                if (exposureTime == null) {
+                    exposureTime = request.get(CaptureRequest.SENSOR_EXPOSURE_TIME);
+                }
+                Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+                recorder.addResult(timestamp, iso != null ? iso : mISO,
+                        exposureTime != null ? exposureTime : mShutterSpeed,
+                        frameDuration == null ? 0 : frameDuration, mRatio);
+                return;
+            }
+            if (mZslEnabled) {
+                mZslRing.addResult(result);
+                return;
+            }
             gtIso = result.get(CaptureResult.SENSOR_SENSITIVITY);
             gtExposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
             long frequency = (long) (1/((float) gtExposure/toUS));
-            mRatio = (int) ((float)(gtIso*gtExposure)/((float) (mISO*mShutterSpeed)));
-            mRatio = Math.max(1, mRatio);
-            mTextureViewAutoExp.setText(mRatio+"X faster");
+            updateRatio();
+            mTextureViewAutoExp.setText(String.format(Locale.US, "%.1fX faster", mRatio));
         }
 
         @Override
@@ -528,7 +983,8 @@ public class Camera2RawFragment extends Fragment
 //            Log.e("error", "denoising onCaptureStarted");
             // Look up the ImageSaverBuilder for this request and update it with the file name
             // based on the capture start time.
-            }
+            mRawResultQueue.setTimestamp((int) request.getTag(), timestamp);
+        }
 
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
@@ -537,23 +993,40 @@ public class Camera2RawFragment extends Fragment
             ImageSaver.ImageSaverBuilder rawBuilder;
             StringBuilder sb = new StringBuilder();
             String timeName = generateTimestamp();
-            File rawFile = new File(Environment.
-                        getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
-                        "RAW_" +  timeName+ ".dng");
-            File rawFileOri = new File(Environment.
-                    getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
-                    "RAW_" + timeName + "_ori_.dng");
             synchronized (mCameraStateLock) {
 
                 rawBuilder = mRawResultQueue.get(requestId);
                 if (rawBuilder != null) {
+                    float rate = mRatio;
+                    ExposureSweep.Setting setting = rawBuilder.getSweepSetting();
+                    if (setting != null) {
+                        // Sweep frames are named after the exposure the sensor actually used.
+                        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                        setting = new ExposureSweep.Setting(
+                                iso != null ? iso : setting.sensitivity,
+                                exposure != null ? exposure : setting.exposureTime);
+                        timeName = rawBuilder.getSweepName() + "_" + setting.label();
+                        rate = ratioFor(setting.sensitivity, setting.exposureTime);
+                    }
+                    File rawFile = new File(Environment.
+                            getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+                            "RAW_" + timeName + ".dng");
+                    File rawFileOri = new File(Environment.
+                            getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+                            "RAW_" + timeName + "_ori_.dng");
                     rawBuilder.setFile(rawFile);
                     rawBuilder.setFileOri(rawFileOri);
                     rawBuilder.setResult(result);
                     rawBuilder.setLargetSize(largestRaw);
                     rawBuilder.setDenoisingModel(denoising);
                     rawBuilder.setBayerPattern(bayerPattern);
-                    rawBuilder.setRate(mRatio);
+                    rawBuilder.setRate(rate);
+                    if (isDeferred()) {
+                        rawBuilder.setJobQueue(mJobQueue);
+                    } else {
+                        setPostCaptureStages(rawBuilder);
+                    }
                     sb.append("Saving RAW as: ");
                     sb.append(rawBuilder.getSaveLocation());
                 }
@@ -568,10 +1041,27 @@ public class Camera2RawFragment extends Fragment
                                     CaptureFailure failure) {
             int requestId = (int) request.getTag();
             synchronized (mCameraStateLock) {
+                ImageSaver.ImageSaverBuilder builder = mRawResultQueue.remove(requestId);
+                if (builder != null) {
+                    builder.discard();
+                }
             }
             showToast("Capture failed!");
         }
 
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request,
+                                        Surface target, long frameNumber) {
+            int requestId = (int) request.getTag();
+            synchronized (mCameraStateLock) {
+                ImageSaver.ImageSaverBuilder builder = mRawResultQueue.remove(requestId);
+                if (builder != null) {
+                    builder.discard();
+                }
+            }
+            showToast("Capture buffer lost!");
+        }
+
     };
 
     /**
@@ -605,11 +1095,19 @@ public class Camera2RawFragment extends Fragment
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         Log.e("error", "onViewCreated2");
 
-        try {
-            denoising = new DenoisingModel(getContext());
-            denoising.loadModelFile("model_float32.tflite", 4);//loadModelFile();//= new Interpreter(tfliteModel, tfLiteOptions);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (mModelRegistry == null) {
+            mModelRegistry = new ModelRegistry(getActivity(), MODEL_FILE, MODEL_CACHE_ENTRIES,
+                    MODEL_CACHE_BYTES);
+        }
+        if (denoising == null) {
+            try {
+                denoising = new DenoisingModel(getContext());
+                denoising.setModelRegistry(mModelRegistry);
+                denoising.loadModelFile(MODEL_FILE,
+                        ProcessingPools.get().getTopology().getInterpreterThreads());//loadModelFile();//= new Interpreter(tfliteModel, tfLiteOptions);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
 
@@ -620,6 +1118,141 @@ public class Camera2RawFragment extends Fragment
         mSeekBarISO = view.findViewById(R.id.seekBarISO);
         mTextViewShutter = view.findViewById(R.id.textViewShutterSpeed);
         mTextViewISO = view.findViewById(R.id.textViewISO);
+        mCheckBoxZsl = view.findViewById(R.id.checkBoxZsl);
+        mCheckBoxRecord = view.findViewById(R.id.checkBoxRecord);
+        mCheckBoxDeferred = view.findViewById(R.id.checkBoxDeferred);
+        mCheckBoxProgressive = view.findViewById(R.id.checkBoxProgressive);
+        mCheckBoxRoi = view.findViewById(R.id.checkBoxRoi);
+        mCheckBoxTiles = view.findViewById(R.id.checkBoxTiles);
+        mCheckBoxSkipTiles = view.findViewById(R.id.checkBoxSkipTiles);
+        mCheckBoxSweep = view.findViewById(R.id.checkBoxSweep);
+        mCheckBoxHdr = view.findViewById(R.id.checkBoxHdr);
+        mRoiOverlay = view.findViewById(R.id.roiOverlay);
+        mReviewImage = view.findViewById(R.id.reviewImage);
+        if (mReviewImage != null) {
+            mReviewRenderer = new ReviewRenderer(
+                    ProcessingPools.get().getTopology().getLatencyThreads());
+            mReviewImage.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    v.setVisibility(View.GONE);
+                }
+            });
+            // Long press re-processes the shot at the ratio the sliders are set to now.
+            mReviewImage.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    retuneLatestShot(mRatio);
+                    return true;
+                }
+            });
+        }
+        if (mGovernor == null) {
+            mGovernor = new QualityGovernor(
+                    ProcessingPools.get().getTopology().getInterpreterThreads(), LATENCY_BUDGET_MS);
+            mGovernor.setListener(new QualityGovernor.Listener() {
+                @Override
+                public void onTierChanged(QualityGovernor.Tier tier, String reason) {
+                    Log.i(TAG, "Denoiser quality " + tier + ": " + reason);
+                    showToast("Quality: " + tier.name);
+                    // The next shot switches to the tier's thread count and precision.
+                    DenoisingModel model = denoising;
+                    if (model != null && mModelRegistry != null && model.getModelName() != null) {
+                        mModelRegistry.prefetch(model.getModelName(), tier.interpreterThreads,
+                                tier.allowFp16);
+                    }
+                }
+            });
+        }
+        if (CAPTURE_TELEMETRY && mTelemetry == null) {
+            mTelemetry = new CaptureTelemetry(TELEMETRY_RECORDS, new ArtRuntimeStats());
+        }
+        if (mLinearCache == null) {
+            mLinearCache = new LinearTensorCache(LINEAR_CACHE_MEMORY_ENTRIES,
+                    new File(getActivity().getCacheDir(), LINEAR_CACHE_DIR),
+                    LINEAR_CACHE_DISK_ENTRIES);
+        }
+        if (mFullDenoiser == null) {
+            mFullDenoiser = new DeferredDenoiser(getActivity(), MODEL_FILE,
+                    ProcessingPools.get().getTopology().getBackgroundThreads());
+            mFullPassExecutor = Executors.newSingleThreadExecutor(
+                    new ProcessingPools.PriorityThreadFactory("FullPass",
+                            android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        }
+        if (mJobQueue == null) {
+            try {
+                mJobQueue = new DeferredJobQueue(
+                        new File(getActivity().getFilesDir(), DEFERRED_JOURNAL_NAME),
+                        DEFERRED_MAX_CONCURRENT, mFullDenoiser);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the deferred job journal.", e);
+            }
+        }
+        Intent intent = getActivity().getIntent();
+        if (savedInstanceState == null && intent != null
+                && intent.getBooleanExtra(EXTRA_BENCHMARK, false)) {
+            startBenchmark(intent);
+        }
+        if (mCheckBoxZsl != null) {
+            mCheckBoxZsl.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    setZslEnabled(isChecked);
+                }
+            });
+        }
+        if (mCheckBoxRoi != null) {
+            mCheckBoxRoi.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    if (isChecked) {
+                        showToast("Tap or drag on the preview to pick the region.");
+                    } else {
+                        mRoiRegion = null;
+                        if (mRoiOverlay != null) {
+                            mRoiOverlay.setVisibility(View.GONE);
+                        }
+                    }
+                }
+            });
+            mTextureView.setOnTouchListener(new View.OnTouchListener() {
+                @Override
+                public boolean onTouch(View v, MotionEvent event) {
+                    return mCheckBoxRoi.isChecked() && onRoiTouch(v, event);
+                }
+            });
+        }
+        if (mCheckBoxTiles != null) {
+            mCheckBoxTiles.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    setTileSchedulerEnabled(isChecked);
+                }
+            });
+        }
+        if (mCheckBoxSkipTiles != null) {
+            mCheckBoxSkipTiles.setOnCheckedChangeListener(
+                    new CompoundButton.OnCheckedChangeListener() {
+                        @Override
+                        public void onCheckedChanged(CompoundButton buttonView,
+                                                     boolean isChecked) {
+                            final DenoisingModel model = denoising;
+                            final boolean skip = isChecked;
+                            if (model != null) {
+                                // Applied between shots, like every change to the model.
+                                mInferenceWorker.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // Skipping needs tiles; one per invocation, as GPU +
+                                        // CPU runs.
+                                        model.setBatching(skip ? 1 : 0, SCHEDULER_TILE_SIZE);
+                                        model.setTileSkipping(skip);
+                                    }
+                                });
+                            }
+                        }
+                    });
+        }
         // Setup a new OrientationEventListener.  This is used to handle rotation events like a
         // 180 degree rotation that do not normally trigger a call to onCreate to do view re-layout
         // or otherwise cause the preview TextureView's size to change.
@@ -657,6 +1290,21 @@ public class Camera2RawFragment extends Fragment
         if (mOrientationListener != null && mOrientationListener.canDetectOrientation()) {
             mOrientationListener.enable();
         }
+        if (mJobQueue != null) {
+            // Keep inference away from the camera while it is in use, unless on power.
+            mJobQueue.setRunning(isCharging());
+        }
+        // Android Q, which has no constant in the SDK the app is compiled against.
+        if (Build.VERSION.SDK_INT >= 29 && mThermalStatusMethod == null) {
+            try {
+                mThermalStatusMethod = PowerManager.class.getMethod("getCurrentThermalStatus");
+            } catch (NoSuchMethodException e) {
+                Log.e(TAG, "No thermal status on this device", e);
+            }
+        }
+        handler.removeCallbacks(mThermalPoll);
+        mThermalPoll.run();
+        updateBatteryState();
         Log.e("error", "onResume");
 
     }
@@ -667,6 +1315,10 @@ public class Camera2RawFragment extends Fragment
             mOrientationListener.disable();
         }
         closeCamera();
+        if (mJobQueue != null) {
+            mJobQueue.setRunning(true);
+        }
+        handler.removeCallbacks(mThermalPoll);
 //        stopBackgroundThread();
         super.onPause();
     }
@@ -689,7 +1341,17 @@ public class Camera2RawFragment extends Fragment
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.picture: {
-                captureStillPictureLocked();
+                if (mRecorder != null || (mCheckBoxRecord != null && mCheckBoxRecord.isChecked())) {
+                    toggleRecording();
+                } else if (mZslEnabled) {
+                    captureZsl();
+                } else if (mCheckBoxSweep != null && mCheckBoxSweep.isChecked()) {
+                    captureSweep();
+                } else if (mCheckBoxHdr != null && mCheckBoxHdr.isChecked()) {
+                    captureHdr();
+                } else {
+                    captureStillPictureLocked();
+                }
 //                setSeekBarShutterSpeed(view);
                 break;
             }
@@ -872,10 +1534,23 @@ public class Camera2RawFragment extends Fragment
                     mCameraDevice = null;
                 }
 
-                if (null != mRawImageReader) {
-                    mRawImageReader.close();
+                if (null != mRecorder) {
+                    // Drain the frames still queued while their Images are valid.
+                    try {
+                        mRecorder.finish();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not finish RAW sequence recording.", e);
+                    }
+                    finishRecording(mRecorder);
+                    mRecorder = null;
+                }
+                if (null != mRawImageReader) {
+                    mRawImageReader.close();
                     mRawImageReader = null;
                 }
+                if (null != mZslRing) {
+                    mZslRing.clear();
+                }
             }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
@@ -929,6 +1604,7 @@ public class Camera2RawFragment extends Fragment
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            applyRawStreamLocked(mPreviewRequestBuilder);
             // Here, we create a CameraCaptureSession for camera preview.
             mCameraDevice.createCaptureSession(Arrays.asList(surface,
                             mRawImageReader.get().getSurface()), mPreviewOpenCallback, mBackgroundHandler
@@ -1057,13 +1733,7 @@ public class Camera2RawFragment extends Fragment
         synchronized (mCameraStateLock) {
             try {
                 bayerPattern = bayerPatterns[mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)];
-                captureBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                captureBuilder.addTarget(mRawImageReader.get().getSurface());
-                captureBuilder.setTag(mRequestCounter.getAndIncrement());
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
-                captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, mISO);
-                captureBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mShutterSpeed);
+                captureBuilder = createStillRequestLocked(mISO, mShutterSpeed);
 
                 CaptureRequest mCaptureRequest = captureBuilder.build();
 
@@ -1071,7 +1741,7 @@ public class Camera2RawFragment extends Fragment
                         .setCharacteristics(mCharacteristics);
 
 
-                mRawResultQueue.put((int) mCaptureRequest.getTag(), rawBuilder);
+                mRawResultQueue.add((int) mCaptureRequest.getTag(), rawBuilder);
 
                 mCaptureSession.capture(mCaptureRequest, mCaptureCallback, mBackgroundHandler);
 
@@ -1083,6 +1753,533 @@ public class Camera2RawFragment extends Fragment
 
 
 
+    /**
+     * Creates a tagged RAW still request at a manual exposure.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private CaptureRequest.Builder createStillRequestLocked(int sensitivity, long exposureTime)
+            throws CameraAccessException {
+        CaptureRequest.Builder builder =
+                mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        builder.addTarget(mRawImageReader.get().getSurface());
+        builder.setTag(mRequestCounter.getAndIncrement());
+        builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+        builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        builder.set(CaptureRequest.SENSOR_SENSITIVITY, sensitivity);
+        builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureTime);
+        if (CORRECT_LENS_SHADING) {
+            builder.set(CaptureRequest.STATISTICS_LENS_SHADING_MAP_MODE,
+                    CaptureRequest.STATISTICS_LENS_SHADING_MAP_MODE_ON);
+        }
+        return builder;
+    }
+
+    /**
+     * Takes a bracketing sweep as a single burst: the settings listed in
+     * {@link ExposureSweep#FILE_NAME} in the DCIM directory, or one frame per ISO stop at the
+     * manual shutter speed without the file. The sensor exposes the frames back to back, and
+     * each one is saved as soon as both its result and image are in, named after its exposure.
+     * Frames wait for the model in capture order, on {@link #mInferenceWorker}, and while one is
+     * being denoised the next ones are spilled to {@link #mSpillRing}, so the burst never
+     * stalls on an ImageReader buffer.
+     */
+    private void captureSweep() {
+        synchronized (mCameraStateLock) {
+            if (mCaptureSession == null || largestRaw == null) {
+                return;
+            }
+            Range<Integer> sensitivities =
+                    mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            Range<Long> exposureTimes =
+                    mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+            File file = new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_DCIM), ExposureSweep.FILE_NAME);
+            List<ExposureSweep.Setting> settings;
+            if (file.exists()) {
+                try {
+                    settings = ExposureSweep.read(file, sensitivities, exposureTimes);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read " + file, e);
+                    showToast("Could not read " + file.getName() + ".");
+                    return;
+                }
+            } else {
+                settings = ExposureSweep.isoStops(sensitivities, mShutterSpeed);
+            }
+            if (settings.isEmpty()) {
+                showToast(file.getName() + " lists no settings.");
+                return;
+            }
+            if (settings.size() > MAX_SWEEP_FRAMES) {
+                showToast("Sweeping the first " + MAX_SWEEP_FRAMES + " settings only.");
+                settings = settings.subList(0, MAX_SWEEP_FRAMES);
+            }
+            bayerPattern = bayerPatterns[mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)];
+            String timeName = generateTimestamp();
+            ExposureSweep.Progress progress = new ExposureSweep.Progress(settings.size());
+            List<CaptureRequest> requests = new ArrayList<>();
+            try {
+                for (int i = 0; i < settings.size(); i++) {
+                    ExposureSweep.Setting setting = settings.get(i);
+                    CaptureRequest request = createStillRequestLocked(setting.sensitivity,
+                            setting.exposureTime).build();
+                    requests.add(request);
+                    mRawResultQueue.add((int) request.getTag(),
+                            new ImageSaver.ImageSaverBuilder(getActivity())
+                                    .setCharacteristics(mCharacteristics)
+                                    .setSweep(progress, timeName + "_" + i, setting));
+                }
+                mCaptureSession.captureBurst(requests, mCaptureCallback, mBackgroundHandler);
+                Log.i(TAG, "Sweeping " + settings);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+                for (CaptureRequest request : requests) {
+                    mRawResultQueue.remove((int) request.getTag());
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes an HDR bracket, {@link #HDR_BRACKET_STOPS} around the manual exposure, as a single
+     * burst. Each frame is aligned against the first one in and added to a {@link HdrMerger} on
+     * {@link #mHdrWorker} once both its result and image are in, and its image is released
+     * right after. Once the last frame is in, the merged frame is saved and denoised like a single
+     * shot at the manual exposure, on {@link #mInferenceWorker}.
+     */
+    private void captureHdr() {
+        synchronized (mCameraStateLock) {
+            if (mCaptureSession == null || largestRaw == null) {
+                return;
+            }
+            Range<Long> exposureTimes =
+                    mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+            bayerPattern = bayerPatterns[mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)];
+            final String timeName = generateTimestamp();
+            final long start = SystemClock.elapsedRealtime();
+            if (mHdrMerger == null || !mHdrMerger.isIdle()
+                    || mHdrMerger.getWidth() != largestRaw.getWidth()
+                    || mHdrMerger.getHeight() != largestRaw.getHeight()) {
+                mHdrMerger = new HdrMerger(largestRaw.getWidth(), largestRaw.getHeight());
+            }
+            final HdrMerger merger = mHdrMerger;
+            merger.start(HDR_BRACKET_STOPS.length, (double) mISO * mShutterSpeed);
+            FrameAligner aligner = new FrameAligner(ProcessingPools.get().getLatencyExecutor(),
+                    ProcessingPools.get().getTopology().getLatencyThreads());
+            aligner.setBayerPattern(bayerPattern);
+            merger.setAligner(aligner);
+            final List<ImageSaver.ImageSaverBuilder> bracket = new ArrayList<>();
+            List<CaptureRequest> requests = new ArrayList<>();
+            try {
+                for (int stop : HDR_BRACKET_STOPS) {
+                    long exposureTime = exposureTimes.clamp(
+                            (long) (mShutterSpeed * Math.pow(2, stop)));
+                    CaptureRequest request =
+                            createStillRequestLocked(mISO, exposureTime).build();
+                    ImageSaver.ImageSaverBuilder builder =
+                            new ImageSaver.ImageSaverBuilder(getActivity())
+                                    .setCharacteristics(mCharacteristics)
+                                    .setHdr(merger,
+                                            new ExposureSweep.Setting(mISO, exposureTime));
+                    requests.add(request);
+                    bracket.add(builder);
+                    mRawResultQueue.add((int) request.getTag(), builder);
+                }
+                merger.setOnComplete(new Runnable() {
+                    @Override
+                    public void run() {
+                        mInferenceWorker.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                saveHdrFrame(merger, bracket, timeName, start);
+                            }
+                        });
+                    }
+                });
+                mCaptureSession.captureBurst(requests, mCaptureCallback, mBackgroundHandler);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+                for (CaptureRequest request : requests) {
+                    mRawResultQueue.remove((int) request.getTag());
+                }
+                merger.cancel();
+            }
+        }
+    }
+
+    /**
+     * Queues a frame of an HDR bracket on {@link #mHdrWorker}, once both its image and result are
+     * in, to be added to its merger and then released. Its bands run on the latency pool.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private void mergeHdrFrameLocked(int requestId, final ImageSaver.ImageSaverBuilder builder,
+                                     CaptureMatcher<ImageSaver.ImageSaverBuilder> queue) {
+        final Image image = builder.getImage();
+        final CaptureResult result = builder.getResult();
+        if (image == null || result == null) {
+            return;
+        }
+        queue.remove(requestId);
+        final HdrMerger merger = builder.getHdrMerger();
+        final ExposureSweep.Setting setting = builder.getHdrSetting();
+        mHdrWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                    Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                    double exposure = (double) (iso != null ? iso : setting.sensitivity)
+                            * (exposureTime != null ? exposureTime : setting.exposureTime);
+                    double[] noise = noiseModel(result.get(CaptureResult.SENSOR_NOISE_PROFILE));
+                    Image.Plane plane = image.getPlanes()[0];
+                    merger.add(plane.getBuffer(), plane.getRowStride(), exposure, noise[0],
+                            noise[1], ProcessingPools.get().getLatencyExecutor());
+                } finally {
+                    builder.discard();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the (S, O) coefficients of a noise profile averaged over the color channels, or
+     * a constant noise without a profile.
+     */
+    private static double[] noiseModel(Pair<Double, Double>[] profile) {
+        if (profile == null || profile.length == 0) {
+            return new double[]{0, 1};
+        }
+        double scale = 0;
+        double offset = 0;
+        for (Pair<Double, Double> channel : profile) {
+            scale += channel.first;
+            offset += channel.second;
+        }
+        return new double[]{scale / profile.length, offset / profile.length};
+    }
+
+    /**
+     * Saves the merged frame of an HDR bracket with the metadata of its first frame that has a
+     * result, the manual exposure when it was not dropped. The merge is finished by the saver,
+     * straight into the model's raw buffer.
+     */
+    private void saveHdrFrame(HdrMerger merger, List<ImageSaver.ImageSaverBuilder> bracket,
+                              String timeName, long start) {
+        CaptureResult result = null;
+        for (ImageSaver.ImageSaverBuilder builder : bracket) {
+            if (result == null) {
+                result = builder.getResult();
+            }
+        }
+        if (merger.getAddedFrames() == 0 || result == null) {
+            merger.cancel();
+            showToast("HDR bracket failed!");
+            return;
+        }
+        ImageSaver.ImageSaverBuilder rawBuilder;
+        synchronized (mCameraStateLock) {
+            rawBuilder = new ImageSaver.ImageSaverBuilder(getActivity())
+                    .setCharacteristics(mCharacteristics)
+                    .setResult(result)
+                    .setFile(new File(Environment.
+                            getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+                            "RAW_" + timeName + "_hdr.dng"))
+                    .setFileOri(new File(Environment.
+                            getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+                            "RAW_" + timeName + "_hdr_ori_.dng"))
+                    .setLargetSize(largestRaw)
+                    .setDenoisingModel(denoising)
+                    .setBayerPattern(bayerPattern)
+                    .setRate(mRatio)
+                    .setMergedFrame(merger);
+            if (isDeferred()) {
+                rawBuilder.setJobQueue(mJobQueue);
+            } else {
+                setPostCaptureStages(rawBuilder);
+            }
+        }
+        Log.i(TAG, "Added " + merger.getAddedFrames() + " of " + bracket.size()
+                + " bracketed frames in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        runAndReport(rawBuilder.buildIfComplete(), CaptureTelemetry.NO_TAG, start);
+    }
+
+    /**
+     * Switches zero-shutter-lag mode on or off. While it is on, the repeating request also
+     * streams RAW frames at the manual ISO and shutter speed into {@link #mZslRing}.
+     */
+    private void setZslEnabled(boolean enabled) {
+        synchronized (mCameraStateLock) {
+            if (enabled && mZslRing == null && largestRaw != null) {
+                int frameBytes = largestRaw.getWidth() * largestRaw.getHeight() * 2;
+                mZslRing = new ZslRingBuffer(zslRingCapacity(frameBytes), frameBytes);
+            }
+            mZslEnabled = enabled && mZslRing != null;
+            if (mZslRing != null) {
+                mZslRing.clear();
+            }
+            updatePreviewRequestLocked();
+        }
+    }
+
+    /**
+     * @return how many frames of {@code frameBytes} the ZSL ring holds: {@link #ZSL_RING_SIZE}
+     * when they fit in {@link #ZSL_HEAP_FRACTION} of the heap limit, fewer otherwise, but always
+     * enough for the frames saved per shot plus one being written.
+     */
+    private static int zslRingCapacity(int frameBytes) {
+        int fit = (int) (Runtime.getRuntime().maxMemory() * ZSL_HEAP_FRACTION / frameBytes);
+        return Math.max(ZSL_PRE_FRAMES + ZSL_POST_FRAMES + 2, Math.min(ZSL_RING_SIZE, fit));
+    }
+
+    /**
+     * Adds or removes the RAW target and the manual exposure on a preview request, depending on
+     * whether ZSL or a RAW sequence recording needs the stream.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private void applyRawStreamLocked(CaptureRequest.Builder builder) {
+        Surface rawSurface = mRawImageReader.get().getSurface();
+        if (mZslEnabled || mRecorder != null) {
+            builder.addTarget(rawSurface);
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+            builder.set(CaptureRequest.SENSOR_SENSITIVITY, mISO);
+            builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mShutterSpeed);
+        } else {
+            builder.removeTarget(rawSurface);
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+        }
+    }
+
+    /**
+     * Re-applies the preview request, e.g. after the ZSL mode or the manual exposure changed.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     */
+    private void updatePreviewRequestLocked() {
+        if (mCaptureSession == null || mPreviewRequestBuilder == null || mRawImageReader == null) {
+            return;
+        }
+        applyRawStreamLocked(mPreviewRequestBuilder);
+        if (mZslRing != null) {
+            mZslRing.clear();
+        }
+        try {
+            mCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                    mPreviewCallback, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a RAW sequence recording at the manual ISO and shutter speed, or stops the current
+     * one.
+     */
+    private void toggleRecording() {
+        synchronized (mCameraStateLock) {
+            if (mRecorder != null) {
+                RawSequenceWriter recorder = mRecorder;
+                mRecorder = null;
+                updatePreviewRequestLocked();
+                finishRecording(recorder);
+                return;
+            }
+            if (mCaptureSession == null || largestRaw == null) {
+                return;
+            }
+            bayerPattern = bayerPatterns[mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)];
+            File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM);
+            long frameBytes = (long) largestRaw.getWidth() * largestRaw.getHeight() * 2;
+            int maxFrames = (int) Math.min(MAX_RECORD_FRAMES, dir.getUsableSpace() * 8 / 10 / frameBytes);
+            if (maxFrames < 1) {
+                showToast("Not enough free space to record.");
+                return;
+            }
+            try {
+                mRecorder = new RawSequenceWriter(new File(dir, "RAW_" + generateTimestamp() + ".hsseq"),
+                        largestRaw.getWidth(), largestRaw.getHeight(), maxFrames, bayerPattern);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start RAW sequence recording.", e);
+                showToast("Could not start recording.");
+                return;
+            }
+            mRecordDropped.set(0);
+            updatePreviewRequestLocked();
+            showToast("Recording up to " + maxFrames + " RAW frames.");
+        }
+    }
+
+    /**
+     * Hands the next streamed RAW frame to the recorder. The {@link Image} is closed by the
+     * writer thread once it is on disk.
+     */
+    private void recordImage(ImageReader reader) {
+        final Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            mRecordDropped.incrementAndGet();
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        RawSequenceWriter recorder = mRecorder;
+        boolean queued = recorder != null && recorder.append(image.getPlanes()[0].getBuffer(),
+                image.getTimestamp(), new Runnable() {
+                    @Override
+                    public void run() {
+                        image.close();
+                    }
+                });
+        if (!queued) {
+            mRecordDropped.incrementAndGet();
+            image.close();
+        }
+    }
+
+    /**
+     * Writes the index of a stopped recording in the background and reports its throughput.
+     */
+    private void finishRecording(final RawSequenceWriter recorder) {
+        ProcessingPools.get().getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not finish RAW sequence recording.", e);
+                }
+                String report = String.format(Locale.US,
+                        "Recorded %d frames (%d dropped) at %.1f fps; storage %.0f MB/s, %.1f fps sustainable",
+                        recorder.getFrameCount(), mRecordDropped.get(),
+                        recorder.getRecordedFramesPerSecond(),
+                        recorder.getWriteBytesPerSecond() / 1e6,
+                        recorder.getSustainableFramesPerSecond());
+                Log.i(TAG, report);
+                showToast(report);
+            }
+        });
+    }
+
+    /**
+     * Copies the next streamed RAW frame into the ZSL ring and returns the {@link Image} to the
+     * {@link ImageReader} immediately.
+     */
+    private void addZslImage(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Too many images acquired, dropping ZSL frame.");
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        try {
+            if (!mZslRing.add(image)) {
+                Log.w(TAG, "All ZSL slots are being saved, dropping frame.");
+            }
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * Saves the buffered frame closest to the shutter press, plus the configured neighbours,
+     * instead of issuing a new capture request.
+     */
+    private void captureZsl() {
+        synchronized (mCameraStateLock) {
+            if (mZslRing == null) {
+                return;
+            }
+            Integer timestampSource = mCharacteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            // Sensor timestamps are only comparable with the press time on a REALTIME clock;
+            // otherwise the most recent frame is the best estimate.
+            long pressTimestamp = (timestampSource != null && timestampSource ==
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME)
+                    ? SystemClock.elapsedRealtimeNanos() : Long.MAX_VALUE;
+
+            List<ZslRingBuffer.Frame> frames =
+                    mZslRing.lockClosest(pressTimestamp, ZSL_PRE_FRAMES, ZSL_POST_FRAMES);
+            if (frames.isEmpty()) {
+                showToast("No ZSL frame available yet.");
+                return;
+            }
+            bayerPattern = bayerPatterns[mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT)];
+            if (COMPRESS_QUEUED_FRAMES && mRawCodec == null) {
+                mRawCodec = new RawFrameCodec(ProcessingPools.get().getLatencyExecutor());
+            }
+            final long start = SystemClock.elapsedRealtime();
+            String timeName = generateTimestamp();
+            for (int i = 0; i < frames.size(); i++) {
+                String name = frames.size() == 1 ? timeName : timeName + "_" + i;
+                final ZslRingBuffer.Frame frame = frames.get(i);
+                final ImageSaver.ImageSaverBuilder rawBuilder = new ImageSaver.ImageSaverBuilder(getActivity())
+                        .setCharacteristics(mCharacteristics)
+                        .setResult(frame.getResult())
+                        .setFile(new File(Environment.
+                                getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+                                "RAW_" + name + ".dng"))
+                        .setFileOri(new File(Environment.
+                                getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+                                "RAW_" + name + "_ori_.dng"))
+                        .setLargetSize(largestRaw)
+                        .setDenoisingModel(denoising)
+                        .setBayerPattern(bayerPattern)
+                        .setRate(mRatio);
+                if (isDeferred()) {
+                    rawBuilder.setJobQueue(mJobQueue);
+                } else {
+                    setPostCaptureStages(rawBuilder);
+                }
+                if (COMPRESS_QUEUED_FRAMES) {
+                    final ZslRingBuffer ring = mZslRing;
+                    final RawFrameCodec codec = mRawCodec;
+                    final Size size = largestRaw;
+                    final float metered = mRatio;
+                    ProcessingPools.get().getLatencyExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Measured while the samples are at hand, since the saver only sees
+                            // them again once it unpacks the compressed frame.
+                            ByteBuffer raw = ByteBuffer.wrap(frame.getData());
+                            float rate = measureRate(raw, size.getWidth(), size.getHeight(),
+                                    size.getWidth() * 2, metered);
+                            rawBuilder.setMeasured(rate, estimateNoise(raw, size.getWidth(),
+                                    size.getHeight(), size.getWidth() * 2, rate));
+                            RawFrameCodec.Compressed compressed = codec.encode(frame.getData(),
+                                    size.getWidth(), size.getHeight());
+                            ring.release(frame);
+                            final ImageSaver saver = rawBuilder
+                                    .setCompressedFrame(compressed, codec).buildIfComplete();
+                            getSaverExecutor(saver).execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    runAndReport(saver, CaptureTelemetry.NO_TAG, start);
+                                }
+                            });
+                        }
+                    });
+                } else {
+                    rawBuilder.setZslFrame(frame, mZslRing);
+                    final ImageSaver saver = rawBuilder.buildIfComplete();
+                    getSaverExecutor(saver).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runAndReport(saver, CaptureTelemetry.NO_TAG, start);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
     static class CompareSizesByArea implements Comparator<Size> {
 
         @Override
@@ -1257,6 +2454,128 @@ public class Camera2RawFragment extends Fragment
         return (sensorOrientation - deviceOrientation + 360) % 360;
     }
 
+    /**
+     * Spreads the tiles of the next shots over a GPU and a CPU interpreter, or goes back to
+     * {@link #denoising}'s own. The interpreters load in the background; shots taken meanwhile
+     * use whichever is ready. The model switches on {@link #mInferenceWorker}, between shots.
+     */
+    private void setTileSchedulerEnabled(boolean enabled) {
+        final DenoisingModel model = denoising;
+        TileScheduler scheduler = mTileScheduler;
+        if (enabled && scheduler == null) {
+            Activity activity = getActivity();
+            scheduler = new TileScheduler(MODEL_FILE, SCHEDULER_TILE_SIZE);
+            scheduler.addBackend(TileScheduler.interpreterBackend(activity, MODEL_FILE, "gpu"));
+            scheduler.addBackend(TileScheduler.interpreterBackend(activity, MODEL_FILE,
+                    "cpu:" + ProcessingPools.get().getTopology().getInterpreterThreads()));
+            mTileScheduler = scheduler;
+            if (model != null) {
+                final TileScheduler enabledScheduler = scheduler;
+                mInferenceWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        model.setTileScheduler(enabledScheduler);
+                    }
+                });
+            }
+        } else if (!enabled && scheduler != null) {
+            mTileScheduler = null;
+            final TileScheduler disabledScheduler = scheduler;
+            mInferenceWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (model != null) {
+                        model.setTileScheduler(null);
+                    }
+                    disabledScheduler.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the {@link ThroughputBenchmark} on synthetic frames, configured from the launch
+     * intent's extras, and writes the report to {@link #BENCHMARK_REPORT} in the external files
+     * directory, e.g. {@code adb shell am start -n <package>/<activity> --ez benchmark true
+     * --ei benchmark_frames 60}.
+     */
+    private void startBenchmark(Intent intent) {
+        final ThroughputBenchmark.Config config = new ThroughputBenchmark.Config();
+        config.totalFrames = intent.getIntExtra(EXTRA_BENCHMARK_FRAMES, config.totalFrames);
+        config.burstLength = intent.getIntExtra(EXTRA_BENCHMARK_BURST, config.burstLength);
+        config.framesPerSecond = intent.getFloatExtra(EXTRA_BENCHMARK_FPS, config.framesPerSecond);
+        config.burstIntervalMs = intent.getLongExtra(EXTRA_BENCHMARK_INTERVAL_MS,
+                config.burstIntervalMs);
+        config.queueCapacity = intent.getIntExtra(EXTRA_BENCHMARK_QUEUE, config.queueCapacity);
+        config.workers = intent.getIntExtra(EXTRA_BENCHMARK_WORKERS, config.workers);
+        config.failureRate = intent.getFloatExtra(EXTRA_BENCHMARK_FAILURE_RATE,
+                config.failureRate);
+        config.batchSize = intent.getIntExtra(EXTRA_BENCHMARK_BATCH, config.batchSize);
+        config.tileSize = intent.getIntExtra(EXTRA_BENCHMARK_TILE, config.tileSize);
+        config.backends = intent.getStringExtra(EXTRA_BENCHMARK_BACKENDS);
+        config.skipTiles = intent.getBooleanExtra(EXTRA_BENCHMARK_SKIP_TILES, config.skipTiles);
+        final String sequence = intent.getStringExtra(EXTRA_BENCHMARK_SEQUENCE);
+
+        final Activity activity = getActivity();
+        final File dir = activity.getExternalFilesDir(null);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RawSequenceReader reader = null;
+                try {
+                    String bayerPattern = bayerPatterns[0];
+                    ThroughputBenchmark benchmark;
+                    if (sequence != null) {
+                        // Replays a recording, with its size, pattern and frame durations.
+                        reader = new RawSequenceReader(new File(sequence));
+                        config.width = reader.getWidth();
+                        config.height = reader.getHeight();
+                        bayerPattern = reader.getBayerPattern();
+                    }
+                    benchmark = new ThroughputBenchmark(config,
+                            new DenoisePipeline(activity, MODEL_FILE,
+                                    ProcessingPools.get().getTopology().getInterpreterThreads(),
+                                    new Size(config.width, config.height), bayerPattern, mRatio,
+                                    activity.getCacheDir())
+                                    .setBatching(config.batchSize, config.tileSize)
+                                    .setBackends(config.backends)
+                                    .setTileSkipping(config.skipTiles),
+                            new ArtRuntimeStats());
+                    benchmark.setThreadFactory(new ProcessingPools.PriorityThreadFactory(
+                            "Benchmark", android.os.Process.THREAD_PRIORITY_FOREGROUND));
+                    if (reader != null) {
+                        benchmark.setFrameProvider(SimulatedCameraSource.fromSequence(reader));
+                    }
+                    ThroughputBenchmark.Report report = benchmark.run();
+                    Log.i(TAG, "Benchmark finished:\n" + report);
+                    // Written under a temporary name, so a poller never reads half a report.
+                    File tmp = new File(dir, BENCHMARK_REPORT + ".tmp");
+                    FileOutputStream output = new FileOutputStream(tmp);
+                    try {
+                        output.write(report.toString().getBytes("UTF-8"));
+                    } finally {
+                        output.close();
+                    }
+                    if (!tmp.renameTo(new File(dir, BENCHMARK_REPORT))) {
+                        throw new IOException("Could not move " + tmp);
+                    }
+                    showToast(String.format(Locale.US, "Benchmark: %.1f shots/min, %d dropped",
+                            report.getShotsPerMinute(), report.dropped));
+                } catch (InterruptedException | IOException e) {
+                    Log.e(TAG, "Benchmark failed", e);
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }, "Benchmark").start();
+    }
+
     private void showToast(String text) {
         // We show a Toast by sending request message to mMessageHandler. This makes sure that the
         // Toast is shown on the UI thread.
@@ -1294,26 +2613,327 @@ public class Camera2RawFragment extends Fragment
         }
 
     }
-    private static String generateTimestamp() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss_SSS", Locale.US);
-        return sdf.format(new Date());
+    private boolean isDeferred() {
+        return mJobQueue != null && mCheckBoxDeferred != null && mCheckBoxDeferred.isChecked();
     }
 
-    private static class ImageSaver implements Runnable {
+    /**
+     * Adds the stages that run on the denoised result of a shot, when available.
+     */
+    private void setPostCaptureStages(ImageSaver.ImageSaverBuilder builder) {
+        if (mReviewRenderer != null) {
+            builder.setReviewRenderer(mReviewRenderer, mReviewCallback, getReviewRotation());
+        }
+        if (mLinearCache != null) {
+            builder.setLinearCache(mLinearCache);
+        }
+        if (mGovernor != null) {
+            builder.setQualityTier(mGovernor.getTier());
+        }
+        Rect region = (mCheckBoxRoi != null && mCheckBoxRoi.isChecked()) ? mRoiRegion : null;
+        if (region != null) {
+            builder.setRegion(region);
+        } else if (mFullDenoiser != null && mCheckBoxProgressive != null
+                && mCheckBoxProgressive.isChecked()) {
+            // The full pass denoises the whole frame, so it is not combined with a region.
+            builder.setFullPass(mFullDenoiser, mFullPassExecutor);
+        }
+    }
 
-        /**
-         * The image to save.
-         */
-        private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
+    /**
+     * Tracks a tap or drag on the preview and turns it into {@link #mRoiRegion}. A tap picks a
+     * square of {@link #ROI_TAP_SIZE} around it.
+     */
+    private boolean onRoiTouch(View view, MotionEvent event) {
+        float x = Math.max(0, Math.min(view.getWidth(), event.getX()));
+        float y = Math.max(0, Math.min(view.getHeight(), event.getY()));
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mRoiSelection.set(x, y, x, y);
+                return true;
+            case MotionEvent.ACTION_MOVE: {
+                mRoiSelection.right = x;
+                mRoiSelection.bottom = y;
+                RectF selection = new RectF(mRoiSelection);
+                selection.sort();
+                showRoiOverlay(selection);
+                return true;
+            }
+            case MotionEvent.ACTION_UP: {
+                mRoiSelection.right = x;
+                mRoiSelection.bottom = y;
+                RectF selection = new RectF(mRoiSelection);
+                selection.sort();
+                int slop = ViewConfiguration.get(view.getContext()).getScaledTouchSlop();
+                if (selection.width() < slop && selection.height() < slop) {
+                    float half = ROI_TAP_SIZE * Math.min(view.getWidth(), view.getHeight()) / 2;
+                    selection.set(Math.max(0, x - half), Math.max(0, y - half),
+                            Math.min(view.getWidth(), x + half),
+                            Math.min(view.getHeight(), y + half));
+                }
+                mRoiRegion = previewToSensor(selection);
+                showRoiOverlay(selection);
+                view.performClick();
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
 
-        /**
-         * The CaptureResult for this image capture.
-         */
-        private final CaptureResult mCaptureResult;
+    /**
+     * Outlines {@code selection}, in preview coordinates.
+     */
+    private void showRoiOverlay(RectF selection) {
+        if (mRoiOverlay == null) {
+            return;
+        }
+        ViewGroup.LayoutParams params = mRoiOverlay.getLayoutParams();
+        params.width = Math.max(1, Math.round(selection.width()));
+        params.height = Math.max(1, Math.round(selection.height()));
+        mRoiOverlay.setLayoutParams(params);
+        mRoiOverlay.setX(mTextureView.getX() + selection.left);
+        mRoiOverlay.setY(mTextureView.getY() + selection.top);
+        mRoiOverlay.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Maps a rectangle on the preview to RAW sensor pixels. This undoes the view transform set
+     * in {@link #configureTransform(int, int)}, then the sensor orientation the preview is
+     * rotated by, and places the result on the centered part of the sensor that the preview
+     * stream's aspect ratio shows.
+     *
+     * @return the region, or null if the preview is not set up.
+     */
+    private Rect previewToSensor(RectF selection) {
+        synchronized (mCameraStateLock) {
+            if (mTextureView == null || mPreviewSize == null || largestRaw == null
+                    || mCharacteristics == null) {
+                return null;
+            }
+            float viewWidth = mTextureView.getWidth();
+            float viewHeight = mTextureView.getHeight();
+            Matrix inverse = new Matrix();
+            if (viewWidth == 0 || viewHeight == 0
+                    || !mTextureView.getTransform(null).invert(inverse)) {
+                return null;
+            }
+            float[] corners = {selection.left, selection.top, selection.right, selection.bottom};
+            inverse.mapPoints(corners);
+
+            int sensorOrientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            float rawWidth = largestRaw.getWidth();
+            float rawHeight = largestRaw.getHeight();
+            float aspect = mPreviewSize.getWidth() / (float) mPreviewSize.getHeight();
+            float shownWidth = Math.min(rawWidth, rawHeight * aspect);
+            float shownHeight = shownWidth / aspect;
+            float left = rawWidth;
+            float top = rawHeight;
+            float right = 0;
+            float bottom = 0;
+            for (int i = 0; i < corners.length; i += 2) {
+                // Normalized, in the device's natural orientation.
+                float u = corners[i] / viewWidth;
+                float v = corners[i + 1] / viewHeight;
+                float sx;
+                float sy;
+                switch (sensorOrientation) {
+                    case 90:
+                        sx = v;
+                        sy = 1 - u;
+                        break;
+                    case 180:
+                        sx = 1 - u;
+                        sy = 1 - v;
+                        break;
+                    case 270:
+                        sx = 1 - v;
+                        sy = u;
+                        break;
+                    default:
+                        sx = u;
+                        sy = v;
+                        break;
+                }
+                float px = (rawWidth - shownWidth) / 2 + sx * shownWidth;
+                float py = (rawHeight - shownHeight) / 2 + sy * shownHeight;
+                left = Math.min(left, px);
+                top = Math.min(top, py);
+                right = Math.max(right, px);
+                bottom = Math.max(bottom, py);
+            }
+            return new Rect(Math.max(0, (int) left), Math.max(0, (int) top),
+                    Math.min((int) rawWidth, (int) Math.ceil(right)),
+                    Math.min((int) rawHeight, (int) Math.ceil(bottom)));
+        }
+    }
+
+    /**
+     * Runs a saver, records its stages under the request {@code tag} and reports its
+     * shot-to-file latency, counted from {@code startMs}, to the {@link QualityGovernor}. Saves
+     * that skip inference are not reported to the governor.
+     */
+    private void runAndReport(ImageSaver saver, int tag, long startMs) {
+        CaptureTelemetry.Capture capture = (mTelemetry != null)
+                ? mTelemetry.begin(tag, saver.getFileName(), startMs) : null;
+        saver.run(capture);
+        if (capture != null) {
+            Log.i(TAG, capture.finish().toString());
+        }
+        if (mGovernor != null && saver.runsInference()) {
+            long now = SystemClock.elapsedRealtime();
+            updateBatteryState();
+            mGovernor.onLatency(now - startMs, now);
+        }
+    }
+
+    private void updateBatteryState() {
+        Activity activity = getActivity();
+        if (activity == null || mGovernor == null) {
+            return;
+        }
+        Intent battery = activity.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        mGovernor.onBatteryState(level < 0 ? -1 : level * 100 / Math.max(1, scale), charging,
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Denoises the latest shot again at {@code rate} from its cached linear tensor, and writes
+     * the result into a copy of the original DNG named after the ratio. Neither the camera nor
+     * the DNG's image data is touched. Only the packing is cheaper than for a new shot: the model
+     * still runs over the whole frame, since its input changes with the ratio. It runs on
+     * {@link #mInferenceWorker} between shots, which set the pattern, size and region it changes
+     * on the model again.
+     */
+    private void retuneLatestShot(final float rate) {
+        final LinearTensorCache cache = mLinearCache;
+        final String key = (cache == null) ? null : cache.getLatestKey();
+        Activity activity = getActivity();
+        if (key == null || activity == null || denoising == null) {
+            showToast("No shot to re-process.");
+            return;
+        }
+        final Context context = activity.getApplicationContext();
+        final int rotation = getReviewRotation();
+        mInferenceWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                LinearTensorCache.Entry entry = cache.get(key);
+                if (entry == null) {
+                    showToast("Shot is no longer cached.");
+                    return;
+                }
+                DenoisingModel model = denoising;
+                model.setBayerPattern(entry.bayerPattern);
+                model.initBytesArray(new Size(entry.rawWidth, entry.rawHeight));
+                model.setRegion(null);
+                model.initTensor(entry.getData(), rate);
+                byte[] denoised = model.getOuputBytesArray();
+                if (mReviewRenderer != null) {
+                    mReviewCallback.onRendered(mReviewRenderer.render(model.outputTensor,
+                            model.Height, model.Width, entry.whiteBalanceGains, rotation));
+                }
+
+                File output = new File(entry.original.getParentFile(),
+                        key + "_x" + String.format(Locale.US, "%.1f", rate) + ".dng");
+                try {
+                    DngStrips strips = DngStrips.read(entry.original);
+                    DngStrips.copy(entry.original, output);
+                    strips.writeImage(output, denoised);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write re-processed shot " + output, e);
+                    showToast("Re-processing failed.");
+                    return;
+                }
+                MediaScannerConnection.scanFile(context, new String[]{output.getPath()},
+                        /*mimeTypes*/null, null);
+                showToast("Re-processed at " + rate + "X in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        });
+    }
+
+    /**
+     * @return the clockwise rotation that shows a sensor-oriented image upright on the display.
+     */
+    private int getReviewRotation() {
+        Activity activity = getActivity();
+        if (activity == null || mCharacteristics == null) {
+            return 0;
+        }
+        return sensorToDeviceRotation(mCharacteristics,
+                activity.getWindowManager().getDefaultDisplay().getRotation());
+    }
+
+    private boolean isCharging() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return false;
+        }
+        Intent battery = activity.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static String generateTimestamp() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss_SSS", Locale.US);
+        return sdf.format(new Date());
+    }
+
+    /**
+     * Measures the amplification ratio on a RAW frame, see {@link ExposureAnalyzer}.
+     *
+     * @return the ratio, or {@code metered} for a frame with nothing to sample.
+     */
+    private static float measureRate(ByteBuffer raw, int width, int height, int rowStride,
+                                     float metered) {
+        long start = System.nanoTime();
+        float rate = EXPOSURE_ANALYZER.analyze(raw, width, height, rowStride,
+                ProcessingPools.get().getLatencyExecutor());
+        Log.d(TAG, String.format(Locale.US, "Ratio %.2f (metered %.2f) in %.1f ms", rate, metered,
+                (System.nanoTime() - start) / 1e6));
+        return rate == ExposureAnalyzer.NO_GAIN ? metered : rate;
+    }
+
+    /**
+     * Measures the noise of a RAW frame, see {@link NoiseEstimator}.
+     *
+     * @return the noise level once amplified by {@code rate}, relative to the white level.
+     */
+    private static float estimateNoise(ByteBuffer raw, int width, int height, int rowStride,
+                                       float rate) {
+        long start = System.nanoTime();
+        float sigma = NoiseEstimator.estimate(raw, width, height, rowStride,
+                ProcessingPools.get().getLatencyExecutor());
+        float noise = NoiseEstimator.noiseLevel(sigma, rate);
+        Log.d(TAG, String.format(Locale.US, "Noise %.2f DN, %.4f amplified, in %.1f ms",
+                sigma, noise, (System.nanoTime() - start) / 1e6));
+        return noise;
+    }
+
+    private static class ImageSaver implements Runnable {
+
+        /**
+         * The image to save.
+         */
+        private final Image mImage;
+        /**
+         * The file we save the image into.
+         */
+        private final File mFile;
+
+        /**
+         * The CaptureResult for this image capture.
+         */
+        private final CaptureResult mCaptureResult;
 
         /**
          * The CameraCharacteristics for this camera device.
@@ -1334,17 +2954,120 @@ public class Camera2RawFragment extends Fragment
 
         private final DenoisingModel tfLiteModel;
 
-        private  final int mRate;
+        private  final float mRate;
 
         private final File mFileOri;
 
         private  final String mBayerPattern;
 
+        /**
+         * A buffered ZSL frame saved instead of {@link #mImage}, released back to its ring once
+         * written.
+         */
+        private final ZslRingBuffer.Frame mZslFrame;
+
+        private final ZslRingBuffer mZslRing;
+
+        /**
+         * A losslessly compressed frame saved instead of {@link #mImage}.
+         */
+        private final RawFrameCodec.Compressed mCompressedFrame;
+
+        private final RawFrameCodec mCodec;
+
+        /**
+         * An HDR merge whose frame is saved instead of {@link #mImage}, finished right before
+         * packing so only the accumulator is held until then.
+         */
+        private final HdrMerger mMergedFrame;
+
+        /**
+         * A frame spilled to disk, read back from the mapping instead of {@link #mImage}.
+         */
+        private final SpillRing.Slot mSpillSlot;
+
+        private final SpillRing mSpillRing;
+
+        /**
+         * If set, only the original is written and denoising is queued here instead.
+         */
+        private final DeferredJobQueue mJobQueue;
+
+        private final int mJobPriority;
+
+        /**
+         * If set, the denoised result is rendered for review as soon as inference finishes.
+         */
+        private final ReviewRenderer mReviewRenderer;
+
+        private final ReviewRenderer.Callback mReviewCallback;
+
+        private final int mReviewRotation;
+
+        /**
+         * If set, the linear tensor of the shot is recorded while packing and cached here.
+         */
+        private final LinearTensorCache mLinearCache;
+
+        /**
+         * The quality tier to denoise at, or null to keep the model's settings.
+         */
+        private final QualityGovernor.Tier mTier;
+
+        /**
+         * If set, the shot is denoised at reduced resolution first, and this denoiser replaces
+         * the result with the full-resolution one on {@link #mFullPassExecutor}.
+         */
+        private final DeferredDenoiser mFullDenoiser;
+
+        private final Executor mFullPassExecutor;
+
+        /**
+         * The part of the frame to denoise, in sensor pixels, or null for the default crop.
+         */
+        private final Rect mRegion;
+
+        /**
+         * The ratio and noise measured on the frame before it was queued, or
+         * {@link ExposureAnalyzer#NO_GAIN} if it is to be measured here.
+         */
+        private final float mMeasuredRate;
+
+        private final float mMeasuredNoise;
+
         private ImageSaver(Image image, File file, File fileOri, CaptureResult result,
                            CameraCharacteristics characteristics, Context context,
                            RefCountedAutoCloseable<ImageReader> reader, Size largestSize,
-                            int mRatio, DenoisingModel denoisingModel, String bayerPattern) {
+                            float mRatio, DenoisingModel denoisingModel, String bayerPattern,
+                           ZslRingBuffer.Frame zslFrame, ZslRingBuffer zslRing,
+                           RawFrameCodec.Compressed compressedFrame, RawFrameCodec codec,
+                           HdrMerger mergedFrame, SpillRing.Slot spillSlot, SpillRing spillRing,
+                           DeferredJobQueue jobQueue, int jobPriority,
+                           ReviewRenderer reviewRenderer, ReviewRenderer.Callback reviewCallback,
+                           int reviewRotation, LinearTensorCache linearCache,
+                           QualityGovernor.Tier tier, DeferredDenoiser fullDenoiser,
+                           Executor fullPassExecutor, Rect region, float measuredRate,
+                           float measuredNoise) {
             mImage = image;
+            mMeasuredRate = measuredRate;
+            mMeasuredNoise = measuredNoise;
+            mRegion = region;
+            mFullDenoiser = fullDenoiser;
+            mFullPassExecutor = fullPassExecutor;
+            mTier = tier;
+            mLinearCache = linearCache;
+            mReviewRenderer = reviewRenderer;
+            mReviewCallback = reviewCallback;
+            mReviewRotation = reviewRotation;
+            mJobQueue = jobQueue;
+            mJobPriority = jobPriority;
+            mSpillSlot = spillSlot;
+            mSpillRing = spillRing;
+            mCompressedFrame = compressedFrame;
+            mCodec = codec;
+            mMergedFrame = mergedFrame;
+            mZslFrame = zslFrame;
+            mZslRing = zslRing;
             mFile = file;
             mFileOri = fileOri;
             mCaptureResult = result;
@@ -1359,8 +3082,21 @@ public class Camera2RawFragment extends Fragment
         }
         @Override
         public void run() {
+            run(null);
+        }
+
+        /**
+         * Saves the image, marking each stage on {@code capture} if it is not null.
+         */
+        void run(CaptureTelemetry.Capture capture) {
             boolean success = false;
-            int format = mImage.getFormat();
+            boolean clean = false;
+            float rate = mRate;
+            BayerCorrections corrections = BayerCorrections.fromCapture(mCharacteristics,
+                    mCaptureResult, CORRECT_LEVELS, CORRECT_DEFECTS, CORRECT_LENS_SHADING);
+            Bitmap review = null;
+            short[] linear = null;
+            int format = (mImage != null) ? mImage.getFormat() : ImageFormat.RAW_SENSOR;
             switch (format) {
                 case ImageFormat.RAW_SENSOR: {
                     DngCreator dngCreator = new DngCreator(mCharacteristics, mCaptureResult);
@@ -1368,21 +3104,161 @@ public class Camera2RawFragment extends Fragment
                     FileOutputStream output = null;
                     FileOutputStream outputStream = null;
 
-                    tfLiteModel.setBayerPattern(mBayerPattern);
-                    tfLiteModel.initBytesArray(mLargestSize);
-                    tfLiteModel.initTensor(mImage, mRate);
+                    boolean deferred = mJobQueue != null;
+                    int fullScale = 0;
+                    byte[] originalBytes = null;
+                    if (deferred) {
+                        stage(capture, "decode");
+                        if (mCompressedFrame != null) {
+                            originalBytes = mCodec.decode(mCompressedFrame,
+                                    new byte[mLargestSize.getWidth() * mLargestSize.getHeight() * 2]);
+                        } else if (mMergedFrame != null) {
+                            originalBytes = new byte[mLargestSize.getWidth()
+                                    * mLargestSize.getHeight() * 2];
+                            mMergedFrame.finish(originalBytes,
+                                    ProcessingPools.get().getLatencyExecutor());
+                        } else if (mZslFrame != null) {
+                            originalBytes = mZslFrame.getData();
+                        }
+                        rate = measureRate(capture, originalBytes);
+                    } else {
+                        if (mMergedFrame != null) {
+                            // Merged into the model's buffer up front, so it is measured like a
+                            // captured frame and then packed in place.
+                            stage(capture, "merge");
+                            tfLiteModel.initBytesArray(mLargestSize);
+                            originalBytes = tfLiteModel.initMergedBytes(mMergedFrame,
+                                    ProcessingPools.get().getLatencyExecutor());
+                        }
+                        rate = measureRate(capture, originalBytes);
+                        float noise = estimateNoise(capture, rate, originalBytes);
+                        clean = noise != ModelRegistry.NO_NOISE && noise < CLEAN_NOISE_LEVEL;
+                        // Only ever run on the inference worker, so the settings made here stay
+                        // this shot's until they are reset below.
+                        boolean packed = false;
+                        try {
+                            stage(capture, "pack");
+                            if (mTier != null) {
+                                try {
+                                    tfLiteModel.applyTier(mTier);
+                                } catch (IOException e) {
+                                    Log.e(TAG, "Could not switch to quality " + mTier, e);
+                                }
+                            }
+                            if (mFullDenoiser != null) {
+                                fullScale = tfLiteModel.resolutionScale;
+                                tfLiteModel.setResolutionScale(
+                                        Math.max(PROGRESSIVE_PREVIEW_SCALE, fullScale));
+                            }
+                            ModelRegistry registry = tfLiteModel.getModelRegistry();
+                            if (registry != null && !clean) {
+                                String model = registry.select(mCaptureResult, rate, noise);
+                                if (!tfLiteModel.switchModel(model)) {
+                                    Log.w(TAG, model + " is still loading, denoising with "
+                                            + tfLiteModel.getModelName());
+                                }
+                            }
+                            tfLiteModel.setBayerPattern(mBayerPattern);
+                            if (originalBytes == null) {
+                                tfLiteModel.initBytesArray(mLargestSize);
+                            }
+                            tfLiteModel.setRegion(mRegion);
+                            // A region shot cannot be re-tuned from its tensor alone, so it is not
+                            // cached.
+                            if (mLinearCache != null && mRegion == null) {
+                                linear = new short[tfLiteModel.inputTensor.length];
+                                tfLiteModel.setLinearCapture(linear);
+                            }
+                            tfLiteModel.setCorrections(corrections,
+                                    ProcessingPools.get().getLatencyExecutor());
+                            if (mCompressedFrame != null) {
+                                originalBytes = tfLiteModel.initTensor(mCompressedFrame, mCodec,
+                                        rate);
+                            } else if (mMergedFrame != null) {
+                                tfLiteModel.initTensor(originalBytes, rate);
+                            } else if (mZslFrame != null) {
+                                originalBytes = mZslFrame.getData();
+                                tfLiteModel.initTensor(originalBytes, rate);
+                            } else if (mSpillSlot != null) {
+                                tfLiteModel.initTensor(mSpillSlot.getData(), rate);
+                            } else {
+                                tfLiteModel.initTensor(mImage, rate);
+                            }
+                            packed = true;
+                        } finally {
+                            tfLiteModel.setLinearCapture(null);
+                            tfLiteModel.setCorrections(null, null);
+                            if (!packed && fullScale > 0) {
+                                tfLiteModel.setResolutionScale(fullScale);
+                            }
+                        }
+                    }
 
-                    InputStream targetStream = new ByteArrayInputStream(tfLiteModel.getOuputBytesArray());
                     try {
+                        // The original is written first, since a decoded or merged frame shares its
+                        // buffer with the denoised output.
+                        stage(capture, "write original");
                         output = new FileOutputStream(mFileOri);
-                        outputStream = new FileOutputStream(mFile);
-                        dngCreator.writeImage(output, mImage);
-                        dngCreator.writeInputStream(outputStream, mLargestSize, targetStream, 0);
+                        if (originalBytes != null) {
+                            dngCreator.writeInputStream(output, mLargestSize,
+                                    new ByteArrayInputStream(originalBytes), 0);
+                        } else if (mSpillSlot != null) {
+                            dngCreator.writeByteBuffer(output, mLargestSize, mSpillSlot.getData(), 0);
+                        } else {
+                            dngCreator.writeImage(output, mImage);
+                        }
+                        if (deferred) {
+                            stage(capture, "enqueue");
+                            output.getFD().sync();
+                            mJobQueue.enqueue(mFileOri, mFile, mLargestSize.getWidth(),
+                                    mLargestSize.getHeight(), rate, mBayerPattern, mJobPriority);
+                        } else {
+                            stage(capture, "inference");
+                            InputStream targetStream = new ByteArrayInputStream(clean
+                                    ? tfLiteModel.getPassthroughBytesArray()
+                                    : tfLiteModel.getOuputBytesArray());
+                            if (fullScale > 0) {
+                                tfLiteModel.setResolutionScale(fullScale);
+                                fullScale = 0;
+                            }
+                            if (mReviewRenderer != null) {
+                                stage(capture, "review");
+                                review = mReviewRenderer.render(tfLiteModel.outputTensor,
+                                        tfLiteModel.Height, tfLiteModel.Width,
+                                        getWhiteBalanceGains(mCaptureResult), mReviewRotation);
+                                mReviewCallback.onRendered(review);
+                            }
+                            stage(capture, "write denoised");
+                            outputStream = new FileOutputStream(mFile);
+                            dngCreator.writeInputStream(outputStream, mLargestSize, targetStream, 0);
+                            if (linear != null) {
+                                stage(capture, "cache");
+                                String name = mFile.getName();
+                                mLinearCache.put(new LinearTensorCache.Entry(
+                                        name.substring(0, name.lastIndexOf('.')), linear,
+                                        tfLiteModel.Height, tfLiteModel.Width,
+                                        mLargestSize.getWidth(), mLargestSize.getHeight(),
+                                        mBayerPattern, mFileOri,
+                                        getWhiteBalanceGains(mCaptureResult)));
+                            }
+                        }
                         success = true;
                     } catch (IOException e) {
                         e.printStackTrace();
                     } finally {
-                        mImage.close();
+                        // A failed shot leaves the model at the full resolution too.
+                        if (fullScale > 0) {
+                            tfLiteModel.setResolutionScale(fullScale);
+                        }
+                        if (mImage != null) {
+                            mImage.close();
+                        }
+                        if (mZslFrame != null) {
+                            mZslRing.release(mZslFrame);
+                        }
+                        if (mSpillSlot != null) {
+                            mSpillRing.release(mSpillSlot);
+                        }
                         closeOutput(outputStream);
                         closeOutput(output);
                     }
@@ -1395,11 +3271,26 @@ public class Camera2RawFragment extends Fragment
             }
 
             // Decrement reference count to allow ImageReader to be closed to free up resources.
-            mReader.close();
+            if (mReader != null) {
+                mReader.close();
+            }
 
             // If saving the file succeeded, update MediaStore.
             if (success) {
-                MediaScannerConnection.scanFile(mContext, new String[]{mFile.getPath(), mFileOri.getPath()},
+                stage(capture, "publish");
+                // A deferred output is scanned once the job queue has written it.
+                String[] paths = (mJobQueue != null) ? new String[]{mFileOri.getPath()}
+                        : new String[]{mFile.getPath(), mFileOri.getPath()};
+                if (SAVE_REVIEW_JPEG && review != null) {
+                    File jpeg = new File(mFile.getPath().replaceFirst("\\.dng$", ".jpg"));
+                    try {
+                        ReviewRenderer.writeJpeg(review, jpeg, REVIEW_JPEG_QUALITY);
+                        paths = new String[]{mFile.getPath(), mFileOri.getPath(), jpeg.getPath()};
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                MediaScannerConnection.scanFile(mContext, paths,
                         /*mimeTypes*/null, new MediaScannerConnection.MediaScannerConnectionClient() {
                             @Override
                             public void onMediaScannerConnected() {
@@ -1412,9 +3303,136 @@ public class Camera2RawFragment extends Fragment
                             }
                         });
 
+                // A clean shot is already at full resolution.
+                if (mFullDenoiser != null && !clean) {
+                    scheduleFullPass(rate, corrections);
+                }
+            }
+        }
+
+        /**
+         * @param decoded the frame, if it has been decoded or merged already.
+         * @return the RAW frame as captured, or null for a compressed or merged frame not
+         * decoded or merged yet.
+         */
+        private ByteBuffer rawFrame(byte[] decoded) {
+            if (decoded != null) {
+                return ByteBuffer.wrap(decoded);
+            } else if (mCompressedFrame != null || mMergedFrame != null) {
+                return null;
+            } else if (mZslFrame != null) {
+                return ByteBuffer.wrap(mZslFrame.getData());
+            } else if (mSpillSlot != null) {
+                return mSpillSlot.getData();
+            }
+            return mImage.getPlanes()[0].getBuffer();
+        }
+
+        private int rawRowStride(byte[] decoded) {
+            if (decoded == null && mImage != null && mCompressedFrame == null
+                    && mMergedFrame == null && mZslFrame == null && mSpillSlot == null) {
+                return mImage.getPlanes()[0].getRowStride();
+            }
+            return mLargestSize.getWidth() * 2;
+        }
+
+        /**
+         * Measures the amplification ratio on the frame, see {@link ExposureAnalyzer}.
+         *
+         * @param decoded the frame, if it has been decoded or merged already.
+         * @return the ratio, measured here or before the frame was queued, or the metered
+         * {@link #mRate} for a frame that cannot be measured before packing.
+         */
+        private float measureRate(CaptureTelemetry.Capture capture, byte[] decoded) {
+            if (mMeasuredRate != ExposureAnalyzer.NO_GAIN) {
+                return mMeasuredRate;
+            }
+            ByteBuffer raw = rawFrame(decoded);
+            if (raw == null) {
+                return mRate;
             }
+            stage(capture, "exposure");
+            return Camera2RawFragment.measureRate(raw, mLargestSize.getWidth(),
+                    mLargestSize.getHeight(), rawRowStride(decoded), mRate);
         }
 
+        /**
+         * Measures the noise of the frame before it is packed, see {@link NoiseEstimator}.
+         *
+         * @param decoded the frame, if it has been decoded or merged already.
+         * @return the noise level once amplified by {@code rate}, relative to the white level,
+         * or {@link ModelRegistry#NO_NOISE} for a compressed frame not measured before it was
+         * queued, which is only decoded while packing.
+         */
+        private float estimateNoise(CaptureTelemetry.Capture capture, float rate,
+                                    byte[] decoded) {
+            if (mMeasuredRate != ExposureAnalyzer.NO_GAIN) {
+                return mMeasuredNoise;
+            }
+            ByteBuffer raw = rawFrame(decoded);
+            if (raw == null) {
+                return ModelRegistry.NO_NOISE;
+            }
+            stage(capture, "noise");
+            return Camera2RawFragment.estimateNoise(raw, mLargestSize.getWidth(),
+                    mLargestSize.getHeight(), rawRowStride(decoded), rate);
+        }
+
+        /**
+         * Queues the full-resolution pass, which re-reads the original and atomically replaces
+         * the quick result in {@link #mFile}.
+         */
+        private void scheduleFullPass(final float rate, final BayerCorrections corrections) {
+            final File original = mFileOri;
+            final File output = mFile;
+            final int width = mLargestSize.getWidth();
+            final int height = mLargestSize.getHeight();
+            final String bayerPattern = mBayerPattern;
+            final DeferredDenoiser denoiser = mFullDenoiser;
+            mFullPassExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        denoiser.denoise(original, output, width, height, rate, bayerPattern,
+                                corrections);
+                        Log.i(TAG, "Full-resolution pass written to " + output);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Full-resolution pass failed, keeping the quick result "
+                                + output, e);
+                    }
+                }
+            });
+        }
+
+        private static void stage(CaptureTelemetry.Capture capture, String name) {
+            if (capture != null) {
+                capture.stage(name);
+            }
+        }
+
+        String getFileName() {
+            return mFile.getName();
+        }
+
+        /**
+         * @return whether this saver runs the denoiser, rather than deferring it.
+         */
+        boolean runsInference() {
+            return mJobQueue == null;
+        }
+
+        /**
+         * @return the white balance gains for R, G and B applied by the camera, or null if the
+         * result does not carry them.
+         */
+        private static float[] getWhiteBalanceGains(CaptureResult result) {
+            RggbChannelVector gains = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+            if (gains == null) {
+                return null;
+            }
+            return new float[]{gains.getRed(), (gains.getGreenEven() + gains.getGreenOdd()) / 2,
+                    gains.getBlue()};
+        }
 
         /**
          * Builder class for constructing {@link ImageSaver}s.
@@ -1430,9 +3448,32 @@ public class Camera2RawFragment extends Fragment
             private Context mContext;
             private RefCountedAutoCloseable<ImageReader> mReader;
             private Size mLargestSize;
-            private int mRate;
+            private float mRate;
+            private float mMeasuredRate = ExposureAnalyzer.NO_GAIN;
+            private float mMeasuredNoise = ModelRegistry.NO_NOISE;
             private DenoisingModel tfLiteModel;
             private String mBayerPattern;
+            private ZslRingBuffer.Frame mZslFrame;
+            private ZslRingBuffer mZslRing;
+            private RawFrameCodec.Compressed mCompressedFrame;
+            private RawFrameCodec mCodec;
+            private HdrMerger mMergedFrame;
+            private SpillRing.Slot mSpillSlot;
+            private SpillRing mSpillRing;
+            private DeferredJobQueue mJobQueue;
+            private ReviewRenderer mReviewRenderer;
+            private ReviewRenderer.Callback mReviewCallback;
+            private int mReviewRotation;
+            private LinearTensorCache mLinearCache;
+            private QualityGovernor.Tier mTier;
+            private DeferredDenoiser mFullDenoiser;
+            private Executor mFullPassExecutor;
+            private Rect mRegion;
+            private ExposureSweep.Progress mSweep;
+            private String mSweepName;
+            private ExposureSweep.Setting mSweepSetting;
+            private HdrMerger mHdr;
+            private ExposureSweep.Setting mHdrSetting;
             /**
              * Construct a new ImageSaverBuilder using the given {@link Context}.
              *
@@ -1457,6 +3498,28 @@ public class Camera2RawFragment extends Fragment
                 return this;
             }
 
+            /**
+             * Releases the image and reader of a request that will never be saved.
+             */
+            public synchronized void discard() {
+                if (mImage != null) {
+                    mImage.close();
+                    mImage = null;
+                }
+                if (mReader != null) {
+                    mReader.close();
+                    mReader = null;
+                }
+                if (mSweep != null) {
+                    mSweep.frameDone();
+                    mSweep = null;
+                }
+                if (mHdr != null) {
+                    mHdr.frameDone();
+                    mHdr = null;
+                }
+            }
+
             public synchronized ImageSaverBuilder setFile(final File file) {
                 if (file == null) throw new NullPointerException();
                 mFile = file;
@@ -1488,11 +3551,20 @@ public class Camera2RawFragment extends Fragment
 
 
             public  synchronized ImageSaverBuilder setRate(
-                    final int mRatio){
+                    final float mRatio){
                 if (mRatio == 0) throw  new NullPointerException();
                 mRate=mRatio;
                 return this;
             }
+            /**
+             * Sets the ratio and noise measured on the frame before it was compressed, so the
+             * saver does not measure it again.
+             */
+            public synchronized ImageSaverBuilder setMeasured(final float rate, final float noise){
+                mMeasuredRate = rate;
+                mMeasuredNoise = noise;
+                return this;
+            }
             public synchronized ImageSaverBuilder setDenoisingModel(
                     final DenoisingModel denoisingModel){
                 if (denoisingModel == null) throw  new NullPointerException();
@@ -1505,12 +3577,132 @@ public class Camera2RawFragment extends Fragment
                 mBayerPattern = bayerPattern;
                 return this;
             }
+            public synchronized ImageSaverBuilder setZslFrame(
+                    final ZslRingBuffer.Frame frame, final ZslRingBuffer ring){
+                if (frame == null || ring == null) throw  new NullPointerException();
+                mZslFrame = frame;
+                mZslRing = ring;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setCompressedFrame(
+                    final RawFrameCodec.Compressed frame, final RawFrameCodec codec){
+                if (frame == null || codec == null) throw  new NullPointerException();
+                mCompressedFrame = frame;
+                mCodec = codec;
+                return this;
+            }
+            /**
+             * Saves the frame of a completed HDR merge, rather than that of a request.
+             */
+            public synchronized ImageSaverBuilder setMergedFrame(final HdrMerger merger){
+                if (merger == null) throw  new NullPointerException();
+                mMergedFrame = merger;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setSpillSlot(
+                    final SpillRing.Slot slot, final SpillRing ring){
+                if (slot == null || ring == null) throw  new NullPointerException();
+                mSpillSlot = slot;
+                mSpillRing = ring;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setJobQueue(
+                    final DeferredJobQueue jobQueue){
+                if (jobQueue == null) throw  new NullPointerException();
+                mJobQueue = jobQueue;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setReviewRenderer(
+                    final ReviewRenderer renderer, final ReviewRenderer.Callback callback,
+                    final int rotation){
+                if (renderer == null || callback == null) throw  new NullPointerException();
+                mReviewRenderer = renderer;
+                mReviewCallback = callback;
+                mReviewRotation = rotation;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setLinearCache(
+                    final LinearTensorCache cache){
+                if (cache == null) throw  new NullPointerException();
+                mLinearCache = cache;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setQualityTier(
+                    final QualityGovernor.Tier tier){
+                if (tier == null) throw  new NullPointerException();
+                mTier = tier;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setFullPass(
+                    final DeferredDenoiser denoiser, final Executor executor){
+                if (denoiser == null || executor == null) throw  new NullPointerException();
+                mFullDenoiser = denoiser;
+                mFullPassExecutor = executor;
+                return this;
+            }
+            public synchronized ImageSaverBuilder setRegion(final Rect region){
+                if (region == null) throw  new NullPointerException();
+                mRegion = region;
+                return this;
+            }
+            /**
+             * Marks the request as frame {@code name} of a sweep, taken at {@code setting}.
+             */
+            public synchronized ImageSaverBuilder setSweep(final ExposureSweep.Progress progress,
+                    final String name, final ExposureSweep.Setting setting){
+                if (progress == null || name == null || setting == null) throw  new NullPointerException();
+                mSweep = progress;
+                mSweepName = name;
+                mSweepSetting = setting;
+                return this;
+            }
+            /**
+             * Marks the request as a frame of an HDR bracket, taken at {@code setting}, to be
+             * added to {@code merger} rather than saved.
+             */
+            public synchronized ImageSaverBuilder setHdr(final HdrMerger merger,
+                    final ExposureSweep.Setting setting){
+                if (merger == null || setting == null) throw  new NullPointerException();
+                mHdr = merger;
+                mHdrSetting = setting;
+                return this;
+            }
+            public synchronized HdrMerger getHdrMerger() {
+                return mHdr;
+            }
+            public synchronized ExposureSweep.Setting getHdrSetting() {
+                return mHdrSetting;
+            }
+            public synchronized Image getImage() {
+                return mImage;
+            }
+            public synchronized CaptureResult getResult() {
+                return mCaptureResult;
+            }
+            public synchronized ExposureSweep.Progress getSweepProgress() {
+                return mSweep;
+            }
+            public synchronized String getSweepName() {
+                return mSweepName;
+            }
+            public synchronized ExposureSweep.Setting getSweepSetting() {
+                return mSweepSetting;
+            }
+            public synchronized boolean isSpilled() {
+                return mSpillSlot != null;
+            }
             public synchronized ImageSaver buildIfComplete() {
                 if (!isComplete()) {
                     return null;
                 }
                 return new ImageSaver(mImage, mFile, mFileOri, mCaptureResult, mCharacteristics, mContext,
-                        mReader, mLargestSize, mRate, tfLiteModel, mBayerPattern);
+                        mReader, mLargestSize, mRate, tfLiteModel, mBayerPattern, mZslFrame, mZslRing,
+                        mCompressedFrame, mCodec, mMergedFrame, mSpillSlot, mSpillRing, mJobQueue,
+                        (isSpilled() || mSweep != null) ? DEFERRED_PRIORITY_BURST
+                                : DEFERRED_PRIORITY_SHOT,
+                        mReviewRenderer, mReviewCallback, mReviewRotation, mLinearCache, mTier,
+                        mFullDenoiser, mFullPassExecutor, mRegion, mMeasuredRate,
+                        mMeasuredNoise);
             }
 
             public synchronized String getSaveLocation() {
@@ -1518,7 +3710,8 @@ public class Camera2RawFragment extends Fragment
             }
 
             private boolean isComplete() {
-                return mImage != null && mFile != null && mCaptureResult != null
+                return (mImage != null || mZslFrame != null || mCompressedFrame != null
+                        || mMergedFrame != null || mSpillSlot != null) && mFile != null && mCaptureResult != null
                         && mCharacteristics != null;
             }
         }
@@ -1532,50 +3725,181 @@ public class Camera2RawFragment extends Fragment
             }
         }
     }
-    private void handleCompletionLocked(int requestId, ImageSaver.ImageSaverBuilder builder,
-                                        TreeMap<Integer, ImageSaver.ImageSaverBuilder> queue) {
+    /**
+     * Drops the request whose image could not be acquired, the oldest one still waiting.
+     */
+    private static void discardOldestWaiting(
+            CaptureMatcher<ImageSaver.ImageSaverBuilder> pendingQueue) {
+        ImageSaver.ImageSaverBuilder builder = pendingQueue.removeOldestWaiting();
+        if (builder != null) {
+            builder.discard();
+        }
+    }
+
+    private void handleCompletionLocked(final int requestId, ImageSaver.ImageSaverBuilder builder,
+                                        CaptureMatcher<ImageSaver.ImageSaverBuilder> queue) {
         if (builder == null) return;
-        ImageSaver saver = builder.buildIfComplete();
+        if (builder.getHdrMerger() != null) {
+            mergeHdrFrameLocked(requestId, builder, queue);
+            return;
+        }
+        final ImageSaver saver = builder.buildIfComplete();
         if (saver != null) {
             queue.remove(requestId);
-            AsyncTask.THREAD_POOL_EXECUTOR.execute(saver);
+            // Spilled frames and sweeps are drained one at a time, in capture order, along with
+            // every other saver that runs the model.
+            final ExposureSweep.Progress sweep = builder.getSweepProgress();
+            Executor executor = (builder.isSpilled() || sweep != null) ? mInferenceWorker
+                    : getSaverExecutor(saver);
+            mSaversInFlight.incrementAndGet();
+            final long start = SystemClock.elapsedRealtime();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runAndReport(saver, requestId, start);
+                    } finally {
+                        mSaversInFlight.decrementAndGet();
+                        if (sweep != null && sweep.frameDone()) {
+                            showToast("Sweep saved.");
+                        }
+                    }
+                }
+            });
         }
     }
 
-    private void dequeueAndSaveImage(TreeMap<Integer, ImageSaver.ImageSaverBuilder> pendingQueue,
+    /**
+     * @return where {@code saver} runs: {@link #mInferenceWorker} if it uses the model, the
+     * latency pool if it only writes the original.
+     */
+    private Executor getSaverExecutor(ImageSaver saver) {
+        return saver.runsInference() ? mInferenceWorker
+                : ProcessingPools.get().getLatencyExecutor();
+    }
+
+    /**
+     * Creates the spill ring on the first frame that needs it, since its file takes
+     * {@link #SPILL_RING_SLOTS} full frames of storage.
+     * <p/>
+     * Call this only with {@link #mCameraStateLock} held.
+     *
+     * @return the ring, or null if it could not be created.
+     */
+    private SpillRing getSpillRingLocked(int frameBytes) {
+        if (mSpillRing == null && !mSpillRingFailed) {
+            Activity activity = getActivity();
+            if (activity == null) {
+                return null;
+            }
+            try {
+                mSpillRing = new SpillRing(new File(activity.getFilesDir(), SPILL_FILE_NAME),
+                        SPILL_RING_SLOTS, frameBytes);
+            } catch (IOException e) {
+                mSpillRingFailed = true;
+                Log.e(TAG, "Could not create the RAW spill ring, frames will not be spilled.", e);
+            }
+        }
+        return mSpillRing;
+    }
+
+    /**
+     * Copies an image into a reserved spill slot on {@link #mSpillWriter}, away from the camera
+     * handler and {@link #mCameraStateLock}, then releases the image and completes its request
+     * with the slot instead.
+     */
+    private void spillImage(final CaptureMatcher<ImageSaver.ImageSaverBuilder> queue,
+                            final RefCountedAutoCloseable<ImageReader> reader,
+                            final int requestId, final ImageSaver.ImageSaverBuilder builder,
+                            final Image image, final SpillRing ring, final SpillRing.Slot slot,
+                            final SpillRing.FrameInfo info) {
+        mSpillWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.write(slot, image.getPlanes()[0].getBuffer(), info);
+                } finally {
+                    image.close();
+                    reader.close();
+                }
+                synchronized (mCameraStateLock) {
+                    if (queue.get(requestId) != builder) {
+                        // Dropped while it was copied, e.g. by closing the camera.
+                        ring.release(slot);
+                        return;
+                    }
+                    builder.setSpillSlot(slot, ring);
+                    handleCompletionLocked(requestId, builder, queue);
+                }
+            }
+        });
+    }
+
+    private void dequeueAndSaveImage(CaptureMatcher<ImageSaver.ImageSaverBuilder> pendingQueue,
                                      RefCountedAutoCloseable<ImageReader> reader) {
         synchronized (mCameraStateLock) {
-            Map.Entry<Integer, ImageSaver.ImageSaverBuilder> entry =
-                    pendingQueue.firstEntry();
-            ImageSaver.ImageSaverBuilder builder = entry.getValue();
-
             // Increment reference count to prevent ImageReader from being closed while we
             // are saving its Images in a background thread (otherwise their resources may
             // be freed while we are writing to a file).
             if (reader == null || reader.getAndRetain() == null) {
                 Log.e(TAG, "Paused the activity before we could save the image," +
                         " ImageReader already closed.");
-                pendingQueue.remove(entry.getKey());
+                discardOldestWaiting(pendingQueue);
                 return;
             }
 
             Image image;
             try {
                 image = reader.get().acquireNextImage();
-
-
-
-
             } catch (IllegalStateException e) {
-                Log.e(TAG, "Too many images queued for saving, dropping image for request: " +
-                        entry.getKey());
-                pendingQueue.remove(entry.getKey());
+                Log.e(TAG, "Too many images queued for saving, dropping image.");
+                reader.close();
+                discardOldestWaiting(pendingQueue);
+                return;
+            }
+            if (image == null) {
+                reader.close();
                 return;
             }
 
+            // Match by sensor timestamp, so a failed or lost request does not shift every
+            // later image onto the wrong result.
+            int requestId = pendingQueue.matchImage(image.getTimestamp());
+            if (requestId == CaptureMatcher.NO_MATCH) {
+                Log.e(TAG, "No pending request for image " + image.getTimestamp() + ", "
+                        + pendingQueue.getStats());
+                image.close();
+                reader.close();
+                return;
+            }
+            ImageSaver.ImageSaverBuilder builder = pendingQueue.get(requestId);
+
+            // While a saver is busy, move the frame to disk so the ImageReader buffer is
+            // returned once it is copied instead of waiting for the denoiser.
+            // Bracket frames are merged as they come, and released right after.
+            SpillRing spillRing = (mSaversInFlight.get() > 0 && builder.getHdrMerger() == null)
+                    ? getSpillRingLocked(image.getWidth() * image.getHeight() * 2) : null;
+            SpillRing.Slot slot = (spillRing != null) ? spillRing.reserve() : null;
+            if (slot != null) {
+                SpillRing.FrameInfo info = new SpillRing.FrameInfo();
+                info.timestamp = image.getTimestamp();
+                ExposureSweep.Setting setting = builder.getSweepSetting();
+                info.sensitivity = (setting != null) ? setting.sensitivity : mISO;
+                info.exposureTime = (setting != null) ? setting.exposureTime : mShutterSpeed;
+                info.width = image.getWidth();
+                info.height = image.getHeight();
+                info.rate = (setting != null)
+                        ? ratioFor(setting.sensitivity, setting.exposureTime) : mRatio;
+                spillImage(pendingQueue, reader, requestId, builder, image, spillRing, slot, info);
+                return;
+            }
+            if (spillRing != null) {
+                Log.w(TAG, "Spill ring is full, keeping frame in the ImageReader.");
+            }
+
             builder.setRefCountedReader(reader).setImage(image);
 
-            handleCompletionLocked(entry.getKey(), builder, pendingQueue);
+            handleCompletionLocked(requestId, builder, pendingQueue);
         }
     }
 }
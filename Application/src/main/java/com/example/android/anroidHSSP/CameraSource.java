@@ -0,0 +1,99 @@
+package com.example.android.anroidHSSP;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A camera reduced to what the RAW capture path relies on: tagged still requests, a capture
+ * start with the sensor timestamp, a result, and a RAW image from a bounded pool of buffers, each
+ * delivered on the source's own thread and in no guaranteed order.
+ * <p/>
+ * {@link SimulatedCameraSource} implements it without a device, so the request/image matching
+ * ({@link CaptureMatcher}), queueing and drop handling can be load-tested on a desktop.
+ * <p/>
+ * Only {@link ThroughputBenchmark} captures through this interface. {@link Camera2RawFragment}
+ * still talks to {@code CameraDevice} directly, since {@code DngCreator} needs the real
+ * {@code CaptureResult}; what it shares with the simulated path is the {@link CaptureMatcher}.
+ */
+public interface CameraSource extends Closeable {
+
+    /**
+     * The capture result of one request.
+     */
+    class Result {
+        public final int tag;
+        public final long frameNumber;
+        /** Start of exposure, in nanoseconds; equal to the image's timestamp. */
+        public final long timestamp;
+        public final int sensitivity;
+        public final long exposureTime;
+        public final long frameDuration;
+
+        public Result(int tag, long frameNumber, long timestamp, int sensitivity,
+                      long exposureTime, long frameDuration) {
+            this.tag = tag;
+            this.frameNumber = frameNumber;
+            this.timestamp = timestamp;
+            this.sensitivity = sensitivity;
+            this.exposureTime = exposureTime;
+            this.frameDuration = frameDuration;
+        }
+    }
+
+    /**
+     * A RAW image: little-endian 16-bit samples. It holds one of the source's buffers until it is
+     * closed, like an {@code android.media.Image}.
+     */
+    interface Frame extends Closeable {
+        long getTimestamp();
+
+        int getWidth();
+
+        int getHeight();
+
+        ByteBuffer getData();
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Receives the events of every request. A request ends with either a result or a failure,
+     * and either an image or a lost buffer.
+     */
+    interface Callback {
+        void onCaptureStarted(int tag, long timestamp);
+
+        void onCaptureCompleted(Result result);
+
+        void onCaptureFailed(int tag);
+
+        /** The request's image was dropped because every buffer was still held. */
+        void onCaptureBufferLost(int tag);
+
+        /** The receiver owns the frame and must close it. */
+        void onImageAvailable(Frame frame);
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    String getBayerPattern();
+
+    void setCallback(Callback callback);
+
+    /**
+     * Queues one still capture. As with a Camera2 request tag, the caller picks {@code tag} and
+     * registers the request before submitting it, since events may arrive right away.
+     */
+    void capture(int tag, int sensitivity, long exposureTime);
+
+    /**
+     * Queues captures that the sensor exposes back to back, one per entry.
+     */
+    void captureBurst(int[] tags, int[] sensitivities, long[] exposureTimes);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,132 @@
+package com.example.android.anroidHSSP;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pairs still capture requests with their RAW images.
+ * <p/>
+ * Each request is registered under its tag when it is submitted. Its sensor timestamp becomes
+ * known at capture start or with its result, and an image is matched to the request with the
+ * same timestamp. An image whose timestamp is not known yet goes to the oldest request still
+ * waiting for an image, which is the order the camera delivers them in. Failed requests and lost
+ * buffers must be {@link #remove removed}, or every later image would be matched one request
+ * too early.
+ * <p/>
+ * This class holds no camera types, so the same logic runs against a
+ * {@link SimulatedCameraSource}. In {@link Camera2RawFragment} it pairs the still, HDR bracket
+ * and exposure sweep requests; ZSL frames already carry their result, from
+ * {@link ZslRingBuffer}, and do not go through it. It is thread safe.
+ */
+public class CaptureMatcher<T> {
+
+    /** Returned by {@link #matchImage} when no request is waiting for an image. */
+    public static final int NO_MATCH = Integer.MIN_VALUE;
+
+    private static class Pending<T> {
+        final T request;
+        long timestamp = -1;
+        boolean hasImage;
+
+        Pending(T request) {
+            this.request = request;
+        }
+    }
+
+    // Tags increase with submission order, so the first entry is the oldest request.
+    private final TreeMap<Integer, Pending<T>> mPending = new TreeMap<>();
+    private int mTimestampMatches;
+    private int mOrderMatches;
+
+    public synchronized void add(int tag, T request) {
+        mPending.put(tag, new Pending<>(request));
+    }
+
+    /**
+     * @return the pending request with this tag, or null.
+     */
+    public synchronized T get(int tag) {
+        Pending<T> pending = mPending.get(tag);
+        return pending == null ? null : pending.request;
+    }
+
+    /**
+     * Records the sensor timestamp of a request, from its capture start or its result.
+     */
+    public synchronized void setTimestamp(int tag, long timestamp) {
+        Pending<T> pending = mPending.get(tag);
+        if (pending != null) {
+            pending.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Finds the request an image belongs to and marks it as having its image.
+     *
+     * @return the tag of the request, or {@link #NO_MATCH}.
+     */
+    public synchronized int matchImage(long timestamp) {
+        Map.Entry<Integer, Pending<T>> oldest = null;
+        for (Map.Entry<Integer, Pending<T>> entry : mPending.entrySet()) {
+            Pending<T> pending = entry.getValue();
+            if (pending.hasImage) {
+                continue;
+            }
+            if (pending.timestamp == timestamp) {
+                pending.hasImage = true;
+                mTimestampMatches++;
+                return entry.getKey();
+            }
+            if (oldest == null && pending.timestamp < 0) {
+                oldest = entry;
+            }
+        }
+        if (oldest == null) {
+            return NO_MATCH;
+        }
+        oldest.getValue().hasImage = true;
+        mOrderMatches++;
+        return oldest.getKey();
+    }
+
+    /**
+     * Removes a request once it is saved, or after it failed or lost its buffer.
+     *
+     * @return the request, or null if it was not pending.
+     */
+    public synchronized T remove(int tag) {
+        Pending<T> pending = mPending.remove(tag);
+        return pending == null ? null : pending.request;
+    }
+
+    /**
+     * Removes the oldest request still waiting for its image, e.g. when an image could not be
+     * acquired.
+     *
+     * @return the request, or null if none is waiting.
+     */
+    public synchronized T removeOldestWaiting() {
+        for (Map.Entry<Integer, Pending<T>> entry : mPending.entrySet()) {
+            if (!entry.getValue().hasImage) {
+                return mPending.remove(entry.getKey()).request;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    public synchronized void clear() {
+        mPending.clear();
+    }
+
+    /**
+     * @return how many images were matched by timestamp and how many by order alone.
+     */
+    public synchronized String getStats() {
+        return mTimestampMatches + " by timestamp, " + mOrderMatches + " by order, "
+                + mPending.size() + " pending";
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.android.anroidHSSP;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records, per capture and per pipeline stage, the wall time, the bytes allocated and the garbage
+ * collections that ran, so allocation-heavy stages show up next to the shot's latency.
+ * <p/>
+ * The counters are read from a {@link RuntimeStats}. Bytes are counted per thread, so a
+ * {@link Capture} must be driven from the thread that does the work. GC counts and times are
+ * process-wide: a collection triggered by another thread is attributed to whatever stage was
+ * running at the time. Blocking GC time is the time threads spent stopped waiting for a
+ * collection, the part that shows up as jank.
+ * <p/>
+ * The most recent finished captures are kept for {@link #getRecords()}; {@link Record#toString()}
+ * formats one for the log. This class is thread safe.
+ */
+public class CaptureTelemetry {
+
+    /** Tag of captures that did not come from a tagged request, such as ZSL frames. */
+    public static final int NO_TAG = -1;
+
+    /**
+     * The counters of one stage.
+     */
+    public static class Stage {
+        public final String name;
+        public final long wallMs;
+        public final long allocatedBytes;
+        public final long gcCount;
+        public final long gcTimeMs;
+        public final long blockingGcTimeMs;
+
+        Stage(String name, long wallMs, long allocatedBytes, long gcCount, long gcTimeMs,
+              long blockingGcTimeMs) {
+            this.name = name;
+            this.wallMs = wallMs;
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcTimeMs = gcTimeMs;
+            this.blockingGcTimeMs = blockingGcTimeMs;
+        }
+    }
+
+    /**
+     * The stages of one finished capture.
+     */
+    public static class Record {
+        public final int tag;
+        public final String name;
+        /** From the capture result to the end of the last stage. */
+        public final long latencyMs;
+        public final List<Stage> stages;
+
+        Record(int tag, String name, long latencyMs, List<Stage> stages) {
+            this.tag = tag;
+            this.name = name;
+            this.latencyMs = latencyMs;
+            this.stages = stages;
+        }
+
+        public long getAllocatedBytes() {
+            long total = 0;
+            for (Stage stage : stages) {
+                total += stage.allocatedBytes;
+            }
+            return total;
+        }
+
+        public long getGcCount() {
+            long total = 0;
+            for (Stage stage : stages) {
+                total += stage.gcCount;
+            }
+            return total;
+        }
+
+        public long getBlockingGcTimeMs() {
+            long total = 0;
+            for (Stage stage : stages) {
+                total += stage.blockingGcTimeMs;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("capture ").append(tag == NO_TAG ? "-" : String.valueOf(tag));
+            if (name != null) {
+                sb.append(' ').append(name);
+            }
+            sb.append(String.format(Locale.US, ": %d ms, %.1f MB, %d GC, %d ms blocked",
+                    latencyMs, getAllocatedBytes() / 1048576.0, getGcCount(),
+                    getBlockingGcTimeMs()));
+            for (Stage stage : stages) {
+                sb.append(String.format(Locale.US, "; %s %d ms %.1f MB",
+                        stage.name, stage.wallMs, stage.allocatedBytes / 1048576.0));
+                if (stage.gcCount > 0) {
+                    sb.append(String.format(Locale.US, " %d GC %d ms (%d ms blocked)",
+                            stage.gcCount, stage.gcTimeMs, stage.blockingGcTimeMs));
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An open capture. Stages run back to back: starting one ends the previous one.
+     */
+    public class Capture {
+        private final int mTag;
+        private final String mName;
+        private final long mStartMs;
+        private final List<Stage> mStages = new ArrayList<>();
+
+        private String mStage;
+        private long mStageMs;
+        private long mStageAlloc;
+        private long mStageGcCount;
+        private long mStageGcTime;
+        private long mStageBlockingGcTime;
+
+        Capture(int tag, String name, long startMs) {
+            mTag = tag;
+            mName = name;
+            mStartMs = startMs;
+            // Time spent waiting for a worker, before anything ran on this thread.
+            mStages.add(new Stage("queued", mStats.elapsedRealtime() - startMs, 0, 0, 0, 0));
+        }
+
+        /**
+         * Ends the current stage, if any, and starts {@code name}.
+         */
+        public void stage(String name) {
+            endStage();
+            mStage = name;
+            mStageMs = mStats.elapsedRealtime();
+            mStageAlloc = mStats.threadAllocatedBytes();
+            mStageGcCount = mStats.gcCount();
+            mStageGcTime = mStats.gcTimeMs();
+            mStageBlockingGcTime = mStats.blockingGcTimeMs();
+        }
+
+        /**
+         * Ends the last stage and publishes the capture.
+         *
+         * @return the finished record.
+         */
+        public Record finish() {
+            endStage();
+            Record record = new Record(mTag, mName, mStats.elapsedRealtime() - mStartMs,
+                    mStages);
+            add(record);
+            return record;
+        }
+
+        private void endStage() {
+            if (mStage == null) {
+                return;
+            }
+            // ART's thread counter is an int that wraps; the delta of one stage never does.
+            long allocated = (mStats.threadAllocatedBytes() - mStageAlloc) & 0xffffffffL;
+            mStages.add(new Stage(mStage, mStats.elapsedRealtime() - mStageMs, allocated,
+                    mStats.gcCount() - mStageGcCount, mStats.gcTimeMs() - mStageGcTime,
+                    mStats.blockingGcTimeMs() - mStageBlockingGcTime));
+            mStage = null;
+        }
+    }
+
+    private final int mMaxRecords;
+    private final RuntimeStats mStats;
+    private final ArrayDeque<Record> mRecords = new ArrayDeque<>();
+
+    /**
+     * @param maxRecords number of finished captures kept for {@link #getRecords()}.
+     * @param stats      the clock and counters, such as {@link ArtRuntimeStats}.
+     */
+    public CaptureTelemetry(int maxRecords, RuntimeStats stats) {
+        mMaxRecords = Math.max(1, maxRecords);
+        mStats = stats;
+        // Per-thread allocation sizes are only counted while counting is on.
+        stats.startAllocCounting();
+    }
+
+    /**
+     * Opens a capture on the calling thread.
+     *
+     * @param tag     the request tag, or {@link #NO_TAG}.
+     * @param name    a label for the log, such as the output file name, or null.
+     * @param startMs {@link RuntimeStats#elapsedRealtime()} when the capture result arrived.
+     */
+    public Capture begin(int tag, String name, long startMs) {
+        return new Capture(tag, name, startMs);
+    }
+
+    /**
+     * @return the most recent finished captures, oldest first.
+     */
+    public synchronized List<Record> getRecords() {
+        return new ArrayList<>(mRecords);
+    }
+
+    public void stop() {
+        mStats.stopAllocCounting();
+    }
+
+    private synchronized void add(Record record) {
+        mRecords.addLast(record);
+        while (mRecords.size() > mMaxRecords) {
+            mRecords.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.anroidHSSP;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Core topology read from {@code /sys/devices/system/cpu}, used to size the thread pools.
+ * <p/>
+ * Every online core is scored by its {@code cpu_capacity} (set by the kernel on heterogeneous
+ * ARM systems) or else by {@code cpufreq/cpuinfo_max_freq}. Cores scoring at least
+ * {@link #PERFORMANCE_THRESHOLD} of the fastest core are performance (big and prime) cores, the
+ * rest are efficiency (LITTLE) cores. On a homogeneous machine, or when sysfs is not readable,
+ * every core is a performance core. Only plain file reads are used, so this also works on a
+ * desktop Linux host.
+ */
+public class CpuTopology {
+
+    private static final String SYSFS_CPU = "/sys/devices/system/cpu";
+
+    /** Fraction of the fastest core's score a core needs to count as a performance core. */
+    static final float PERFORMANCE_THRESHOLD = 0.6f;
+
+    /** TFLite stops scaling beyond this many threads on phone SoCs. */
+    static final int MAX_INTERPRETER_THREADS = 4;
+
+    private static CpuTopology sDefault;
+
+    private final int[] mCpus;
+    private final long[] mScores;
+    private final List<Integer> mPerformanceCpus = new ArrayList<>();
+    private final List<Integer> mEfficiencyCpus = new ArrayList<>();
+
+    /**
+     * @return the topology of this device, read once.
+     */
+    public static synchronized CpuTopology getDefault() {
+        if (sDefault == null) {
+            sDefault = new CpuTopology(new File(SYSFS_CPU));
+        }
+        return sDefault;
+    }
+
+    /**
+     * Reads the topology below {@code root}, normally {@code /sys/devices/system/cpu}.
+     */
+    public CpuTopology(File root) {
+        int[] cpus = parseCpuList(readLine(new File(root, "online")));
+        if (cpus == null || cpus.length == 0) {
+            cpus = new int[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < cpus.length; i++) {
+                cpus[i] = i;
+            }
+        }
+        mCpus = cpus;
+        mScores = new long[cpus.length];
+
+        boolean haveCapacity = true;
+        boolean haveFrequency = true;
+        long[] capacity = new long[cpus.length];
+        long[] frequency = new long[cpus.length];
+        for (int i = 0; i < cpus.length; i++) {
+            File cpu = new File(root, "cpu" + cpus[i]);
+            capacity[i] = parseLong(readLine(new File(cpu, "cpu_capacity")));
+            frequency[i] = parseLong(readLine(new File(cpu, "cpufreq/cpuinfo_max_freq")));
+            haveCapacity &= capacity[i] > 0;
+            haveFrequency &= frequency[i] > 0;
+        }
+
+        long max = 0;
+        for (int i = 0; i < cpus.length; i++) {
+            mScores[i] = haveCapacity ? capacity[i] : (haveFrequency ? frequency[i] : 1);
+            max = Math.max(max, mScores[i]);
+        }
+        for (int i = 0; i < cpus.length; i++) {
+            if (mScores[i] >= max * PERFORMANCE_THRESHOLD) {
+                mPerformanceCpus.add(cpus[i]);
+            } else {
+                mEfficiencyCpus.add(cpus[i]);
+            }
+        }
+    }
+
+    public int getCoreCount() {
+        return mCpus.length;
+    }
+
+    public List<Integer> getPerformanceCpus() {
+        return Collections.unmodifiableList(mPerformanceCpus);
+    }
+
+    public List<Integer> getEfficiencyCpus() {
+        return Collections.unmodifiableList(mEfficiencyCpus);
+    }
+
+    public boolean isHeterogeneous() {
+        return !mEfficiencyCpus.isEmpty();
+    }
+
+    /**
+     * @return the thread count for a TFLite interpreter: one per performance core, so inference
+     * is never spread onto the LITTLE cores, capped at {@link #MAX_INTERPRETER_THREADS}.
+     */
+    public int getInterpreterThreads() {
+        return Math.max(1, Math.min(MAX_INTERPRETER_THREADS, mPerformanceCpus.size()));
+    }
+
+    /**
+     * @return the worker count for latency-critical kernels such as packing, rendering and
+     * coding, one per performance core.
+     */
+    public int getLatencyThreads() {
+        return Math.max(1, mPerformanceCpus.size());
+    }
+
+    /**
+     * @return the worker count for background work: the LITTLE cores, or a quarter of the cores
+     * on a homogeneous machine.
+     */
+    public int getBackgroundThreads() {
+        if (isHeterogeneous()) {
+            return mEfficiencyCpus.size();
+        }
+        return Math.max(1, mCpus.length / 4);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mCpus.length).append(" cores, performance ").append(mPerformanceCpus)
+                .append(", efficiency ").append(mEfficiencyCpus).append(", scores [");
+        for (int i = 0; i < mCpus.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mCpus[i]).append(':').append(mScores[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Parses a sysfs CPU list such as {@code 0-3,6,8-9}.
+     *
+     * @return the listed CPUs in order, or null if the list is malformed.
+     */
+    static int[] parseCpuList(String list) {
+        if (list == null || list.trim().isEmpty()) {
+            return null;
+        }
+        List<Integer> cpus = new ArrayList<>();
+        try {
+            for (String part : list.trim().split(",")) {
+                int dash = part.indexOf('-');
+                if (dash < 0) {
+                    cpus.add(Integer.parseInt(part.trim()));
+                } else {
+                    int first = Integer.parseInt(part.substring(0, dash).trim());
+                    int last = Integer.parseInt(part.substring(dash + 1).trim());
+                    for (int cpu = first; cpu <= last; cpu++) {
+                        cpus.add(cpu);
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int[] result = new int[cpus.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = cpus.get(i);
+        }
+        return result;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readLine(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+}
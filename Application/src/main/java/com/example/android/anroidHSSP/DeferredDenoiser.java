@@ -0,0 +1,89 @@
+package com.example.android.anroidHSSP;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.util.Size;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Denoises {@link DeferredJobQueue} jobs from the original DNG written at capture time.
+ * <p/>
+ * The RAW samples are read back out of the original's image strips, run through a
+ * {@link DenoisingModel} owned by the worker thread, and written into a copy of the original, so
+ * the result keeps all of its capture metadata without needing the {@code CaptureResult} that was
+ * lost with the previous process. The copy is assembled under a temporary name and renamed into
+ * place, and a job whose output already exists is skipped, so resuming a job is harmless.
+ * <p/>
+ * {@link #denoise} is also the full-resolution second pass of progressive mode, where it
+ * replaces the quick result already written to the output.
+ */
+public class DeferredDenoiser implements DeferredJobQueue.Processor {
+
+    private final Context mContext;
+    private final String mModelName;
+    private final int mNumThreads;
+
+    private final ThreadLocal<DenoisingModel> mModels = new ThreadLocal<>();
+
+    public DeferredDenoiser(Context context, String modelName, int numThreads) {
+        mContext = context.getApplicationContext();
+        mModelName = modelName;
+        mNumThreads = numThreads;
+    }
+
+    @Override
+    public void process(DeferredJobQueue.Job job) throws IOException {
+        if (job.output.exists()) {
+            return;
+        }
+        denoise(job.original, job.output, job.width, job.height, job.rate, job.bayerPattern);
+    }
+
+    /**
+     * Denoises {@code original} at full resolution into {@code output}, replacing any file that
+     * is already there in one rename.
+     */
+    public void denoise(File original, File output, int width, int height, float rate,
+                        String bayerPattern) throws IOException {
+        denoise(original, output, width, height, rate, bayerPattern, null);
+    }
+
+    /**
+     * Denoises like {@link #denoise(File, File, int, int, float, String)}, packing with the
+     * sensor corrections of the shot, or with none if {@code corrections} is null.
+     */
+    public void denoise(File original, File output, int width, int height, float rate,
+                        String bayerPattern, BayerCorrections corrections) throws IOException {
+        if (!original.exists()) {
+            throw new IOException("Original capture is gone: " + original);
+        }
+
+        DenoisingModel model = mModels.get();
+        if (model == null) {
+            model = new DenoisingModel(mContext);
+            model.loadModelFile(mModelName, mNumThreads);
+            mModels.set(model);
+        }
+        model.setBayerPattern(bayerPattern);
+        model.initBytesArray(new Size(width, height));
+
+        model.setCorrections(corrections, ProcessingPools.get().getBackgroundExecutor());
+
+        DngStrips strips = DngStrips.read(original);
+        model.initTensor(strips.readImage(original, model.imageBytes), rate);
+        byte[] denoised = model.getOuputBytesArray();
+
+        File tmp = new File(output.getPath() + ".tmp");
+        DngStrips.copy(original, tmp);
+        strips.writeImage(tmp, denoised);
+        if (!tmp.renameTo(output)) {
+            tmp.delete();
+            throw new IOException("Could not move " + tmp + " to " + output);
+        }
+
+        MediaScannerConnection.scanFile(mContext, new String[]{output.getPath()},
+                /*mimeTypes*/null, null);
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.android.anroidHSSP;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A queue of denoising jobs backed by an append-only journal, so captures that have not been
+ * processed yet survive {@code closeCamera()} and process restarts.
+ * <p/>
+ * Every job is appended to the journal and synced before {@link #enqueue} returns; a second line
+ * marks it done or failed once a worker is finished with it. On construction the journal is
+ * replayed and unfinished jobs are queued again, so a {@link Processor} must be idempotent: it may
+ * see a job again that it had already completed just before the process died. Jobs run in order
+ * of descending priority, then capture order, on at most {@code maxConcurrent} background
+ * threads, and only while the queue is running (see {@link #setRunning(boolean)}).
+ * <p/>
+ * This class is thread safe.
+ */
+public class DeferredJobQueue implements Closeable {
+
+    private static final String TAG = "DeferredJobQueue";
+
+    /** A job that fails this many times in a row is marked failed and dropped. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final String ADD = "A";
+    private static final String DONE = "D";
+    private static final String FAILED = "F";
+
+    /**
+     * One persisted capture waiting to be denoised.
+     */
+    public static class Job {
+        public final long id;
+        public final int priority;
+        /** The DNG holding the original RAW samples and capture metadata. */
+        public final File original;
+        /** Where the denoised DNG is written. */
+        public final File output;
+        public final int width;
+        public final int height;
+        /** The amplification ratio; a whole number in journals written before it was measured. */
+        public final float rate;
+        public final String bayerPattern;
+        int attempts;
+
+        Job(long id, int priority, File original, File output, int width, int height, float rate,
+            String bayerPattern) {
+            this.id = id;
+            this.priority = priority;
+            this.original = original;
+            this.output = output;
+            this.width = width;
+            this.height = height;
+            this.rate = rate;
+            this.bayerPattern = bayerPattern;
+        }
+
+        String toJournalLine() {
+            return ADD + '\t' + id + '\t' + priority + '\t' + width + '\t' + height + '\t' + rate
+                    + '\t' + bayerPattern + '\t' + original.getPath() + '\t' + output.getPath();
+        }
+
+        static Job fromJournalLine(String[] fields) {
+            return new Job(Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                    new File(fields[7]), new File(fields[8]), Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]), Float.parseFloat(fields[5]), fields[6]);
+        }
+    }
+
+    /**
+     * Does the work for one job. Called on a background thread.
+     */
+    public interface Processor {
+        void process(Job job) throws IOException;
+    }
+
+    private final File mJournalFile;
+    private final Processor mProcessor;
+    private final int mMaxConcurrent;
+    private final ExecutorService mExecutor;
+
+    private final PriorityQueue<Job> mPending = new PriorityQueue<>(16, new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return Long.compare(a.id, b.id);
+        }
+    });
+    private FileOutputStream mJournal;
+    private long mNextId;
+    private int mActive;
+    private boolean mRunning;
+    private boolean mClosed;
+
+    public DeferredJobQueue(File journal, int maxConcurrent, Processor processor)
+            throws IOException {
+        mJournalFile = journal;
+        mProcessor = processor;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mExecutor = Executors.newFixedThreadPool(mMaxConcurrent,
+                new ProcessingPools.PriorityThreadFactory("DeferredJob",
+                        android.os.Process.THREAD_PRIORITY_BACKGROUND));
+
+        List<Job> unfinished = replay();
+        mPending.addAll(unfinished);
+        compact(unfinished);
+        if (!unfinished.isEmpty()) {
+            Log.i(TAG, "Resuming " + unfinished.size() + " deferred jobs.");
+        }
+    }
+
+    /**
+     * Persists a new job. Returns once the journal entry is on disk.
+     */
+    public Job enqueue(File original, File output, int width, int height, float rate,
+                       String bayerPattern, int priority) throws IOException {
+        Job job;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Deferred job queue is closed.");
+            }
+            job = new Job(mNextId++, priority, original, output, width, height, rate,
+                    bayerPattern);
+            appendLocked(job.toJournalLine());
+            mPending.add(job);
+            dispatchLocked();
+        }
+        return job;
+    }
+
+    /**
+     * Starts or stops handing jobs to workers. Jobs that are already running are finished.
+     */
+    public synchronized void setRunning(boolean running) {
+        mRunning = running;
+        dispatchLocked();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return the number of jobs not yet finished, including the ones currently running.
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size() + mActive;
+    }
+
+    /**
+     * Stops handing out jobs without waiting for running ones; unfinished jobs stay in the
+     * journal and are resumed by the next instance.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+            mRunning = false;
+            mExecutor.shutdown();
+            if (mJournal != null) {
+                mJournal.close();
+                mJournal = null;
+            }
+        }
+    }
+
+    private void dispatchLocked() {
+        while (mRunning && !mClosed && mActive < mMaxConcurrent && !mPending.isEmpty()) {
+            final Job job = mPending.poll();
+            mActive++;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runJob(job);
+                }
+            });
+        }
+    }
+
+    private void runJob(Job job) {
+        boolean success = false;
+        try {
+            mProcessor.process(job);
+            success = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Deferred job " + job.id + " failed: " + e);
+        }
+        synchronized (this) {
+            mActive--;
+            try {
+                if (success) {
+                    appendLocked(DONE + '\t' + job.id);
+                } else if (++job.attempts >= MAX_ATTEMPTS) {
+                    appendLocked(FAILED + '\t' + job.id);
+                } else {
+                    mPending.add(job);
+                }
+                if (mPending.isEmpty() && mActive == 0 && !mClosed) {
+                    compact(new ArrayList<Job>());
+                }
+            } catch (IOException e) {
+                // The job stays unfinished in the journal and is simply run again next time.
+                e.printStackTrace();
+            }
+            dispatchLocked();
+        }
+    }
+
+    private void appendLocked(String line) throws IOException {
+        if (mClosed) {
+            return;
+        }
+        if (mJournal == null) {
+            mJournal = new FileOutputStream(mJournalFile, true);
+        }
+        mJournal.write((line + '\n').getBytes("UTF-8"));
+        mJournal.getFD().sync();
+    }
+
+    /**
+     * Reads the journal and returns the jobs that were added but never finished. A line torn by a
+     * crash mid-write is ignored.
+     */
+    private List<Job> replay() throws IOException {
+        Map<Long, Job> jobs = new HashMap<>();
+        List<Long> order = new ArrayList<>();
+        if (mJournalFile.exists()) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    try {
+                        if (ADD.equals(fields[0]) && fields.length == 9) {
+                            Job job = Job.fromJournalLine(fields);
+                            jobs.put(job.id, job);
+                            order.add(job.id);
+                            mNextId = Math.max(mNextId, job.id + 1);
+                        } else if ((DONE.equals(fields[0]) || FAILED.equals(fields[0]))
+                                && fields.length == 2) {
+                            jobs.remove(Long.parseLong(fields[1]));
+                        }
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Skipping damaged journal line: " + line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        List<Job> unfinished = new ArrayList<>();
+        for (Long id : order) {
+            Job job = jobs.get(id);
+            if (job != null) {
+                unfinished.add(job);
+            }
+        }
+        return unfinished;
+    }
+
+    /**
+     * Rewrites the journal so it only holds {@code unfinished}. The new journal is written to a
+     * temporary file and renamed over the old one, so a crash leaves one or the other intact.
+     */
+    private void compact(List<Job> unfinished) throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        File tmp = new File(mJournalFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (Job job : unfinished) {
+                sb.append(job.toJournalLine()).append('\n');
+            }
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mJournalFile)) {
+            throw new IOException("Could not replace " + mJournalFile);
+        }
+    }
+}
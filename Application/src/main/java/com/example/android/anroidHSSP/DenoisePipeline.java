@@ -0,0 +1,106 @@
+package com.example.android.anroidHSSP;
+
+import android.content.Context;
+import android.util.Size;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@link ThroughputBenchmark} pipeline of a shot in the app: pack, inference and writing
+ * the result, on a model owned by each worker thread. The result is written as plain 16-bit
+ * samples, which costs the same I/O as a DNG but needs no camera metadata.
+ */
+public class DenoisePipeline implements ThroughputBenchmark.Pipeline {
+    private final Context mContext;
+    private final String mModelName;
+    private final int mNumThreads;
+    private final Size mSize;
+    private final String mBayerPattern;
+    private final float mRate;
+    private final File mOutputDir;
+    private final ThreadLocal<DenoisingModel> mModels = new ThreadLocal<>();
+    private int mBatchSize;
+    private int mTileSize;
+    private String mBackends;
+    private boolean mSkipTiles;
+
+    public DenoisePipeline(Context context, String modelName, int numThreads, Size size,
+                           String bayerPattern, float rate, File outputDir) {
+        mContext = context.getApplicationContext();
+        mModelName = modelName;
+        mNumThreads = numThreads;
+        mSize = size;
+        mBayerPattern = bayerPattern;
+        mRate = rate;
+        mOutputDir = outputDir;
+    }
+
+    /**
+     * Sets the tiling of the workers' models. Call before {@link ThroughputBenchmark#run()}.
+     */
+    public DenoisePipeline setBatching(int batchSize, int tileSize) {
+        mBatchSize = batchSize;
+        mTileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * Spreads each frame's tiles over {@code backends}, see
+     * {@link ThroughputBenchmark.Config#backends}. Each worker gets its own set. Call before
+     * {@link ThroughputBenchmark#run()}.
+     */
+    public DenoisePipeline setBackends(String backends) {
+        mBackends = backends;
+        return this;
+    }
+
+    /**
+     * Skips tiles that do not need the model, see
+     * {@link ThroughputBenchmark.Config#skipTiles}. Call before {@link ThroughputBenchmark#run()}.
+     */
+    public DenoisePipeline setTileSkipping(boolean skip) {
+        mSkipTiles = skip;
+        return this;
+    }
+
+    @Override
+    public void process(int index, ByteBuffer frame, CaptureTelemetry.Capture capture)
+            throws IOException {
+        DenoisingModel model = mModels.get();
+        if (model == null) {
+            capture.stage("load model");
+            model = new DenoisingModel(mContext);
+            model.loadModelFile(mModelName, mNumThreads);
+            model.setBayerPattern(mBayerPattern);
+            model.initBytesArray(mSize);
+            model.setBatching(mBatchSize, mTileSize);
+            model.setTileSkipping(mSkipTiles);
+            if (mBackends != null) {
+                TileScheduler scheduler = new TileScheduler(mModelName, mTileSize);
+                for (String backend : mBackends.split(",")) {
+                    scheduler.addBackend(TileScheduler.interpreterBackend(mContext,
+                            mModelName, backend.trim()));
+                }
+                model.setTileScheduler(scheduler);
+            }
+            mModels.set(model);
+        }
+        capture.stage("pack");
+        model.initTensor(frame, mRate);
+        capture.stage("inference");
+        byte[] denoised = model.getOuputBytesArray();
+        capture.stage("write denoised");
+        File file = new File(mOutputDir, "benchmark_" + Thread.currentThread().getId()
+                + ".raw");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(denoised);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.example.android.anroidHSSP;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.graphics.Rect;
 import android.media.Image;
 import android.util.Size;
 
@@ -17,14 +18,72 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
-
+import java.util.concurrent.Executor;
+
+/**
+ * Denoises RAW frames with a TFLite model.
+ * <p/>
+ * A shot's settings, packed input and output stay on the model from packing until its result has
+ * been read, so an instance must only be used by one thread at a time; locking single setters
+ * would still let shots mix their settings. The camera fragment runs every shot on one inference
+ * thread, and {@link DeferredDenoiser} keeps one instance per thread.
+ */
 public class DenoisingModel {
 
     private Context mContext;
     private Interpreter tfLiteModel;
+    private LoadedModel mModel;
+    private volatile String mModelName;
+    private volatile int mNumThreads;
+    private volatile boolean mAllowFp16;
+
+    /**
+     * If set, interpreters come from and go back to this registry instead of being loaded and
+     * closed here.
+     */
+    private ModelRegistry mRegistry;
+
+    /**
+     * An interpreter with its GPU delegate, loaded from one model asset with one thread count
+     * and precision.
+     */
+    public static class LoadedModel {
+        public final String name;
+        public final int numThreads;
+        public final boolean allowFp16;
+        /** Size of the model asset, the part of the interpreter's memory that can be known. */
+        public final long sizeBytes;
+        final Interpreter interpreter;
+        final GpuDelegate gpuDelegate;
+
+        /** The registry it is cached in, and how many models use it; null if not cached. */
+        ModelRegistry registry;
+        int users;
+
+        LoadedModel(String name, int numThreads, boolean allowFp16, long sizeBytes,
+                    Interpreter interpreter, GpuDelegate gpuDelegate) {
+            this.name = name;
+            this.numThreads = numThreads;
+            this.allowFp16 = allowFp16;
+            this.sizeBytes = sizeBytes;
+            this.interpreter = interpreter;
+            this.gpuDelegate = gpuDelegate;
+        }
 
-    int Height = 1488;
-    int Width = 2000;
+        void close() {
+            interpreter.close();
+            if (gpuDelegate != null) {
+                gpuDelegate.close();
+            }
+        }
+    }
+
+    /** The default crop, at the top-left corner of the frame; also the largest region. */
+    static final int DEFAULT_HEIGHT = 1488;
+    static final int DEFAULT_WIDTH = 2000;
+
+    int Height = DEFAULT_HEIGHT;
+    int Width = DEFAULT_WIDTH;
     int Channel = 4;
     int rIdx;
     int g1Idx;
@@ -42,37 +101,410 @@ public class DenoisingModel {
     ByteBuffer inpBuffer;
     ByteBuffer outBuffer;
 
+    /**
+     * If set, packing also stores every black-level-subtracted sample here, in tensor order, so
+     * the shot can be re-amplified later with {@link #initTensor(short[], float)}.
+     */
+    short[] linearTensor;
+
+    /** Packs and unpacks byte frames; a vector kernel where the runtime has one. */
+    final BayerKernel kernel = BayerKernels.get();
+
+    /**
+     * Sensor corrections packing applies instead of {@link #kernel}'s nominal black level, see
+     * {@link #setCorrections}, and the executor their bands run on.
+     */
+    BayerCorrections corrections;
+    Executor correctionExecutor;
+
+    /** Gamma lookup for {@link #initTensor(short[], float)}, valid for {@link #lutRate}. */
+    private float[] gammaLut;
+    private float lutRate;
+
+    /**
+     * Origin of the crop in RAW pixels, and whether it is a region set with
+     * {@link #setRegion(Rect)} rather than the default crop.
+     */
+    int cropTop;
+    int cropLeft;
+    boolean hasRegion;
+
+    /** Spatial dimensions of the model input are padded to a multiple of this. */
+    static final int MODEL_ALIGNMENT = 16;
+
+    /**
+     * Context around each tile, in quads, that is inferred but not written back, so tiles join
+     * without seams.
+     */
+    static final int TILE_MARGIN = 16;
+
+    /**
+     * Tiled inference, see {@link #setBatching(int, int)}. With a batch size of 0 the model runs
+     * on the whole crop at once.
+     */
+    int batchSize;
+    int tileSize;
+    int tileHeight;
+    int tileWidth;
+    float[] batchInput;
+    float[] tiledOutput;
+    TensorBuffer batchInputBuffer;
+    TensorBuffer batchOutputBuffer;
+
+    /** Spreads tiles over several interpreters, see {@link #setTileScheduler}. */
+    TileScheduler tileScheduler;
+
+    /** Whether tiled modes skip tiles that do not need the model, see {@link TileGrid}. */
+    volatile boolean skipTiles;
+    /** Tiles inferred and skipped in the last run. */
+    int inferredTiles;
+    int skippedTiles;
+
+    /**
+     * Denoising resolution divisor. Above 1, the packed tensor is box-downsampled before
+     * inference and the output is upsampled back, see {@link #setResolutionScale(int)}.
+     */
+    int resolutionScale = 1;
+    int scaledHeight;
+    int scaledWidth;
+    float[] scaledInput;
+    TensorBuffer scaledInputBuffer;
+    TensorBuffer scaledOutputBuffer;
+
     public DenoisingModel(Context context){
         this.mContext = context;
 
 
     }
+    /**
+     * Sizes {@link #imageBytes} for frames of {@code LargetSize}. The array is kept when it
+     * already has that size, so consecutive shots do not allocate a frame each.
+     */
     public void initBytesArray(Size LargetSize){
         this.mLargestSize = LargetSize;
         int rawHeight = this.mLargestSize.getHeight();
         int rawWidth = this.mLargestSize.getWidth();
-        this.imageBytes = new byte[rawHeight*rawWidth*2];
+        if (imageBytes == null || imageBytes.length != rawHeight*rawWidth*2) {
+            this.imageBytes = new byte[rawHeight*rawWidth*2];
+        }
     }
 
     public Interpreter loadModelFile(String modelName, int numThreads) throws IOException {
-        AssetFileDescriptor fileDescriptor=  mContext.getResources().getAssets().openFd(modelName);
+        return loadModelFile(modelName, numThreads, false);
+    }
+
+    /**
+     * Loads the model, replacing any interpreter loaded before, and sizes its input for the
+     * current crop, batching and resolution scale. With a registry set, the interpreter is taken
+     * from the registry, which loads it only if it has none cached.
+     *
+     * @param allowFp16 whether the GPU delegate and the CPU kernels may compute in FP16.
+     */
+    public synchronized Interpreter loadModelFile(String modelName, int numThreads,
+                                                  boolean allowFp16) throws IOException {
+        if (mRegistry != null) {
+            useModel(mRegistry.acquire(modelName, numThreads, allowFp16));
+            return tfLiteModel;
+        }
+        setModel(load(mContext, modelName, numThreads, allowFp16));
+        resizeModelInput();
+        return tfLiteModel;
+    }
+
+    /**
+     * Loads a model asset into a new interpreter on the GPU delegate.
+     */
+    static LoadedModel load(Context context, String modelName, int numThreads,
+                            boolean allowFp16) throws IOException {
+        return load(context, modelName, numThreads, allowFp16, true);
+    }
+
+    /**
+     * Loads a model asset into a new interpreter.
+     *
+     * @param gpu whether to use the GPU delegate, or else only CPU kernels.
+     */
+    static LoadedModel load(Context context, String modelName, int numThreads,
+                            boolean allowFp16, boolean gpu) throws IOException {
+        AssetFileDescriptor fileDescriptor=  context.getResources().getAssets().openFd(modelName);
         FileInputStream inputStream=new FileInputStream(fileDescriptor.getFileDescriptor());
         FileChannel fileChannel=inputStream.getChannel();
         long startOffset=fileDescriptor.getStartOffset();
         long declareLength=fileDescriptor.getDeclaredLength();
-        CompatibilityList compatList = new CompatibilityList();
-
-        GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
-        GpuDelegate gpuDelegate = new GpuDelegate(delegateOptions);
         Interpreter.Options tfLiteOptions = new Interpreter.Options();
         tfLiteOptions.setNumThreads(numThreads);
-        tfLiteOptions.setUseNNAPI(true);
-        tfLiteOptions.addDelegate(gpuDelegate);
+        tfLiteOptions.setAllowFp16PrecisionForFp32(allowFp16);
+        GpuDelegate gpuDelegate = null;
+        if (gpu) {
+            CompatibilityList compatList = new CompatibilityList();
+
+            GpuDelegate.Options delegateOptions = compatList.getBestOptionsForThisDevice();
+            delegateOptions.setPrecisionLossAllowed(allowFp16);
+            gpuDelegate = new GpuDelegate(delegateOptions);
+            tfLiteOptions.setUseNNAPI(true);
+            tfLiteOptions.addDelegate(gpuDelegate);
+        }
         MappedByteBuffer tfliteModel;
         tfliteModel = fileChannel.map(FileChannel.MapMode.READ_ONLY,startOffset,declareLength);
         Interpreter tflite = new Interpreter(tfliteModel, tfLiteOptions);
-        this.tfLiteModel = tflite;
-        return tflite;
+        return new LoadedModel(modelName, numThreads, allowFp16, declareLength, tflite,
+                gpuDelegate);
+    }
+
+    /**
+     * Takes interpreters from {@code registry} from now on. Call before loading a model.
+     */
+    public synchronized void setModelRegistry(ModelRegistry registry) {
+        mRegistry = registry;
+    }
+
+    public ModelRegistry getModelRegistry() {
+        return mRegistry;
+    }
+
+    public String getModelName() {
+        return mModelName;
+    }
+
+    /**
+     * Switches to {@code modelName}, at the current thread count and precision, only if the
+     * registry already has it loaded; otherwise starts loading it in the background and keeps
+     * the current model. Never loads on the calling thread.
+     *
+     * @return whether {@code modelName} is now in use.
+     */
+    public synchronized boolean switchModel(String modelName) {
+        if (modelName.equals(mModelName)) {
+            return true;
+        }
+        if (mRegistry == null) {
+            return false;
+        }
+        LoadedModel model = mRegistry.acquireIfLoaded(modelName, mNumThreads, mAllowFp16);
+        if (model == null) {
+            mRegistry.prefetch(modelName, mNumThreads, mAllowFp16);
+            return false;
+        }
+        useModel(model);
+        return true;
+    }
+
+    /**
+     * Starts loading {@code modelName} at the current thread count and precision, if a registry
+     * is set and has not loaded it yet.
+     */
+    public void prefetch(String modelName) {
+        ModelRegistry registry = mRegistry;
+        if (registry != null && modelName != null) {
+            registry.prefetch(modelName, mNumThreads, mAllowFp16);
+        }
+    }
+
+    /**
+     * Uses a model acquired from the registry, keeping the crop and resolution scale.
+     */
+    private void useModel(LoadedModel model) {
+        if (model == mModel) {
+            mRegistry.release(model);
+            return;
+        }
+        setModel(model);
+        resizeModelInput();
+    }
+
+    private void setModel(LoadedModel model) {
+        LoadedModel previous = mModel;
+        mModel = model;
+        tfLiteModel = model.interpreter;
+        mModelName = model.name;
+        mNumThreads = model.numThreads;
+        mAllowFp16 = model.allowFp16;
+        if (previous == null) {
+            return;
+        }
+        if (previous.registry != null) {
+            previous.registry.release(previous);
+        } else {
+            previous.close();
+        }
+    }
+
+    /**
+     * Switches to the settings of a {@link QualityGovernor} tier, reloading the interpreter only
+     * if the thread count or precision changed.
+     */
+    public synchronized void applyTier(QualityGovernor.Tier tier) throws IOException {
+        if (mModelName != null
+                && (tier.interpreterThreads != mNumThreads || tier.allowFp16 != mAllowFp16)) {
+            loadModelFile(mModelName, tier.interpreterThreads, tier.allowFp16);
+        }
+        setResolutionScale(tier.resolutionScale);
+    }
+
+    /**
+     * Runs the model at {@code 1 / scale} of the crop resolution. The packed tensor is
+     * box-averaged down, padded to {@link #MODEL_ALIGNMENT}, and the output is bilinearly
+     * upsampled back, so callers see the same full-size output either way.
+     */
+    public void setResolutionScale(int scale) {
+        scale = Math.max(1, scale);
+        if (scale == resolutionScale) {
+            return;
+        }
+        resolutionScale = scale;
+        resizeModelInput();
+    }
+
+    /**
+     * Restricts packing, inference and write-back to {@code region} of the RAW frame, in sensor
+     * pixels, or returns to the default crop when null. The region is grown to whole Bayer quads
+     * and to a multiple of {@link #MODEL_ALIGNMENT} quads around its center, capped at the
+     * default crop and shifted inside the frame. Outside it, {@link #getOuputBytesArray()}
+     * passes the original samples through. Call after {@link #initBytesArray(Size)}.
+     */
+    public synchronized void setRegion(Rect region) {
+        int height = DEFAULT_HEIGHT;
+        int width = DEFAULT_WIDTH;
+        int top = 0;
+        int left = 0;
+        if (region != null) {
+            int rawHeight = mLargestSize.getHeight();
+            int rawWidth = mLargestSize.getWidth();
+            height = alignQuads((region.bottom - region.top + 1) / 2,
+                    Math.min(DEFAULT_HEIGHT, rawHeight / 2));
+            width = alignQuads((region.right - region.left + 1) / 2,
+                    Math.min(DEFAULT_WIDTH, rawWidth / 2));
+            top = clampOrigin((region.top + region.bottom) / 2 - height, rawHeight - 2 * height);
+            left = clampOrigin((region.left + region.right) / 2 - width, rawWidth - 2 * width);
+        }
+        hasRegion = region != null;
+        cropTop = top;
+        cropLeft = left;
+        if (height == Height && width == Width) {
+            return;
+        }
+        Height = height;
+        Width = width;
+        inputTensor = new float[Channel * Height * Width];
+        outputTensor = new float[Channel * Height * Width];
+        input = TensorBuffer.createFixedSize(new int[]{1, Height, Width, Channel},
+                DataType.FLOAT32);
+        probabilityBuffer = TensorBuffer.createFixedSize(new int[]{1, Height, Width, Channel},
+                DataType.FLOAT32);
+        if (tfLiteModel != null) {
+            resizeModelInput();
+        }
+    }
+
+    private static int alignQuads(int quads, int max) {
+        int aligned = (Math.max(1, quads) + MODEL_ALIGNMENT - 1)
+                / MODEL_ALIGNMENT * MODEL_ALIGNMENT;
+        int largest = Math.max(MODEL_ALIGNMENT, max / MODEL_ALIGNMENT * MODEL_ALIGNMENT);
+        return Math.min(aligned, largest);
+    }
+
+    /**
+     * @return {@code origin} within [0, max], rounded down to an even pixel.
+     */
+    private static int clampOrigin(int origin, int max) {
+        return Math.max(0, Math.min(origin, max)) & ~1;
+    }
+
+    /**
+     * Runs the model on tiles of {@code tileSize} x {@code tileSize} quads, each with
+     * {@link #TILE_MARGIN} quads of context, {@code batchSize} tiles per invocation of a
+     * {@code [batchSize, h, w, 4]} input, and scatters the results back. Fewer, larger
+     * invocations cost less per call and keep a delegate busier; which batch size is best
+     * depends on the backend, see {@link ThroughputBenchmark.Config#batchSize}.
+     *
+     * @param batchSize tiles per invocation, or 0 to run on the whole crop at once.
+     */
+    public synchronized void setBatching(int batchSize, int tileSize) {
+        batchSize = Math.max(0, batchSize);
+        tileSize = Math.max(MODEL_ALIGNMENT,
+                (tileSize + MODEL_ALIGNMENT - 1) / MODEL_ALIGNMENT * MODEL_ALIGNMENT);
+        if (batchSize == this.batchSize && tileSize == this.tileSize) {
+            return;
+        }
+        this.batchSize = batchSize;
+        this.tileSize = tileSize;
+        if (tfLiteModel != null) {
+            resizeModelInput();
+        }
+    }
+
+    /**
+     * Denoises with {@code scheduler}'s interpreters instead of this model's own, as long as
+     * they run the model in use. If the scheduler fails, the model falls back to its own
+     * interpreter and drops the scheduler.
+     *
+     * @param scheduler the scheduler, or null to use this model's interpreter.
+     */
+    public synchronized void setTileScheduler(TileScheduler scheduler) {
+        tileScheduler = scheduler;
+    }
+
+    /**
+     * Leaves clipped, black and noise-free tiles out of inference, see
+     * {@link TileGrid#classify}. Only applies in tiled modes: with batching or a tile scheduler.
+     */
+    public void setTileSkipping(boolean skip) {
+        skipTiles = skip;
+    }
+
+    /**
+     * @return how many tiles the last tiled run skipped, of how many.
+     */
+    public String getTileSkipSummary() {
+        return skippedTiles + "/" + (inferredTiles + skippedTiles);
+    }
+
+    private boolean usesTileScheduler() {
+        TileScheduler scheduler = tileScheduler;
+        return scheduler != null && scheduler.getModelName().equals(mModelName);
+    }
+
+    /**
+     * @return the top (or left) of the tile window around a core starting at {@code core},
+     * shifted inward at the edges so the window fits in {@code size}.
+     */
+    static int tileWindow(int core, int window, int size) {
+        return Math.max(0, Math.min(core - TILE_MARGIN, size - window));
+    }
+
+    /**
+     * Resizes the interpreter input to the crop at the current resolution scale, or to a batch
+     * of its tiles.
+     */
+    private void resizeModelInput() {
+        int scale = resolutionScale;
+        int h = Height;
+        int w = Width;
+        if (scale > 1) {
+            h = (Height + scale - 1) / scale;
+            w = (Width + scale - 1) / scale;
+            scaledHeight = (h + MODEL_ALIGNMENT - 1) / MODEL_ALIGNMENT * MODEL_ALIGNMENT;
+            scaledWidth = (w + MODEL_ALIGNMENT - 1) / MODEL_ALIGNMENT * MODEL_ALIGNMENT;
+            h = scaledHeight;
+            w = scaledWidth;
+            scaledInput = new float[scaledHeight * scaledWidth * Channel];
+            if (batchSize == 0) {
+                int[] shape = {1, scaledHeight, scaledWidth, Channel};
+                scaledInputBuffer = TensorBuffer.createFixedSize(shape, DataType.FLOAT32);
+                scaledOutputBuffer = TensorBuffer.createFixedSize(shape, DataType.FLOAT32);
+            }
+        }
+        if (batchSize == 0) {
+            tfLiteModel.resizeInput(0, new int[]{1, h, w, Channel});
+            return;
+        }
+        tileHeight = Math.min(tileSize + 2 * TILE_MARGIN, h);
+        tileWidth = Math.min(tileSize + 2 * TILE_MARGIN, w);
+        int[] shape = {batchSize, tileHeight, tileWidth, Channel};
+        batchInput = new float[batchSize * tileHeight * tileWidth * Channel];
+        batchInputBuffer = TensorBuffer.createFixedSize(shape, DataType.FLOAT32);
+        batchOutputBuffer = TensorBuffer.createFixedSize(shape, DataType.FLOAT32);
+        tfLiteModel.resizeInput(0, shape);
     }
     public void setBayerPattern(String colorPattern){
         rIdx = colorPattern.indexOf("R");
@@ -88,109 +520,289 @@ public class DenoisingModel {
             input=1;
         return input;
     }
-    public void initTensor(Image mImage, int mRate) {
+    public void initTensor(Image mImage, float mRate) {
 
         ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
         buffer.get(imageBytes);
-//        Log.e("error", "denoising init Tensor");
-        for (int i = 0; i < Height * 2; i = i + 2) {
-            for (int j = 0; j < Width * 2; j = j + 2) {
-//
-//                float g1 = (float) ((imageBytes[(i * 2 * mLargestSize.getWidth()) + (j * 2)] & 0xFF) | ((imageBytes[(i * 2 * mLargestSize.getWidth()) + (j * 2) + 1] & 0xFF) << 8));
-//                float b = (float) ((imageBytes[(i * 2 * mLargestSize.getWidth()) + ((j + 1) * 2)] & 0xFF) | ((imageBytes[(i * 2 * mLargestSize.getWidth()) + ((j + 1) * 2) + 1] & 0xFF) << 8));
-//                float r = (float) ((imageBytes[((i + 1) * 2 * mLargestSize.getWidth()) + (j * 2)] & 0xFF) | ((imageBytes[((i + 1) * 2 * mLargestSize.getWidth()) + (j * 2) + 1] & 0xFF) << 8));
-//                float g2 = (float) ((imageBytes[((i + 1) * 2 * mLargestSize.getWidth()) + ((j + 1) * 2)] & 0xFF) | ((imageBytes[((i + 1) * 2 * mLargestSize.getWidth()) + ((j + 1) * 2) + 1] & 0xFF) << 8));
-                float r = (float) ((imageBytes[((i + sliceIdx[rIdx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[rIdx][1]) * 2)] & 0xFF) |
-                                  ((imageBytes[((i + sliceIdx[rIdx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[rIdx][1]) * 2) + 1] & 0xFF) << 8));
-
-                float g1 = (float) ((imageBytes[((i + sliceIdx[g1Idx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[g1Idx][1]) * 2)] & 0xFF) |
-                        ((imageBytes[((i + sliceIdx[g1Idx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[g1Idx][1]) * 2) + 1] & 0xFF) << 8));
-
-                float b = (float) ((imageBytes[((i + sliceIdx[bIdx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[bIdx][1]) * 2)] & 0xFF) |
-                        ((imageBytes[((i + sliceIdx[bIdx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[bIdx][1]) * 2) + 1] & 0xFF) << 8));
-
-                float g2 = (float) ((imageBytes[((i + sliceIdx[g2Idx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[g2Idx][1]) * 2)] & 0xFF) |
-                        ((imageBytes[((i + sliceIdx[g2Idx][0]) * 2 * mLargestSize.getWidth()) + ((j+sliceIdx[g2Idx][1]) * 2) + 1] & 0xFF) << 8));
-
-
-                g1 = mRate * (g1 - 64) / (1024 - 64);
-                r = mRate * (r - 64) / (1024 - 64);
-                b = mRate * (b - 64) / (1024 - 64);
-                g2 = mRate * (g2 - 64) / (1024 - 64);
-
-                g1 = (float) Math.pow(customReLU(g1), 1 / 2.22);
-                r = (float) Math.pow(customReLU(r), 1 / 2.22);
-                b = (float) Math.pow(customReLU(b), 1 / 2.22);
-                g2 = (float) Math.pow(customReLU(g2), 1 / 2.22);
-
-                inputTensor[(i / 2) * Width * Channel + (j / 2) * Channel + 0] = r;
-                inputTensor[(i / 2) * Width * Channel + (j / 2) * Channel + 1] = g1;
-                inputTensor[(i / 2) * Width * Channel + (j / 2) * Channel + 2] = b;
-                inputTensor[(i / 2) * Width * Channel + (j / 2) * Channel + 3] = g2;
-            }
-        }
+        initTensor(imageBytes, mRate);
+    }
 
-        this.input.loadArray(inputTensor);
-        inpBuffer = input.getBuffer();
-        outBuffer = probabilityBuffer.getBuffer();
+    /**
+     * Decodes a compressed frame straight into the raw byte buffer and packs it.
+     *
+     * @return the decoded raw bytes, valid until {@link #getOuputBytesArray()} overwrites them.
+     */
+    public byte[] initTensor(RawFrameCodec.Compressed frame, RawFrameCodec codec,
+                             float mRate) {
+        codec.decode(frame, imageBytes);
+        initTensor(imageBytes, mRate);
+        return imageBytes;
     }
 
-    public byte[] floatArray2ByteArray(float[] floatArray, byte[] byteArray, int Height, int Width, int Channel){
-//        Log.e("error", "denoising floatArray2ByteArray");
-        int rawHeight = this.mLargestSize.getHeight();
-        int rawWidth = this.mLargestSize.getWidth();
+    /**
+     * Finishes an HDR merge straight into the raw byte buffer set up by {@link #initBytesArray},
+     * so it can be measured first and then packed in place with {@link #initTensor(byte[], float)}.
+     *
+     * @return the merged raw bytes, valid until {@link #getOuputBytesArray()} overwrites them.
+     */
+    public byte[] initMergedBytes(HdrMerger merger, Executor executor) {
+        merger.finish(imageBytes, executor);
+        return imageBytes;
+    }
 
-        for (int i = 0; i < Height; i++) {
-            for (int j = 0; j < Width; j++) {
+    public void initTensor(byte[] rawBytes, float mRate) {
+//        Log.e("error", "denoising init Tensor");
+        if (hasRegion && rawBytes != imageBytes) {
+            // The output passes everything outside the region through from imageBytes.
+            System.arraycopy(rawBytes, 0, imageBytes, 0, imageBytes.length);
+        }
+        if (corrections != null) {
+            corrections.pack(rawBytes, mLargestSize.getWidth(), mLargestSize.getHeight(), cropTop,
+                    cropLeft, quadPositions(), mRate, inputTensor, linearTensor, Height, Width,
+                    correctionExecutor);
+        } else {
+            kernel.pack(rawBytes, cropOffset(), mLargestSize.getWidth(), quadPositions(), mRate, inputTensor,
+                    linearTensor, Height, Width);
+        }
 
-                float r = floatArray[i * Width * Channel + j * Channel + 0];
-                float g1 = floatArray[i * Width * Channel + j * Channel + 1];
-                float b = floatArray[i * Width * Channel + j * Channel + 2];
-                float g2 = floatArray[i * Width * Channel + j * Channel + 3];
+        loadInput();
+    }
 
-                r = (float) Math.pow(customReLU(r), 2.22);
-                g1 = (float) Math.pow(customReLU(g1), 2.22);
-                b = (float) Math.pow(customReLU(b), 2.22);
-                g2 = (float) Math.pow(customReLU(g2), 2.22);
+    /**
+     * Copies the frame from a little-endian buffer, e.g. a memory-mapped {@link SpillRing} slot,
+     * into {@link #imageBytes} and packs it with the {@link BayerKernel}, like the other
+     * overloads. The kernels and {@link BayerCorrections} read byte arrays, and a region's
+     * output is written over the original in {@link #imageBytes}, so the frame is copied once
+     * into the buffer every shot already has.
+     */
+    public void initTensor(ByteBuffer rawBuffer, float mRate) {
+        rawBuffer.duplicate().get(imageBytes);
+        initTensor(imageBytes, mRate);
+    }
 
+    /**
+     * Makes the following packing from raw bytes apply {@code corrections}, in bands on
+     * {@code executor}. Pass null to pack with the nominal black level only.
+     */
+    public void setCorrections(BayerCorrections corrections, Executor executor) {
+        this.corrections = corrections;
+        this.correctionExecutor = executor;
+    }
 
-                int tmpr = (int) (r * (1024 - 64) + 64);
-                byte tmpr_0 = (byte) (tmpr & 0xFF);
-                byte tmpr_1 = (byte) ((tmpr >> 8) & 0xFF);
+    /**
+     * Makes the following packing also record the linear samples into {@code linear}, which must
+     * hold {@code Height * Width * Channel} values. Pass null to stop recording.
+     */
+    public void setLinearCapture(short[] linear) {
+        this.linearTensor = linear;
+    }
 
-                int tmpg1 = (int) (g1 * (1024 - 64) + 64);
-                byte tmpg1_0 = (byte) (tmpg1 & 0xFF);
-                byte tmpg1_1 = (byte) ((tmpg1 >> 8) & 0xFF);
+    /**
+     * Packs a linear tensor recorded by {@link #setLinearCapture(short[])} at a new amplification
+     * ratio. Amplification and gamma go through a lookup table, so this is much cheaper than
+     * packing from raw bytes. With a region set, {@link #imageBytes} must already hold the frame.
+     */
+    public void initTensor(short[] linear, float mRate) {
+        if (gammaLut == null || lutRate != mRate) {
+            // Every sample at or above this value saturates to 1.
+            int saturation = (int) Math.min(65535, Math.ceil((1024 - 64) / mRate)) + 1;
+            gammaLut = new float[saturation + 1];
+            for (int v = 0; v <= saturation; v++) {
+                gammaLut[v] = (float) Math.pow(customReLU(mRate * v / (1024 - 64)), 1 / 2.22);
+            }
+            lutRate = mRate;
+        }
+        float[] lut = gammaLut;
+        int last = lut.length - 1;
+        for (int i = 0; i < inputTensor.length; i++) {
+            int v = linear[i] & 0xFFFF;
+            inputTensor[i] = lut[v < last ? v : last];
+        }
 
-                int tmpb = (int) (b * (1024 - 64) + 64);
-                byte tmpb_0 = (byte) (tmpb & 0xFF);
-                byte tmpb_1 = (byte) ((tmpb >> 8) & 0xFF);
+        loadInput();
+    }
 
-                int tmpg2 = (int) (g2 * (1024 - 64) + 64);
-                byte tmpg2_0 = (byte) (tmpg2 & 0xFF);
-                byte tmpg2_1 = (byte) ((tmpg2 >> 8) & 0xFF);
+    private void loadInput() {
+        if (resolutionScale > 1) {
+            downsampleInput();
+            if (batchSize > 0 || usesTileScheduler()) {
+                return;
+            }
+            scaledInputBuffer.loadArray(scaledInput);
+            inpBuffer = scaledInputBuffer.getBuffer();
+            outBuffer = scaledOutputBuffer.getBuffer();
+            return;
+        }
+        if (batchSize > 0 || usesTileScheduler()) {
+            return;
+        }
+        this.input.loadArray(inputTensor);
+        inpBuffer = input.getBuffer();
+        outBuffer = probabilityBuffer.getBuffer();
+    }
 
-                byteArray[(i * 2 + sliceIdx[rIdx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[rIdx][1]) * 2 + 0] = tmpr_0;
-                byteArray[(i * 2 + sliceIdx[rIdx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[rIdx][1]) * 2 + 1] = tmpr_1;
+    /**
+     * Box-averages {@link #inputTensor} into {@link #scaledInput}; the padding repeats the last
+     * row and column.
+     */
+    private void downsampleInput() {
+        int scale = resolutionScale;
+        float norm = 1f / (scale * scale);
+        for (int y = 0; y < scaledHeight; y++) {
+            for (int x = 0; x < scaledWidth; x++) {
+                for (int c = 0; c < Channel; c++) {
+                    float sum = 0;
+                    for (int dy = 0; dy < scale; dy++) {
+                        int sy = Math.min(Height - 1, y * scale + dy);
+                        for (int dx = 0; dx < scale; dx++) {
+                            int sx = Math.min(Width - 1, x * scale + dx);
+                            sum += inputTensor[(sy * Width + sx) * Channel + c];
+                        }
+                    }
+                    scaledInput[(y * scaledWidth + x) * Channel + c] = sum * norm;
+                }
+            }
+        }
+    }
 
+    /**
+     * Bilinearly upsamples a reduced-resolution model output into {@link #outputTensor}.
+     */
+    private void upsampleOutput(float[] scaled) {
+        if (outputTensor.length != Height * Width * Channel) {
+            outputTensor = new float[Height * Width * Channel];
+        }
+        float inv = 1f / resolutionScale;
+        for (int y = 0; y < Height; y++) {
+            float fy = Math.max(0, (y + 0.5f) * inv - 0.5f);
+            int y0 = Math.min((int) fy, scaledHeight - 1);
+            int y1 = Math.min(y0 + 1, scaledHeight - 1);
+            float wy = fy - y0;
+            for (int x = 0; x < Width; x++) {
+                float fx = Math.max(0, (x + 0.5f) * inv - 0.5f);
+                int x0 = Math.min((int) fx, scaledWidth - 1);
+                int x1 = Math.min(x0 + 1, scaledWidth - 1);
+                float wx = fx - x0;
+                int a = (y0 * scaledWidth + x0) * Channel;
+                int b = (y0 * scaledWidth + x1) * Channel;
+                int c = (y1 * scaledWidth + x0) * Channel;
+                int d = (y1 * scaledWidth + x1) * Channel;
+                int o = (y * Width + x) * Channel;
+                for (int k = 0; k < Channel; k++) {
+                    float top = scaled[a + k] + (scaled[b + k] - scaled[a + k]) * wx;
+                    float bottom = scaled[c + k] + (scaled[d + k] - scaled[c + k]) * wx;
+                    outputTensor[o + k] = top + (bottom - top) * wy;
+                }
+            }
+        }
+    }
 
-                byteArray[(i * 2 + sliceIdx[g1Idx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[g1Idx][1]) * 2 + 0] = tmpg1_0;
-                byteArray[(i * 2 + sliceIdx[g1Idx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[g1Idx][1]) * 2 + 1] = tmpg1_1;
-                //
-                byteArray[(i * 2 + sliceIdx[bIdx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[bIdx][1]) * 2 + 0] = tmpb_0;
-                byteArray[(i * 2 + sliceIdx[bIdx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[bIdx][1]) * 2 + 1] = tmpb_1;
-                //
-                byteArray[(i * 2 + sliceIdx[g2Idx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[g2Idx][1]) * 2 + 0] = tmpg2_0;
-                byteArray[(i * 2 + sliceIdx[g2Idx][0]) * rawWidth * 2 + (j * 2 + sliceIdx[g2Idx][1]) * 2 + 1] = tmpg2_1;
+    /**
+     * Infers the packed (or downsampled) tensor tile by tile, laid out by a {@link TileGrid},
+     * on the {@link #tileScheduler}'s interpreters or else {@link #batchSize} tiles per
+     * invocation. With {@link #skipTiles}, only the tiles that need the model are inferred.
+     */
+    private void runTiles() throws IOException {
+        boolean scaled = resolutionScale > 1;
+        float[] src = scaled ? scaledInput : inputTensor;
+        int h = scaled ? scaledHeight : Height;
+        int w = scaled ? scaledWidth : Width;
+        if (scaled) {
+            if (tiledOutput == null || tiledOutput.length != h * w * Channel) {
+                tiledOutput = new float[h * w * Channel];
             }
+        } else if (outputTensor.length != h * w * Channel) {
+            outputTensor = new float[h * w * Channel];
         }
+        float[] dst = scaled ? tiledOutput : outputTensor;
+        boolean scheduled = usesTileScheduler();
+        TileGrid grid = new TileGrid(h, w, Channel,
+                scheduled ? tileScheduler.getTileSize() : tileSize);
+        int[] tiles = skipTiles ? grid.classify(src, dst) : grid.all();
+        inferredTiles = tiles.length;
+        skippedTiles = grid.count() - tiles.length;
+
+        if (scheduled) {
+            tileScheduler.run(src, dst, grid, tiles);
+        } else {
+            int tileFloats = grid.windowFloats();
+            for (int first = 0; first < tiles.length; first += batchSize) {
+                int count = Math.min(batchSize, tiles.length - first);
+                for (int b = 0; b < count; b++) {
+                    grid.extract(src, tiles[first + b], batchInput, b * tileFloats);
+                }
+                // Unused slots of the last batch keep stale tiles; their results are ignored.
+                batchInputBuffer.loadArray(batchInput);
+                tfLiteModel.run(batchInputBuffer.getBuffer(), batchOutputBuffer.getBuffer());
+                float[] out = batchOutputBuffer.getFloatArray();
+                for (int b = 0; b < count; b++) {
+                    grid.write(out, b * tileFloats, tiles[first + b], dst);
+                }
+            }
+        }
+        if (scaled) {
+            upsampleOutput(tiledOutput);
+        }
+    }
+
+    public byte[] floatArray2ByteArray(float[] floatArray, byte[] byteArray, int Height, int Width, int Channel){
+//        Log.e("error", "denoising floatArray2ByteArray");
+        kernel.unpack(floatArray, Height, Width, byteArray, cropOffset(),
+                mLargestSize.getWidth(), quadPositions());
         return byteArray;
     }
+
+    /**
+     * @return the byte offset of the crop's top-left sample in a frame.
+     */
+    private int cropOffset() {
+        return (cropTop * mLargestSize.getWidth() + cropLeft) * 2;
+    }
+
+    /**
+     * @return the position within a 2x2 block of each tensor channel, in R, G1, B, G2 order.
+     */
+    private int[][] quadPositions() {
+        return new int[][]{sliceIdx[rIdx], sliceIdx[g1Idx], sliceIdx[bIdx], sliceIdx[g2Idx]};
+    }
     public byte[] getOuputBytesArray(){
 
-        this.tfLiteModel.run(inpBuffer, outBuffer);
-        this.outputTensor = probabilityBuffer.getFloatArray();
-        Arrays.fill(imageBytes, (byte) 0);
+        if (batchSize > 0 || usesTileScheduler()) {
+            try {
+                runTiles();
+            } catch (IOException e) {
+                e.printStackTrace();
+                tileScheduler = null;
+                loadInput();
+                return getOuputBytesArray();
+            }
+        } else {
+            this.tfLiteModel.run(inpBuffer, outBuffer);
+            if (resolutionScale > 1) {
+                upsampleOutput(scaledOutputBuffer.getFloatArray());
+            } else {
+                this.outputTensor = probabilityBuffer.getFloatArray();
+            }
+        }
+        return unpackOutput();
+    }
+
+    /**
+     * Unpacks the packed tensor as it is, amplified but not denoised, for shots too clean to
+     * need the model. {@link #outputTensor} holds the tensor afterwards, as after inference.
+     */
+    public byte[] getPassthroughBytesArray() {
+        if (outputTensor.length != inputTensor.length) {
+            outputTensor = new float[inputTensor.length];
+        }
+        System.arraycopy(inputTensor, 0, outputTensor, 0, inputTensor.length);
+        return unpackOutput();
+    }
+
+    private byte[] unpackOutput() {
+        if (!hasRegion) {
+            Arrays.fill(imageBytes, (byte) 0);
+        }
         this.imageBytes = floatArray2ByteArray(outputTensor,imageBytes,Height,Width,Channel);
 //        Log.e("error", "denoising finish getOuputBytesArray");
         return this.imageBytes;
@@ -0,0 +1,238 @@
+package com.example.android.anroidHSSP;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Locates the uncompressed image strips of a DNG written by
+ * {@link android.hardware.camera2.DngCreator}, so the RAW samples can be read back or replaced in
+ * place without a DNG decoder. All other tags, i.e. the full capture metadata, stay untouched.
+ */
+public class DngStrips {
+
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_SUB_IFDS = 330;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    final long[] offsets;
+    final long[] byteCounts;
+
+    private DngStrips(long[] offsets, long[] byteCounts) {
+        this.offsets = offsets;
+        this.byteCounts = byteCounts;
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long count : byteCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Parses the TIFF structure of a DNG and returns the strips of its full-resolution image.
+     */
+    public static DngStrips read(File dng) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(dng, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = readAt(channel, 0, 8, ByteOrder.LITTLE_ENDIAN);
+            ByteOrder order;
+            if (header.get(0) == 'I' && header.get(1) == 'I') {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IOException("Not a TIFF/DNG file: " + dng);
+            }
+            header.order(order);
+            long ifd = header.getInt(4) & 0xFFFFFFFFL;
+
+            long[][] strips = readStrips(channel, ifd, order);
+            if (strips == null) {
+                throw new IOException("No full-resolution image found in " + dng);
+            }
+            return new DngStrips(strips[0], strips[1]);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the image data of all strips, in order, into {@code dst}.
+     */
+    public byte[] readImage(File dng, byte[] dst) throws IOException {
+        checkSize(dst.length);
+        RandomAccessFile file = new RandomAccessFile(dng, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            int position = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(dst, position, (int) byteCounts[i]);
+                long filePosition = offsets[i];
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, filePosition);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + dng);
+                    }
+                    filePosition += n;
+                }
+                position += (int) byteCounts[i];
+            }
+            return dst;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Overwrites the image data of all strips with {@code src}.
+     */
+    public void writeImage(File dng, byte[] src) throws IOException {
+        checkSize(src.length);
+        RandomAccessFile file = new RandomAccessFile(dng, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            int position = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(src, position, (int) byteCounts[i]);
+                long filePosition = offsets[i];
+                while (buffer.hasRemaining()) {
+                    filePosition += channel.write(buffer, filePosition);
+                }
+                position += (int) byteCounts[i];
+            }
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Copies a file, e.g. an original DNG whose strips are then overwritten with a processed
+     * image.
+     */
+    public static void copy(File src, File dst) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long position = 0;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void checkSize(int length) throws IOException {
+        if (getTotalBytes() > length) {
+            throw new IOException("Image data is " + getTotalBytes() + " bytes, buffer holds "
+                    + length);
+        }
+    }
+
+    private static long[][] readStrips(FileChannel channel, long ifd, ByteOrder order)
+            throws IOException {
+        ByteBuffer countBuffer = readAt(channel, ifd, 2, order);
+        int entries = countBuffer.getShort(0) & 0xFFFF;
+        ByteBuffer table = readAt(channel, ifd + 2, entries * 12, order);
+
+        long subfileType = 0;
+        long[] offsets = null;
+        long[] byteCounts = null;
+        long[] subIfds = null;
+        for (int i = 0; i < entries; i++) {
+            int base = i * 12;
+            int tag = table.getShort(base) & 0xFFFF;
+            switch (tag) {
+                case TAG_NEW_SUBFILE_TYPE:
+                    subfileType = readValues(channel, table, base, order)[0];
+                    break;
+                case TAG_STRIP_OFFSETS:
+                    offsets = readValues(channel, table, base, order);
+                    break;
+                case TAG_STRIP_BYTE_COUNTS:
+                    byteCounts = readValues(channel, table, base, order);
+                    break;
+                case TAG_SUB_IFDS:
+                    subIfds = readValues(channel, table, base, order);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (subfileType == 0 && offsets != null && byteCounts != null
+                && offsets.length == byteCounts.length) {
+            return new long[][]{offsets, byteCounts};
+        }
+        // IFD0 is a preview; the RAW image lives in a sub-IFD.
+        if (subIfds != null) {
+            for (long subIfd : subIfds) {
+                long[][] strips = readStrips(channel, subIfd, order);
+                if (strips != null) {
+                    return strips;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long[] readValues(FileChannel channel, ByteBuffer table, int base,
+                                     ByteOrder order) throws IOException {
+        int type = table.getShort(base + 2) & 0xFFFF;
+        int count = table.getInt(base + 4);
+        int size;
+        if (type == TYPE_SHORT) {
+            size = 2;
+        } else if (type == TYPE_LONG) {
+            size = 4;
+        } else {
+            throw new IOException("Unexpected TIFF field type " + type);
+        }
+        ByteBuffer values;
+        if (count * size <= 4) {
+            values = table.duplicate().order(order);
+            values.position(base + 8);
+            values = values.slice().order(order);
+        } else {
+            values = readAt(channel, table.getInt(base + 8) & 0xFFFFFFFFL, count * size, order);
+        }
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = size == 2 ? values.getShort(i * 2) & 0xFFFF
+                    : values.getInt(i * 4) & 0xFFFFFFFFL;
+        }
+        return result;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length,
+                                     ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
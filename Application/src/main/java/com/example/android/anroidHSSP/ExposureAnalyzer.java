@@ -0,0 +1,133 @@
+package com.example.android.anroidHSSP;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Picks the amplification ratio of a shot from the captured RAW frame itself, rather than from
+ * the exposure the preview had metered before the shutter was pressed.
+ * <p/>
+ * The black-level-subtracted samples of every {@link #ROW_STRIDE}th row pair and every
+ * {@link #COLUMN_STRIDE}th quad are counted into a histogram, split into bands that run in
+ * parallel with {@link ProcessingPools#runAll}. The ratio is the fractional gain that brings the
+ * given percentile of the histogram to the given target level, relative to the white level,
+ * within [1, {@code maxGain}].
+ */
+public class ExposureAnalyzer {
+
+    /** Distance, in rows, between sampled row pairs. */
+    static final int ROW_STRIDE = 16;
+
+    /** Distance, in quads, between sampled quads of a row pair. */
+    static final int COLUMN_STRIDE = 4;
+
+    /** Bands the sampled rows are split into. */
+    static final int BANDS = 4;
+
+    /** Returned when the frame has nothing to sample. */
+    public static final float NO_GAIN = 0;
+
+    private static final int LEVELS = BayerKernel.WHITE_LEVEL - BayerKernel.BLACK_LEVEL + 1;
+
+    private final float mPercentile;
+    private final float mTarget;
+    private final float mMaxGain;
+
+    /**
+     * @param percentile the fraction of samples, in [0, 1], at or below the level brought to
+     *                   {@code target}; 0.5 for the median.
+     * @param target     the level, relative to the white level, to bring it to.
+     * @param maxGain    the largest ratio to return.
+     */
+    public ExposureAnalyzer(float percentile, float target, float maxGain) {
+        mPercentile = Math.max(0, Math.min(1, percentile));
+        mTarget = target;
+        mMaxGain = Math.max(1, maxGain);
+    }
+
+    /**
+     * @param raw       little-endian 16-bit samples from its position on; not modified.
+     * @param rowStride bytes per row.
+     * @param executor  runs bands alongside the calling thread.
+     * @return the ratio, or {@link #NO_GAIN} for a frame with nothing to sample.
+     */
+    public float analyze(ByteBuffer raw, final int width, final int height, final int rowStride,
+                         Executor executor) {
+        final ByteBuffer buffer = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = buffer.position();
+        final int pairs = Math.max(0, (height - 2) / ROW_STRIDE + 1);
+        List<Callable<int[]>> bands = new ArrayList<>();
+        for (int b = 0; b < BANDS; b++) {
+            final int first = pairs * b / BANDS;
+            final int last = pairs * (b + 1) / BANDS;
+            bands.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    int[] histogram = new int[LEVELS];
+                    for (int pair = first; pair < last; pair++) {
+                        int offset = base + pair * ROW_STRIDE * rowStride;
+                        countQuads(buffer, offset, width, histogram);
+                        countQuads(buffer, offset + rowStride, width, histogram);
+                    }
+                    return histogram;
+                }
+            });
+        }
+        int[] histogram = new int[LEVELS];
+        try {
+            for (int[] counts : ProcessingPools.runAll(bands, executor)) {
+                for (int i = 0; i < LEVELS; i++) {
+                    histogram[i] += counts[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NO_GAIN;
+        }
+        return gain(histogram);
+    }
+
+    /**
+     * Counts both samples of every sampled quad in one row.
+     */
+    private static void countQuads(ByteBuffer buffer, int offset, int width, int[] histogram) {
+        for (int x = 0; x + 1 < width; x += 2 * COLUMN_STRIDE) {
+            histogram[level(buffer.getShort(offset + x * 2))]++;
+            histogram[level(buffer.getShort(offset + x * 2 + 2))]++;
+        }
+    }
+
+    private static int level(short sample) {
+        int v = (sample & 0xFFFF) - BayerKernel.BLACK_LEVEL;
+        return Math.max(0, Math.min(LEVELS - 1, v));
+    }
+
+    /**
+     * @return the ratio for a histogram of black-level-subtracted samples.
+     */
+    float gain(int[] histogram) {
+        long n = 0;
+        for (int count : histogram) {
+            n += count;
+        }
+        if (n == 0) {
+            return NO_GAIN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(mPercentile * n));
+        int level = 0;
+        long seen = histogram[0];
+        while (seen < rank) {
+            seen += histogram[++level];
+        }
+        // Counts are taken as spread over +-0.5 around their level, and a black percentile
+        // as half a level, which the maximum gain then caps.
+        float value = level - 0.5f + (float) (rank - seen + histogram[level]) / histogram[level];
+        value = Math.max(0.5f, value);
+        float gain = mTarget * (LEVELS - 1) / value;
+        return Math.max(1, Math.min(mMaxGain, gain));
+    }
+}
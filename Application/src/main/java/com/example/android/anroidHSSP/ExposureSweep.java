@@ -0,0 +1,147 @@
+package com.example.android.anroidHSSP;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The manual exposures of a bracketing sweep: the same scene taken at several ISO and shutter
+ * speed combinations, submitted to the camera as one burst.
+ * <p/>
+ * Sweeps are listed in a text file, one setting per line: {@code iso exposure}, with the
+ * exposure in seconds, either as a fraction such as {@code 1/30} or as a decimal. Lines starting
+ * with {@code #} are comments. Without the file, {@link #isoStops} gives a default sweep.
+ */
+public class ExposureSweep {
+
+    private static final String TAG = "ExposureSweep";
+
+    /** The file listing the sweep, in the DCIM directory. */
+    public static final String FILE_NAME = "sweep.txt";
+
+    /**
+     * One exposure of a sweep.
+     */
+    public static class Setting {
+        public final int sensitivity;
+        public final long exposureTime;
+
+        public Setting(int sensitivity, long exposureTime) {
+            this.sensitivity = sensitivity;
+            this.exposureTime = exposureTime;
+        }
+
+        /**
+         * @return the setting as a file name suffix, e.g. {@code ISO400_33333us}.
+         */
+        public String label() {
+            return "ISO" + sensitivity + "_" + (exposureTime / 1000) + "us";
+        }
+
+        @Override
+        public String toString() {
+            return label();
+        }
+    }
+
+    /**
+     * Counts down the frames of a sweep in flight and logs how long the whole sweep took once
+     * the last one is saved or dropped. It is thread safe.
+     */
+    public static class Progress {
+        private final int mFrames;
+        private final AtomicInteger mRemaining;
+        private final long mStartMs = SystemClock.elapsedRealtime();
+
+        public Progress(int frames) {
+            mFrames = frames;
+            mRemaining = new AtomicInteger(frames);
+        }
+
+        /**
+         * Marks one frame done.
+         *
+         * @return whether it was the last one.
+         */
+        public boolean frameDone() {
+            if (mRemaining.decrementAndGet() != 0) {
+                return false;
+            }
+            Log.i(TAG, String.format(Locale.US, "Sweep of %d frames done in %d ms", mFrames,
+                    SystemClock.elapsedRealtime() - mStartMs));
+            return true;
+        }
+    }
+
+    /**
+     * Reads a sweep, clamping each setting to the sensor's ranges.
+     *
+     * @return the settings, in file order.
+     * @throws IOException if the file cannot be read or a line is malformed.
+     */
+    public static List<Setting> read(File file, Range<Integer> sensitivities,
+                                     Range<Long> exposureTimes) throws IOException {
+        List<Setting> settings = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("\\s+");
+                if (f.length != 2) {
+                    throw new IOException("Malformed sweep setting: " + line);
+                }
+                try {
+                    settings.add(new Setting(sensitivities.clamp(Integer.parseInt(f[0])),
+                            exposureTimes.clamp(parseExposure(f[1]))));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed sweep setting: " + line, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return settings;
+    }
+
+    /**
+     * @return one setting per ISO stop, doubling from the lowest sensitivity to the highest,
+     * all at {@code exposureTime}.
+     */
+    public static List<Setting> isoStops(Range<Integer> sensitivities, long exposureTime) {
+        List<Setting> settings = new ArrayList<>();
+        for (int iso = sensitivities.getLower(); iso < sensitivities.getUpper(); iso *= 2) {
+            settings.add(new Setting(iso, exposureTime));
+        }
+        settings.add(new Setting(sensitivities.getUpper(), exposureTime));
+        return settings;
+    }
+
+    /**
+     * @return an exposure in seconds, {@code 1/30} or {@code 0.5}, in nanoseconds.
+     */
+    static long parseExposure(String seconds) {
+        int slash = seconds.indexOf('/');
+        double value = (slash < 0) ? Double.parseDouble(seconds)
+                : Double.parseDouble(seconds.substring(0, slash))
+                / Double.parseDouble(seconds.substring(slash + 1));
+        if (!(value > 0) || Double.isInfinite(value)) {
+            throw new NumberFormatException("Not an exposure: " + seconds);
+        }
+        return Math.round(value * 1e9);
+    }
+}
@@ -0,0 +1,355 @@
+package com.example.android.anroidHSSP;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Tile based alignment of burst frames against a reference frame.
+ * <p/>
+ * Frames are little-endian 16-bit RAW_SENSOR samples, either the byte arrays used by
+ * {@link DenoisingModel} or an image plane with its row stride. Alignment runs on a pyramid built
+ * from the averaged green channel of each Bayer quad, black level subtracted and multiplied by a
+ * per-frame gain so frames of different exposures can be compared, so level 0 is half the sensor
+ * resolution. Every tile is matched coarse-to-fine with an L1 block search and tiles are
+ * processed in parallel. The resulting offsets are in Bayer pixels and always even, so applying
+ * them never changes the colour filter phase. Tiles along the frame borders move their search
+ * block inwards, so they find shifts towards the border too.
+ */
+public class FrameAligner {
+
+    int[][] sliceIdx = {{0,0}, {0,1}, {1,0}, {1,1}};
+    int g1Idx;
+    int g2Idx;
+
+    /** Tile size in level 0 (half resolution) pixels. */
+    int tileSize = 16;
+    /** Search radius at every pyramid level. */
+    int searchRadius = 4;
+    /** Number of pyramid levels including level 0. */
+    int levels = 3;
+    /** Blocks are never matched smaller than this at the coarse levels. */
+    int minBlockSize = 8;
+
+    int rawWidth;
+    int rawHeight;
+    int tilesX;
+    int tilesY;
+
+    float[][] refPyramid;
+    float[][] altPyramid;
+    int[] levelWidth;
+    int[] levelHeight;
+
+    private final Executor mExecutor;
+    private final int mNumThreads;
+
+    /**
+     * @param executor   runs row bands alongside the calling thread, e.g.
+     *                   {@link ProcessingPools#getLatencyExecutor()}.
+     * @param numThreads how many bands the rows are split into.
+     */
+    public FrameAligner(Executor executor, int numThreads) {
+        mNumThreads = Math.max(1, numThreads);
+        mExecutor = executor;
+    }
+
+    public void setBayerPattern(String colorPattern) {
+        g1Idx = colorPattern.indexOf("G");
+        g2Idx = colorPattern.lastIndexOf("G");
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+        refPyramid = null;
+    }
+
+    public void setSearchRadius(int searchRadius) {
+        this.searchRadius = searchRadius;
+    }
+
+    public void setLevels(int levels) {
+        this.levels = levels;
+        refPyramid = null;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * @return the side of a tile in Bayer pixels. The last tile of a row or column also covers
+     * the pixels beyond the grid.
+     */
+    public int getBayerTileSize() {
+        return tileSize * 2;
+    }
+
+    /**
+     * Builds the reference pyramid. Buffers are (re)allocated only when the frame size changes,
+     * so consecutive bursts of the same size do not allocate.
+     */
+    public void setReference(byte[] raw, int width, int height) {
+        setReference(ByteBuffer.wrap(raw), width * 2, width, height, 1);
+    }
+
+    /**
+     * @param raw       samples from its position on; not modified.
+     * @param rowStride bytes per row.
+     * @param gain      what the frame's samples are multiplied by, black level subtracted.
+     */
+    public void setReference(ByteBuffer raw, int rowStride, int width, int height, float gain) {
+        if (refPyramid == null || width != rawWidth || height != rawHeight) {
+            allocate(width, height);
+        }
+        buildPyramid(raw, rowStride, gain, refPyramid);
+    }
+
+    /**
+     * Aligns a frame against the current reference.
+     *
+     * @return offsets as {dx, dy} pairs in Bayer pixels, row-major over the tile grid.
+     */
+    public int[] align(byte[] raw) {
+        int[] offsets = new int[tilesX * tilesY * 2];
+        align(raw, offsets);
+        return offsets;
+    }
+
+    public void align(byte[] raw, int[] offsets) {
+        align(ByteBuffer.wrap(raw), rawWidth * 2, 1, offsets);
+    }
+
+    /**
+     * Aligns a frame of the reference's size against the reference.
+     *
+     * @param raw       samples from its position on; not modified.
+     * @param rowStride bytes per row.
+     * @param gain      what the frame's samples are multiplied by, black level subtracted, to
+     *                  match the reference's brightness.
+     * @param offsets   receives {dx, dy} pairs in Bayer pixels, row-major over the tile grid.
+     */
+    public void align(ByteBuffer raw, int rowStride, float gain, final int[] offsets) {
+        if (refPyramid == null) {
+            throw new IllegalStateException("setReference must be called before align");
+        }
+        buildPyramid(raw, rowStride, gain, altPyramid);
+        runRows(tilesY, new RowTask() {
+            @Override
+            public void run(int ty) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    alignTile(tx, ty, offsets);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the frame, shifted by the per-tile offsets, to the accumulator. Pixels whose source
+     * falls outside the frame are taken unshifted.
+     */
+    public void accumulate(final byte[] raw, final int[] offsets, final float[] accumulator) {
+        final int bayerTile = tileSize * 2;
+        runRows(tilesY, new RowTask() {
+            @Override
+            public void run(int ty) {
+                int y0 = ty * bayerTile;
+                int y1 = ty == tilesY - 1 ? rawHeight : Math.min(rawHeight, y0 + bayerTile);
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int x0 = tx * bayerTile;
+                    int x1 = tx == tilesX - 1 ? rawWidth : Math.min(rawWidth, x0 + bayerTile);
+                    int dx = offsets[(ty * tilesX + tx) * 2];
+                    int dy = offsets[(ty * tilesX + tx) * 2 + 1];
+                    for (int y = y0; y < y1; y++) {
+                        int sy = y + dy;
+                        boolean rowInside = sy >= 0 && sy < rawHeight;
+                        for (int x = x0; x < x1; x++) {
+                            int sx = x + dx;
+                            int src = (rowInside && sx >= 0 && sx < rawWidth)
+                                    ? sy * rawWidth + sx : y * rawWidth + x;
+                            accumulator[y * rawWidth + x] +=
+                                    (raw[src * 2] & 0xFF) | ((raw[src * 2 + 1] & 0xFF) << 8);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void allocate(int width, int height) {
+        rawWidth = width;
+        rawHeight = height;
+        levelWidth = new int[levels];
+        levelHeight = new int[levels];
+        refPyramid = new float[levels][];
+        altPyramid = new float[levels][];
+        int w = width / 2;
+        int h = height / 2;
+        for (int l = 0; l < levels; l++) {
+            levelWidth[l] = w;
+            levelHeight[l] = h;
+            refPyramid[l] = new float[w * h];
+            altPyramid[l] = new float[w * h];
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+        }
+        tilesX = Math.max(1, levelWidth[0] / tileSize);
+        tilesY = Math.max(1, levelHeight[0] / tileSize);
+    }
+
+    private void buildPyramid(ByteBuffer raw, final int rowStride, final float gain,
+                              final float[][] pyramid) {
+        final ByteBuffer buffer = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = buffer.position();
+        final int w = levelWidth[0];
+        final float[] level0 = pyramid[0];
+        final int g1Row = sliceIdx[g1Idx][0];
+        final int g1Col = sliceIdx[g1Idx][1];
+        final int g2Row = sliceIdx[g2Idx][0];
+        final int g2Col = sliceIdx[g2Idx][1];
+        runRows(levelHeight[0], new RowTask() {
+            @Override
+            public void run(int i) {
+                int row1 = base + (i * 2 + g1Row) * rowStride + g1Col * 2;
+                int row2 = base + (i * 2 + g2Row) * rowStride + g2Col * 2;
+                for (int j = 0; j < w; j++) {
+                    int g1 = buffer.getShort(row1 + j * 4) & 0xFFFF;
+                    int g2 = buffer.getShort(row2 + j * 4) & 0xFFFF;
+                    level0[i * w + j] = ((g1 + g2) * 0.5f - BayerKernel.BLACK_LEVEL) * gain;
+                }
+            }
+        });
+        for (int l = 1; l < levels; l++) {
+            float[] src = pyramid[l - 1];
+            float[] dst = pyramid[l];
+            int sw = levelWidth[l - 1];
+            int sh = levelHeight[l - 1];
+            int dw = levelWidth[l];
+            int dh = levelHeight[l];
+            for (int i = 0; i < dh; i++) {
+                int r0 = Math.min(i * 2, sh - 1) * sw;
+                int r1 = Math.min(i * 2 + 1, sh - 1) * sw;
+                for (int j = 0; j < dw; j++) {
+                    int c0 = Math.min(j * 2, sw - 1);
+                    int c1 = Math.min(j * 2 + 1, sw - 1);
+                    dst[i * dw + j] = (src[r0 + c0] + src[r0 + c1] + src[r1 + c0] + src[r1 + c1]) * 0.25f;
+                }
+            }
+        }
+    }
+
+    private void alignTile(int tx, int ty, int[] offsets) {
+        // Tile centre in level 0 coordinates.
+        float cx = (tx + 0.5f) * tileSize;
+        float cy = (ty + 0.5f) * tileSize;
+        int dx = 0;
+        int dy = 0;
+        for (int l = levels - 1; l >= 0; l--) {
+            int w = levelWidth[l];
+            int h = levelHeight[l];
+            int block = Math.max(minBlockSize, tileSize >> l);
+            block = Math.min(block, Math.min(w, h));
+            int bx = Math.max(0, Math.min(w - block, (int) (cx / (1 << l)) - block / 2));
+            int by = Math.max(0, Math.min(h - block, (int) (cy / (1 << l)) - block / 2));
+            // Border tiles move their block inwards until the whole search window is inside
+            // the frame, otherwise the shifts towards the border could never be tried.
+            bx = clampBlock(bx, dx, w - block);
+            by = clampBlock(by, dy, h - block);
+            float[] ref = refPyramid[l];
+            float[] alt = altPyramid[l];
+
+            float bestCost = Float.MAX_VALUE;
+            int bestDx = dx;
+            int bestDy = dy;
+            for (int sy = dy - searchRadius; sy <= dy + searchRadius; sy++) {
+                if (by + sy < 0 || by + sy + block > h) {
+                    continue;
+                }
+                for (int sx = dx - searchRadius; sx <= dx + searchRadius; sx++) {
+                    if (bx + sx < 0 || bx + sx + block > w) {
+                        continue;
+                    }
+                    float cost = 0;
+                    for (int y = 0; y < block && cost <= bestCost; y++) {
+                        int refRow = (by + y) * w + bx;
+                        int altRow = (by + y + sy) * w + bx + sx;
+                        for (int x = 0; x < block; x++) {
+                            cost += Math.abs(ref[refRow + x] - alt[altRow + x]);
+                        }
+                    }
+                    // Prefer the smaller displacement on ties so flat tiles stay put.
+                    if (cost < bestCost || (cost == bestCost
+                            && Math.abs(sx) + Math.abs(sy) < Math.abs(bestDx) + Math.abs(bestDy))) {
+                        bestCost = cost;
+                        bestDx = sx;
+                        bestDy = sy;
+                    }
+                }
+            }
+            dx = bestDx;
+            dy = bestDy;
+            if (l > 0) {
+                dx *= 2;
+                dy *= 2;
+            }
+        }
+        // One level 0 pixel is one Bayer quad.
+        offsets[(ty * tilesX + tx) * 2] = dx * 2;
+        offsets[(ty * tilesX + tx) * 2 + 1] = dy * 2;
+    }
+
+    /**
+     * Moves a block start so that it stays in [0, max] with every shift within
+     * {@link #searchRadius} of {@code shift} applied. Frames too small for that keep the block
+     * where it is and only search the shifts that fit.
+     */
+    private int clampBlock(int start, int shift, int max) {
+        int lo = Math.max(0, searchRadius - shift);
+        int hi = Math.min(max, max - shift - searchRadius);
+        if (lo > hi) {
+            return start;
+        }
+        return Math.max(lo, Math.min(hi, start));
+    }
+
+    interface RowTask {
+        void run(int row);
+    }
+
+    private void runRows(final int rows, final RowTask task) {
+        int bands = Math.min(mNumThreads, rows);
+        if (bands <= 1) {
+            for (int r = 0; r < rows; r++) {
+                task.run(r);
+            }
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int b = 0; b < bands; b++) {
+            final int start = rows * b / bands;
+            final int end = rows * (b + 1) / bands;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int r = start; r < end; r++) {
+                        task.run(r);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            ProcessingPools.runAll(tasks, mExecutor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while aligning frame.", e);
+        }
+    }
+}
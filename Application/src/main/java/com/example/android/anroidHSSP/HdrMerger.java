@@ -0,0 +1,291 @@
+package com.example.android.anroidHSSP;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges a bracket of RAW frames taken at different exposures into one frame, before it is
+ * denoised.
+ * <p/>
+ * Frames are added one at a time, as they arrive, into a single accumulator holding a weighted
+ * sum and a total weight per sample, so memory stays at the accumulator plus the frame being
+ * added whatever the length of the bracket. The accumulator is kept after {@link #finish}, and
+ * the next bracket merged by the same instance, see {@link #start}, reuses it. Each sample is normalized by its frame's exposure,
+ * relative to the reference exposure, and weighted by the inverse of its noise variance once
+ * normalized, from the frame's noise profile: longer exposures count for more in the shadows.
+ * Clipped samples get a negligible weight, so they only count where every frame is clipped, and
+ * then mostly the shortest exposure does. Rows are split into bands that run in parallel with
+ * {@link ProcessingPools#runAll}.
+ * <p/>
+ * Samples are taken with the nominal {@link BayerKernel#BLACK_LEVEL} and
+ * {@link BayerKernel#WHITE_LEVEL}. With a {@link FrameAligner}, every frame is aligned against
+ * the first one added, its brightness normalized by its exposure, and its samples are taken
+ * from the shifted tiles; the aligner's pyramids are held until the merge finishes. Without
+ * one, the bracket should be short enough that the scene does not move between frames.
+ */
+public class HdrMerger {
+
+    /** Bands the rows are split into. */
+    static final int BANDS = 4;
+
+    /** Weight of a clipped sample, over the square of its relative exposure. */
+    static final float CLIPPED_WEIGHT = 1e-12f;
+
+    private static final int RANGE = BayerKernel.WHITE_LEVEL - BayerKernel.BLACK_LEVEL;
+
+    /**
+     * Samples at or above this fraction of the white level, black-level subtracted, count as
+     * clipped: close to saturation the response is no longer linear.
+     */
+    static final float CLIP_LEVEL = 0.95f;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    /** Weighted sum and total weight of every sample, interleaved. */
+    private final float[] mAccumulator;
+    private double mReferenceExposure;
+    private boolean mMerging;
+    private FrameAligner mAligner;
+    private int[] mOffsets;
+
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private int mAdded;
+    private volatile Runnable mOnComplete;
+
+    /**
+     * Creates a merger with no bracket started, see {@link #start}.
+     */
+    public HdrMerger(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mAccumulator = new float[2 * width * height];
+    }
+
+    /**
+     * Creates a merger and starts a bracket, see {@link #start}.
+     */
+    public HdrMerger(int width, int height, int frames, double referenceExposure) {
+        this(width, height);
+        start(frames, referenceExposure);
+    }
+
+    /**
+     * Clears the accumulator for a new bracket. The completion and aligner of the previous one
+     * are dropped.
+     *
+     * @param frames            the length of the bracket.
+     * @param referenceExposure sensitivity times exposure time of the exposure the merged frame
+     *                          is written at.
+     */
+    public synchronized void start(int frames, double referenceExposure) {
+        if (mMerging) {
+            throw new IllegalStateException("Bracket still merging");
+        }
+        Arrays.fill(mAccumulator, 0);
+        mReferenceExposure = referenceExposure;
+        mRemaining.set(frames);
+        mAdded = 0;
+        mAligner = null;
+        mOffsets = null;
+        mOnComplete = null;
+        mMerging = true;
+    }
+
+    /**
+     * @return whether the merger has no bracket in progress, so {@link #start} can be called.
+     */
+    public synchronized boolean isIdle() {
+        return !mMerging;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Sets what runs once every frame of the bracket is either added or dropped, see
+     * {@link #frameDone()}. It runs on the thread of the last call to {@link #frameDone()}.
+     */
+    public void setOnComplete(Runnable onComplete) {
+        mOnComplete = onComplete;
+    }
+
+    /**
+     * Aligns the frames added from now on against the first one, see {@link FrameAligner}.
+     */
+    public synchronized void setAligner(FrameAligner aligner) {
+        mAligner = aligner;
+    }
+
+    /**
+     * Adds a frame to the accumulator.
+     *
+     * @param raw         little-endian 16-bit samples from its position on; not modified.
+     * @param rowStride   bytes per row.
+     * @param exposure    sensitivity times exposure time of the frame.
+     * @param noiseScale  the S coefficient of the frame's noise profile, noise variance being
+     *                    S * signal + O with the signal relative to the white level.
+     * @param noiseOffset the O coefficient.
+     * @param executor    runs bands alongside the calling thread.
+     */
+    public synchronized void add(ByteBuffer raw, final int rowStride, double exposure,
+                                 double noiseScale, double noiseOffset, Executor executor) {
+        if (!mMerging) {
+            throw new IllegalStateException("No bracket started");
+        }
+        // Weight and weighted normalized value of every sample value, for this exposure.
+        float e = (float) (exposure / mReferenceExposure);
+        final float[] weights = new float[RANGE + 1];
+        final float[] values = new float[RANGE + 1];
+        int clip = (int) (CLIP_LEVEL * RANGE);
+        for (int v = 0; v <= RANGE; v++) {
+            float x = (float) v / RANGE;
+            float weight = (v >= clip) ? CLIPPED_WEIGHT / (e * e)
+                    : (float) (e * e / (noiseScale * x + noiseOffset));
+            weights[v] = weight;
+            values[v] = weight * x / e;
+        }
+        final ByteBuffer buffer = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = buffer.position();
+        final float[] accumulator = mAccumulator;
+        final FrameAligner aligner = mAligner;
+        final int[] offsets;
+        if (aligner == null) {
+            offsets = null;
+        } else if (mAdded == 0) {
+            aligner.setReference(buffer, rowStride, mWidth, mHeight, 1 / e);
+            offsets = null;
+        } else {
+            if (mOffsets == null) {
+                mOffsets = new int[aligner.getTilesX() * aligner.getTilesY() * 2];
+            }
+            offsets = mOffsets;
+            aligner.align(buffer, rowStride, 1 / e, offsets);
+        }
+        List<Callable<Void>> bands = new ArrayList<>();
+        for (int b = 0; b < BANDS; b++) {
+            final int first = mHeight * b / BANDS;
+            final int last = mHeight * (b + 1) / BANDS;
+            bands.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int y = first; y < last; y++) {
+                        int offset = base + y * rowStride;
+                        int a = 2 * y * mWidth;
+                        for (int x = 0; x < mWidth; x++, a += 2) {
+                            int position = offsets == null ? offset + x * 2
+                                    : shifted(aligner, offsets, base, rowStride, x, y);
+                            int v = (buffer.getShort(position) & 0xFFFF)
+                                    - BayerKernel.BLACK_LEVEL;
+                            v = v < 0 ? 0 : v > RANGE ? RANGE : v;
+                            accumulator[a] += values[v];
+                            accumulator[a + 1] += weights[v];
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            ProcessingPools.runAll(bands, executor);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mAdded++;
+    }
+
+    /**
+     * @return the byte position of the sample that the tile offsets move to (x, y), or of the
+     * sample at (x, y) itself when that falls outside the frame.
+     */
+    private int shifted(FrameAligner aligner, int[] offsets, int base, int rowStride,
+                        int x, int y) {
+        int tileSize = aligner.getBayerTileSize();
+        int tile = Math.min(y / tileSize, aligner.getTilesY() - 1) * aligner.getTilesX()
+                + Math.min(x / tileSize, aligner.getTilesX() - 1);
+        int sx = x + offsets[tile * 2];
+        int sy = y + offsets[tile * 2 + 1];
+        if (sx < 0 || sx >= mWidth || sy < 0 || sy >= mHeight) {
+            sx = x;
+            sy = y;
+        }
+        return base + sy * rowStride + sx * 2;
+    }
+
+    /**
+     * Marks one frame of the bracket done, added or dropped, and runs the completion once the
+     * last one is.
+     */
+    public void frameDone() {
+        if (mRemaining.decrementAndGet() == 0 && mOnComplete != null) {
+            mOnComplete.run();
+        }
+    }
+
+    /**
+     * @return how many frames have been added.
+     */
+    public synchronized int getAddedFrames() {
+        return mAdded;
+    }
+
+    /**
+     * Writes the merged frame at the reference exposure and ends the bracket. Samples brighter
+     * than the white level are kept, up to the 16-bit limit.
+     *
+     * @param out receives {@code width * height} little-endian 16-bit samples.
+     */
+    public synchronized void finish(final byte[] out, Executor executor) {
+        if (!mMerging) {
+            throw new IllegalStateException("No bracket started");
+        }
+        final float[] accumulator = mAccumulator;
+        List<Callable<Void>> bands = new ArrayList<>();
+        for (int b = 0; b < BANDS; b++) {
+            final int first = mHeight * b / BANDS;
+            final int last = mHeight * (b + 1) / BANDS;
+            bands.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = first * mWidth; i < last * mWidth; i++) {
+                        float weight = accumulator[2 * i + 1];
+                        float x = weight > 0 ? accumulator[2 * i] / weight : 0;
+                        int sample = Math.round(BayerKernel.BLACK_LEVEL + x * RANGE);
+                        sample = Math.max(0, Math.min(0xFFFF, sample));
+                        out[2 * i] = (byte) (sample & 0xFF);
+                        out[2 * i + 1] = (byte) ((sample >> 8) & 0xFF);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            ProcessingPools.runAll(bands, executor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        cancel();
+    }
+
+    /**
+     * Ends the bracket without writing it, e.g. when none of its frames could be added, and
+     * frees the aligner's pyramids.
+     */
+    public synchronized void cancel() {
+        mMerging = false;
+        mAligner = null;
+        mOffsets = null;
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.android.anroidHSSP;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A bounded LRU cache of the linear, black-level-subtracted Bayer tensors of recent shots, so a
+ * shot can be re-processed at a different amplification ratio without the camera or the DNG.
+ * <p/>
+ * The most recently used {@code memoryEntries} tensors are kept on the heap. Older ones are
+ * spilled to a file of raw 16-bit samples in {@code spillDir} and read back on access, up to
+ * {@code diskEntries} more; anything older is dropped.
+ * <p/>
+ * This class is thread safe.
+ */
+public class LinearTensorCache {
+
+    private static final String TAG = "LinearTensorCache";
+
+    /**
+     * One cached shot.
+     */
+    public static class Entry {
+        public final String key;
+        /** Tensor size in Bayer quads. */
+        public final int height;
+        public final int width;
+        /** Size of the RAW frame the tensor was cropped from. */
+        public final int rawWidth;
+        public final int rawHeight;
+        public final String bayerPattern;
+        /** The original DNG; re-processed results are written into a copy of it. */
+        public final File original;
+        /** White balance gains for R, G and B, or null. */
+        public final float[] whiteBalanceGains;
+
+        short[] data;
+        File spillFile;
+
+        public Entry(String key, short[] data, int height, int width, int rawWidth, int rawHeight,
+                     String bayerPattern, File original, float[] whiteBalanceGains) {
+            this.key = key;
+            this.data = data;
+            this.height = height;
+            this.width = width;
+            this.rawWidth = rawWidth;
+            this.rawHeight = rawHeight;
+            this.bayerPattern = bayerPattern;
+            this.original = original;
+            this.whiteBalanceGains = whiteBalanceGains;
+        }
+
+        /**
+         * @return the linear samples, or null while the entry is spilled. Use
+         * {@link LinearTensorCache#get(String)} to obtain an entry with its data loaded.
+         */
+        public short[] getData() {
+            return data;
+        }
+    }
+
+    private final int mMemoryEntries;
+    private final int mDiskEntries;
+    private final File mSpillDir;
+
+    // Access ordered: the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private String mLatestKey;
+
+    public LinearTensorCache(int memoryEntries, File spillDir, int diskEntries) {
+        mMemoryEntries = Math.max(1, memoryEntries);
+        mDiskEntries = Math.max(0, diskEntries);
+        mSpillDir = spillDir;
+        if (mSpillDir != null && !mSpillDir.isDirectory() && !mSpillDir.mkdirs()) {
+            Log.w(TAG, "Could not create " + mSpillDir);
+        }
+    }
+
+    public synchronized void put(Entry entry) {
+        Entry old = mEntries.remove(entry.key);
+        if (old != null) {
+            deleteSpill(old);
+        }
+        mEntries.put(entry.key, entry);
+        mLatestKey = entry.key;
+        trim();
+    }
+
+    /**
+     * @return the entry with its data on the heap, or null if it is not cached (any more).
+     */
+    public synchronized Entry get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.data == null) {
+            try {
+                entry.data = readSpill(entry);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read back " + entry.spillFile, e);
+                mEntries.remove(key);
+                deleteSpill(entry);
+                return null;
+            }
+            trim();
+        }
+        return entry;
+    }
+
+    /**
+     * @return the key of the shot added last, or null if the cache is empty.
+     */
+    public synchronized String getLatestKey() {
+        return mEntries.containsKey(mLatestKey) ? mLatestKey : null;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            deleteSpill(entry);
+        }
+        mEntries.clear();
+    }
+
+    /**
+     * Spills the least recently used entries beyond the memory budget and drops those beyond the
+     * disk budget.
+     */
+    private void trim() {
+        List<Entry> lru = new ArrayList<>(mEntries.values());
+        int inMemory = 0;
+        for (Entry entry : lru) {
+            if (entry.data != null) {
+                inMemory++;
+            }
+        }
+        int excess = mEntries.size() - mMemoryEntries - (mSpillDir == null ? 0 : mDiskEntries);
+        Iterator<Entry> it = lru.iterator();
+        while (it.hasNext() && (excess > 0 || inMemory > mMemoryEntries)) {
+            Entry entry = it.next();
+            if (excess > 0) {
+                if (entry.data != null) {
+                    inMemory--;
+                }
+                mEntries.remove(entry.key);
+                deleteSpill(entry);
+                excess--;
+            } else if (entry.data != null) {
+                try {
+                    if (entry.spillFile == null) {
+                        writeSpill(entry);
+                    }
+                    entry.data = null;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not spill " + entry.key + ", dropping it.", e);
+                    mEntries.remove(entry.key);
+                    deleteSpill(entry);
+                }
+                inMemory--;
+            }
+        }
+    }
+
+    private void writeSpill(Entry entry) throws IOException {
+        File file = new File(mSpillDir, entry.key + ".lin");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(entry.data.length * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asShortBuffer().put(entry.data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.setLength(entry.data.length * 2L);
+        } catch (IOException e) {
+            out.close();
+            file.delete();
+            throw e;
+        }
+        out.close();
+        entry.spillFile = file;
+    }
+
+    private static short[] readSpill(Entry entry) throws IOException {
+        short[] data = new short[entry.height * entry.width * 4];
+        RandomAccessFile in = new RandomAccessFile(entry.spillFile, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length * 2)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of " + entry.spillFile);
+                }
+            }
+            buffer.flip();
+            buffer.asShortBuffer().get(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void deleteSpill(Entry entry) {
+        if (entry.spillFile != null) {
+            entry.spillFile.delete();
+            entry.spillFile = null;
+        }
+    }
+}
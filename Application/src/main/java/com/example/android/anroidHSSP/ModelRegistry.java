@@ -0,0 +1,338 @@
+package com.example.android.anroidHSSP;
+
+import android.content.Context;
+import android.hardware.camera2.CaptureResult;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Chooses the denoising model for a shot's noise level and keeps recently used interpreters
+ * loaded.
+ * <p/>
+ * Bands are listed in the {@link #BANDS_ASSET} asset, one per line:
+ * {@code minIso maxIso minRatio maxRatio minNoise maxNoise modelFile}. The noise bounds apply
+ * only when the capture result has a noise profile, see {@link #noiseLevel}. The first matching
+ * band wins. Shots no band matches, and apps without the asset, use the default model.
+ * <p/>
+ * Interpreters are keyed by model, thread count and precision, and loaded on a background
+ * thread. At most {@code maxResident} of them, holding at most {@code memoryBudget} bytes of
+ * model data, stay loaded. Over either limit, the least recently used ones that no
+ * {@link DenoisingModel} is using are closed. An interpreter runs one inference at a time, so
+ * an acquired model must not be shared between threads.
+ * <p/>
+ * {@link #prefetch} loads the model the sliders point at before the shutter is pressed, and
+ * {@link DenoisingModel#switchModel(String)} never loads on the shutter path.
+ */
+public class ModelRegistry {
+
+    private static final String TAG = "ModelRegistry";
+
+    public static final String BANDS_ASSET = "model_bands.txt";
+
+    /** Passed to {@link #select} when the noise level is not known. */
+    public static final float NO_NOISE = -1;
+
+    /**
+     * Signal, as a fraction of the white level, at which {@link #noiseLevel} evaluates the noise
+     * profile: a dark tone, where denoising matters most.
+     */
+    private static final double NOISE_REFERENCE_SIGNAL = 0.01;
+
+    /**
+     * A range of shooting conditions and the model trained for it.
+     */
+    public static class Band {
+        public final int minIso;
+        public final int maxIso;
+        public final float minRatio;
+        public final float maxRatio;
+        public final float minNoise;
+        public final float maxNoise;
+        public final String modelFile;
+
+        public Band(int minIso, int maxIso, float minRatio, float maxRatio, float minNoise,
+                    float maxNoise, String modelFile) {
+            this.minIso = minIso;
+            this.maxIso = maxIso;
+            this.minRatio = minRatio;
+            this.maxRatio = maxRatio;
+            this.minNoise = minNoise;
+            this.maxNoise = maxNoise;
+            this.modelFile = modelFile;
+        }
+
+        public boolean matches(int iso, float ratio, float noise) {
+            return iso >= minIso && iso <= maxIso && ratio >= minRatio && ratio <= maxRatio
+                    && (noise < 0 || (noise >= minNoise && noise <= maxNoise));
+        }
+    }
+
+    private final Context mContext;
+    private final String mDefaultModel;
+    private final List<Band> mBands;
+    private final int mMaxResident;
+    private final long mMemoryBudget;
+
+    /** Loaded interpreters, least recently used first. */
+    private final LinkedHashMap<String, DenoisingModel.LoadedModel> mLoaded =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Future<DenoisingModel.LoadedModel>> mLoading = new HashMap<>();
+    private final ExecutorService mLoader;
+
+    public ModelRegistry(Context context, String defaultModel, int maxResident,
+                         long memoryBudget) {
+        mContext = context.getApplicationContext();
+        mDefaultModel = defaultModel;
+        mMaxResident = Math.max(1, maxResident);
+        mMemoryBudget = memoryBudget;
+        mBands = readBands(mContext);
+        mLoader = Executors.newSingleThreadExecutor(new ProcessingPools.PriorityThreadFactory(
+                "ModelLoader", android.os.Process.THREAD_PRIORITY_BACKGROUND));
+    }
+
+    /**
+     * @param noise the amplified noise level, or {@link #NO_NOISE}.
+     * @return the model file for a shot.
+     */
+    public String select(int iso, float ratio, float noise) {
+        for (Band band : mBands) {
+            if (band.matches(iso, ratio, noise)) {
+                return band.modelFile;
+            }
+        }
+        return mDefaultModel;
+    }
+
+    /**
+     * @return the model file for a shot taken with {@code result} and amplified by
+     * {@code ratio}.
+     */
+    public String select(CaptureResult result, float ratio) {
+        return select(result, ratio, NO_NOISE);
+    }
+
+    /**
+     * @param noise the amplified noise level measured on the frame, e.g. with
+     *              {@link NoiseEstimator}, or {@link #NO_NOISE} to derive it from the result's
+     *              noise profile.
+     * @return the model file for a shot taken with {@code result} and amplified by
+     * {@code ratio}.
+     */
+    public String select(CaptureResult result, float ratio, float noise) {
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (noise == NO_NOISE) {
+            noise = noiseLevel(result.get(CaptureResult.SENSOR_NOISE_PROFILE), ratio);
+        }
+        return select(iso == null ? 0 : iso, ratio, noise);
+    }
+
+    /**
+     * Estimates the noise the model sees: the standard deviation, relative to the white level,
+     * of a dark tone after amplification by {@code ratio}, averaged over the color channels.
+     *
+     * @param profile the (S, O) pairs of {@code SENSOR_NOISE_PROFILE}, noise variance being
+     *                S * signal + O.
+     * @return the noise level, or {@link #NO_NOISE} without a profile.
+     */
+    public static float noiseLevel(Pair<Double, Double>[] profile, float ratio) {
+        if (profile == null || profile.length == 0) {
+            return NO_NOISE;
+        }
+        double sum = 0;
+        for (Pair<Double, Double> channel : profile) {
+            sum += Math.sqrt(Math.max(0,
+                    channel.first * NOISE_REFERENCE_SIGNAL + channel.second));
+        }
+        return (float) (ratio * sum / profile.length);
+    }
+
+    /**
+     * Acquires a model, loading it first if needed, which can take a while.
+     * {@link #release} it when done.
+     */
+    public DenoisingModel.LoadedModel acquire(String modelName, int numThreads,
+                                              boolean allowFp16) throws IOException {
+        while (true) {
+            Future<DenoisingModel.LoadedModel> loading;
+            synchronized (this) {
+                DenoisingModel.LoadedModel model =
+                        acquireIfLoaded(modelName, numThreads, allowFp16);
+                if (model != null) {
+                    return model;
+                }
+                loading = startLoadLocked(modelName, numThreads, allowFp16);
+            }
+            try {
+                loading.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw (cause instanceof IOException) ? (IOException) cause
+                        : new IOException("Could not load " + modelName, cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + modelName, e);
+            }
+        }
+    }
+
+    /**
+     * Acquires a model only if it is loaded. {@link #release} it when done.
+     *
+     * @return the model, or null.
+     */
+    public synchronized DenoisingModel.LoadedModel acquireIfLoaded(String modelName,
+                                                                   int numThreads,
+                                                                   boolean allowFp16) {
+        DenoisingModel.LoadedModel model = mLoaded.get(key(modelName, numThreads, allowFp16));
+        if (model != null) {
+            model.users++;
+        }
+        return model;
+    }
+
+    /**
+     * Starts loading a model in the background unless it is loaded or loading already.
+     */
+    public synchronized void prefetch(String modelName, int numThreads, boolean allowFp16) {
+        String key = key(modelName, numThreads, allowFp16);
+        if (!mLoaded.containsKey(key) && !mLoader.isShutdown()) {
+            startLoadLocked(modelName, numThreads, allowFp16);
+        }
+    }
+
+    public synchronized void release(DenoisingModel.LoadedModel model) {
+        model.users--;
+        trimLocked(null);
+    }
+
+    /**
+     * Stops loading and closes every model not in use.
+     */
+    public synchronized void close() {
+        mLoader.shutdownNow();
+        Iterator<DenoisingModel.LoadedModel> it = mLoaded.values().iterator();
+        while (it.hasNext()) {
+            DenoisingModel.LoadedModel model = it.next();
+            if (model.users == 0) {
+                it.remove();
+                model.close();
+            }
+        }
+    }
+
+    private Future<DenoisingModel.LoadedModel> startLoadLocked(final String modelName,
+                                                               final int numThreads,
+                                                               final boolean allowFp16) {
+        final String key = key(modelName, numThreads, allowFp16);
+        Future<DenoisingModel.LoadedModel> loading = mLoading.get(key);
+        if (loading != null) {
+            return loading;
+        }
+        loading = mLoader.submit(new Callable<DenoisingModel.LoadedModel>() {
+            @Override
+            public DenoisingModel.LoadedModel call() throws IOException {
+                DenoisingModel.LoadedModel model;
+                try {
+                    model = DenoisingModel.load(mContext, modelName, numThreads, allowFp16);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Could not load " + key, e);
+                    synchronized (ModelRegistry.this) {
+                        mLoading.remove(key);
+                    }
+                    throw e;
+                }
+                synchronized (ModelRegistry.this) {
+                    mLoading.remove(key);
+                    model.registry = ModelRegistry.this;
+                    mLoaded.put(key, model);
+                    trimLocked(key);
+                }
+                Log.i(TAG, "Loaded " + key);
+                return model;
+            }
+        });
+        mLoading.put(key, loading);
+        return loading;
+    }
+
+    /**
+     * Closes least recently used models that are not in use, other than {@code keep}, until
+     * both limits are met or none is left to close.
+     */
+    private void trimLocked(String keep) {
+        long bytes = 0;
+        for (DenoisingModel.LoadedModel model : mLoaded.values()) {
+            bytes += model.sizeBytes;
+        }
+        Iterator<Map.Entry<String, DenoisingModel.LoadedModel>> it =
+                mLoaded.entrySet().iterator();
+        while ((mLoaded.size() > mMaxResident || bytes > mMemoryBudget) && it.hasNext()) {
+            Map.Entry<String, DenoisingModel.LoadedModel> entry = it.next();
+            DenoisingModel.LoadedModel model = entry.getValue();
+            if (model.users > 0 || entry.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            bytes -= model.sizeBytes;
+            model.close();
+            Log.i(TAG, "Closed " + entry.getKey());
+        }
+    }
+
+    private static String key(String modelName, int numThreads, boolean allowFp16) {
+        return modelName + "/" + numThreads + (allowFp16 ? "/fp16" : "");
+    }
+
+    private static List<Band> readBands(Context context) {
+        List<Band> bands = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    context.getResources().getAssets().open(BANDS_ASSET), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("\\s+");
+                if (f.length != 7) {
+                    Log.w(TAG, "Skipping malformed band: " + line);
+                    continue;
+                }
+                bands.add(new Band(Integer.parseInt(f[0]), Integer.parseInt(f[1]),
+                        Float.parseFloat(f[2]), Float.parseFloat(f[3]),
+                        Float.parseFloat(f[4]), Float.parseFloat(f[5]), f[6]));
+            }
+        } catch (FileNotFoundException e) {
+            // No bands: every shot uses the default model.
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Could not read " + BANDS_ASSET, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return bands;
+    }
+}
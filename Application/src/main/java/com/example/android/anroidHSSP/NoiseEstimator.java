@@ -0,0 +1,155 @@
+package com.example.android.anroidHSSP;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Estimates the noise of a RAW frame in a few milliseconds, from the frame itself rather than
+ * the camera's noise model.
+ * <p/>
+ * Every {@link #ROW_STRIDE}th pair of rows is sampled. At each sample, the high-pass residual
+ * {@code 2 v(x, y) - v(x + 2, y) - v(x, y + 2)} of same-color neighbours cancels smooth image
+ * content and leaves mostly noise, whose standard deviation is the residual's over
+ * {@code sqrt(6)}. The residual's spread is taken as its median absolute deviation, which edges
+ * and texture, a minority of the samples, barely move. Clipped samples are left out, since
+ * their residual is zero whatever the noise. The sampled rows are split into bands that run in
+ * parallel with {@link ProcessingPools#runAll}, each counting residuals into a histogram of its
+ * own, and the medians are read off the merged histogram.
+ */
+public class NoiseEstimator {
+
+    /** Distance, in rows, between sampled row pairs. */
+    static final int ROW_STRIDE = 32;
+
+    /** Bands the sampled rows are split into. */
+    static final int BANDS = 4;
+
+    /** Residuals are counted in [-RANGE, RANGE]; larger ones clamp to the ends. */
+    private static final int RANGE = 2 * BayerKernel.WHITE_LEVEL;
+
+    /** Turns a median absolute deviation into a Gaussian standard deviation. */
+    private static final double MAD_TO_SIGMA = 1.4826;
+
+    private static final double QUANTIZATION_VARIANCE = 1.0 / 12;
+
+    /** Standard deviation of the residual over that of the noise. */
+    private static final double RESIDUAL_GAIN = Math.sqrt(6);
+
+    /**
+     * @param raw       little-endian 16-bit samples from its position on; not modified.
+     * @param rowStride bytes per row.
+     * @param executor  runs bands alongside the calling thread, see
+     *                  {@link ProcessingPools#runAll}.
+     * @return the noise standard deviation in digital numbers, or 0 for a frame with nothing
+     * to sample.
+     */
+    public static float estimate(ByteBuffer raw, final int width, final int height,
+                                 final int rowStride, Executor executor) {
+        final ByteBuffer buffer = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int base = buffer.position();
+        final int pairs = Math.max(0, (height - 4) / ROW_STRIDE + 1);
+        List<Callable<int[]>> bands = new ArrayList<>();
+        for (int b = 0; b < BANDS; b++) {
+            final int first = pairs * b / BANDS;
+            final int last = pairs * (b + 1) / BANDS;
+            bands.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    int[] histogram = new int[2 * RANGE + 1];
+                    for (int pair = first; pair < last; pair++) {
+                        int y = pair * ROW_STRIDE;
+                        countRow(buffer, base + y * rowStride, rowStride, width, histogram);
+                        countRow(buffer, base + (y + 1) * rowStride, rowStride, width,
+                                histogram);
+                    }
+                    return histogram;
+                }
+            });
+        }
+        int[] histogram = new int[2 * RANGE + 1];
+        try {
+            for (int[] counts : ProcessingPools.runAll(bands, executor)) {
+                for (int i = 0; i < histogram.length; i++) {
+                    histogram[i] += counts[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        return sigma(histogram);
+    }
+
+    /**
+     * Counts the residuals of one row, given the row itself at {@code offset} and the row two
+     * below it.
+     */
+    private static void countRow(ByteBuffer buffer, int offset, int rowStride, int width,
+                                 int[] histogram) {
+        int clip = BayerKernel.WHITE_LEVEL - 1;
+        int below = offset + 2 * rowStride;
+        for (int x = 0; x + 2 < width; x++) {
+            int v = buffer.getShort(offset + x * 2) & 0xFFFF;
+            int right = buffer.getShort(offset + (x + 2) * 2) & 0xFFFF;
+            int down = buffer.getShort(below + x * 2) & 0xFFFF;
+            if (v >= clip || right >= clip || down >= clip) {
+                continue;
+            }
+            int residual = 2 * v - right - down;
+            residual = Math.max(-RANGE, Math.min(RANGE, residual));
+            histogram[residual + RANGE]++;
+        }
+    }
+
+    /**
+     * @return the noise standard deviation for a histogram of residuals.
+     */
+    static float sigma(int[] histogram) {
+        long n = 0;
+        for (int count : histogram) {
+            n += count;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long half = (n + 1) / 2;
+        int median = 0;
+        long seen = 0;
+        while (seen + histogram[median] < half) {
+            seen += histogram[median++];
+        }
+        // Grow a window around the median until it holds half the samples. Residuals are
+        // integers, so the deviation is interpolated within the last step, taking each count
+        // as spread evenly over +-0.5 around its value.
+        long inside = histogram[median];
+        long before = 0;
+        int mad = 0;
+        while (inside < half) {
+            before = inside;
+            mad++;
+            if (median - mad >= 0) {
+                inside += histogram[median - mad];
+            }
+            if (median + mad < histogram.length) {
+                inside += histogram[median + mad];
+            }
+        }
+        double deviation = (mad == 0) ? 0.5 * half / inside
+                : mad - 0.5 + (double) (half - before) / (inside - before);
+        double sigma = MAD_TO_SIGMA * deviation / RESIDUAL_GAIN;
+        // Samples are rounded to whole numbers, which adds a variance of 1/12 of its own.
+        return (float) Math.sqrt(Math.max(0, sigma * sigma - QUANTIZATION_VARIANCE));
+    }
+
+    /**
+     * @return the noise the model sees, relative to the white level, once the frame is
+     * amplified by {@code ratio}; comparable to {@link ModelRegistry#noiseLevel}.
+     */
+    public static float noiseLevel(float sigma, float ratio) {
+        return ratio * sigma / (BayerKernel.WHITE_LEVEL - BayerKernel.BLACK_LEVEL);
+    }
+}
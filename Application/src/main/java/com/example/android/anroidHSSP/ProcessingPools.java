@@ -0,0 +1,122 @@
+package com.example.android.anroidHSSP;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The app's two worker pools, sized from the {@link CpuTopology}.
+ * <p/>
+ * Latency-critical work (saving and denoising a shot, re-processing, review rendering) runs on
+ * one thread per performance core at foreground priority. Background work (finishing recordings,
+ * deferred jobs) runs on one thread per LITTLE core at background priority, which on Android also
+ * puts the threads into the background cpuset that the scheduler keeps on the LITTLE cores. Java
+ * cannot pin threads to cores directly, so priorities are how the placement is steered.
+ */
+public class ProcessingPools {
+
+    private static final String TAG = "ProcessingPools";
+
+    private static ProcessingPools sInstance;
+
+    private final CpuTopology mTopology;
+    private final ExecutorService mLatency;
+    private final ExecutorService mBackground;
+
+    public static synchronized ProcessingPools get() {
+        if (sInstance == null) {
+            sInstance = new ProcessingPools(CpuTopology.getDefault());
+        }
+        return sInstance;
+    }
+
+    ProcessingPools(CpuTopology topology) {
+        mTopology = topology;
+        mLatency = Executors.newFixedThreadPool(topology.getLatencyThreads(),
+                new PriorityThreadFactory("Latency",
+                        android.os.Process.THREAD_PRIORITY_FOREGROUND));
+        mBackground = Executors.newFixedThreadPool(topology.getBackgroundThreads(),
+                new PriorityThreadFactory("Background",
+                        android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        Log.i(TAG, "CPU topology: " + topology + "; interpreter threads "
+                + topology.getInterpreterThreads() + ", latency pool "
+                + topology.getLatencyThreads() + ", background pool "
+                + topology.getBackgroundThreads());
+    }
+
+    public CpuTopology getTopology() {
+        return mTopology;
+    }
+
+    public ExecutorService getLatencyExecutor() {
+        return mLatency;
+    }
+
+    public ExecutorService getBackgroundExecutor() {
+        return mBackground;
+    }
+
+    /**
+     * Runs {@code tasks} on {@code executor} and on the calling thread together: the caller
+     * runs every task the executor has not started yet, so this never waits on a busy pool,
+     * and it is safe to call from one of the pool's own threads.
+     *
+     * @return the tasks' results, in order.
+     */
+    static <T> List<T> runAll(List<Callable<T>> tasks, Executor executor)
+            throws InterruptedException {
+        List<FutureTask<T>> futures = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<T> future = new FutureTask<>(tasks.get(i));
+            futures.add(future);
+            // The caller starts on the first task straight away.
+            if (i > 0 && executor != null) {
+                executor.execute(future);
+            }
+        }
+        List<T> results = new ArrayList<>();
+        for (FutureTask<T> future : futures) {
+            future.run();
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Creates threads that set their own Linux priority before running.
+     */
+    static class PriorityThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        PriorityThreadFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(mPriority);
+                    r.run();
+                }
+            }, mName + "#" + mCount.incrementAndGet());
+        }
+    }
+}
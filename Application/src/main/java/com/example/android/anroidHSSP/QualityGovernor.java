@@ -0,0 +1,211 @@
+package com.example.android.anroidHSSP;
+
+/**
+ * Chooses the denoiser's quality tier from thermal status, battery state and measured latency.
+ * <p/>
+ * The governor keeps an exponentially weighted average of shot-to-file latency. After
+ * {@link #STEP_DOWN_SAMPLES} consecutive shots above the latency budget it steps down one tier.
+ * It steps back up only after {@link #STEP_UP_SAMPLES} consecutive shots below
+ * {@link #RECOVERY_FRACTION} of the budget, and no sooner than {@link #STEP_UP_COOLDOWN_MS} after
+ * the last change, so it does not oscillate. Thermal status and a low battery set a floor, the
+ * lowest quality tier allowed, which takes effect immediately.
+ * <p/>
+ * Time is passed in by the caller, so the policy can be driven by a simulated feed. This class
+ * has no Android dependencies and is thread safe.
+ */
+public class QualityGovernor {
+
+    /**
+     * One quality tier. Lower tiers are cheaper.
+     */
+    public static class Tier {
+        public final int level;
+        public final String name;
+        /** Interpreter threads, at most the topology's interpreter thread count. */
+        public final int interpreterThreads;
+        /** Whether the model may run at reduced (FP16) precision. */
+        public final boolean allowFp16;
+        /** Denoising resolution divisor, 1 for full resolution. */
+        public final int resolutionScale;
+
+        Tier(int level, String name, int interpreterThreads, boolean allowFp16,
+             int resolutionScale) {
+            this.level = level;
+            this.name = name;
+            this.interpreterThreads = interpreterThreads;
+            this.allowFp16 = allowFp16;
+            this.resolutionScale = resolutionScale;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + interpreterThreads + " threads, "
+                    + (allowFp16 ? "fp16" : "fp32") + ", 1/" + resolutionScale + " res)";
+        }
+    }
+
+    /**
+     * Receives tier changes. Called on the thread that fed the sample.
+     */
+    public interface Listener {
+        void onTierChanged(Tier tier, String reason);
+    }
+
+    /** Thermal status values, matching {@code PowerManager.THERMAL_STATUS_*}. */
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_LIGHT = 1;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+
+    static final int STEP_DOWN_SAMPLES = 2;
+    static final int STEP_UP_SAMPLES = 4;
+    static final float RECOVERY_FRACTION = 0.7f;
+    static final long STEP_UP_COOLDOWN_MS = 15000;
+    static final float LATENCY_SMOOTHING = 0.5f;
+    static final int LOW_BATTERY_PERCENT = 15;
+
+    private final Tier[] mTiers;
+    private final long mBudgetMs;
+    private Listener mListener;
+
+    private int mLevel;
+    private int mThermalStatus = THERMAL_NONE;
+    private boolean mLowBattery;
+    private float mAverageMs = -1;
+    private int mOverBudget;
+    private int mUnderBudget;
+    private long mLastChangeMs = Long.MIN_VALUE / 2;
+
+    /**
+     * @param maxThreads     interpreter threads of the top tier.
+     * @param latencyBudgetMs shot-to-file latency the governor tries to stay under.
+     */
+    public QualityGovernor(int maxThreads, long latencyBudgetMs) {
+        int threads = Math.max(1, maxThreads);
+        int reduced = Math.max(1, threads / 2);
+        mTiers = new Tier[]{
+                new Tier(0, "half resolution", reduced, true, 2),
+                new Tier(1, "reduced precision", reduced, true, 1),
+                new Tier(2, "reduced threads", reduced, false, 1),
+                new Tier(3, "full", threads, false, 1),
+        };
+        mLevel = mTiers.length - 1;
+        mBudgetMs = latencyBudgetMs;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized Tier getTier() {
+        return mTiers[mLevel];
+    }
+
+    public int getTierCount() {
+        return mTiers.length;
+    }
+
+    public synchronized float getAverageLatencyMs() {
+        return mAverageMs;
+    }
+
+    /**
+     * Reports a new thermal status, one of the {@code THERMAL_*} values.
+     */
+    public void onThermalStatus(int status, long nowMs) {
+        Tier changed;
+        synchronized (this) {
+            mThermalStatus = status;
+            changed = applyCeilingLocked(nowMs);
+        }
+        notifyChanged(changed, "thermal status " + status);
+    }
+
+    public void onBatteryState(int percent, boolean charging, long nowMs) {
+        Tier changed;
+        synchronized (this) {
+            mLowBattery = !charging && percent >= 0 && percent <= LOW_BATTERY_PERCENT;
+            changed = applyCeilingLocked(nowMs);
+        }
+        notifyChanged(changed, "battery " + percent + "%" + (charging ? " charging" : ""));
+    }
+
+    /**
+     * Reports the latency of one shot, from capture result to file, measured at the current tier.
+     */
+    public void onLatency(long latencyMs, long nowMs) {
+        Tier changed = null;
+        String reason;
+        synchronized (this) {
+            mAverageMs = mAverageMs < 0 ? latencyMs
+                    : LATENCY_SMOOTHING * latencyMs + (1 - LATENCY_SMOOTHING) * mAverageMs;
+            reason = "average latency " + Math.round(mAverageMs) + " ms, budget " + mBudgetMs;
+            if (mAverageMs > mBudgetMs) {
+                mUnderBudget = 0;
+                if (++mOverBudget >= STEP_DOWN_SAMPLES && mLevel > 0) {
+                    changed = setLevelLocked(mLevel - 1, nowMs);
+                }
+            } else if (mAverageMs < mBudgetMs * RECOVERY_FRACTION) {
+                mOverBudget = 0;
+                if (++mUnderBudget >= STEP_UP_SAMPLES && mLevel < getCeilingLocked()
+                        && nowMs - mLastChangeMs >= STEP_UP_COOLDOWN_MS) {
+                    changed = setLevelLocked(mLevel + 1, nowMs);
+                }
+            } else {
+                mOverBudget = 0;
+                mUnderBudget = 0;
+            }
+        }
+        notifyChanged(changed, reason);
+    }
+
+    /**
+     * @return the highest tier the thermal and battery state allow.
+     */
+    private int getCeilingLocked() {
+        int top = mTiers.length - 1;
+        int ceiling;
+        if (mThermalStatus >= THERMAL_CRITICAL) {
+            ceiling = 0;
+        } else if (mThermalStatus >= THERMAL_SEVERE) {
+            ceiling = top - 2;
+        } else if (mThermalStatus >= THERMAL_MODERATE) {
+            ceiling = top - 1;
+        } else {
+            ceiling = top;
+        }
+        if (mLowBattery) {
+            ceiling = Math.min(ceiling, top - 1);
+        }
+        return Math.max(0, ceiling);
+    }
+
+    private Tier applyCeilingLocked(long nowMs) {
+        int ceiling = getCeilingLocked();
+        if (mLevel > ceiling) {
+            return setLevelLocked(ceiling, nowMs);
+        }
+        return null;
+    }
+
+    private Tier setLevelLocked(int level, long nowMs) {
+        mLevel = level;
+        mLastChangeMs = nowMs;
+        mOverBudget = 0;
+        mUnderBudget = 0;
+        // Latency measured at the old tier says little about the new one.
+        mAverageMs = -1;
+        return mTiers[level];
+    }
+
+    private void notifyChanged(Tier tier, String reason) {
+        Listener listener;
+        synchronized (this) {
+            listener = mListener;
+        }
+        if (tier != null && listener != null) {
+            listener.onTierChanged(tier, reason);
+        }
+    }
+}
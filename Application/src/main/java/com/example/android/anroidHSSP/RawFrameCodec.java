@@ -0,0 +1,333 @@
+package com.example.android.anroidHSSP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Fast lossless codec for queued RAW_SENSOR frames.
+ * <p/>
+ * Frames are the little-endian 16-bit byte arrays used by {@link DenoisingModel}. Every pixel is
+ * predicted from its same-colour neighbours two pixels to the left and above (the LOCO-I median
+ * predictor on each Bayer plane) and the residual is Rice coded with a parameter that adapts per
+ * colour channel. The frame is split into horizontal bands that are coded independently, so both
+ * directions run in parallel on the given executor and the calling thread. Any 16-bit value round-trips exactly; 10-bit sensor data typically
+ * shrinks to less than half its size.
+ */
+public class RawFrameCodec {
+
+    /** Rows per independently coded band; kept even so bands start on a Bayer row pair. */
+    int bandHeight = 64;
+
+    /** Unary prefixes this long are followed by the raw residual instead of Rice bits. */
+    private static final int ESCAPE_LIMIT = 24;
+    private static final int ESCAPE_BITS = 17;
+    /** Channel statistics are halved after this many samples to track local content. */
+    private static final int RESET = 64;
+
+    private final Executor mExecutor;
+
+    /**
+     * A compressed frame. Bands are kept as separate arrays so they can be decoded concurrently.
+     */
+    public static class Compressed {
+        final int width;
+        final int height;
+        final int bandHeight;
+        final byte[][] bands;
+        final int[] lengths;
+
+        Compressed(int width, int height, int bandHeight, int numBands) {
+            this.width = width;
+            this.height = height;
+            this.bandHeight = bandHeight;
+            this.bands = new byte[numBands][];
+            this.lengths = new int[numBands];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getCompressedSize() {
+            long size = 0;
+            for (int length : lengths) {
+                size += length;
+            }
+            return size;
+        }
+
+        public float getCompressionRatio() {
+            return (float) width * height * 2 / Math.max(1, getCompressedSize());
+        }
+    }
+
+    /**
+     * @param executor runs bands alongside the calling thread, e.g.
+     *                 {@link ProcessingPools#getLatencyExecutor()}; null codes every band on the
+     *                 calling thread.
+     */
+    public RawFrameCodec(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public void setBandHeight(int bandHeight) {
+        this.bandHeight = Math.max(2, bandHeight & ~1);
+    }
+
+    public Compressed encode(final byte[] raw, final int width, final int height) {
+        int numBands = (height + bandHeight - 1) / bandHeight;
+        final Compressed frame = new Compressed(width, height, bandHeight, numBands);
+        runBands(numBands, new BandTask() {
+            @Override
+            public void run(int band) {
+                encodeBand(raw, frame, band);
+            }
+        });
+        return frame;
+    }
+
+    /**
+     * Decodes into {@code raw}, which must hold at least width * height * 2 bytes. This is meant
+     * to write straight into the buffer {@link DenoisingModel#initTensor(byte[], float)} reads.
+     */
+    public byte[] decode(final Compressed frame, final byte[] raw) {
+        runBands(frame.bands.length, new BandTask() {
+            @Override
+            public void run(int band) {
+                decodeBand(frame, band, raw);
+            }
+        });
+        return raw;
+    }
+
+    private static int predict(byte[] raw, int width, int x, int y, int yStart) {
+        boolean hasLeft = x >= 2;
+        boolean hasUp = y - yStart >= 2;
+        if (!hasLeft && !hasUp) {
+            return 0;
+        }
+        int up = hasUp ? sample(raw, (y - 2) * width + x) : 0;
+        if (!hasLeft) {
+            return up;
+        }
+        int left = sample(raw, y * width + x - 2);
+        if (!hasUp) {
+            return left;
+        }
+        int upLeft = sample(raw, (y - 2) * width + x - 2);
+        int max = Math.max(left, up);
+        int min = Math.min(left, up);
+        if (upLeft >= max) {
+            return min;
+        } else if (upLeft <= min) {
+            return max;
+        }
+        return left + up - upLeft;
+    }
+
+    private static int sample(byte[] raw, int index) {
+        return (raw[index * 2] & 0xFF) | ((raw[index * 2 + 1] & 0xFF) << 8);
+    }
+
+    private static int riceParameter(int sum, int count) {
+        int k = 0;
+        while ((count << k) < sum && k < 16) {
+            k++;
+        }
+        return k;
+    }
+
+    private void encodeBand(byte[] raw, Compressed frame, int band) {
+        int width = frame.width;
+        int yStart = band * frame.bandHeight;
+        int yEnd = Math.min(frame.height, yStart + frame.bandHeight);
+        BitWriter out = new BitWriter((yEnd - yStart) * width + 16);
+        int[] sum = new int[4];
+        int[] count = new int[4];
+        Arrays.fill(sum, 16);
+        Arrays.fill(count, 1);
+
+        for (int y = yStart; y < yEnd; y++) {
+            for (int x = 0; x < width; x++) {
+                int c = ((y & 1) << 1) | (x & 1);
+                int error = sample(raw, y * width + x) - predict(raw, width, x, y, yStart);
+                int mapped = (error << 1) ^ (error >> 31);
+                int k = riceParameter(sum[c], count[c]);
+                int q = mapped >>> k;
+                if (q < ESCAPE_LIMIT) {
+                    out.write(1, q + 1);
+                    out.write(mapped & ((1 << k) - 1), k);
+                } else {
+                    out.write(1, ESCAPE_LIMIT + 1);
+                    out.write(mapped, ESCAPE_BITS);
+                }
+                sum[c] += mapped;
+                if (++count[c] >= RESET) {
+                    sum[c] >>= 1;
+                    count[c] >>= 1;
+                }
+            }
+        }
+        out.flush();
+        frame.bands[band] = out.buffer;
+        frame.lengths[band] = out.length;
+    }
+
+    private void decodeBand(Compressed frame, int band, byte[] raw) {
+        int width = frame.width;
+        int yStart = band * frame.bandHeight;
+        int yEnd = Math.min(frame.height, yStart + frame.bandHeight);
+        BitReader in = new BitReader(frame.bands[band], frame.lengths[band]);
+        int[] sum = new int[4];
+        int[] count = new int[4];
+        Arrays.fill(sum, 16);
+        Arrays.fill(count, 1);
+
+        for (int y = yStart; y < yEnd; y++) {
+            for (int x = 0; x < width; x++) {
+                int c = ((y & 1) << 1) | (x & 1);
+                int k = riceParameter(sum[c], count[c]);
+                int q = in.readUnary(ESCAPE_LIMIT);
+                int mapped;
+                if (q < ESCAPE_LIMIT) {
+                    mapped = (q << k) | in.read(k);
+                } else {
+                    mapped = in.read(ESCAPE_BITS);
+                }
+                int error = (mapped >>> 1) ^ -(mapped & 1);
+                int value = predict(raw, width, x, y, yStart) + error;
+                int index = (y * width + x) * 2;
+                raw[index] = (byte) (value & 0xFF);
+                raw[index + 1] = (byte) ((value >> 8) & 0xFF);
+                sum[c] += mapped;
+                if (++count[c] >= RESET) {
+                    sum[c] >>= 1;
+                    count[c] >>= 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * MSB-first bit writer over a growable byte array.
+     */
+    private static class BitWriter {
+        byte[] buffer;
+        int length;
+        private long mBits;
+        private int mCount;
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        /** Writes the low {@code n} bits of {@code value}, n <= 32. */
+        void write(int value, int n) {
+            if (n == 0) {
+                return;
+            }
+            if (n > 24) {
+                write(value >>> 16, n - 16);
+                write(value & 0xFFFF, 16);
+                return;
+            }
+            mBits = (mBits << n) | (value & ((1L << n) - 1));
+            mCount += n;
+            while (mCount >= 8) {
+                mCount -= 8;
+                put((byte) (mBits >>> mCount));
+            }
+        }
+
+        void flush() {
+            if (mCount > 0) {
+                put((byte) (mBits << (8 - mCount)));
+                mCount = 0;
+            }
+        }
+
+        private void put(byte b) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = b;
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] mBuffer;
+        private final int mLength;
+        private int mPosition;
+        private long mBits;
+        private int mCount;
+
+        BitReader(byte[] buffer, int length) {
+            mBuffer = buffer;
+            mLength = length;
+        }
+
+        private void fill() {
+            while (mCount <= 56) {
+                int b = mPosition < mLength ? mBuffer[mPosition] & 0xFF : 0;
+                mPosition++;
+                mBits = (mBits << 8) | b;
+                mCount += 8;
+            }
+        }
+
+        int read(int n) {
+            if (n == 0) {
+                return 0;
+            }
+            if (mCount < n) {
+                fill();
+            }
+            mCount -= n;
+            return (int) ((mBits >>> mCount) & ((1L << n) - 1));
+        }
+
+        /** Counts zero bits up to the terminating one, stopping early at {@code limit}. */
+        int readUnary(int limit) {
+            if (mCount <= limit) {
+                fill();
+            }
+            int q = Long.numberOfLeadingZeros(mBits << (64 - mCount));
+            if (q >= limit) {
+                q = limit;
+            }
+            mCount -= q + 1;
+            return q;
+        }
+    }
+
+    interface BandTask {
+        void run(int band);
+    }
+
+    private void runBands(int bands, final BandTask task) {
+        List<Callable<Void>> tasks = new ArrayList<>(bands);
+        for (int b = 0; b < bands; b++) {
+            final int band = b;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.run(band);
+                    return null;
+                }
+            });
+        }
+        try {
+            ProcessingPools.runAll(tasks, mExecutor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while coding frame.", e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.android.anroidHSSP;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a container written by {@link RawSequenceWriter}.
+ * <p/>
+ * Frames can be mapped without copying, which is what {@link DenoisingModel#initTensor(ByteBuffer,
+ * int)} expects, read into a heap array, or extracted to a standalone file of raw 16-bit samples.
+ */
+public class RawSequenceReader implements Closeable {
+
+    /**
+     * Settings of one recorded frame.
+     */
+    public static class FrameInfo {
+        public long timestamp;
+        public long exposureTime;
+        public long frameDuration;
+        public int sensitivity;
+        public float rate;
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameBytes;
+    private final int mFrameCount;
+    private final String mBayerPattern;
+    private final FrameInfo[] mIndex;
+
+    public RawSequenceReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+
+        ByteBuffer header = read(0, RawSequenceWriter.HEADER_BYTES);
+        if (header.getInt() != RawSequenceWriter.MAGIC) {
+            close();
+            throw new IOException("Not a RAW sequence file: " + file);
+        }
+        int version = header.getInt();
+        if (version < 1 || version > RawSequenceWriter.VERSION) {
+            close();
+            throw new IOException("Unsupported RAW sequence version " + version);
+        }
+        mWidth = header.getInt();
+        mHeight = header.getInt();
+        mFrameBytes = header.getInt();
+        mFrameCount = header.getInt();
+        long indexOffset = header.getLong();
+        byte[] pattern = new byte[4];
+        header.get(pattern);
+        mBayerPattern = new String(pattern, "US-ASCII").trim();
+        if (indexOffset == 0 && mFrameCount == 0) {
+            close();
+            throw new IOException("RAW sequence was not finished: " + file);
+        }
+
+        ByteBuffer index = read(indexOffset, RawSequenceWriter.INDEX_ENTRY_BYTES * mFrameCount);
+        mIndex = new FrameInfo[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            FrameInfo info = new FrameInfo();
+            info.timestamp = index.getLong();
+            info.exposureTime = index.getLong();
+            info.frameDuration = index.getLong();
+            info.sensitivity = index.getInt();
+            // Version 1 stored whole ratios.
+            info.rate = (version == 1) ? index.getInt() : index.getFloat();
+            index.getLong();
+            mIndex[i] = info;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public String getBayerPattern() {
+        return mBayerPattern;
+    }
+
+    public FrameInfo getFrameInfo(int frame) {
+        return mIndex[frame];
+    }
+
+    /**
+     * @return a read-only little-endian mapping of one frame.
+     */
+    public ByteBuffer mapFrame(int frame) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, frameOffset(frame), mFrameBytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads one frame into {@code dst}, which must hold at least width * height * 2 bytes.
+     */
+    public byte[] readFrame(int frame, byte[] dst) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, 0, mFrameBytes);
+        long position = frameOffset(frame);
+        while (buffer.hasRemaining()) {
+            int n = mChannel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of RAW sequence");
+            }
+            position += n;
+        }
+        return dst;
+    }
+
+    /**
+     * Copies one frame to {@code file} as headerless little-endian 16-bit samples.
+     */
+    public void extractFrame(int frame, File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            FileChannel out = output.getChannel();
+            long position = frameOffset(frame);
+            long remaining = mFrameBytes;
+            while (remaining > 0) {
+                long n = mChannel.transferTo(position, remaining, out);
+                position += n;
+                remaining -= n;
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        mFile.close();
+    }
+
+    private long frameOffset(int frame) {
+        if (frame < 0 || frame >= mFrameCount) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + mFrameCount);
+        }
+        return RawSequenceWriter.HEADER_BYTES + (long) mFrameBytes * frame;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of RAW sequence");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.android.anroidHSSP;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records consecutive RAW frames into a single pre-allocated container file.
+ * <p/>
+ * Layout (little-endian): a {@link #HEADER_BYTES} header, then fixed-size frame slots in arrival
+ * order, then an index with one {@link #INDEX_ENTRY_BYTES} entry per frame holding its sensor
+ * timestamp and capture settings. The file is sized for the maximum frame count up front and
+ * truncated to what was used when the recording is finished. Frames are written sequentially
+ * through a {@link FileChannel} on a dedicated thread, straight from the buffer they were captured
+ * in; see {@link RawSequenceReader} for reading them back.
+ */
+public class RawSequenceWriter implements Closeable {
+
+    static final int MAGIC = 0x51535348; // "HSSQ"
+    /** Version 2 stores the rate as a float; 1 stored it as an int. */
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 64;
+    static final int INDEX_ENTRY_BYTES = 40;
+
+    private static final int QUEUE_DEPTH = 8;
+
+    private static class Pending {
+        final ByteBuffer frame;
+        final long timestamp;
+        final Runnable onWritten;
+
+        Pending(ByteBuffer frame, long timestamp, Runnable onWritten) {
+            this.frame = frame;
+            this.timestamp = timestamp;
+            this.onWritten = onWritten;
+        }
+    }
+
+    private static final Pending END = new Pending(null, 0, null);
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameBytes;
+    private final int mMaxFrames;
+    private final String mBayerPattern;
+
+    private final BlockingQueue<Pending> mQueue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    private final Thread mThread;
+
+    // Per-frame index, pre-allocated for the maximum frame count.
+    private final long[] mTimestamps;
+    private final int[] mSensitivities;
+    private final long[] mExposureTimes;
+    private final long[] mFrameDurations;
+    private final float[] mRates;
+    private volatile int mFrameCount;
+    private int mReserved;
+
+    // Results that arrived before their frame was written.
+    private static final int PENDING_RESULTS = QUEUE_DEPTH * 2;
+    private final long[] mPendingTimestamps = new long[PENDING_RESULTS];
+    private final int[] mPendingSensitivities = new int[PENDING_RESULTS];
+    private final long[] mPendingExposureTimes = new long[PENDING_RESULTS];
+    private final long[] mPendingFrameDurations = new long[PENDING_RESULTS];
+    private final float[] mPendingRates = new float[PENDING_RESULTS];
+    private int mNextPending;
+
+    private volatile long mBytesWritten;
+    private volatile long mWriteNanos;
+    private volatile long mFirstWriteNanos;
+    private volatile long mLastWriteNanos;
+    private volatile IOException mError;
+    private boolean mFinished;
+
+    public RawSequenceWriter(File file, int width, int height, int maxFrames, String bayerPattern)
+            throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mFrameBytes = width * height * 2;
+        mMaxFrames = maxFrames;
+        mBayerPattern = bayerPattern;
+        mTimestamps = new long[maxFrames];
+        mSensitivities = new int[maxFrames];
+        mExposureTimes = new long[maxFrames];
+        mFrameDurations = new long[maxFrames];
+        mRates = new float[maxFrames];
+        Arrays.fill(mPendingTimestamps, -1);
+
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(HEADER_BYTES + (long) mFrameBytes * maxFrames
+                + (long) INDEX_ENTRY_BYTES * maxFrames);
+        mChannel = mFile.getChannel();
+        writeHeader(0, 0);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "RawSequenceWriter");
+        mThread.start();
+    }
+
+    /**
+     * Queues a frame for writing. The buffer is read from its position to its limit on the writer
+     * thread, after which {@code onWritten} is run so the caller can release it (e.g. close the
+     * {@link android.media.Image}).
+     *
+     * @return false if the container is full or the writer has fallen too far behind; the frame
+     * is not written and {@code onWritten} is not run.
+     */
+    public boolean append(ByteBuffer frame, long timestamp, Runnable onWritten) {
+        synchronized (this) {
+            if (mFinished || mError != null || mReserved >= mMaxFrames) {
+                return false;
+            }
+            if (!mQueue.offer(new Pending(frame, timestamp, onWritten))) {
+                return false;
+            }
+            mReserved++;
+        }
+        return true;
+    }
+
+    /**
+     * Records the capture settings of the frame with the given sensor timestamp. Results may
+     * arrive before or after the frame itself.
+     */
+    public synchronized void addResult(long timestamp, int sensitivity, long exposureTime,
+                                       long frameDuration, float rate) {
+        for (int i = mFrameCount - 1; i >= 0; i--) {
+            if (mTimestamps[i] == timestamp) {
+                setSettings(i, sensitivity, exposureTime, frameDuration, rate);
+                return;
+            }
+        }
+        int p = mNextPending;
+        mPendingTimestamps[p] = timestamp;
+        mPendingSensitivities[p] = sensitivity;
+        mPendingExposureTimes[p] = exposureTime;
+        mPendingFrameDurations[p] = frameDuration;
+        mPendingRates[p] = rate;
+        mNextPending = (p + 1) % PENDING_RESULTS;
+    }
+
+    private void setSettings(int slot, int sensitivity, long exposureTime, long frameDuration,
+                             float rate) {
+        mSensitivities[slot] = sensitivity;
+        mExposureTimes[slot] = exposureTime;
+        mFrameDurations[slot] = frameDuration;
+        mRates[slot] = rate;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getMaxFrames() {
+        return mMaxFrames;
+    }
+
+    /**
+     * @return the sustained write throughput, counting only time spent inside write calls.
+     */
+    public double getWriteBytesPerSecond() {
+        return mWriteNanos == 0 ? 0 : mBytesWritten * 1e9 / mWriteNanos;
+    }
+
+    /**
+     * @return the number of frames per second the storage could sustain at the measured
+     * write throughput.
+     */
+    public double getSustainableFramesPerSecond() {
+        return getWriteBytesPerSecond() / mFrameBytes;
+    }
+
+    /**
+     * @return the rate at which frames were actually recorded, first to last write.
+     */
+    public double getRecordedFramesPerSecond() {
+        long span = mLastWriteNanos - mFirstWriteNanos;
+        return (mFrameCount < 2 || span <= 0) ? 0 : (mFrameCount - 1) * 1e9 / span;
+    }
+
+    /**
+     * Writes all queued frames, the index and the final header, and truncates the file to the
+     * space actually used. Blocks until the writer thread has finished.
+     */
+    public void finish() throws IOException {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+        try {
+            mQueue.put(END);
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing the RAW sequence.", e);
+        }
+        if (mError != null) {
+            throw mError;
+        }
+
+        int count = mFrameCount;
+        long indexOffset = HEADER_BYTES + (long) mFrameBytes * count;
+        ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_BYTES * count).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                index.putLong(mTimestamps[i]);
+                index.putLong(mExposureTimes[i]);
+                index.putLong(mFrameDurations[i]);
+                index.putInt(mSensitivities[i]);
+                index.putFloat(mRates[i]);
+                index.putLong(0);
+            }
+        }
+        index.flip();
+        writeFully(index, indexOffset);
+        writeHeader(count, indexOffset);
+        mChannel.truncate(indexOffset + (long) INDEX_ENTRY_BYTES * count);
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mChannel.close();
+            mFile.close();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Pending pending;
+            try {
+                pending = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (pending == END) {
+                return;
+            }
+            try {
+                if (mError == null) {
+                    writeFrame(pending);
+                }
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                if (pending.onWritten != null) {
+                    pending.onWritten.run();
+                }
+            }
+        }
+    }
+
+    private void writeFrame(Pending pending) throws IOException {
+        int slot = mFrameCount;
+        long start = System.nanoTime();
+        ByteBuffer frame = pending.frame.duplicate();
+        if (frame.remaining() > mFrameBytes) {
+            frame.limit(frame.position() + mFrameBytes);
+        }
+        writeFully(frame, HEADER_BYTES + (long) mFrameBytes * slot);
+        long end = System.nanoTime();
+
+        synchronized (this) {
+            mTimestamps[slot] = pending.timestamp;
+            // Pick up settings whose result arrived before the frame.
+            for (int p = 0; p < PENDING_RESULTS; p++) {
+                if (mPendingTimestamps[p] == pending.timestamp) {
+                    setSettings(slot, mPendingSensitivities[p], mPendingExposureTimes[p],
+                            mPendingFrameDurations[p], mPendingRates[p]);
+                    mPendingTimestamps[p] = -1;
+                    break;
+                }
+            }
+            mFrameCount = slot + 1;
+        }
+
+        mBytesWritten += frame.limit() - pending.frame.position();
+        mWriteNanos += end - start;
+        if (slot == 0) {
+            mFirstWriteNanos = end;
+        }
+        mLastWriteNanos = end;
+    }
+
+    private void writeHeader(int frameCount, long indexOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(mWidth);
+        header.putInt(mHeight);
+        header.putInt(mFrameBytes);
+        header.putInt(frameCount);
+        header.putLong(indexOffset);
+        byte[] pattern = new byte[4];
+        for (int i = 0; i < 4 && mBayerPattern != null && i < mBayerPattern.length(); i++) {
+            pattern[i] = (byte) mBayerPattern.charAt(i);
+        }
+        header.put(pattern);
+        header.rewind();
+        writeFully(header, 0);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
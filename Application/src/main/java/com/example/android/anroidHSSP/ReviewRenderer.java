@@ -0,0 +1,243 @@
+package com.example.android.anroidHSSP;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders the denoised output tensor of {@link DenoisingModel} into a small sRGB bitmap for
+ * review right after capture.
+ * <p/>
+ * The tensor already holds one R, G1, B, G2 quad per output position, so every quad becomes one
+ * RGB pixel without interpolation, and quads are box-averaged further down to the requested size.
+ * Averaging happens in linear light through a lookup table that undoes the model's gamma; white
+ * balance gains are then applied and a single table does the highlight roll-off, the sRGB transfer
+ * curve and the 8-bit quantisation. Output rows are rendered in parallel bands.
+ */
+public class ReviewRenderer {
+
+    /** Longest edge of the rendered bitmap, in pixels. */
+    int maxEdge = 1024;
+
+    private static final int LUT_SIZE = 4096;
+    private static final float MODEL_GAMMA = 2.22f;
+    /** Linear level above which highlights are rolled off. */
+    private static final float KNEE = 0.8f;
+
+    /** Linear value of every tensor value in [0, 1]. */
+    private final float[] mDecode = new float[LUT_SIZE + 1];
+    /** 8-bit sRGB value of every linear value in [0, mToneMax]. */
+    private final int[] mTone = new int[LUT_SIZE + 1];
+    private float mToneMax;
+
+    private final ExecutorService mExecutor;
+    private final int mNumThreads;
+
+    public interface Callback {
+        void onRendered(Bitmap bitmap);
+    }
+
+    public ReviewRenderer(int numThreads) {
+        mNumThreads = Math.max(1, numThreads);
+        mExecutor = Executors.newFixedThreadPool(mNumThreads);
+        for (int i = 0; i <= LUT_SIZE; i++) {
+            mDecode[i] = (float) Math.pow((double) i / LUT_SIZE, MODEL_GAMMA);
+        }
+        buildToneCurve(1f);
+    }
+
+    public void setMaxEdge(int maxEdge) {
+        this.maxEdge = Math.max(1, maxEdge);
+    }
+
+    /**
+     * @param tensor   the model output, {@code height * width} quads of R, G1, B, G2.
+     * @param gains    white balance gains for R, G and B, or null to estimate them from the
+     *                 image (grey world).
+     * @param rotation clockwise rotation of the result, a multiple of 90 degrees.
+     */
+    public Bitmap render(float[] tensor, int height, int width, float[] gains, int rotation) {
+        int[] size = new int[2];
+        int[] pixels = renderArgb(tensor, height, width, gains, rotation, size);
+        return Bitmap.createBitmap(pixels, size[0], size[1], Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Same as {@link #render}, but returns ARGB pixels and stores the width and height in
+     * {@code size}.
+     */
+    synchronized int[] renderArgb(final float[] tensor, final int height, final int width,
+                                  float[] gains, final int rotation, int[] size) {
+        final int factor = Math.max(1, (Math.max(width, height) + maxEdge - 1) / maxEdge);
+        final int outWidth = width / factor;
+        final int outHeight = height / factor;
+        final boolean swapped = rotation == 90 || rotation == 270;
+        size[0] = swapped ? outHeight : outWidth;
+        size[1] = swapped ? outWidth : outHeight;
+        final int[] pixels = new int[outWidth * outHeight];
+
+        if (gains == null) {
+            gains = grayWorldGains(tensor, height, width);
+        }
+        final float gainR = gains[0];
+        final float gainG = gains[1];
+        final float gainB = gains[2];
+        float maxGain = Math.max(gainG, Math.max(gainR, gainB));
+        if (maxGain != mToneMax) {
+            buildToneCurve(maxGain);
+        }
+        final float toneScale = LUT_SIZE / mToneMax;
+        final float norm = 1f / (factor * factor);
+
+        runRows(outHeight, new RowTask() {
+            @Override
+            public void run(int yStart, int yEnd) {
+                for (int y = yStart; y < yEnd; y++) {
+                    for (int x = 0; x < outWidth; x++) {
+                        float r = 0;
+                        float g = 0;
+                        float b = 0;
+                        for (int dy = 0; dy < factor; dy++) {
+                            int base = ((y * factor + dy) * width + x * factor) * 4;
+                            for (int dx = 0; dx < factor; dx++, base += 4) {
+                                r += decode(tensor[base]);
+                                g += decode(tensor[base + 1]) + decode(tensor[base + 3]);
+                                b += decode(tensor[base + 2]);
+                            }
+                        }
+                        int ri = mTone[lutIndex(r * norm * gainR * toneScale)];
+                        int gi = mTone[lutIndex(g * 0.5f * norm * gainG * toneScale)];
+                        int bi = mTone[lutIndex(b * norm * gainB * toneScale)];
+                        pixels[target(x, y, outWidth, outHeight, rotation)] =
+                                0xFF000000 | (ri << 16) | (gi << 8) | bi;
+                    }
+                }
+            }
+        });
+        return pixels;
+    }
+
+    /**
+     * Writes a rendered bitmap as a JPEG, e.g. as a thumbnail next to the DNG.
+     */
+    public static void writeJpeg(Bitmap bitmap, File file, int quality) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, output)) {
+                throw new IOException("Could not encode " + file);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private float decode(float v) {
+        return mDecode[lutIndex(v * LUT_SIZE)];
+    }
+
+    private static int lutIndex(float v) {
+        if (v <= 0) {
+            return 0;
+        }
+        return v >= LUT_SIZE ? LUT_SIZE : (int) (v + 0.5f);
+    }
+
+    private static int target(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                return x * height + (height - 1 - y);
+            case 180:
+                return (height - 1 - y) * width + (width - 1 - x);
+            case 270:
+                return (width - 1 - x) * height + y;
+            default:
+                return y * width + x;
+        }
+    }
+
+    /**
+     * Identity up to {@link #KNEE}, then an exponential shoulder that rolls highlights up to
+     * {@code white} off into the remaining range, followed by the sRGB transfer curve.
+     */
+    private void buildToneCurve(float white) {
+        mToneMax = Math.max(1f, white);
+        for (int i = 0; i <= LUT_SIZE; i++) {
+            float l = mToneMax * i / LUT_SIZE;
+            float t = l;
+            if (l > KNEE) {
+                t = KNEE + (1 - KNEE) * (float) (1 - Math.exp(-(l - KNEE) / (1 - KNEE)));
+            }
+            double s = t <= 0.0031308 ? 12.92 * t : 1.055 * Math.pow(t, 1 / 2.4) - 0.055;
+            mTone[i] = (int) Math.max(0, Math.min(255, Math.round(s * 255)));
+        }
+    }
+
+    /**
+     * Grey world gains, estimated from a sparse sample of quads.
+     */
+    private float[] grayWorldGains(float[] tensor, int height, int width) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
+        int step = Math.max(1, Math.max(width, height) / 128);
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                int base = (y * width + x) * 4;
+                r += decode(tensor[base]);
+                g += (decode(tensor[base + 1]) + decode(tensor[base + 3])) * 0.5f;
+                b += decode(tensor[base + 2]);
+            }
+        }
+        if (r <= 0 || g <= 0 || b <= 0) {
+            return new float[]{1f, 1f, 1f};
+        }
+        return new float[]{(float) (g / r), 1f, (float) (g / b)};
+    }
+
+    interface RowTask {
+        void run(int yStart, int yEnd);
+    }
+
+    private void runRows(int rows, final RowTask task) {
+        if (mNumThreads == 1 || rows < mNumThreads * 2) {
+            task.run(0, rows);
+            return;
+        }
+        int band = (rows + mNumThreads - 1) / mNumThreads;
+        List<Future<Void>> futures = new ArrayList<>(mNumThreads);
+        for (int start = 0; start < rows; start += band) {
+            final int yStart = start;
+            final int yEnd = Math.min(rows, start + band);
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.run(yStart, yEnd);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while rendering review image.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.android.anroidHSSP;
+
+/**
+ * The clock and runtime counters read by {@link CaptureTelemetry} and
+ * {@link ThroughputBenchmark}, so they run on a device and on a desktop JVM alike.
+ * {@link ArtRuntimeStats} reads them from ART; {@code JvmRuntimeStats}, in {@code src/jvm},
+ * from the JVM's management beans.
+ */
+public interface RuntimeStats {
+
+    /**
+     * @return a monotonic clock in milliseconds. Only differences are used.
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return bytes allocated by the calling thread so far. Only differences within one thread
+     * are used; the counter may wrap at 32 bits.
+     */
+    long threadAllocatedBytes();
+
+    /**
+     * @return garbage collections in the process so far.
+     */
+    long gcCount();
+
+    /**
+     * @return milliseconds spent collecting garbage so far.
+     */
+    long gcTimeMs();
+
+    /**
+     * @return milliseconds threads spent stopped waiting for a collection so far.
+     */
+    long blockingGcTimeMs();
+
+    /**
+     * @return bytes allocated outside the Java heap, such as direct buffers.
+     */
+    long nativeHeapBytes();
+
+    /**
+     * Turns on {@link #threadAllocatedBytes()}, where the runtime only counts on request.
+     */
+    void startAllocCounting();
+
+    void stopAllocCounting();
+}
@@ -0,0 +1,63 @@
+package com.example.android.anroidHSSP;
+
+/**
+ * The reference {@link BayerKernel}: one quad at a time, gamma through {@link Math#pow}.
+ */
+public class ScalarBayerKernel implements BayerKernel {
+
+    @Override
+    public void pack(byte[] raw, int offset, int rawWidth, int[][] positions, float rate,
+                     float[] tensor, short[] linear, int height, int width) {
+        int rowBytes = rawWidth * 2;
+        int[] offsets = new int[4];
+        for (int c = 0; c < 4; c++) {
+            offsets[c] = positions[c][0] * rowBytes + positions[c][1] * 2;
+        }
+        for (int i = 0; i < height; i++) {
+            int rowOffset = offset + i * 2 * rowBytes;
+            for (int j = 0; j < width; j++) {
+                int base = rowOffset + j * 4;
+                int t = (i * width + j) * 4;
+                for (int c = 0; c < 4; c++) {
+                    int o = base + offsets[c];
+                    float v = (raw[o] & 0xFF) | ((raw[o + 1] & 0xFF) << 8);
+                    if (linear != null) {
+                        linear[t + c] = (short) Math.max(0, v - BLACK_LEVEL);
+                    }
+                    v = rate * (v - BLACK_LEVEL) / (WHITE_LEVEL - BLACK_LEVEL);
+                    tensor[t + c] = (float) Math.pow(clamp(v), 1 / GAMMA);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unpack(float[] tensor, int height, int width, byte[] raw, int offset,
+                       int rawWidth, int[][] positions) {
+        int rowBytes = rawWidth * 2;
+        int[] offsets = new int[4];
+        for (int c = 0; c < 4; c++) {
+            offsets[c] = positions[c][0] * rowBytes + positions[c][1] * 2;
+        }
+        for (int i = 0; i < height; i++) {
+            int rowOffset = offset + i * 2 * rowBytes;
+            for (int j = 0; j < width; j++) {
+                int base = rowOffset + j * 4;
+                int t = (i * width + j) * 4;
+                for (int c = 0; c < 4; c++) {
+                    float v = (float) Math.pow(clamp(tensor[t + c]), GAMMA);
+                    int sample = (int) (v * (WHITE_LEVEL - BLACK_LEVEL) + BLACK_LEVEL);
+                    raw[base + offsets[c]] = (byte) (sample & 0xFF);
+                    raw[base + offsets[c] + 1] = (byte) ((sample >> 8) & 0xFF);
+                }
+            }
+        }
+    }
+
+    private static float clamp(float v) {
+        if (v < 0) {
+            return 0;
+        }
+        return v > 1 ? 1 : v;
+    }
+}
@@ -0,0 +1,399 @@
+package com.example.android.anroidHSSP;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CameraSource} without a camera, emitting RAW frames from a {@link FrameProvider} at a
+ * realistic sensor cadence.
+ * <p/>
+ * Requests are exposed back to back in submission order. Each frame lasts its exposure time, but
+ * at least {@link Config#minFrameDurationNs} or the recorded frame duration, plus Gaussian
+ * jitter. The image follows the end of the frame after {@link Config#readoutNs}; the result
+ * follows after {@link Config#resultDelayNs} with its own jitter, so results arrive before or
+ * after their images, as they do on real devices. Images are copied into one of
+ * {@link Config#bufferCount} buffers, like an {@code ImageReader}'s {@code maxImages}; when every
+ * buffer is still held by the receiver the image is lost. A fraction of requests can be made to
+ * fail. All events are delivered on one thread.
+ * <p/>
+ * Timestamps are {@link System#nanoTime()}. This class has no Android dependencies.
+ */
+public class SimulatedCameraSource implements CameraSource {
+
+    /**
+     * Supplies frame contents, and optionally recorded frame durations.
+     */
+    public interface FrameProvider {
+        int getWidth();
+
+        int getHeight();
+
+        String getBayerPattern();
+
+        int getFrameCount();
+
+        /**
+         * @return the recorded frame duration in nanoseconds, or 0 if not known.
+         */
+        long getFrameDuration(int index);
+
+        /**
+         * Fills {@code dst} from its position with width * height little-endian 16-bit samples.
+         */
+        void read(int index, ByteBuffer dst) throws IOException;
+    }
+
+    /**
+     * The timing model.
+     */
+    public static class Config {
+        public int bufferCount = 4;
+        public long minFrameDurationNs = 33333333;
+        public long frameJitterNs = 500000;
+        public long readoutNs = 20000000;
+        public long resultDelayNs = 15000000;
+        public long resultJitterNs = 10000000;
+        public float failureRate = 0;
+        public long seed = 1;
+    }
+
+    private final Config mConfig;
+    private final FrameProvider mProvider;
+    private final Random mRandom;
+    private final ScheduledExecutorService mThread;
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+
+    private volatile Callback mCallback;
+    private long mSensorFreeAt;
+    private long mFrameNumber;
+    private int mNextFrame;
+
+    public SimulatedCameraSource(Config config, FrameProvider provider) {
+        mConfig = config;
+        mProvider = provider;
+        mRandom = new Random(config.seed);
+        int frameBytes = provider.getWidth() * provider.getHeight() * 2;
+        for (int i = 0; i < Math.max(1, config.bufferCount); i++) {
+            mFreeBuffers.add(ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        mThread = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "SimulatedCamera");
+            }
+        });
+    }
+
+    @Override
+    public int getWidth() {
+        return mProvider.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mProvider.getHeight();
+    }
+
+    @Override
+    public String getBayerPattern() {
+        return mProvider.getBayerPattern();
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void capture(int tag, int sensitivity, long exposureTime) {
+        captureBurst(new int[]{tag}, new int[]{sensitivity}, new long[]{exposureTime});
+    }
+
+    @Override
+    public synchronized void captureBurst(int[] tags, int[] sensitivities, long[] exposureTimes) {
+        for (int i = 0; i < tags.length; i++) {
+            scheduleLocked(tags[i], sensitivities[i], exposureTimes[i]);
+        }
+    }
+
+    @Override
+    public void close() {
+        mThread.shutdownNow();
+    }
+
+    private void scheduleLocked(final int tag, final int sensitivity, final long exposureTime) {
+        final int index = mNextFrame++ % mProvider.getFrameCount();
+        final long frameNumber = mFrameNumber++;
+
+        long duration = Math.max(exposureTime,
+                Math.max(mConfig.minFrameDurationNs, mProvider.getFrameDuration(index)));
+        duration = Math.max(exposureTime,
+                duration + (long) (mRandom.nextGaussian() * mConfig.frameJitterNs));
+        final long frameDuration = duration;
+        final long start = Math.max(System.nanoTime(), mSensorFreeAt);
+        mSensorFreeAt = start + duration;
+        boolean fail = mRandom.nextFloat() < mConfig.failureRate;
+        long resultAt = start + duration + Math.max(0,
+                mConfig.resultDelayNs + (long) (mRandom.nextGaussian() * mConfig.resultJitterNs));
+
+        post(start, new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onCaptureStarted(tag, start);
+            }
+        });
+        if (fail) {
+            post(resultAt, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCaptureFailed(tag);
+                }
+            });
+            return;
+        }
+        post(resultAt, new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onCaptureCompleted(new Result(tag, frameNumber, start, sensitivity,
+                        exposureTime, frameDuration));
+            }
+        });
+        post(start + duration + mConfig.readoutNs, new Runnable() {
+            @Override
+            public void run() {
+                deliverImage(tag, index, start);
+            }
+        });
+    }
+
+    private void post(long atNs, Runnable event) {
+        mThread.schedule(event, atNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private void deliverImage(int tag, int index, long timestamp) {
+        ByteBuffer buffer;
+        synchronized (mFreeBuffers) {
+            buffer = mFreeBuffers.poll();
+        }
+        if (buffer == null) {
+            mCallback.onCaptureBufferLost(tag);
+            return;
+        }
+        buffer.clear();
+        try {
+            mProvider.read(index, buffer);
+        } catch (IOException e) {
+            release(buffer);
+            mCallback.onCaptureBufferLost(tag);
+            return;
+        }
+        buffer.flip();
+        mCallback.onImageAvailable(new SimulatedFrame(buffer, timestamp));
+    }
+
+    private void release(ByteBuffer buffer) {
+        synchronized (mFreeBuffers) {
+            mFreeBuffers.add(buffer);
+        }
+    }
+
+    private class SimulatedFrame implements Frame {
+        private final long mTimestamp;
+        private ByteBuffer mBuffer;
+
+        SimulatedFrame(ByteBuffer buffer, long timestamp) {
+            mBuffer = buffer;
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getWidth() {
+            return mProvider.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mProvider.getHeight();
+        }
+
+        @Override
+        public synchronized ByteBuffer getData() {
+            if (mBuffer == null) {
+                throw new IllegalStateException("Frame is closed");
+            }
+            return mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mBuffer != null) {
+                release(mBuffer);
+                mBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * @return {@code count} distinct synthetic RGGB frames, see {@link #syntheticFrame}.
+     */
+    public static FrameProvider synthetic(final int width, final int height, int count) {
+        final byte[][] frames = new byte[Math.max(1, count)][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = syntheticFrame(width, height, i);
+        }
+        return new FrameProvider() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public String getBayerPattern() {
+                return "RGGB";
+            }
+
+            @Override
+            public int getFrameCount() {
+                return frames.length;
+            }
+
+            @Override
+            public long getFrameDuration(int index) {
+                return 0;
+            }
+
+            @Override
+            public void read(int index, ByteBuffer dst) {
+                dst.put(frames[index]);
+            }
+        };
+    }
+
+    /**
+     * Replays a recorded {@link RawSequenceReader} sequence, with its recorded frame durations.
+     */
+    public static FrameProvider fromSequence(final RawSequenceReader reader) {
+        return new FrameProvider() {
+            @Override
+            public int getWidth() {
+                return reader.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return reader.getHeight();
+            }
+
+            @Override
+            public String getBayerPattern() {
+                return reader.getBayerPattern();
+            }
+
+            @Override
+            public int getFrameCount() {
+                return reader.getFrameCount();
+            }
+
+            @Override
+            public long getFrameDuration(int index) {
+                return reader.getFrameInfo(index).frameDuration;
+            }
+
+            @Override
+            public void read(int index, ByteBuffer dst) throws IOException {
+                ByteBuffer frame = reader.mapFrame(index);
+                frame.limit(Math.min(frame.limit(), dst.remaining()));
+                dst.put(frame);
+            }
+        };
+    }
+
+    /**
+     * Replays the RAW images of a list of DNGs, e.g. the originals of a burst. Every DNG must be
+     * {@code width} x {@code height}.
+     */
+    public static FrameProvider fromDngs(final List<File> files, final int width,
+                                         final int height, final String bayerPattern) {
+        final byte[] scratch = new byte[width * height * 2];
+        return new FrameProvider() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public String getBayerPattern() {
+                return bayerPattern;
+            }
+
+            @Override
+            public int getFrameCount() {
+                return files.size();
+            }
+
+            @Override
+            public long getFrameDuration(int index) {
+                return 0;
+            }
+
+            @Override
+            public void read(int index, ByteBuffer dst) throws IOException {
+                File file = files.get(index);
+                DngStrips strips = DngStrips.read(file);
+                dst.put(strips.readImage(file, scratch));
+            }
+        };
+    }
+
+    /**
+     * Builds a little-endian 16-bit RGGB frame of a dim scene: a smooth gradient with a few flat
+     * patches, above a black level of 64, with shot and read noise. The same seed gives the same
+     * frame.
+     */
+    public static byte[] syntheticFrame(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] frame = new byte[width * height * 2];
+        float[] channelGain = {0.5f, 1f, 1f, 0.7f};
+        int patch = Math.max(1, Math.min(width, height) / 6);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float signal = 4 + 28f * x / width + 12f * y / height;
+                if (((x / patch) + (y / patch)) % 5 == 0) {
+                    signal = 2 + 6 * (((x / patch) * 7 + (y / patch) * 3) % 4);
+                }
+                signal *= channelGain[(y & 1) * 2 + (x & 1)];
+                float noisy = signal + (float) random.nextGaussian()
+                        * (float) Math.sqrt(signal + 4);
+                int value = Math.max(0, Math.min(1023, Math.round(64 + noisy)));
+                int offset = (y * width + x) * 2;
+                frame[offset] = (byte) value;
+                frame[offset + 1] = (byte) (value >> 8);
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.anroidHSSP;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ring of fixed-size RAW frame slots in a pre-allocated, memory-mapped file.
+ * <p/>
+ * When capture outruns the denoiser, frames are copied here instead of being held in the
+ * {@link android.media.ImageReader} or on the heap. A slot is taken with {@link #reserve()},
+ * which is cheap enough to call under the camera's lock, and filled with {@link #write} on
+ * another thread. Slots are taken sequentially and each one starts with a small header holding
+ * the frame's capture metadata, so the file stays readable on its own. The denoiser reads a slot
+ * back through {@link Slot#getData()}, which is a view of the mapping rather than a copy. Slots may be released in any order; the writer only reuses a slot
+ * once every older slot has been released too.
+ * <p/>
+ * This class is thread safe.
+ */
+public class SpillRing implements Closeable {
+
+    static final int MAGIC = 0x50535348; // "HSSP"
+    static final int HEADER_BYTES = 64;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_WRITTEN = 1;
+
+    /**
+     * Capture metadata stored in front of each frame.
+     */
+    public static class FrameInfo {
+        public long timestamp;
+        public int sensitivity;
+        public long exposureTime;
+        public int width;
+        public int height;
+        public float rate;
+    }
+
+    public static class Slot {
+        private final int mIndex;
+        private final long mSequence;
+        private ByteBuffer mData;
+        private FrameInfo mInfo;
+
+        Slot(int index, long sequence) {
+            mIndex = index;
+            mSequence = sequence;
+        }
+
+        /**
+         * @return a little-endian view of the frame bytes in the mapping, positioned at zero, once
+         * the slot has been written.
+         */
+        public ByteBuffer getData() {
+            return mData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public FrameInfo getInfo() {
+            return mInfo;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer[] mSlots;
+    private final boolean[] mReleased;
+    private final int mFrameBytes;
+
+    private long mHead;
+    private long mTail;
+
+    public SpillRing(File file, int slots, int frameBytes) throws IOException {
+        mFrameBytes = frameBytes;
+        long slotBytes = HEADER_BYTES + (long) frameBytes;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(slotBytes * slots);
+        mChannel = mFile.getChannel();
+        mSlots = new MappedByteBuffer[slots];
+        mReleased = new boolean[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = mChannel.map(FileChannel.MapMode.READ_WRITE, slotBytes * i, slotBytes);
+            mSlots[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    public synchronized int size() {
+        return (int) (mHead - mTail);
+    }
+
+    /**
+     * Takes the next slot, to be filled with {@link #write}, or given back with
+     * {@link #release} if the frame is dropped.
+     *
+     * @return the slot, or null if the ring is full.
+     */
+    public synchronized Slot reserve() {
+        if (mHead - mTail >= mSlots.length) {
+            return null;
+        }
+        long sequence = mHead++;
+        int index = (int) (sequence % mSlots.length);
+        mReleased[index] = false;
+        return new Slot(index, sequence);
+    }
+
+    /**
+     * Copies a frame and its metadata into a reserved slot. Only the holder of the slot touches
+     * it until it is released, so this runs without the ring's lock.
+     *
+     * @param frame the frame bytes from the current position to the limit; not modified.
+     */
+    public void write(Slot reserved, ByteBuffer frame, FrameInfo info) {
+        int index = reserved.mIndex;
+        long sequence = reserved.mSequence;
+        MappedByteBuffer slot = mSlots[index];
+        ByteBuffer src = frame.duplicate();
+        int length = Math.min(src.remaining(), mFrameBytes);
+        src.limit(src.position() + length);
+
+        slot.putInt(4, STATE_FREE);
+        ByteBuffer data = slot.duplicate();
+        data.position(HEADER_BYTES);
+        data.put(src);
+        slot.putInt(0, MAGIC);
+        slot.putLong(8, sequence);
+        slot.putLong(16, info.timestamp);
+        slot.putInt(24, info.sensitivity);
+        slot.putLong(28, info.exposureTime);
+        slot.putInt(36, info.width);
+        slot.putInt(40, info.height);
+        slot.putFloat(44, info.rate);
+        slot.putInt(48, length);
+        slot.putInt(4, STATE_WRITTEN);
+
+        ByteBuffer view = slot.duplicate();
+        view.position(HEADER_BYTES);
+        view.limit(HEADER_BYTES + length);
+        reserved.mData = view.slice();
+        reserved.mInfo = info;
+    }
+
+    /**
+     * Returns a slot to the ring once its frame has been processed.
+     */
+    public synchronized void release(Slot slot) {
+        mSlots[slot.mIndex].putInt(4, STATE_FREE);
+        mReleased[slot.mIndex] = true;
+        while (mTail < mHead && mReleased[(int) (mTail % mSlots.length)]) {
+            mTail++;
+        }
+    }
+
+    /**
+     * Reads the metadata header of a slot from the mapping, e.g. to inspect a file left behind by
+     * an earlier run.
+     *
+     * @return the stored metadata, or null if the slot holds no complete frame.
+     */
+    public synchronized FrameInfo readFrameInfo(int index) {
+        MappedByteBuffer slot = mSlots[index];
+        if (slot.getInt(0) != MAGIC || slot.getInt(4) != STATE_WRITTEN) {
+            return null;
+        }
+        FrameInfo info = new FrameInfo();
+        info.timestamp = slot.getLong(16);
+        info.sensitivity = slot.getInt(24);
+        info.exposureTime = slot.getLong(28);
+        info.width = slot.getInt(36);
+        info.height = slot.getInt(40);
+        info.rate = slot.getFloat(44);
+        return info;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        mFile.close();
+    }
+}
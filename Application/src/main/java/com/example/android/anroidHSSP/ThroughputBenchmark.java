@@ -0,0 +1,439 @@
+package com.example.android.anroidHSSP;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the processing pipeline with synthetic or recorded Bayer frames to measure sustained
+ * throughput.
+ * <p/>
+ * A {@link SimulatedCameraSource} is sent bursts of {@link Config#burstLength} requests, one burst
+ * every {@link Config#burstIntervalMs}, like a photographer holding the shutter, and exposes them
+ * at up to {@link Config#framesPerSecond}. Results and images are paired by a
+ * {@link CaptureMatcher} as in the fragment's still captures. The camera has
+ * {@link Config#queueCapacity} image buffers, each held until its frame is processed, so once the
+ * pipeline falls behind images are lost, as they are with a full {@code ImageReader}. Every processed frame is recorded by a
+ * {@link CaptureTelemetry}, and the heap is sampled while the run lasts. The {@link Report} gives
+ * shots per minute, drop rate, queue growth, per-stage latency percentiles and peak memory.
+ * <p/>
+ * Nothing here needs a device: the clock and the counters come from a {@link RuntimeStats}, so
+ * the same run works in the app, with a {@link DenoisePipeline}, and on a desktop JVM.
+ */
+public class ThroughputBenchmark {
+
+    private static final long MEMORY_SAMPLE_MS = 50;
+
+    /** Distinct synthetic frames cycled through, so caches do not flatter the result. */
+    private static final int SYNTHETIC_FRAMES = 2;
+
+    private static final long RUN_TIMEOUT_MINUTES = 30;
+
+    /**
+     * Processes one frame on a worker thread, marking its stages on {@code capture}.
+     */
+    public interface Pipeline {
+        void process(int index, ByteBuffer frame, CaptureTelemetry.Capture capture)
+                throws IOException;
+    }
+
+    /**
+     * The run's parameters.
+     */
+    public static class Config {
+        public int width = 4032;
+        public int height = 3024;
+        public int totalFrames = 30;
+        public int burstLength = 5;
+        public float framesPerSecond = 10;
+        public long burstIntervalMs = 10000;
+        public int queueCapacity = 4;
+        public int workers = 1;
+        public int sensitivity = 800;
+        public long exposureTimeNs = 10000000;
+        /** Fraction of requests the simulated camera fails. */
+        public float failureRate = 0;
+        /**
+         * Tiles per model invocation, or 0 to run the model on the whole frame, see
+         * {@link DenoisingModel#setBatching(int, int)}. Runs with several values show which is
+         * fastest on a backend.
+         */
+        public int batchSize = 0;
+        /** Tile size in quads, when {@link #batchSize} is not 0 or there are backends. */
+        public int tileSize = 256;
+        /**
+         * Comma-separated backends, e.g. {@code gpu,cpu:4}, to spread each frame's tiles over
+         * with a {@link TileScheduler}, or null to use one interpreter.
+         */
+        public String backends;
+        /** Whether tiled runs skip tiles that do not need the model, see {@link TileGrid}. */
+        public boolean skipTiles;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%dx%d, %d frames in bursts of %d at %.1f fps every %d ms, "
+                            + "%d buffers, %d workers, %.0f%% failing, %s%s%s",
+                    width, height, totalFrames, burstLength, framesPerSecond, burstIntervalMs,
+                    queueCapacity, workers, failureRate * 100,
+                    batchSize == 0 ? "untiled" : String.format(Locale.US,
+                            "%d tiles of %d per invocation", batchSize, tileSize),
+                    backends == null ? "" : ", tiles of " + tileSize + " on " + backends,
+                    skipTiles ? ", skipping tiles" : "");
+        }
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Report {
+        public final Config config;
+        public final int emitted;
+        public final int processed;
+        public final int failed;
+        public final int dropped;
+        public final long elapsedMs;
+        public final int maxQueueDepth;
+        public final long peakHeapBytes;
+        public final long peakNativeBytes;
+        /** How results and images were paired, from {@link CaptureMatcher#getStats()}. */
+        public final String matching;
+        public final List<CaptureTelemetry.Record> records;
+        /** What went wrong along the way, such as frames whose pipeline threw. */
+        public final List<String> notes;
+
+        Report(Config config, int emitted, int processed, int failed, int dropped,
+               long elapsedMs, int maxQueueDepth, long peakHeapBytes, long peakNativeBytes,
+               String matching, List<CaptureTelemetry.Record> records, List<String> notes) {
+            this.config = config;
+            this.emitted = emitted;
+            this.processed = processed;
+            this.failed = failed;
+            this.dropped = dropped;
+            this.elapsedMs = elapsedMs;
+            this.maxQueueDepth = maxQueueDepth;
+            this.peakHeapBytes = peakHeapBytes;
+            this.peakNativeBytes = peakNativeBytes;
+            this.matching = matching;
+            this.records = records;
+            this.notes = notes;
+        }
+
+        public float getShotsPerMinute() {
+            return elapsedMs > 0 ? processed * 60000f / elapsedMs : 0;
+        }
+
+        public float getDropRate() {
+            return emitted > 0 ? (float) dropped / emitted : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("config: ").append(config).append('\n');
+            sb.append(String.format(Locale.US,
+                    "throughput: %.1f shots/min, %d processed, %d failed, %d dropped (%.1f%%) "
+                            + "of %d in %d ms, max queue depth %d\n",
+                    getShotsPerMinute(), processed, failed, dropped, getDropRate() * 100,
+                    emitted, elapsedMs, maxQueueDepth));
+            sb.append("matching: ").append(matching).append('\n');
+            sb.append(String.format(Locale.US, "memory: peak heap %.1f MB, peak native %.1f MB\n",
+                    peakHeapBytes / 1048576.0, peakNativeBytes / 1048576.0));
+
+            List<Long> latency = new ArrayList<>();
+            long gcCount = 0;
+            long blocked = 0;
+            Map<String, List<CaptureTelemetry.Stage>> stages = new LinkedHashMap<>();
+            for (CaptureTelemetry.Record record : records) {
+                latency.add(record.latencyMs);
+                gcCount += record.getGcCount();
+                blocked += record.getBlockingGcTimeMs();
+                for (CaptureTelemetry.Stage stage : record.stages) {
+                    List<CaptureTelemetry.Stage> list = stages.get(stage.name);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        stages.put(stage.name, list);
+                    }
+                    list.add(stage);
+                }
+            }
+            sb.append(String.format(Locale.US, "gc: %d collections, %d ms blocked\n",
+                    gcCount, blocked));
+            sb.append("latency: ").append(percentiles(latency)).append('\n');
+            for (Map.Entry<String, List<CaptureTelemetry.Stage>> entry : stages.entrySet()) {
+                List<Long> wall = new ArrayList<>();
+                long allocated = 0;
+                for (CaptureTelemetry.Stage stage : entry.getValue()) {
+                    wall.add(stage.wallMs);
+                    allocated += stage.allocatedBytes;
+                }
+                sb.append(String.format(Locale.US, "stage %s: %s, %.1f MB allocated per frame\n",
+                        entry.getKey(), percentiles(wall),
+                        allocated / 1048576.0 / entry.getValue().size()));
+            }
+            for (String note : notes) {
+                sb.append("note: ").append(note).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static String percentiles(List<Long> values) {
+            if (values.isEmpty()) {
+                return "no samples";
+            }
+            Collections.sort(values);
+            return String.format(Locale.US, "p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+                    percentile(values, 50), percentile(values, 90), percentile(values, 99),
+                    values.get(values.size() - 1));
+        }
+
+        /**
+         * Nearest-rank percentile of sorted values.
+         */
+        static long percentile(List<Long> sorted, int p) {
+            int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+            return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+        }
+    }
+
+    private final Config mConfig;
+    private final Pipeline mPipeline;
+    private final RuntimeStats mStats;
+    private SimulatedCameraSource.FrameProvider mFrameProvider;
+    private ThreadFactory mThreadFactory = Executors.defaultThreadFactory();
+
+    /**
+     * @param stats the clock and counters, {@link ArtRuntimeStats} on a device.
+     */
+    public ThroughputBenchmark(Config config, Pipeline pipeline, RuntimeStats stats) {
+        mConfig = config;
+        mPipeline = pipeline;
+        mStats = stats;
+    }
+
+    /**
+     * Creates the worker threads, e.g. at the priority of the app's processing threads.
+     */
+    public void setThreadFactory(ThreadFactory factory) {
+        mThreadFactory = factory;
+    }
+
+    /**
+     * Replays these frames, e.g. a recorded sequence, instead of synthetic ones. Its size
+     * overrides the configured one.
+     */
+    public void setFrameProvider(SimulatedCameraSource.FrameProvider provider) {
+        mFrameProvider = provider;
+    }
+
+    /**
+     * One request while its result and image are outstanding.
+     */
+    private static class Shot {
+        CameraSource.Result result;
+        CameraSource.Frame frame;
+        boolean lost;
+    }
+
+    /**
+     * Runs the benchmark on the calling thread, which presses the shutter, and returns when every
+     * request has been processed, has failed or was dropped.
+     */
+    public Report run() throws InterruptedException {
+        final Config config = mConfig;
+        SimulatedCameraSource.FrameProvider provider = mFrameProvider;
+        if (provider == null) {
+            provider = SimulatedCameraSource.synthetic(config.width, config.height,
+                    SYNTHETIC_FRAMES);
+        }
+        config.width = provider.getWidth();
+        config.height = provider.getHeight();
+
+        SimulatedCameraSource.Config cameraConfig = new SimulatedCameraSource.Config();
+        cameraConfig.bufferCount = config.queueCapacity;
+        cameraConfig.minFrameDurationNs = (long) (1e9 / config.framesPerSecond);
+        cameraConfig.failureRate = config.failureRate;
+        final SimulatedCameraSource camera = new SimulatedCameraSource(cameraConfig, provider);
+
+        final CaptureTelemetry telemetry = new CaptureTelemetry(config.totalFrames, mStats);
+        final List<String> notes = Collections.synchronizedList(new ArrayList<String>());
+        final CaptureMatcher<Shot> matcher = new CaptureMatcher<>();
+        final CountDownLatch resolved = new CountDownLatch(config.totalFrames);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong maxDepth = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger dropped = new AtomicInteger();
+        final AtomicLong peakHeap = new AtomicLong();
+        final AtomicLong peakNative = new AtomicLong();
+
+        final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, config.workers),
+                mThreadFactory);
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Runtime runtime = Runtime.getRuntime();
+                while (!Thread.currentThread().isInterrupted()) {
+                    updateMax(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+                    updateMax(peakNative, mStats.nativeHeapBytes());
+                    try {
+                        Thread.sleep(MEMORY_SAMPLE_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "BenchmarkMemory");
+        sampler.start();
+
+        // Mirrors the fragment: a shot is saved once both its result and its image are in.
+        camera.setCallback(new CameraSource.Callback() {
+            @Override
+            public void onCaptureStarted(int tag, long timestamp) {
+                matcher.setTimestamp(tag, timestamp);
+            }
+
+            @Override
+            public void onCaptureCompleted(CameraSource.Result result) {
+                Shot shot = matcher.get(result.tag);
+                if (shot == null) {
+                    return;
+                }
+                shot.result = result;
+                if (shot.lost) {
+                    matcher.remove(result.tag);
+                    dropped.incrementAndGet();
+                    resolved.countDown();
+                } else {
+                    dispatch(result.tag, shot);
+                }
+            }
+
+            @Override
+            public void onCaptureFailed(int tag) {
+                Shot shot = matcher.remove(tag);
+                if (shot != null) {
+                    if (shot.frame != null) {
+                        shot.frame.close();
+                    }
+                    failed.incrementAndGet();
+                    resolved.countDown();
+                }
+            }
+
+            @Override
+            public void onCaptureBufferLost(int tag) {
+                Shot shot = matcher.get(tag);
+                if (shot == null) {
+                    return;
+                }
+                shot.lost = true;
+                if (shot.result != null) {
+                    matcher.remove(tag);
+                    dropped.incrementAndGet();
+                    resolved.countDown();
+                }
+            }
+
+            @Override
+            public void onImageAvailable(CameraSource.Frame frame) {
+                int tag = matcher.matchImage(frame.getTimestamp());
+                if (tag == CaptureMatcher.NO_MATCH) {
+                    notes.add("No request for image " + frame.getTimestamp());
+                    frame.close();
+                    return;
+                }
+                Shot shot = matcher.get(tag);
+                shot.frame = frame;
+                dispatch(tag, shot);
+            }
+
+            private void dispatch(final int tag, final Shot shot) {
+                if (shot.result == null || shot.frame == null) {
+                    return;
+                }
+                matcher.remove(tag);
+                updateMax(maxDepth, inFlight.incrementAndGet());
+                final long start = mStats.elapsedRealtime();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        CaptureTelemetry.Capture capture = telemetry.begin(tag, null, start);
+                        try {
+                            mPipeline.process(tag, shot.frame.getData(), capture);
+                            capture.finish();
+                        } catch (IOException | RuntimeException e) {
+                            notes.add("Frame " + tag + " failed: " + e);
+                            failed.incrementAndGet();
+                        } finally {
+                            shot.frame.close();
+                            inFlight.decrementAndGet();
+                            resolved.countDown();
+                        }
+                    }
+                });
+            }
+        });
+
+        int burstLength = Math.max(1, config.burstLength);
+        long begin = mStats.elapsedRealtime();
+        boolean finished;
+        try {
+            for (int first = 0; first < config.totalFrames; first += burstLength) {
+                long wait = begin + (first / burstLength) * config.burstIntervalMs
+                        - mStats.elapsedRealtime();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                int count = Math.min(burstLength, config.totalFrames - first);
+                int[] tags = new int[count];
+                int[] sensitivities = new int[count];
+                long[] exposureTimes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    tags[i] = first + i;
+                    matcher.add(tags[i], new Shot());
+                }
+                Arrays.fill(sensitivities, config.sensitivity);
+                Arrays.fill(exposureTimes, config.exposureTimeNs);
+                camera.captureBurst(tags, sensitivities, exposureTimes);
+            }
+            finished = resolved.await(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } finally {
+            camera.close();
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            sampler.interrupt();
+        }
+        long elapsed = mStats.elapsedRealtime() - begin;
+        sampler.join();
+        if (!finished) {
+            notes.add(resolved.getCount() + " requests never finished: " + matcher.getStats());
+        }
+
+        List<CaptureTelemetry.Record> records = telemetry.getRecords();
+        return new Report(config, config.totalFrames, records.size(), failed.get(),
+                dropped.get(), elapsed, (int) maxDepth.get(), peakHeap.get(), peakNative.get(),
+                matcher.getStats(), records, new ArrayList<>(notes));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.android.anroidHSSP;
+
+/**
+ * The tiles of a packed tensor, as the model runs them in tiled modes: cores of
+ * {@code tileSize} x {@code tileSize} quads in raster order, each inferred in a window with
+ * {@link DenoisingModel#TILE_MARGIN} quads of context. Windows are shifted inward at the edges,
+ * so every window has the same size; only cores are written back.
+ * <p/>
+ * {@link #classify} can leave out tiles that do not need the model, from statistics of each
+ * core: mostly clipped tiles and tiles with almost no variation are passed through, and black
+ * tiles, such as the borders of the frame, get a 3x3 box filter. Where an inferred tile meets a
+ * skipped one, the inferred window's margin is faded into the skipped tile over
+ * {@link #BLEND_WIDTH} quads, so there is no visible seam in the noise.
+ */
+public class TileGrid {
+
+    public static final byte INFER = 0;
+    public static final byte PASSTHROUGH = 1;
+    public static final byte FILTER = 2;
+
+    /** Packed values at or above this are clipped. */
+    static final float CLIP_LEVEL = 0.999f;
+
+    /** Tiles with at least this fraction of values clipped are passed through. */
+    static final float CLIPPED_FRACTION = 0.95f;
+
+    /**
+     * Tiles with a mean below this, after gamma, are black: about one digital number above the
+     * black level, which the model would only smooth.
+     */
+    static final float DARK_MEAN = 0.05f;
+
+    /**
+     * Tiles whose values vary less than this, after gamma (a standard deviation of about 1/255),
+     * have no noise worth removing.
+     */
+    static final float QUIET_VARIANCE = 2e-5f;
+
+    /** Width, in quads, over which inferred tiles fade into skipped neighbours. */
+    static final int BLEND_WIDTH = DenoisingModel.TILE_MARGIN;
+
+    public final int height;
+    public final int width;
+    public final int channels;
+    public final int tileSize;
+    public final int tileHeight;
+    public final int tileWidth;
+    public final int rows;
+    public final int cols;
+
+    /** The class of every tile, or null when every tile is inferred. */
+    private byte[] mClasses;
+
+    public TileGrid(int height, int width, int channels, int tileSize) {
+        this.height = height;
+        this.width = width;
+        this.channels = channels;
+        this.tileSize = tileSize;
+        tileHeight = Math.min(tileSize + 2 * DenoisingModel.TILE_MARGIN, height);
+        tileWidth = Math.min(tileSize + 2 * DenoisingModel.TILE_MARGIN, width);
+        rows = (height + tileSize - 1) / tileSize;
+        cols = (width + tileSize - 1) / tileSize;
+    }
+
+    public int count() {
+        return rows * cols;
+    }
+
+    public int windowFloats() {
+        return tileHeight * tileWidth * channels;
+    }
+
+    /**
+     * @return every tile, in raster order.
+     */
+    public int[] all() {
+        int[] tiles = new int[count()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = i;
+        }
+        return tiles;
+    }
+
+    int coreTop(int tile) {
+        return (tile / cols) * tileSize;
+    }
+
+    int coreLeft(int tile) {
+        return (tile % cols) * tileSize;
+    }
+
+    int windowTop(int tile) {
+        return DenoisingModel.tileWindow(coreTop(tile), tileHeight, height);
+    }
+
+    int windowLeft(int tile) {
+        return DenoisingModel.tileWindow(coreLeft(tile), tileWidth, width);
+    }
+
+    /**
+     * Copies the window of {@code tile} from {@code src} to {@code window} at {@code offset}.
+     */
+    public void extract(float[] src, int tile, float[] window, int offset) {
+        int top = windowTop(tile);
+        int left = windowLeft(tile);
+        int rowFloats = tileWidth * channels;
+        for (int y = 0; y < tileHeight; y++) {
+            System.arraycopy(src, ((top + y) * width + left) * channels,
+                    window, offset + y * rowFloats, rowFloats);
+        }
+    }
+
+    /**
+     * Writes the core of an inferred window at {@code offset} to {@code dst}, and fades its
+     * margin into the neighbouring tiles that {@link #classify} skipped.
+     */
+    public void write(float[] window, int offset, int tile, float[] dst) {
+        int coreTop = coreTop(tile);
+        int coreLeft = coreLeft(tile);
+        int coreHeight = Math.min(tileSize, height - coreTop);
+        int coreWidth = Math.min(tileSize, width - coreLeft);
+        int top = windowTop(tile);
+        int left = windowLeft(tile);
+        for (int y = 0; y < coreHeight; y++) {
+            System.arraycopy(window,
+                    offset + ((coreTop - top + y) * tileWidth + coreLeft - left) * channels,
+                    dst, ((coreTop + y) * width + coreLeft) * channels, coreWidth * channels);
+        }
+        if (mClasses == null) {
+            return;
+        }
+        int row = tile / cols;
+        int col = tile % cols;
+        // Neighbours share the corners of their bands, so fades are written one at a time.
+        synchronized (this) {
+            if (row > 0 && mClasses[tile - cols] != INFER) {
+                fadeRows(window, offset, top, left, coreTop - 1, -1,
+                        Math.min(BLEND_WIDTH, coreTop - top), coreLeft, coreWidth, dst);
+            }
+            if (row < rows - 1 && mClasses[tile + cols] != INFER) {
+                fadeRows(window, offset, top, left, coreTop + coreHeight, 1,
+                        Math.min(BLEND_WIDTH, top + tileHeight - coreTop - coreHeight),
+                        coreLeft, coreWidth, dst);
+            }
+            if (col > 0 && mClasses[tile - 1] != INFER) {
+                fadeColumns(window, offset, top, left, coreLeft - 1, -1,
+                        Math.min(BLEND_WIDTH, coreLeft - left), coreTop, coreHeight, dst);
+            }
+            if (col < cols - 1 && mClasses[tile + 1] != INFER) {
+                fadeColumns(window, offset, top, left, coreLeft + coreWidth, 1,
+                        Math.min(BLEND_WIDTH, left + tileWidth - coreLeft - coreWidth),
+                        coreTop, coreHeight, dst);
+            }
+        }
+    }
+
+    /**
+     * Blends {@code band} rows starting at {@code firstRow} and going in {@code step}, from
+     * fully inferred next to the core to fully skipped.
+     */
+    private void fadeRows(float[] window, int offset, int top, int left, int firstRow, int step,
+                          int band, int coreLeft, int coreWidth, float[] dst) {
+        for (int d = 0; d < band; d++) {
+            int y = firstRow + d * step;
+            float weight = 1 - (d + 0.5f) / band;
+            int from = offset + ((y - top) * tileWidth + coreLeft - left) * channels;
+            int to = (y * width + coreLeft) * channels;
+            for (int i = 0; i < coreWidth * channels; i++) {
+                dst[to + i] += weight * (window[from + i] - dst[to + i]);
+            }
+        }
+    }
+
+    private void fadeColumns(float[] window, int offset, int top, int left, int firstColumn,
+                             int step, int band, int coreTop, int coreHeight, float[] dst) {
+        for (int d = 0; d < band; d++) {
+            int x = firstColumn + d * step;
+            float weight = 1 - (d + 0.5f) / band;
+            for (int y = coreTop; y < coreTop + coreHeight; y++) {
+                int from = offset + ((y - top) * tileWidth + x - left) * channels;
+                int to = (y * width + x) * channels;
+                for (int c = 0; c < channels; c++) {
+                    dst[to + c] += weight * (window[from + c] - dst[to + c]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Classifies every tile of {@code src} by the mean, variance and clipped fraction of its
+     * core, and writes the skipped ones to {@code dst} straight away. Call before inferring
+     * and {@link #write writing} the rest.
+     *
+     * @return the tiles to infer, in raster order.
+     */
+    public int[] classify(float[] src, float[] dst) {
+        mClasses = new byte[count()];
+        int inferred = 0;
+        for (int tile = 0; tile < mClasses.length; tile++) {
+            mClasses[tile] = classOf(src, tile);
+            if (mClasses[tile] == INFER) {
+                inferred++;
+            } else {
+                fill(src, tile, mClasses[tile] == FILTER, dst);
+            }
+        }
+        int[] tiles = new int[inferred];
+        for (int tile = 0, i = 0; tile < mClasses.length; tile++) {
+            if (mClasses[tile] == INFER) {
+                tiles[i++] = tile;
+            }
+        }
+        return tiles;
+    }
+
+    private byte classOf(float[] src, int tile) {
+        int coreTop = coreTop(tile);
+        int coreLeft = coreLeft(tile);
+        int coreHeight = Math.min(tileSize, height - coreTop);
+        int rowFloats = Math.min(tileSize, width - coreLeft) * channels;
+        double sum = 0;
+        double sumSquares = 0;
+        int clipped = 0;
+        for (int y = coreTop; y < coreTop + coreHeight; y++) {
+            int base = (y * width + coreLeft) * channels;
+            for (int i = base; i < base + rowFloats; i++) {
+                float v = src[i];
+                sum += v;
+                sumSquares += v * v;
+                if (v >= CLIP_LEVEL) {
+                    clipped++;
+                }
+            }
+        }
+        int n = coreHeight * rowFloats;
+        double mean = sum / n;
+        double variance = sumSquares / n - mean * mean;
+        if (clipped >= CLIPPED_FRACTION * n || variance <= QUIET_VARIANCE) {
+            return PASSTHROUGH;
+        }
+        return mean <= DARK_MEAN ? FILTER : INFER;
+    }
+
+    /**
+     * Writes a skipped core: copied through, or box filtered over 3x3 quads per channel.
+     */
+    private void fill(float[] src, int tile, boolean filter, float[] dst) {
+        int coreTop = coreTop(tile);
+        int coreLeft = coreLeft(tile);
+        int coreHeight = Math.min(tileSize, height - coreTop);
+        int coreWidth = Math.min(tileSize, width - coreLeft);
+        for (int y = coreTop; y < coreTop + coreHeight; y++) {
+            int base = (y * width + coreLeft) * channels;
+            if (!filter) {
+                System.arraycopy(src, base, dst, base, coreWidth * channels);
+                continue;
+            }
+            int y0 = Math.max(0, y - 1);
+            int y1 = Math.min(height - 1, y + 1);
+            for (int x = coreLeft; x < coreLeft + coreWidth; x++) {
+                int x0 = Math.max(0, x - 1);
+                int x1 = Math.min(width - 1, x + 1);
+                float scale = 1f / ((y1 - y0 + 1) * (x1 - x0 + 1));
+                for (int c = 0; c < channels; c++) {
+                    float sum = 0;
+                    for (int yy = y0; yy <= y1; yy++) {
+                        for (int xx = x0; xx <= x1; xx++) {
+                            sum += src[(yy * width + xx) * channels + c];
+                        }
+                    }
+                    dst[(y * width + x) * channels + c] = sum * scale;
+                }
+            }
+        }
+    }
+}
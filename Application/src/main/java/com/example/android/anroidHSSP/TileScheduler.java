@@ -0,0 +1,461 @@
+package com.example.android.anroidHSSP;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Denoises the tiles of a frame on several interpreters at once, for instance one on the GPU
+ * delegate and one on CPU threads, so that no compute unit sits idle while another works.
+ * <p/>
+ * Each backend runs on a thread of its own, which also creates it, since a GPU delegate must be
+ * used on the thread it was created on. The tiles of a frame, in raster order, are dealt out in
+ * contiguous runs proportional to each backend's measured throughput. A backend takes tiles from
+ * the front of its own run; once that is empty it steals from the back of the longest remaining
+ * run, so a misestimated split still finishes together. Throughput is measured on every frame
+ * and averaged into the next frame's split.
+ * <p/>
+ * Tiles are laid out by a {@link TileGrid}, as in {@link DenoisingModel#setBatching(int, int)},
+ * and may be a subset of the grid's. A backend that fails is
+ * dropped, and its tiles go to the others, or to one still being created if none is left.
+ * <p/>
+ * {@link Backend} does not depend on Android, so the scheduling and reassembly can be exercised
+ * on a desktop JVM with two CPU {@link InterpreterBackend}s.
+ */
+public class TileScheduler {
+
+    private static final String TAG = "TileScheduler";
+
+    /** Weight of the latest frame in the throughput averages. */
+    private static final double THROUGHPUT_SMOOTHING = 0.5;
+
+    /**
+     * Runs the model on one tile at a time. Only ever called from the thread that created it.
+     */
+    public interface Backend {
+        String getName();
+
+        /**
+         * Denoises one tile of {@code height * width * channels} values.
+         */
+        void run(float[] input, float[] output, int height, int width, int channels)
+                throws Exception;
+
+        void close();
+    }
+
+    /**
+     * A {@link Backend} on a TFLite interpreter, resized to the tile shape on first use.
+     */
+    public static class InterpreterBackend implements Backend {
+        private final String mName;
+        private final Interpreter mInterpreter;
+        private final DenoisingModel.LoadedModel mModel;
+        private int[] mShape;
+        private TensorBuffer mInput;
+        private TensorBuffer mOutput;
+
+        /**
+         * Wraps an interpreter built by the caller, e.g. from a model file on a desktop JVM.
+         */
+        public InterpreterBackend(String name, Interpreter interpreter) {
+            this(name, interpreter, null);
+        }
+
+        InterpreterBackend(String name, DenoisingModel.LoadedModel model) {
+            this(name, model.interpreter, model);
+        }
+
+        private InterpreterBackend(String name, Interpreter interpreter,
+                                   DenoisingModel.LoadedModel model) {
+            mName = name;
+            mInterpreter = interpreter;
+            mModel = model;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public void run(float[] input, float[] output, int height, int width, int channels) {
+            if (mShape == null || mShape[1] != height || mShape[2] != width
+                    || mShape[3] != channels) {
+                mShape = new int[]{1, height, width, channels};
+                mInterpreter.resizeInput(0, mShape);
+                mInput = TensorBuffer.createFixedSize(mShape, DataType.FLOAT32);
+                mOutput = TensorBuffer.createFixedSize(mShape, DataType.FLOAT32);
+            }
+            mInput.loadArray(input);
+            mInterpreter.run(mInput.getBuffer(), mOutput.getBuffer());
+            System.arraycopy(mOutput.getFloatArray(), 0, output, 0, height * width * channels);
+        }
+
+        @Override
+        public void close() {
+            if (mModel != null) {
+                mModel.close();
+            } else {
+                mInterpreter.close();
+            }
+        }
+    }
+
+    /**
+     * @param spec {@code gpu} for the GPU delegate, or {@code cpu:<threads>} for CPU kernels.
+     * @return a factory for {@link #addBackend} that loads {@code modelName} as described.
+     */
+    public static Callable<Backend> interpreterBackend(final Context context,
+                                                       final String modelName,
+                                                       final String spec) {
+        final boolean gpu = "gpu".equals(spec);
+        if (!gpu && !spec.startsWith("cpu:")) {
+            throw new IllegalArgumentException("Unknown backend: " + spec);
+        }
+        final int threads = gpu ? 1 : Integer.parseInt(spec.substring(4));
+        return new Callable<Backend>() {
+            @Override
+            public Backend call() throws IOException {
+                return new InterpreterBackend(spec,
+                        DenoisingModel.load(context, modelName, threads, false, gpu));
+            }
+        };
+    }
+
+    /**
+     * A backend, the thread it runs on and its share of the current frame.
+     */
+    private static class Worker {
+        final ExecutorService thread;
+        final Future<Backend> backend;
+        final ConcurrentLinkedDeque<Integer> tiles = new ConcurrentLinkedDeque<>();
+        /** Measured throughput, 0 until the first frame. */
+        double tilesPerSecond;
+        boolean failed;
+        int done;
+        long busyNs;
+        float[] input;
+        float[] output;
+
+        Worker(ExecutorService thread, Future<Backend> backend) {
+            this.thread = thread;
+            this.backend = backend;
+        }
+    }
+
+    private final String mModelName;
+    private final int mTileSize;
+    private final List<Worker> mWorkers = new ArrayList<>();
+
+    /**
+     * @param modelName the model every backend runs.
+     * @param tileSize  tile size in quads, rounded up to {@link DenoisingModel#MODEL_ALIGNMENT}.
+     */
+    public TileScheduler(String modelName, int tileSize) {
+        mModelName = modelName;
+        mTileSize = Math.max(DenoisingModel.MODEL_ALIGNMENT,
+                (tileSize + DenoisingModel.MODEL_ALIGNMENT - 1)
+                        / DenoisingModel.MODEL_ALIGNMENT * DenoisingModel.MODEL_ALIGNMENT);
+    }
+
+    public String getModelName() {
+        return mModelName;
+    }
+
+    /**
+     * Starts a backend thread and creates the backend on it. Frames skip backends that are
+     * still being created, unless none is ready.
+     */
+    public synchronized void addBackend(Callable<Backend> factory) {
+        ExecutorService thread = Executors.newSingleThreadExecutor(
+                new ProcessingPools.PriorityThreadFactory("Tiles" + mWorkers.size(),
+                        android.os.Process.THREAD_PRIORITY_FOREGROUND));
+        mWorkers.add(new Worker(thread, thread.submit(factory)));
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Denoises {@code src} into {@code dst}, both {@code height * width * channels} values.
+     *
+     * @throws IOException if no backend could run some of the tiles.
+     */
+    public void run(float[] src, float[] dst, int height, int width, int channels)
+            throws IOException {
+        TileGrid grid = new TileGrid(height, width, channels, mTileSize);
+        run(src, dst, grid, grid.all());
+    }
+
+    /**
+     * Denoises {@code tiles} of {@code grid} from {@code src} into {@code dst}.
+     *
+     * @throws IOException if no backend could run some of the tiles.
+     */
+    public synchronized void run(final float[] src, final float[] dst, final TileGrid grid,
+                                 int[] tiles) throws IOException {
+        if (tiles.length == 0) {
+            return;
+        }
+        List<Worker> workers = readyWorkers();
+        deal(workers, tiles);
+        while (true) {
+            List<Future<?>> rounds = new ArrayList<>();
+            for (final Worker worker : workers) {
+                worker.done = 0;
+                worker.busyNs = 0;
+                try {
+                    rounds.add(worker.thread.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            work(worker, src, dst, grid);
+                            return null;
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    worker.failed = true;
+                }
+            }
+            for (int i = 0; i < rounds.size(); i++) {
+                try {
+                    rounds.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Backend failed, dropping it", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while denoising tiles", e);
+                }
+            }
+            // Tiles a failing backend put back, if another backend had run out of work by then.
+            List<Worker> healthy = new ArrayList<>();
+            int left = 0;
+            for (Worker worker : workers) {
+                left += worker.tiles.size();
+                if (!worker.failed) {
+                    healthy.add(worker);
+                    updateThroughput(worker);
+                }
+            }
+            if (left == 0) {
+                break;
+            }
+            if (healthy.isEmpty()) {
+                // Backends still being created when the frame started can take over.
+                healthy = createdWorkers(workers);
+            }
+            if (healthy.isEmpty()) {
+                for (Worker worker : workers) {
+                    worker.tiles.clear();
+                }
+                throw new IOException("No backend could denoise " + left + " tiles");
+            }
+            for (Worker worker : workers) {
+                if (worker.failed) {
+                    healthy.get(0).tiles.addAll(worker.tiles);
+                    worker.tiles.clear();
+                }
+            }
+            workers = healthy;
+        }
+        Log.d(TAG, toString());
+    }
+
+    /**
+     * Runs tiles from the front of the worker's own run, then steals from the back of others.
+     */
+    private void work(Worker worker, float[] src, float[] dst, TileGrid grid) throws Exception {
+        Backend backend = worker.backend.get();
+        int tileFloats = grid.windowFloats();
+        if (worker.input == null || worker.input.length != tileFloats) {
+            worker.input = new float[tileFloats];
+            worker.output = new float[tileFloats];
+        }
+        Integer tile;
+        while ((tile = next(worker)) != null) {
+            grid.extract(src, tile, worker.input, 0);
+            long start = System.nanoTime();
+            try {
+                backend.run(worker.input, worker.output, grid.tileHeight, grid.tileWidth,
+                        grid.channels);
+            } catch (Exception e) {
+                worker.failed = true;
+                worker.tiles.addFirst(tile);
+                throw e;
+            }
+            worker.busyNs += System.nanoTime() - start;
+            worker.done++;
+            grid.write(worker.output, 0, tile, dst);
+        }
+    }
+
+    private Integer next(Worker worker) {
+        Integer tile = worker.tiles.pollFirst();
+        while (tile == null) {
+            Worker victim = null;
+            int most = 0;
+            for (Worker other : mWorkers) {
+                int size = other.tiles.size();
+                if (other != worker && size > most) {
+                    victim = other;
+                    most = size;
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            // Another thief may have emptied it in between; look again.
+            tile = victim.tiles.pollLast();
+        }
+        return tile;
+    }
+
+    /**
+     * @return the backends that are created and have not failed, waiting for the first one if
+     * none is created yet.
+     */
+    private List<Worker> readyWorkers() throws IOException {
+        List<Worker> ready = new ArrayList<>();
+        for (Worker worker : mWorkers) {
+            if (!worker.failed && worker.backend.isDone() && created(worker)) {
+                ready.add(worker);
+            }
+        }
+        for (int i = 0; ready.isEmpty() && i < mWorkers.size(); i++) {
+            Worker worker = mWorkers.get(i);
+            if (!worker.failed && created(worker)) {
+                ready.add(worker);
+            }
+        }
+        if (ready.isEmpty()) {
+            throw new IOException("No tile backend could be created");
+        }
+        return ready;
+    }
+
+    /**
+     * @return the backends not in {@code tried} that are created and have not failed, waiting
+     * for those still being created.
+     */
+    private List<Worker> createdWorkers(List<Worker> tried) throws IOException {
+        List<Worker> created = new ArrayList<>();
+        for (Worker worker : mWorkers) {
+            if (!tried.contains(worker) && !worker.failed && created(worker)) {
+                created.add(worker);
+            }
+        }
+        return created;
+    }
+
+    private static boolean created(Worker worker) throws IOException {
+        try {
+            worker.backend.get();
+            return true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not create a backend", e.getCause());
+            worker.failed = true;
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating a backend", e);
+        }
+    }
+
+    /**
+     * Splits {@code tiles} into contiguous runs proportional to throughput. Backends not
+     * measured yet are assumed as fast as the average of the measured ones.
+     */
+    private static void deal(List<Worker> workers, int[] tiles) {
+        double measured = 0;
+        int measuredCount = 0;
+        for (Worker worker : workers) {
+            if (worker.tilesPerSecond > 0) {
+                measured += worker.tilesPerSecond;
+                measuredCount++;
+            }
+        }
+        double fallback = measuredCount == 0 ? 1 : measured / measuredCount;
+        double total = 0;
+        for (Worker worker : workers) {
+            total += worker.tilesPerSecond > 0 ? worker.tilesPerSecond : fallback;
+        }
+        double share = 0;
+        int next = 0;
+        for (Worker worker : workers) {
+            share += worker.tilesPerSecond > 0 ? worker.tilesPerSecond : fallback;
+            int end = worker == workers.get(workers.size() - 1) ? tiles.length
+                    : (int) Math.round(tiles.length * share / total);
+            for (; next < end; next++) {
+                worker.tiles.addLast(tiles[next]);
+            }
+        }
+    }
+
+    private static void updateThroughput(Worker worker) {
+        if (worker.done == 0 || worker.busyNs == 0) {
+            return;
+        }
+        double rate = worker.done * 1e9 / worker.busyNs;
+        worker.tilesPerSecond = worker.tilesPerSecond == 0 ? rate
+                : (1 - THROUGHPUT_SMOOTHING) * worker.tilesPerSecond
+                + THROUGHPUT_SMOOTHING * rate;
+    }
+
+    /**
+     * Closes every backend on its own thread, after the tiles queued there.
+     */
+    public synchronized void close() {
+        for (final Worker worker : mWorkers) {
+            try {
+                worker.thread.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            worker.backend.get().close();
+                        } catch (Exception e) {
+                            // Never created; nothing to close.
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed already.
+            }
+            worker.thread.shutdown();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Tiles per second:");
+        for (Worker worker : mWorkers) {
+            String name = worker.backend.isDone() ? nameOf(worker) : "?";
+            sb.append(String.format(Locale.US, " %s %.1f (%d)%s", name, worker.tilesPerSecond,
+                    worker.done, worker.failed ? " failed" : ""));
+        }
+        return sb.toString();
+    }
+
+    private static String nameOf(Worker worker) {
+        try {
+            return worker.backend.get().getName();
+        } catch (Exception e) {
+            return "?";
+        }
+    }
+}
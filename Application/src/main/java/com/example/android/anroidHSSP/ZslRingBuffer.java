@@ -0,0 +1,191 @@
+package com.example.android.anroidHSSP;
+
+import android.hardware.camera2.CaptureResult;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed ring of pre-allocated RAW frame buffers used for zero-shutter-lag capture.
+ * <p/>
+ * Every streamed {@link Image} is copied into the next free slot and can be closed by the caller
+ * right away, so the {@link android.media.ImageReader} never runs out of buffers. Capture results
+ * are matched to frames by sensor timestamp, in whichever order they arrive. Nothing is allocated
+ * per frame; slots handed out by {@link #lockClosest} are skipped by the writer until they are
+ * released again.
+ * <p/>
+ * This class is thread safe.
+ */
+public class ZslRingBuffer {
+
+    public static class Frame {
+        private final byte[] mData;
+        private long mTimestamp = -1;
+        private CaptureResult mResult;
+        private boolean mLocked;
+
+        Frame(int frameBytes) {
+            mData = new byte[frameBytes];
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public CaptureResult getResult() {
+            return mResult;
+        }
+    }
+
+    private final Frame[] mFrames;
+    private int mNext;
+
+    /**
+     * Results that arrived before their image, kept in a small ring of their own.
+     */
+    private final CaptureResult[] mPendingResults;
+    private final long[] mPendingTimestamps;
+    private int mNextPending;
+
+    public ZslRingBuffer(int capacity, int frameBytes) {
+        mFrames = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFrames[i] = new Frame(frameBytes);
+        }
+        mPendingResults = new CaptureResult[capacity];
+        mPendingTimestamps = new long[capacity];
+        clearPending();
+    }
+
+    public int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * Copies the image into the oldest unlocked slot. The caller still owns the image and should
+     * close it as soon as this returns.
+     *
+     * @return false if every slot is currently locked and the frame was dropped.
+     */
+    public synchronized boolean add(Image image) {
+        Frame frame = null;
+        for (int i = 0; i < mFrames.length; i++) {
+            Frame candidate = mFrames[(mNext + i) % mFrames.length];
+            if (!candidate.mLocked) {
+                frame = candidate;
+                mNext = (mNext + i + 1) % mFrames.length;
+                break;
+            }
+        }
+        if (frame == null) {
+            return false;
+        }
+
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        buffer.rewind();
+        buffer.get(frame.mData, 0, Math.min(buffer.remaining(), frame.mData.length));
+        frame.mTimestamp = image.getTimestamp();
+        frame.mResult = null;
+
+        for (int i = 0; i < mPendingResults.length; i++) {
+            if (mPendingTimestamps[i] == frame.mTimestamp) {
+                frame.mResult = mPendingResults[i];
+                mPendingResults[i] = null;
+                mPendingTimestamps[i] = -1;
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Attaches a capture result to the frame with the same {@link CaptureResult#SENSOR_TIMESTAMP}.
+     */
+    public synchronized void addResult(CaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) {
+            return;
+        }
+        for (Frame frame : mFrames) {
+            if (frame.mTimestamp == timestamp) {
+                if (!frame.mLocked) {
+                    frame.mResult = result;
+                }
+                return;
+            }
+        }
+        mPendingResults[mNextPending] = result;
+        mPendingTimestamps[mNextPending] = timestamp;
+        mNextPending = (mNextPending + 1) % mPendingResults.length;
+    }
+
+    /**
+     * Locks the complete frame whose timestamp is closest to the given one, together with up to
+     * {@code pre} earlier and {@code post} later frames. Locked frames must be handed back with
+     * {@link #release}.
+     *
+     * @return the locked frames in timestamp order, empty if no complete frame is buffered.
+     */
+    public synchronized List<Frame> lockClosest(long timestamp, int pre, int post) {
+        List<Frame> ready = new ArrayList<>(mFrames.length);
+        for (Frame frame : mFrames) {
+            if (!frame.mLocked && frame.mTimestamp >= 0 && frame.mResult != null) {
+                int k = ready.size();
+                while (k > 0 && ready.get(k - 1).mTimestamp > frame.mTimestamp) {
+                    k--;
+                }
+                ready.add(k, frame);
+            }
+        }
+
+        List<Frame> locked = new ArrayList<>();
+        if (ready.isEmpty()) {
+            return locked;
+        }
+        int best = 0;
+        for (int i = 1; i < ready.size(); i++) {
+            if (Math.abs(ready.get(i).mTimestamp - timestamp)
+                    < Math.abs(ready.get(best).mTimestamp - timestamp)) {
+                best = i;
+            }
+        }
+        int from = Math.max(0, best - pre);
+        int to = Math.min(ready.size() - 1, best + post);
+        for (int i = from; i <= to; i++) {
+            Frame frame = ready.get(i);
+            frame.mLocked = true;
+            locked.add(frame);
+        }
+        return locked;
+    }
+
+    public synchronized void release(Frame frame) {
+        frame.mLocked = false;
+    }
+
+    /**
+     * Forgets all buffered frames that are not locked, e.g. after the exposure changed.
+     */
+    public synchronized void clear() {
+        for (Frame frame : mFrames) {
+            if (!frame.mLocked) {
+                frame.mTimestamp = -1;
+                frame.mResult = null;
+            }
+        }
+        clearPending();
+    }
+
+    private void clearPending() {
+        for (int i = 0; i < mPendingResults.length; i++) {
+            mPendingResults[i] = null;
+            mPendingTimestamps[i] = -1;
+        }
+    }
+}
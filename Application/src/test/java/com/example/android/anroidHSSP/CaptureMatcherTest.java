@@ -0,0 +1,84 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CaptureMatcherTest {
+
+    private CaptureMatcher<String> mMatcher;
+
+    @Before
+    public void setUp() {
+        mMatcher = new CaptureMatcher<>();
+        mMatcher.add(1, "one");
+        mMatcher.add(2, "two");
+        mMatcher.add(3, "three");
+    }
+
+    @Test
+    public void matchesImagesByTimestamp() {
+        mMatcher.setTimestamp(1, 100);
+        mMatcher.setTimestamp(2, 200);
+        mMatcher.setTimestamp(3, 300);
+        assertEquals(3, mMatcher.matchImage(300));
+        assertEquals(1, mMatcher.matchImage(100));
+        assertEquals(2, mMatcher.matchImage(200));
+        assertEquals("3 by timestamp, 0 by order, 3 pending", mMatcher.getStats());
+    }
+
+    @Test
+    public void matchesImagesWithoutTimestampsInSubmissionOrder() {
+        assertEquals(1, mMatcher.matchImage(500));
+        assertEquals(2, mMatcher.matchImage(400));
+        assertEquals(3, mMatcher.matchImage(600));
+        assertEquals(CaptureMatcher.NO_MATCH, mMatcher.matchImage(700));
+        assertEquals("0 by timestamp, 3 by order, 3 pending", mMatcher.getStats());
+    }
+
+    @Test
+    public void skipsRequestsWhoseTimestampIsKnownWhenMatchingByOrder() {
+        // The image of request 1 has not arrived, but its timestamp says this one is not it.
+        mMatcher.setTimestamp(1, 100);
+        assertEquals(2, mMatcher.matchImage(200));
+        assertEquals(1, mMatcher.matchImage(100));
+    }
+
+    @Test
+    public void neverMatchesARequestTwice() {
+        mMatcher.setTimestamp(1, 100);
+        assertEquals(1, mMatcher.matchImage(100));
+        // A second image with the same timestamp goes to the oldest request still waiting.
+        assertEquals(2, mMatcher.matchImage(100));
+    }
+
+    @Test
+    public void removedRequestsAreNotMatched() {
+        assertEquals("one", mMatcher.remove(1));
+        assertNull(mMatcher.remove(1));
+        assertEquals(2, mMatcher.matchImage(100));
+        assertNull(mMatcher.get(1));
+        assertEquals("two", mMatcher.get(2));
+        assertEquals(2, mMatcher.size());
+    }
+
+    @Test
+    public void removesTheOldestRequestWaitingForItsImage() {
+        assertEquals(1, mMatcher.matchImage(100));
+        assertEquals("two", mMatcher.removeOldestWaiting());
+        assertEquals(3, mMatcher.matchImage(200));
+        assertNull(mMatcher.removeOldestWaiting());
+        assertEquals("one", mMatcher.get(1));
+    }
+
+    @Test
+    public void timestampsOfUnknownRequestsAreIgnored() {
+        mMatcher.setTimestamp(9, 100);
+        assertEquals(1, mMatcher.matchImage(100));
+        mMatcher.clear();
+        assertEquals(0, mMatcher.size());
+        assertEquals(CaptureMatcher.NO_MATCH, mMatcher.matchImage(200));
+    }
+}
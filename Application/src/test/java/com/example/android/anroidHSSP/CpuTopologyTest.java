@@ -0,0 +1,131 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads topologies from fake sysfs trees.
+ */
+public class CpuTopologyTest {
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = Files.createTempDirectory("cpu").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    @Test
+    public void parsesCpuLists() {
+        assertArrayEquals(new int[]{0, 1, 2, 3}, CpuTopology.parseCpuList("0-3\n"));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 6, 8, 9}, CpuTopology.parseCpuList("0-3,6,8-9"));
+        assertArrayEquals(new int[]{5}, CpuTopology.parseCpuList(" 5 "));
+        assertNull(CpuTopology.parseCpuList(""));
+        assertNull(CpuTopology.parseCpuList(null));
+        assertNull(CpuTopology.parseCpuList("0-x"));
+    }
+
+    @Test
+    public void splitsCoresByCapacity() throws IOException {
+        // A 4 + 3 + 1 phone: LITTLE, big and prime cores.
+        write("online", "0-7");
+        for (int cpu = 0; cpu < 8; cpu++) {
+            write("cpu" + cpu + "/cpu_capacity", cpu < 4 ? "325" : cpu < 7 ? "870" : "1024");
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "1800000");
+        }
+        CpuTopology topology = new CpuTopology(mRoot);
+        assertEquals(8, topology.getCoreCount());
+        assertTrue(topology.isHeterogeneous());
+        assertEquals(Arrays.asList(4, 5, 6, 7), topology.getPerformanceCpus());
+        assertEquals(Arrays.asList(0, 1, 2, 3), topology.getEfficiencyCpus());
+        assertEquals(4, topology.getInterpreterThreads());
+        assertEquals(4, topology.getLatencyThreads());
+        assertEquals(4, topology.getBackgroundThreads());
+    }
+
+    @Test
+    public void fallsBackToFrequencyWithoutCapacity() throws IOException {
+        write("online", "0-5");
+        for (int cpu = 0; cpu < 6; cpu++) {
+            write("cpu" + cpu + "/cpufreq/cpuinfo_max_freq", cpu < 4 ? "1000000" : "2400000");
+        }
+        // One core without a capacity means capacities are not used at all.
+        write("cpu4/cpu_capacity", "1024");
+        CpuTopology topology = new CpuTopology(mRoot);
+        assertEquals(Arrays.asList(4, 5), topology.getPerformanceCpus());
+        assertEquals(Arrays.asList(0, 1, 2, 3), topology.getEfficiencyCpus());
+        assertEquals(2, topology.getInterpreterThreads());
+        assertEquals(4, topology.getBackgroundThreads());
+    }
+
+    @Test
+    public void skipsOfflineCores() throws IOException {
+        write("online", "0-1,4");
+        write("cpu0/cpu_capacity", "400");
+        write("cpu1/cpu_capacity", "400");
+        write("cpu2/cpu_capacity", "1024");
+        write("cpu4/cpu_capacity", "1024");
+        CpuTopology topology = new CpuTopology(mRoot);
+        assertEquals(3, topology.getCoreCount());
+        assertEquals(Arrays.asList(4), topology.getPerformanceCpus());
+        assertEquals(Arrays.asList(0, 1), topology.getEfficiencyCpus());
+    }
+
+    @Test
+    public void treatsUnreadableCoresAsHomogeneous() throws IOException {
+        write("online", "0-7");
+        CpuTopology topology = new CpuTopology(mRoot);
+        assertFalse(topology.isHeterogeneous());
+        assertEquals(8, topology.getPerformanceCpus().size());
+        assertEquals(CpuTopology.MAX_INTERPRETER_THREADS, topology.getInterpreterThreads());
+        assertEquals(8, topology.getLatencyThreads());
+        assertEquals(2, topology.getBackgroundThreads());
+    }
+
+    @Test
+    public void countsProcessorsWithoutSysfs() {
+        CpuTopology topology = new CpuTopology(new File(mRoot, "missing"));
+        assertEquals(Runtime.getRuntime().availableProcessors(), topology.getCoreCount());
+        assertFalse(topology.isHeterogeneous());
+        assertTrue(topology.getBackgroundThreads() >= 1);
+    }
+
+    private void write(String path, String value) throws IOException {
+        File file = new File(mRoot, path);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(value + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
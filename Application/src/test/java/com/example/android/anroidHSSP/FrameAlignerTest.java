@@ -0,0 +1,119 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.example.android.anroidHSSP.TexturedFrames.sample;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Aligns synthetic frames that are exact shifts of one random texture, so every tile, including
+ * the ones along the frame borders, has a single right answer.
+ */
+public class FrameAlignerTest {
+
+    private ExecutorService mExecutor;
+    private FrameAligner mAligner;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(3);
+        mAligner = new FrameAligner(mExecutor, 4);
+        mAligner.setBayerPattern("RGGB");
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void recoversQuadShiftOnEveryTile() {
+        assertUniformOffset(512, 384, 6, -4);
+    }
+
+    @Test
+    public void recoversShiftTowardsEveryBorder() {
+        assertUniformOffset(512, 384, -8, 6);
+        assertUniformOffset(512, 384, 4, 8);
+        assertUniformOffset(512, 384, -2, -10);
+    }
+
+    @Test
+    public void recoversShiftWhenTheFrameIsNotAMultipleOfTheTileSize() {
+        assertUniformOffset(520, 398, 6, -4);
+    }
+
+    @Test
+    public void keepsUnshiftedFramesInPlace() {
+        assertUniformOffset(512, 384, 0, 0);
+    }
+
+    @Test
+    public void alignsBrighterFrameFromAPaddedPlane() {
+        int width = 256;
+        int height = 192;
+        TexturedFrames frames = new TexturedFrames(width, height, 3);
+        mAligner.setReference(frames.crop(0, 0), width, height);
+        int rowStride = width * 2 + 24;
+        ByteBuffer plane = ByteBuffer.wrap(TexturedFrames.brighter(frames.crop(-4, 2), width,
+                height, 4, rowStride));
+        int[] offsets = new int[mAligner.getTilesX() * mAligner.getTilesY() * 2];
+        mAligner.align(plane, rowStride, 0.25f, offsets);
+        for (int i = 0; i < offsets.length; i += 2) {
+            assertEquals(4, offsets[i]);
+            assertEquals(-2, offsets[i + 1]);
+        }
+    }
+
+    @Test
+    public void accumulatesAlignedFrameOntoTheReference() {
+        int width = 256;
+        int height = 192;
+        TexturedFrames frames = new TexturedFrames(width, height, 7);
+        byte[] reference = frames.crop(0, 0);
+        byte[] shifted = frames.crop(6, -4);
+        mAligner.setReference(reference, width, height);
+        int[] offsets = mAligner.align(shifted);
+
+        float[] accumulator = new float[width * height];
+        mAligner.accumulate(shifted, offsets, accumulator);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sx = x + offsets[0];
+                int sy = y + offsets[1];
+                if (sx < 0 || sx >= width || sy < 0 || sy >= height) {
+                    // Sources outside the frame are taken unshifted.
+                    assertEquals(sample(shifted, y * width + x), accumulator[y * width + x], 0);
+                } else {
+                    assertEquals(sample(reference, y * width + x), accumulator[y * width + x], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Aligns a frame whose content is moved by ({@code shiftX}, {@code shiftY}) Bayer pixels and
+     * checks that every tile gets the opposite offset.
+     */
+    private void assertUniformOffset(int width, int height, int shiftX, int shiftY) {
+        TexturedFrames frames = new TexturedFrames(width, height,
+                width * 31 + shiftX * 7 + shiftY);
+        mAligner.setReference(frames.crop(0, 0), width, height);
+        int[] offsets = mAligner.align(frames.crop(shiftX, shiftY));
+        assertEquals(mAligner.getTilesX() * mAligner.getTilesY() * 2, offsets.length);
+        for (int ty = 0; ty < mAligner.getTilesY(); ty++) {
+            for (int tx = 0; tx < mAligner.getTilesX(); tx++) {
+                int i = (ty * mAligner.getTilesX() + tx) * 2;
+                String tile = "tile (" + tx + ", " + ty + ")";
+                assertEquals(tile, -shiftX, offsets[i]);
+                assertEquals(tile, -shiftY, offsets[i + 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.example.android.anroidHSSP.TexturedFrames.put;
+import static com.example.android.anroidHSSP.TexturedFrames.sample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HdrMergerTest {
+
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+
+    @Test
+    public void mergesEqualExposuresIntoTheSameFrame() {
+        byte[] frame = new TexturedFrames(WIDTH, HEIGHT, 1).crop(0, 0);
+        HdrMerger merger = new HdrMerger(WIDTH, HEIGHT, 2, 100);
+        merger.add(ByteBuffer.wrap(frame), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        merger.add(ByteBuffer.wrap(frame), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        byte[] merged = new byte[WIDTH * HEIGHT * 2];
+        merger.finish(merged, null);
+        assertEquals(2, merger.getAddedFrames());
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(sample(frame, i), sample(merged, i), 1);
+        }
+    }
+
+    @Test
+    public void weightsFramesByInverseNoiseVariance() {
+        // A short exposure and one four times as long that disagree by a constant, so the merge
+        // shows each frame's weight. The right half of the long frame is clipped.
+        double scale = 1e-3;
+        double offset = 1e-5;
+        byte[] shortFrame = new byte[WIDTH * HEIGHT * 2];
+        byte[] longFrame = new byte[WIDTH * HEIGHT * 2];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int level = (i % WIDTH < WIDTH / 2) ? 40 : 400;
+            put(shortFrame, i, BayerKernel.BLACK_LEVEL + level + 8);
+            put(longFrame, i, BayerKernel.BLACK_LEVEL + level * 4);
+        }
+        HdrMerger merger = new HdrMerger(WIDTH, HEIGHT, 2, 100);
+        merger.add(ByteBuffer.wrap(shortFrame), WIDTH * 2, 100, scale, offset, null);
+        merger.add(ByteBuffer.wrap(longFrame), WIDTH * 2, 400, scale, offset, null);
+        byte[] merged = new byte[WIDTH * HEIGHT * 2];
+        merger.finish(merged, null);
+
+        // In the shadows, each frame weighs e^2 / (S x + O), and the long one counts for more.
+        double range = BayerKernel.WHITE_LEVEL - BayerKernel.BLACK_LEVEL;
+        double shortLevel = 48 / range;
+        double longLevel = 160 / range;
+        double shortWeight = 1 / (scale * shortLevel + offset);
+        double longWeight = 16 / (scale * longLevel + offset);
+        double expected = BayerKernel.BLACK_LEVEL + range
+                * (shortWeight * shortLevel + longWeight * longLevel / 4)
+                / (shortWeight + longWeight);
+        assertEquals(expected, sample(merged, 0), 1);
+        assertTrue(sample(merged, 0) < BayerKernel.BLACK_LEVEL + 44);
+        // Where the long frame is clipped, only the short one counts.
+        assertEquals(BayerKernel.BLACK_LEVEL + 408, sample(merged, WIDTH - 1), 1);
+    }
+
+    @Test
+    public void reusesTheAccumulatorForTheNextBracket() {
+        byte[] first = new TexturedFrames(WIDTH, HEIGHT, 6).crop(0, 0);
+        byte[] second = new TexturedFrames(WIDTH, HEIGHT, 7).crop(0, 0);
+        HdrMerger merger = new HdrMerger(WIDTH, HEIGHT, 1, 100);
+        merger.add(ByteBuffer.wrap(first), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        try {
+            merger.start(1, 100);
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected: the first bracket is not finished.
+        }
+        byte[] merged = new byte[WIDTH * HEIGHT * 2];
+        merger.finish(merged, null);
+        assertTrue(merger.isIdle());
+
+        // Nothing of the first bracket is left in the second.
+        merger.start(1, 100);
+        merger.add(ByteBuffer.wrap(second), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        merger.finish(merged, null);
+        assertEquals(1, merger.getAddedFrames());
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(sample(second, i), sample(merged, i), 1);
+        }
+    }
+
+    @Test
+    public void alignsShiftedFramesOntoTheFirst() {
+        TexturedFrames frames = new TexturedFrames(WIDTH, HEIGHT, 2);
+        byte[] reference = frames.crop(0, 0);
+        byte[] shifted = frames.crop(6, -4);
+        HdrMerger merger = new HdrMerger(WIDTH, HEIGHT, 2, 100);
+        FrameAligner aligner = new FrameAligner(null, 1);
+        aligner.setBayerPattern("RGGB");
+        merger.setAligner(aligner);
+        merger.add(ByteBuffer.wrap(reference), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        // Twice the exposure, so the shifted frame dominates the merge.
+        merger.add(ByteBuffer.wrap(TexturedFrames.brighter(shifted, WIDTH, HEIGHT, 2, WIDTH * 2)),
+                WIDTH * 2, 200, 1e-4, 1e-6, null);
+        byte[] merged = new byte[WIDTH * HEIGHT * 2];
+        merger.finish(merged, null);
+        // Rows and columns whose shifted source is inside the frame.
+        for (int y = 0; y < HEIGHT - 4; y++) {
+            for (int x = 6; x < WIDTH; x++) {
+                assertEquals("(" + x + ", " + y + ")", sample(reference, y * WIDTH + x),
+                        sample(merged, y * WIDTH + x), 1);
+            }
+        }
+    }
+
+    @Test
+    public void measuresTheMergedFrameBeforePacking() {
+        // As a non-deferred HDR shot does: finish into the model's buffer, then measure it.
+        TexturedFrames frames = new TexturedFrames(WIDTH, HEIGHT, 3);
+        byte[] first = TexturedFrames.noisy(frames.crop(0, 0), 20, 4);
+        byte[] second = TexturedFrames.noisy(frames.crop(0, 0), 20, 5);
+        HdrMerger merger = new HdrMerger(WIDTH, HEIGHT, 2, 100);
+        merger.add(ByteBuffer.wrap(first), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        merger.add(ByteBuffer.wrap(second), WIDTH * 2, 100, 1e-4, 1e-6, null);
+        byte[] merged = new byte[WIDTH * HEIGHT * 2];
+        merger.finish(merged, null);
+
+        ExposureAnalyzer analyzer = new ExposureAnalyzer(0.5f, 0.18f, 300);
+        float single = analyzer.analyze(ByteBuffer.wrap(first), WIDTH, HEIGHT, WIDTH * 2, null);
+        float rate = analyzer.analyze(ByteBuffer.wrap(merged), WIDTH, HEIGHT, WIDTH * 2, null);
+        assertTrue(rate != ExposureAnalyzer.NO_GAIN);
+        assertEquals(single, rate, single * 0.1);
+        // Averaging two frames leaves less of their own noise.
+        assertTrue(NoiseEstimator.estimate(ByteBuffer.wrap(merged), WIDTH, HEIGHT, WIDTH * 2,
+                null) < NoiseEstimator.estimate(ByteBuffer.wrap(first), WIDTH, HEIGHT,
+                WIDTH * 2, null));
+    }
+}
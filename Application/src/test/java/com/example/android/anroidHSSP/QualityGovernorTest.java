@@ -0,0 +1,144 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Drives the governor with a simulated clock and latency feed.
+ */
+public class QualityGovernorTest {
+
+    private static final long BUDGET_MS = 1000;
+
+    private QualityGovernor mGovernor;
+    private final List<QualityGovernor.Tier> mChanges = new ArrayList<>();
+    private long mNowMs = 100000;
+
+    @Before
+    public void setUp() {
+        mGovernor = new QualityGovernor(4, BUDGET_MS);
+        mGovernor.setListener(new QualityGovernor.Listener() {
+            @Override
+            public void onTierChanged(QualityGovernor.Tier tier, String reason) {
+                mChanges.add(tier);
+            }
+        });
+    }
+
+    @Test
+    public void startsAtTheFullTier() {
+        QualityGovernor.Tier tier = mGovernor.getTier();
+        assertEquals(mGovernor.getTierCount() - 1, tier.level);
+        assertEquals(4, tier.interpreterThreads);
+        assertFalse(tier.allowFp16);
+        assertEquals(1, tier.resolutionScale);
+    }
+
+    @Test
+    public void stepsDownAfterConsecutiveSlowShots() {
+        shot(1500);
+        assertEquals(3, level());
+        shot(1500);
+        assertEquals(2, level());
+        assertEquals(1, mChanges.size());
+        assertEquals(2, mChanges.get(0).interpreterThreads);
+    }
+
+    @Test
+    public void aFastShotInBetweenResetsTheCount() {
+        shot(1500);
+        // Averages down to 850 ms: within the budget, but not fast enough to count as recovery.
+        shot(200);
+        shot(1500);
+        assertEquals(3, level());
+    }
+
+    @Test
+    public void neverStepsBelowTheLowestTier() {
+        for (int i = 0; i < 20; i++) {
+            shot(5000);
+        }
+        assertEquals(0, level());
+        assertEquals(2, mGovernor.getTier().resolutionScale);
+        assertEquals(3, mChanges.size());
+    }
+
+    @Test
+    public void stepsUpOnlyAfterFastShotsAndTheCooldown() {
+        shot(1500);
+        shot(1500);
+        assertEquals(2, level());
+        for (int i = 0; i < QualityGovernor.STEP_UP_SAMPLES; i++) {
+            shot(100);
+        }
+        // Fast enough, but too soon after the step down.
+        assertEquals(2, level());
+        mNowMs += QualityGovernor.STEP_UP_COOLDOWN_MS;
+        shot(100);
+        assertEquals(3, level());
+    }
+
+    @Test
+    public void thermalStatusCapsTheTierImmediately() {
+        mGovernor.onThermalStatus(QualityGovernor.THERMAL_SEVERE, mNowMs);
+        assertEquals(1, level());
+        mGovernor.onThermalStatus(QualityGovernor.THERMAL_CRITICAL, mNowMs);
+        assertEquals(0, level());
+        assertEquals(2, mChanges.size());
+
+        // Cooling down lifts the cap, but only latency steps the tier back up.
+        mGovernor.onThermalStatus(QualityGovernor.THERMAL_NONE, mNowMs);
+        assertEquals(0, level());
+        mNowMs += QualityGovernor.STEP_UP_COOLDOWN_MS;
+        for (int i = 0; i < QualityGovernor.STEP_UP_SAMPLES; i++) {
+            shot(100);
+        }
+        assertEquals(1, level());
+    }
+
+    @Test
+    public void capsStepUpsUnderModerateThermalStatus() {
+        mGovernor.onThermalStatus(QualityGovernor.THERMAL_MODERATE, mNowMs);
+        assertEquals(2, level());
+        for (int i = 0; i < 10; i++) {
+            mNowMs += QualityGovernor.STEP_UP_COOLDOWN_MS;
+            shot(100);
+        }
+        assertEquals(2, level());
+    }
+
+    @Test
+    public void lowBatteryCapsTheTierUnlessCharging() {
+        mGovernor.onBatteryState(50, false, mNowMs);
+        assertEquals(3, level());
+        mGovernor.onBatteryState(QualityGovernor.LOW_BATTERY_PERCENT, true, mNowMs);
+        assertEquals(3, level());
+        mGovernor.onBatteryState(QualityGovernor.LOW_BATTERY_PERCENT, false, mNowMs);
+        assertEquals(2, level());
+        assertEquals(1, mChanges.size());
+    }
+
+    @Test
+    public void smoothsLatency() {
+        shot(1000);
+        assertEquals(1000, mGovernor.getAverageLatencyMs(), 0);
+        shot(2000);
+        assertEquals(1000 + (2000 - 1000) * QualityGovernor.LATENCY_SMOOTHING,
+                mGovernor.getAverageLatencyMs(), 1e-3);
+    }
+
+    private void shot(long latencyMs) {
+        mNowMs += latencyMs;
+        mGovernor.onLatency(latencyMs, mNowMs);
+    }
+
+    private int level() {
+        return mGovernor.getTier().level;
+    }
+}
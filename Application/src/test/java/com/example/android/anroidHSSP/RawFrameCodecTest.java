@@ -0,0 +1,85 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RawFrameCodecTest {
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void roundTripsFullSizeSensorFrame() {
+        int width = 4000;
+        int height = 3000;
+        Random random = new Random(3);
+        byte[] raw = new byte[width * height * 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = (int) (BayerKernel.BLACK_LEVEL + 80
+                        + 60 * Math.sin(x * 0.01) * Math.cos(y * 0.013)
+                        + random.nextGaussian() * 6 + ((x & 1) == 0 ? 20 : 0));
+                if (random.nextInt(100000) == 0) {
+                    value = 0xFFFF;
+                }
+                set(raw, y * width + x, Math.max(0, Math.min(0xFFFF, value)));
+            }
+        }
+        RawFrameCodec codec = new RawFrameCodec(mExecutor);
+        RawFrameCodec.Compressed frame = codec.encode(raw, width, height);
+        assertEquals(width, frame.getWidth());
+        assertEquals(height, frame.getHeight());
+        assertTrue("ratio " + frame.getCompressionRatio(), frame.getCompressionRatio() > 2);
+        assertArrayEquals(raw, codec.decode(frame, new byte[raw.length]));
+    }
+
+    @Test
+    public void roundTripsRandomSamplesOfAnyValue() {
+        int width = 37;
+        int height = 11;
+        Random random = new Random(5);
+        byte[] raw = new byte[width * height * 2];
+        random.nextBytes(raw);
+        RawFrameCodec codec = new RawFrameCodec(mExecutor);
+        codec.setBandHeight(4);
+        assertArrayEquals(raw, codec.decode(codec.encode(raw, width, height),
+                new byte[raw.length]));
+    }
+
+    @Test
+    public void codesOnTheCallingThreadWithoutAnExecutor() {
+        int width = 64;
+        int height = 130;
+        Random random = new Random(7);
+        byte[] raw = new byte[width * height * 2];
+        for (int i = 0; i < width * height; i++) {
+            set(raw, i, random.nextInt(BayerKernel.WHITE_LEVEL));
+        }
+        RawFrameCodec codec = new RawFrameCodec(null);
+        assertArrayEquals(raw, codec.decode(codec.encode(raw, width, height),
+                new byte[raw.length]));
+    }
+
+    private static void set(byte[] raw, int index, int value) {
+        raw[index * 2] = (byte) value;
+        raw[index * 2 + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScalarBayerKernelTest {
+
+    /** R, G1, B, G2 of an RGGB frame. */
+    private static final int[][] RGGB = {{0, 0}, {0, 1}, {1, 0}, {1, 1}};
+    /** R, G1, B, G2 of a BGGR frame. */
+    private static final int[][] BGGR = {{1, 1}, {0, 1}, {0, 0}, {1, 0}};
+
+    private final BayerKernel mKernel = new ScalarBayerKernel();
+
+    @Test
+    public void deinterleavesQuadsIntoChannels() {
+        // One quad of 2x2 samples, each a different level.
+        byte[] raw = frame(100, 200, 300, 400);
+        float[] tensor = new float[4];
+        short[] linear = new short[4];
+        mKernel.pack(raw, 0, 2, RGGB, 1, tensor, linear, 1, 1);
+        assertArrayEquals(new short[]{36, 136, 236, 336}, linear);
+        mKernel.pack(raw, 0, 2, BGGR, 1, tensor, linear, 1, 1);
+        assertArrayEquals(new short[]{336, 136, 36, 236}, linear);
+    }
+
+    @Test
+    public void scalesClampsAndAppliesGamma() {
+        byte[] raw = frame(BayerKernel.BLACK_LEVEL, 0, BayerKernel.WHITE_LEVEL, 544);
+        float[] tensor = new float[4];
+        short[] linear = new short[4];
+        mKernel.pack(raw, 0, 2, RGGB, 1, tensor, linear, 1, 1);
+        assertEquals(0, tensor[0], 0);
+        assertEquals(0, tensor[1], 0);
+        assertEquals(0, linear[1]);
+        assertEquals(1, tensor[2], 1e-6);
+        assertEquals(Math.pow(0.5, 1 / BayerKernel.GAMMA), tensor[3], 1e-6);
+
+        // Amplified past the white level, the sample clips.
+        mKernel.pack(raw, 0, 2, RGGB, 2, tensor, null, 1, 1);
+        assertEquals(1, tensor[3], 0);
+    }
+
+    @Test
+    public void unpackInvertsPack() {
+        int width = 6;
+        int height = 4;
+        byte[] raw = new byte[width * 2 * height * 2 * 2];
+        for (int i = 0; i < raw.length; i += 2) {
+            int v = BayerKernel.BLACK_LEVEL + (i * 37) % (BayerKernel.WHITE_LEVEL
+                    - BayerKernel.BLACK_LEVEL);
+            raw[i] = (byte) v;
+            raw[i + 1] = (byte) (v >> 8);
+        }
+        float[] tensor = new float[width * height * 4];
+        mKernel.pack(raw, 0, width * 2, BGGR, 1, tensor, null, height, width);
+        byte[] unpacked = new byte[raw.length];
+        mKernel.unpack(tensor, height, width, unpacked, 0, width * 2, BGGR);
+        for (int i = 0; i < raw.length; i += 2) {
+            int expected = (raw[i] & 0xFF) | ((raw[i + 1] & 0xFF) << 8);
+            int actual = (unpacked[i] & 0xFF) | ((unpacked[i + 1] & 0xFF) << 8);
+            assertEquals(expected, actual, BayerKernel.UNPACK_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void unpackWritesOnlyTheBlock() {
+        // A 1x1-quad block at quad (1, 1) of a 3x3-quad frame.
+        int rawWidth = 6;
+        byte[] raw = new byte[rawWidth * 6 * 2];
+        Arrays.fill(raw, (byte) 7);
+        byte[] before = raw.clone();
+        int offset = (2 * rawWidth + 2) * 2;
+        mKernel.unpack(new float[]{1, 1, 1, 1}, 1, 1, raw, offset, rawWidth, RGGB);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < rawWidth; x++) {
+                int i = (y * rawWidth + x) * 2;
+                int value = (raw[i] & 0xFF) | ((raw[i + 1] & 0xFF) << 8);
+                if (y >= 2 && y < 4 && x >= 2 && x < 4) {
+                    assertEquals(BayerKernel.WHITE_LEVEL, value);
+                } else {
+                    assertEquals((before[i] & 0xFF) | ((before[i + 1] & 0xFF) << 8), value);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesItself() {
+        assertTrue(BayerKernels.matches(mKernel, new ScalarBayerKernel()));
+    }
+
+    /**
+     * @return the samples, little-endian.
+     */
+    private static byte[] frame(int... samples) {
+        byte[] raw = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            raw[i * 2] = (byte) samples[i];
+            raw[i * 2 + 1] = (byte) (samples[i] >> 8);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the simulated camera on a fast timing model and checks the events of every request.
+ */
+public class SimulatedCameraSourceTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 24;
+    private static final long FRAME_NS = 2000000;
+    private static final long EXPOSURE_NS = 1000000;
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Records events; frames are closed at once unless {@link #mHoldFrames} is set. */
+    private class Recorder implements CameraSource.Callback {
+        final Map<Integer, Long> started = new HashMap<>();
+        final Map<Integer, CameraSource.Result> results = new HashMap<>();
+        final List<Integer> failed = new ArrayList<>();
+        final List<Integer> lost = new ArrayList<>();
+        final List<CameraSource.Frame> frames = new ArrayList<>();
+        final List<byte[]> images = new ArrayList<>();
+
+        @Override
+        public synchronized void onCaptureStarted(int tag, long timestamp) {
+            started.put(tag, timestamp);
+        }
+
+        @Override
+        public synchronized void onCaptureCompleted(CameraSource.Result result) {
+            results.put(result.tag, result);
+        }
+
+        @Override
+        public synchronized void onCaptureFailed(int tag) {
+            failed.add(tag);
+        }
+
+        @Override
+        public synchronized void onCaptureBufferLost(int tag) {
+            lost.add(tag);
+        }
+
+        @Override
+        public synchronized void onImageAvailable(CameraSource.Frame frame) {
+            ByteBuffer data = frame.getData();
+            byte[] image = new byte[data.remaining()];
+            data.get(image);
+            images.add(image);
+            frames.add(frame);
+            if (!mHoldFrames) {
+                frame.close();
+            }
+        }
+
+        /** Every request has ended: with a failure, or with a result and an image or loss. */
+        synchronized boolean isDone(int requests) {
+            return failed.size() + results.size() == requests
+                    && frames.size() + lost.size() == results.size();
+        }
+    }
+
+    private SimulatedCameraSource.Config mConfig;
+    private Recorder mRecorder;
+    private SimulatedCameraSource mCamera;
+    private volatile boolean mHoldFrames;
+
+    @Before
+    public void setUp() {
+        mConfig = new SimulatedCameraSource.Config();
+        mConfig.minFrameDurationNs = FRAME_NS;
+        mConfig.frameJitterNs = 0;
+        mConfig.readoutNs = 1000000;
+        mConfig.resultDelayNs = 1000000;
+        mConfig.resultJitterNs = 0;
+        mRecorder = new Recorder();
+    }
+
+    @After
+    public void tearDown() {
+        if (mCamera != null) {
+            mCamera.close();
+        }
+    }
+
+    @Test
+    public void deliversAResultAndAnImagePerRequest() throws InterruptedException {
+        start(8);
+        burst(0, 6);
+        await(6);
+        assertTrue(mRecorder.failed.isEmpty());
+        assertTrue(mRecorder.lost.isEmpty());
+        assertEquals(6, mRecorder.results.size());
+        assertEquals(6, mRecorder.frames.size());
+        long previous = -1;
+        for (int tag = 0; tag < 6; tag++) {
+            CameraSource.Result result = mRecorder.results.get(tag);
+            assertEquals(tag, result.frameNumber);
+            assertEquals(800, result.sensitivity);
+            assertEquals(EXPOSURE_NS, result.exposureTime);
+            assertEquals((long) mRecorder.started.get(tag), result.timestamp);
+            assertEquals(result.timestamp, mRecorder.frames.get(tag).getTimestamp());
+            // Exposed back to back in submission order, one frame duration apart at least.
+            if (previous >= 0) {
+                assertTrue(result.timestamp - previous >= FRAME_NS);
+            }
+            previous = result.timestamp;
+        }
+    }
+
+    @Test
+    public void deliversTheProvidersFrames() throws InterruptedException {
+        start(8);
+        burst(0, 3);
+        await(3);
+        for (int i = 0; i < 3; i++) {
+            CameraSource.Frame frame = mRecorder.frames.get(i);
+            assertEquals(WIDTH, frame.getWidth());
+            assertEquals(HEIGHT, frame.getHeight());
+            // Two synthetic frames, cycled through.
+            assertArrayEquals(SimulatedCameraSource.syntheticFrame(WIDTH, HEIGHT, i % 2),
+                    mRecorder.images.get(i));
+        }
+    }
+
+    @Test
+    public void losesImagesWhileEveryBufferIsHeld() throws InterruptedException {
+        mHoldFrames = true;
+        start(2);
+        burst(0, 5);
+        await(5);
+        assertEquals(2, mRecorder.frames.size());
+        assertEquals(Arrays.asList(2, 3, 4), mRecorder.lost);
+
+        // Closing a frame returns its buffer to the camera.
+        mHoldFrames = false;
+        mRecorder.frames.get(0).close();
+        burst(5, 1);
+        await(6);
+        assertEquals(3, mRecorder.frames.size());
+        assertEquals(3, mRecorder.lost.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedFramesHaveNoData() throws InterruptedException {
+        start(1);
+        burst(0, 1);
+        await(1);
+        mRecorder.frames.get(0).getData();
+    }
+
+    @Test
+    public void failsRequestsAtTheFailureRate() throws InterruptedException {
+        mConfig.failureRate = 1;
+        start(4);
+        burst(0, 4);
+        await(4);
+        assertEquals(Arrays.asList(0, 1, 2, 3), mRecorder.failed);
+        assertTrue(mRecorder.results.isEmpty());
+        assertTrue(mRecorder.frames.isEmpty());
+        assertTrue(mRecorder.lost.isEmpty());
+    }
+
+    @Test
+    public void syntheticFramesAreRepeatable() {
+        byte[] frame = SimulatedCameraSource.syntheticFrame(64, 48, 7);
+        assertArrayEquals(frame, SimulatedCameraSource.syntheticFrame(64, 48, 7));
+        assertFalse(Arrays.equals(frame, SimulatedCameraSource.syntheticFrame(64, 48, 8)));
+
+        long sum = 0;
+        for (int i = 0; i < frame.length; i += 2) {
+            int value = (frame[i] & 0xff) | (frame[i + 1] & 0xff) << 8;
+            assertTrue(value >= 0 && value <= 1023);
+            sum += value;
+        }
+        // A dim scene just above the black level.
+        float mean = sum / (frame.length / 2f);
+        assertTrue(mean > 64 && mean < 128);
+    }
+
+    private void start(int buffers) {
+        mConfig.bufferCount = buffers;
+        mCamera = new SimulatedCameraSource(mConfig,
+                SimulatedCameraSource.synthetic(WIDTH, HEIGHT, 2));
+        mCamera.setCallback(mRecorder);
+    }
+
+    private void burst(int first, int count) {
+        int[] tags = new int[count];
+        int[] sensitivities = new int[count];
+        long[] exposureTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            tags[i] = first + i;
+        }
+        Arrays.fill(sensitivities, 800);
+        Arrays.fill(exposureTimes, EXPOSURE_NS);
+        mCamera.captureBurst(tags, sensitivities, exposureTimes);
+    }
+
+    private void await(int requests) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mRecorder.isDone(requests)) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Requests did not finish");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.anroidHSSP;
+
+import java.util.Random;
+
+/**
+ * Synthetic RAW_SENSOR frames cut out of one random texture, so that frames shifted by a known
+ * amount, or taken at another exposure, have a single right answer.
+ * <p/>
+ * The texture is smooth random shapes with some fine grain on top, {@link #MARGIN} pixels larger
+ * than the frame on every side. Pure noise would be useless to the coarse pyramid levels of
+ * {@link FrameAligner}.
+ */
+class TexturedFrames {
+
+    /** How far, in pixels, frames can be shifted in any direction. */
+    static final int MARGIN = 32;
+
+    private static final int CELL = 12;
+    private static final float AMPLITUDE = 800;
+    private static final int GRAIN = 64;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mTexture;
+
+    TexturedFrames(int width, int height, long seed) {
+        mWidth = width;
+        mHeight = height;
+        Random random = new Random(seed);
+        int stride = width + 2 * MARGIN;
+        int rows = height + 2 * MARGIN;
+        int gridWidth = stride / CELL + 2;
+        float[] grid = new float[gridWidth * (rows / CELL + 2)];
+        for (int i = 0; i < grid.length; i++) {
+            grid[i] = random.nextFloat() * AMPLITUDE;
+        }
+        mTexture = new int[stride * rows];
+        for (int y = 0; y < rows; y++) {
+            int gy = y / CELL;
+            float fy = (y % CELL) / (float) CELL;
+            for (int x = 0; x < stride; x++) {
+                int gx = x / CELL;
+                float fx = (x % CELL) / (float) CELL;
+                float top = grid[gy * gridWidth + gx] * (1 - fx)
+                        + grid[gy * gridWidth + gx + 1] * fx;
+                float bottom = grid[(gy + 1) * gridWidth + gx] * (1 - fx)
+                        + grid[(gy + 1) * gridWidth + gx + 1] * fx;
+                mTexture[y * stride + x] = (int) (top * (1 - fy) + bottom * fy)
+                        + random.nextInt(GRAIN);
+            }
+        }
+    }
+
+    /**
+     * Cuts a frame out of the texture, so that the frame's pixel (x, y) is the texture's
+     * (x + shiftX, y + shiftY), black level included.
+     */
+    byte[] crop(int shiftX, int shiftY) {
+        int stride = mWidth + 2 * MARGIN;
+        byte[] raw = new byte[mWidth * mHeight * 2];
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                put(raw, y * mWidth + x, BayerKernel.BLACK_LEVEL
+                        + mTexture[(y + MARGIN + shiftY) * stride + x + MARGIN + shiftX]);
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * @return the frame at {@code factor} times the exposure, in a plane with
+     * {@code rowStride} bytes per row. Samples are not clipped at the white level.
+     */
+    static byte[] brighter(byte[] raw, int width, int height, float factor, int rowStride) {
+        byte[] plane = new byte[rowStride * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = BayerKernel.BLACK_LEVEL + Math.round(
+                        (sample(raw, y * width + x) - BayerKernel.BLACK_LEVEL) * factor);
+                plane[y * rowStride + x * 2] = (byte) value;
+                plane[y * rowStride + x * 2 + 1] = (byte) (value >> 8);
+            }
+        }
+        return plane;
+    }
+
+    /**
+     * @return the frame with Gaussian noise of {@code sigma} digital numbers added.
+     */
+    static byte[] noisy(byte[] raw, double sigma, long seed) {
+        Random random = new Random(seed);
+        byte[] out = new byte[raw.length];
+        for (int i = 0; i < raw.length / 2; i++) {
+            long noise = Math.round(random.nextGaussian() * sigma);
+            put(out, i, (int) Math.max(0, sample(raw, i) + noise));
+        }
+        return out;
+    }
+
+    static int sample(byte[] raw, int index) {
+        return (raw[index * 2] & 0xFF) | ((raw[index * 2 + 1] & 0xFF) << 8);
+    }
+
+    static void put(byte[] raw, int index, int value) {
+        raw[index * 2] = (byte) value;
+        raw[index * 2 + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs short benchmarks on small synthetic frames, with enough camera buffers that no image is
+ * lost, so every request is accounted for.
+ */
+public class ThroughputBenchmarkTest {
+
+    /** A clock without counters, as on a runtime that has none. */
+    private static class ClockStats implements RuntimeStats {
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public long threadAllocatedBytes() {
+            return 0;
+        }
+
+        @Override
+        public long gcCount() {
+            return 0;
+        }
+
+        @Override
+        public long gcTimeMs() {
+            return 0;
+        }
+
+        @Override
+        public long blockingGcTimeMs() {
+            return 0;
+        }
+
+        @Override
+        public long nativeHeapBytes() {
+            return 0;
+        }
+
+        @Override
+        public void startAllocCounting() {
+        }
+
+        @Override
+        public void stopAllocCounting() {
+        }
+    }
+
+    private ThroughputBenchmark.Config mConfig;
+    private final Set<Integer> mProcessed = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void setUp() {
+        mConfig = new ThroughputBenchmark.Config();
+        mConfig.width = 64;
+        mConfig.height = 48;
+        mConfig.totalFrames = 12;
+        mConfig.burstLength = 4;
+        mConfig.framesPerSecond = 200;
+        mConfig.burstIntervalMs = 20;
+        mConfig.queueCapacity = 16;
+        mConfig.workers = 2;
+        mConfig.exposureTimeNs = 1000000;
+    }
+
+    @Test
+    public void processesEveryFrame() throws InterruptedException {
+        ThroughputBenchmark.Report report = run(-1);
+        assertEquals(12, report.emitted);
+        assertEquals(12, report.processed);
+        assertEquals(0, report.failed);
+        assertEquals(0, report.dropped);
+        assertEquals(12, mProcessed.size());
+        assertEquals(12, report.records.size());
+        assertTrue(report.maxQueueDepth >= 1);
+        assertTrue(report.notes.isEmpty());
+        for (CaptureTelemetry.Record record : report.records) {
+            assertEquals("queued", record.stages.get(0).name);
+            assertEquals("work", record.stages.get(1).name);
+        }
+    }
+
+    @Test
+    public void countsAFrameWhosePipelineThrowsAsFailed() throws InterruptedException {
+        ThroughputBenchmark.Report report = run(3);
+        assertEquals(11, report.processed);
+        assertEquals(1, report.failed);
+        assertEquals(0, report.dropped);
+        assertEquals(1, report.notes.size());
+        assertTrue(report.notes.get(0).startsWith("Frame 3 failed"));
+    }
+
+    @Test
+    public void countsFailedCaptures() throws InterruptedException {
+        mConfig.failureRate = 1;
+        ThroughputBenchmark.Report report = run(-1);
+        assertEquals(0, report.processed);
+        assertEquals(12, report.failed);
+        assertTrue(mProcessed.isEmpty());
+    }
+
+    @Test
+    public void reportsNearestRankPercentiles() {
+        List<Long> sorted = Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L);
+        assertEquals(5, ThroughputBenchmark.Report.percentile(sorted, 50));
+        assertEquals(9, ThroughputBenchmark.Report.percentile(sorted, 90));
+        assertEquals(10, ThroughputBenchmark.Report.percentile(sorted, 99));
+    }
+
+    /**
+     * Runs the benchmark with a pipeline that checks each frame's size and throws on frame
+     * {@code failing}.
+     */
+    private ThroughputBenchmark.Report run(final int failing) throws InterruptedException {
+        ThroughputBenchmark benchmark = new ThroughputBenchmark(mConfig,
+                new ThroughputBenchmark.Pipeline() {
+                    @Override
+                    public void process(int index, ByteBuffer frame,
+                                        CaptureTelemetry.Capture capture) throws IOException {
+                        capture.stage("work");
+                        assertEquals(64 * 48 * 2, frame.remaining());
+                        if (index == failing) {
+                            throw new IOException("injected");
+                        }
+                        mProcessed.add(index);
+                    }
+                }, new ClockStats());
+        return benchmark.run();
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks tile layout and reassembly on a grid whose size is not a multiple of the tile size, so
+ * the last row and column of windows are shifted inward.
+ */
+public class TileGridTest {
+
+    private static final int HEIGHT = 70;
+    private static final int WIDTH = 90;
+    private static final int CHANNELS = 4;
+    private static final int TILE_SIZE = 32;
+
+    private final TileGrid mGrid = new TileGrid(HEIGHT, WIDTH, CHANNELS, TILE_SIZE);
+    private final Random mRandom = new Random(3);
+
+    @Test
+    public void coversTheTensorWithEqualWindows() {
+        assertEquals(3, mGrid.rows);
+        assertEquals(3, mGrid.cols);
+        assertEquals(9, mGrid.count());
+        assertEquals(TILE_SIZE + 2 * DenoisingModel.TILE_MARGIN, mGrid.tileHeight);
+        assertEquals(TILE_SIZE + 2 * DenoisingModel.TILE_MARGIN, mGrid.tileWidth);
+        for (int tile : mGrid.all()) {
+            int top = mGrid.windowTop(tile);
+            int left = mGrid.windowLeft(tile);
+            assertTrue(top >= 0 && top + mGrid.tileHeight <= HEIGHT);
+            assertTrue(left >= 0 && left + mGrid.tileWidth <= WIDTH);
+            // The core lies inside the window.
+            assertTrue(mGrid.coreTop(tile) >= top);
+            assertTrue(Math.min(mGrid.coreTop(tile) + TILE_SIZE, HEIGHT)
+                    <= top + mGrid.tileHeight);
+            assertTrue(mGrid.coreLeft(tile) >= left);
+            assertTrue(Math.min(mGrid.coreLeft(tile) + TILE_SIZE, WIDTH)
+                    <= left + mGrid.tileWidth);
+        }
+    }
+
+    @Test
+    public void writingEveryExtractedWindowReproducesTheInput() {
+        float[] src = noisy(0.5f, 0.1f);
+        float[] dst = new float[src.length];
+        float[] window = new float[mGrid.windowFloats() * 2];
+        for (int tile : mGrid.all()) {
+            // At an offset, as in a batch.
+            mGrid.extract(src, tile, window, mGrid.windowFloats());
+            mGrid.write(window, mGrid.windowFloats(), tile, dst);
+        }
+        assertArrayEquals(src, dst, 0);
+    }
+
+    @Test
+    public void passesQuietTilesThrough() {
+        float[] src = noisy(0.5f, 0.001f);
+        float[] dst = new float[src.length];
+        assertEquals(0, mGrid.classify(src, dst).length);
+        assertArrayEquals(src, dst, 0);
+    }
+
+    @Test
+    public void passesClippedTilesThrough() {
+        float[] src = noisy(0.5f, 0.1f);
+        for (int i = 0; i < src.length; i++) {
+            src[i] = Math.min(1, src[i] + 1);
+        }
+        float[] dst = new float[src.length];
+        assertEquals(0, mGrid.classify(src, dst).length);
+        assertArrayEquals(src, dst, 0);
+    }
+
+    @Test
+    public void boxFiltersBlackTiles() {
+        float[] src = noisy(0.02f, 0.02f);
+        float[] dst = new float[src.length];
+        assertEquals(0, mGrid.classify(src, dst).length);
+        int y = 10;
+        int x = 20;
+        for (int c = 0; c < CHANNELS; c++) {
+            float sum = 0;
+            for (int yy = y - 1; yy <= y + 1; yy++) {
+                for (int xx = x - 1; xx <= x + 1; xx++) {
+                    sum += src[(yy * WIDTH + xx) * CHANNELS + c];
+                }
+            }
+            assertEquals(sum / 9, dst[(y * WIDTH + x) * CHANNELS + c], 1e-6);
+        }
+        // At the corner, the filter shrinks to the 2x2 quads inside the tensor.
+        float corner = (src[0] + src[CHANNELS] + src[WIDTH * CHANNELS]
+                + src[(WIDTH + 1) * CHANNELS]) / 4;
+        assertEquals(corner, dst[0], 1e-6);
+    }
+
+    @Test
+    public void infersOnlyNoisyTiles() {
+        // Noisy everywhere but the middle tile.
+        float[] src = noisy(0.5f, 0.1f);
+        for (int y = 32; y < 64; y++) {
+            Arrays.fill(src, (y * WIDTH + 32) * CHANNELS, (y * WIDTH + 64) * CHANNELS, 0.5f);
+        }
+        float[] dst = new float[src.length];
+        assertArrayEquals(new int[]{0, 1, 2, 3, 5, 6, 7, 8}, mGrid.classify(src, dst));
+        assertEquals(0.5f, dst[(40 * WIDTH + 40) * CHANNELS], 0);
+        assertEquals(0, dst[0], 0);
+    }
+
+    @Test
+    public void fadesInferredWindowsIntoSkippedNeighbours() {
+        float[] src = noisy(0.5f, 0.1f);
+        for (int y = 32; y < 64; y++) {
+            Arrays.fill(src, (y * WIDTH + 32) * CHANNELS, (y * WIDTH + 64) * CHANNELS, 0.5f);
+        }
+        float[] dst = new float[src.length];
+        int[] tiles = mGrid.classify(src, dst);
+        // A model that adds 1 everywhere.
+        float[] window = new float[mGrid.windowFloats()];
+        for (int tile : tiles) {
+            mGrid.extract(src, tile, window, 0);
+            for (int i = 0; i < window.length; i++) {
+                window[i] += 1;
+            }
+            mGrid.write(window, 0, tile, dst);
+        }
+        // Inferred cores are the model's output.
+        assertEquals(src[5] + 1, dst[5], 1e-6);
+        // The skipped tile's edge rows move toward the model's output, less and less inward.
+        float previous = 1;
+        for (int d = 0; d < TileGrid.BLEND_WIDTH; d++) {
+            int i = ((32 + d) * WIDTH + 48) * CHANNELS;
+            float lift = dst[i] - 0.5f;
+            assertTrue(lift > 0 && lift < previous);
+            previous = lift;
+        }
+    }
+
+    private float[] noisy(float mean, float amplitude) {
+        float[] values = new float[HEIGHT * WIDTH * CHANNELS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = mean + (mRandom.nextFloat() - 0.5f) * 2 * amplitude;
+        }
+        return values;
+    }
+}
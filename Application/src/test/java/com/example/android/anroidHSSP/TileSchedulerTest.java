@@ -0,0 +1,179 @@
+package com.example.android.anroidHSSP;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the scheduler on fake backends that add a constant to every value, so the reassembled
+ * output shows which tiles were run, and on backends that fail.
+ */
+public class TileSchedulerTest {
+
+    private static final int HEIGHT = 100;
+    private static final int WIDTH = 130;
+    private static final int CHANNELS = 4;
+
+    /** Adds 1 to every value, failing from the {@code failAfter}th tile on. */
+    private static class AddOneBackend implements TileScheduler.Backend {
+        final AtomicInteger tiles = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final int failAfter;
+
+        AddOneBackend(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public String getName() {
+            return "add one";
+        }
+
+        @Override
+        public void run(float[] input, float[] output, int height, int width, int channels)
+                throws Exception {
+            if (tiles.get() >= failAfter) {
+                failures.incrementAndGet();
+                throw new IOException("injected");
+            }
+            assertEquals(height * width * channels, input.length);
+            for (int i = 0; i < input.length; i++) {
+                output[i] = input[i] + 1;
+            }
+            tiles.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private TileScheduler mScheduler;
+    private float[] mSrc;
+    private float[] mDst;
+
+    @Before
+    public void setUp() {
+        mScheduler = new TileScheduler("model", 32);
+        Random random = new Random(5);
+        mSrc = new float[HEIGHT * WIDTH * CHANNELS];
+        for (int i = 0; i < mSrc.length; i++) {
+            mSrc[i] = random.nextFloat();
+        }
+        mDst = new float[mSrc.length];
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.close();
+    }
+
+    @Test
+    public void roundsTheTileSizeUpToTheModelAlignment() {
+        assertEquals(32, new TileScheduler("model", 20).getTileSize());
+        assertEquals(DenoisingModel.MODEL_ALIGNMENT, new TileScheduler("model", 1).getTileSize());
+    }
+
+    @Test
+    public void spreadsTilesOverEveryBackend() throws IOException {
+        AddOneBackend first = add(Integer.MAX_VALUE);
+        AddOneBackend second = add(Integer.MAX_VALUE);
+        int count = new TileGrid(HEIGHT, WIDTH, CHANNELS, 32).count();
+        // Frames skip a backend until it is created, then split by measured throughput.
+        int frames = 0;
+        while (frames < 100 && (first.tiles.get() == 0 || second.tiles.get() == 0)) {
+            mDst = new float[mSrc.length];
+            mScheduler.run(mSrc, mDst, HEIGHT, WIDTH, CHANNELS);
+            assertAddedOne();
+            frames++;
+            assertEquals(frames * count, first.tiles.get() + second.tiles.get());
+        }
+        assertTrue(first.tiles.get() > 0);
+        assertTrue(second.tiles.get() > 0);
+    }
+
+    @Test
+    public void runsOnlyTheGivenTiles() throws IOException {
+        AddOneBackend backend = add(Integer.MAX_VALUE);
+        TileGrid grid = new TileGrid(HEIGHT, WIDTH, CHANNELS, mScheduler.getTileSize());
+        mScheduler.run(mSrc, mDst, grid, new int[]{0, 4});
+        assertEquals(2, backend.tiles.get());
+        assertEquals(mSrc[0] + 1, mDst[0], 1e-6);
+        // Tile 1, to the right of tile 0, was not run.
+        assertEquals(0, mDst[(5 * WIDTH + 40) * CHANNELS], 0);
+        mScheduler.run(mSrc, mDst, grid, new int[0]);
+        assertEquals(2, backend.tiles.get());
+    }
+
+    @Test
+    public void movesTheTilesOfAFailingBackendToTheOthers() throws IOException {
+        AddOneBackend failing = add(2);
+        AddOneBackend healthy = add(Integer.MAX_VALUE);
+        for (int frames = 0; frames < 100 && failing.failures.get() == 0; frames++) {
+            mDst = new float[mSrc.length];
+            mScheduler.run(mSrc, mDst, HEIGHT, WIDTH, CHANNELS);
+            assertAddedOne();
+        }
+        assertEquals(1, failing.failures.get());
+        assertEquals(2, failing.tiles.get());
+
+        // The failed backend is dropped for good.
+        int before = healthy.tiles.get();
+        mDst = new float[mSrc.length];
+        mScheduler.run(mSrc, mDst, HEIGHT, WIDTH, CHANNELS);
+        assertAddedOne();
+        assertEquals(1, failing.failures.get());
+        assertEquals(new TileGrid(HEIGHT, WIDTH, CHANNELS, 32).count(),
+                healthy.tiles.get() - before);
+    }
+
+    @Test
+    public void skipsBackendsThatCannotBeCreated() throws IOException {
+        mScheduler.addBackend(new Callable<TileScheduler.Backend>() {
+            @Override
+            public TileScheduler.Backend call() throws IOException {
+                throw new IOException("no delegate");
+            }
+        });
+        add(Integer.MAX_VALUE);
+        mScheduler.run(mSrc, mDst, HEIGHT, WIDTH, CHANNELS);
+        assertAddedOne();
+    }
+
+    @Test
+    public void failsWhenNoBackendCanRunTheTiles() {
+        add(3);
+        try {
+            mScheduler.run(mSrc, mDst, HEIGHT, WIDTH, CHANNELS);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected: the only backend failed.
+        }
+    }
+
+    private AddOneBackend add(int failAfter) {
+        final AddOneBackend backend = new AddOneBackend(failAfter);
+        mScheduler.addBackend(new Callable<TileScheduler.Backend>() {
+            @Override
+            public TileScheduler.Backend call() {
+                return backend;
+            }
+        });
+        return backend;
+    }
+
+    private void assertAddedOne() {
+        for (int i = 0; i < mSrc.length; i++) {
+            assertEquals(mSrc[i] + 1, mDst[i], 1e-6);
+        }
+    }
+}